@@ -8,6 +8,7 @@ import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.inject.Binder;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
 import com.google.inject.Singleton;
@@ -29,9 +30,16 @@ import com.hubspot.baragon.agent.healthcheck.ConfigChecker;
 import com.hubspot.baragon.agent.healthcheck.InternalStateChecker;
 import com.hubspot.baragon.agent.healthcheck.LoadBalancerHealthcheck;
 import com.hubspot.baragon.agent.healthcheck.ZooKeeperHealthcheck;
+import com.hubspot.baragon.agent.lbs.AtomicConfigWriter;
+import com.hubspot.baragon.agent.lbs.ConfigFileManifest;
+import com.hubspot.baragon.agent.lbs.ConfigValidator;
 import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.lbs.LbAdapter;
 import com.hubspot.baragon.agent.lbs.LbConfigGenerator;
 import com.hubspot.baragon.agent.lbs.LocalLbAdapter;
+import com.hubspot.baragon.agent.lbs.ReloadScheduler;
+import com.hubspot.baragon.agent.lbs.RuntimeUpstreamLbAdapter;
+import com.hubspot.baragon.agent.listeners.BaragonStateMirror;
 import com.hubspot.baragon.agent.listeners.DirectoryChangesListener;
 import com.hubspot.baragon.agent.listeners.ResyncListener;
 import com.hubspot.baragon.agent.managed.BaragonAgentGraphiteReporterManaged;
@@ -124,6 +132,11 @@ public class BaragonAgentServiceModule
     binder.bind(LbConfigGenerator.class).in(Scopes.SINGLETON);
     binder.bind(ServerProvider.class).in(Scopes.SINGLETON);
     binder.bind(FilesystemConfigHelper.class).in(Scopes.SINGLETON);
+    binder.bind(ConfigFileManifest.class).in(Scopes.SINGLETON);
+    binder.bind(AtomicConfigWriter.class).in(Scopes.SINGLETON);
+    binder.bind(ReloadScheduler.class).in(Scopes.SINGLETON);
+    binder.bind(ConfigValidator.class).in(Scopes.SINGLETON);
+    binder.bind(BaragonStateMirror.class).in(Scopes.SINGLETON);
     binder.bind(AgentHeartbeatWorker.class).in(Scopes.SINGLETON);
     binder.bind(InternalStateChecker.class).in(Scopes.SINGLETON);
     binder.bind(DirectoryChangesListener.class).in(Scopes.SINGLETON);
@@ -265,6 +278,19 @@ public class BaragonAgentServiceModule
     return configuration.getZooKeeperConfiguration();
   }
 
+  @Provides
+  @Singleton
+  public LbAdapter providesLbAdapter(
+    LoadBalancerConfiguration loadBalancerConfiguration,
+    Provider<LocalLbAdapter> localLbAdapter,
+    Provider<RuntimeUpstreamLbAdapter> runtimeUpstreamLbAdapter
+  ) {
+    if (loadBalancerConfiguration.getRuntimeUpstreamApi().isPresent()) {
+      return runtimeUpstreamLbAdapter.get();
+    }
+    return localLbAdapter.get();
+  }
+
   @Provides
   @Named(AGENT_LOCK_TIMEOUT_MS)
   public long provideAgentLockTimeoutMs(BaragonAgentConfiguration configuration) {
@@ -315,7 +341,8 @@ public class BaragonAgentServiceModule
       ),
       config.getGcloudMetadata(),
       config.getExtraAgentData(),
-      true
+      true,
+      BaragonAgentMetadata.INLINE_BATCH_VERSION
     );
   }
 
@@ -145,6 +145,27 @@ public class BaragonAgentConfiguration extends Configuration {
   @JsonProperty("purgeCacheUriFormat")
   private String purgeCacheUriFormat = "http://127.0.0.1:8082/purge/%s*";
 
+  @JsonProperty("atomicConfigWrites")
+  private boolean atomicConfigWrites = false;
+
+  @JsonProperty("stateMirrorEnabled")
+  private boolean stateMirrorEnabled = true;
+
+  @JsonProperty("transactionalBatchApply")
+  private boolean transactionalBatchApply = false;
+
+  @JsonProperty("bootstrapRenderThreads")
+  @Min(1)
+  private int bootstrapRenderThreads = Runtime.getRuntime().availableProcessors();
+
+  @JsonProperty("bootstrapWriteThreads")
+  @Min(1)
+  private int bootstrapWriteThreads = 4;
+
+  @JsonProperty("bootstrapWriteBatchSize")
+  @Min(1)
+  private int bootstrapWriteBatchSize = 50;
+
   public HttpClientConfiguration getHttpClientConfiguration() {
     return httpClientConfiguration;
   }
@@ -440,4 +461,52 @@ public class BaragonAgentConfiguration extends Configuration {
   public void setPurgeCacheUriFormat(String purgeCacheUriFormat) {
     this.purgeCacheUriFormat = purgeCacheUriFormat;
   }
+
+  public int getBootstrapRenderThreads() {
+    return bootstrapRenderThreads;
+  }
+
+  public void setBootstrapRenderThreads(int bootstrapRenderThreads) {
+    this.bootstrapRenderThreads = bootstrapRenderThreads;
+  }
+
+  public int getBootstrapWriteThreads() {
+    return bootstrapWriteThreads;
+  }
+
+  public void setBootstrapWriteThreads(int bootstrapWriteThreads) {
+    this.bootstrapWriteThreads = bootstrapWriteThreads;
+  }
+
+  public int getBootstrapWriteBatchSize() {
+    return bootstrapWriteBatchSize;
+  }
+
+  public void setBootstrapWriteBatchSize(int bootstrapWriteBatchSize) {
+    this.bootstrapWriteBatchSize = bootstrapWriteBatchSize;
+  }
+
+  public boolean isAtomicConfigWrites() {
+    return atomicConfigWrites;
+  }
+
+  public void setAtomicConfigWrites(boolean atomicConfigWrites) {
+    this.atomicConfigWrites = atomicConfigWrites;
+  }
+
+  public boolean isStateMirrorEnabled() {
+    return stateMirrorEnabled;
+  }
+
+  public void setStateMirrorEnabled(boolean stateMirrorEnabled) {
+    this.stateMirrorEnabled = stateMirrorEnabled;
+  }
+
+  public boolean isTransactionalBatchApply() {
+    return transactionalBatchApply;
+  }
+
+  public void setTransactionalBatchApply(boolean transactionalBatchApply) {
+    this.transactionalBatchApply = transactionalBatchApply;
+  }
 }
@@ -0,0 +1,79 @@
+package com.hubspot.baragon.agent.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/*
+ * Checks the configs written by an apply on their own, in a harness config rendered from
+ * harnessTemplate, instead of checking every config file. The template is rendered with
+ * `files`, a list of the changed files that each have a `path`, a `relativePath` under
+ * the root path and the `directory` of that relative path, and should include any shared
+ * configs the service files depend on.
+ */
+public class IncrementalCheckConfiguration {
+  // Formatted with the path of the harness config, e.g. "nginx -t -c %s"
+  @NotNull
+  @JsonProperty("checkConfigCommandFormat")
+  private String checkConfigCommandFormat;
+
+  @NotNull
+  @JsonProperty("harnessTemplate")
+  private String harnessTemplate;
+
+  @NotNull
+  @JsonProperty("harnessPath")
+  private String harnessPath;
+
+  // Files or directories included by the harness, a change to them forces a full check
+  @NotNull
+  @JsonProperty("sharedPaths")
+  private List<String> sharedPaths = Collections.emptyList();
+
+  @Min(0)
+  @JsonProperty("fullCheckIntervalMs")
+  private long fullCheckIntervalMs = TimeUnit.MINUTES.toMillis(10);
+
+  public String getCheckConfigCommandFormat() {
+    return checkConfigCommandFormat;
+  }
+
+  public void setCheckConfigCommandFormat(String checkConfigCommandFormat) {
+    this.checkConfigCommandFormat = checkConfigCommandFormat;
+  }
+
+  public String getHarnessTemplate() {
+    return harnessTemplate;
+  }
+
+  public void setHarnessTemplate(String harnessTemplate) {
+    this.harnessTemplate = harnessTemplate;
+  }
+
+  public String getHarnessPath() {
+    return harnessPath;
+  }
+
+  public void setHarnessPath(String harnessPath) {
+    this.harnessPath = harnessPath;
+  }
+
+  public List<String> getSharedPaths() {
+    return sharedPaths;
+  }
+
+  public void setSharedPaths(List<String> sharedPaths) {
+    this.sharedPaths = sharedPaths;
+  }
+
+  public long getFullCheckIntervalMs() {
+    return fullCheckIntervalMs;
+  }
+
+  public void setFullCheckIntervalMs(long fullCheckIntervalMs) {
+    this.fullCheckIntervalMs = fullCheckIntervalMs;
+  }
+}
@@ -51,6 +51,30 @@ public class LoadBalancerConfiguration {
 
   private boolean limitWorkerCount = false;
 
+  // Reloads requested within this long of each other are done as one reload
+  @Min(0)
+  private long reloadCoalesceWindowMs = 0;
+
+  // Upper bound on how long coalescing may delay the first of the requested reloads
+  @Min(0)
+  private long reloadMaxLatencyMs = TimeUnit.SECONDS.toMillis(2);
+
+  @Min(1)
+  private long workerLimitRetryMs = TimeUnit.SECONDS.toMillis(1);
+
+  // How long a reload is deferred while the worker limit is reached before it fails
+  @Min(0)
+  private long workerLimitMaxDeferMs = TimeUnit.MINUTES.toMillis(1);
+
+  // When present, upstream-only changes are applied through this API instead of a reload
+  @NotNull
+  private Optional<RuntimeUpstreamApiConfiguration> runtimeUpstreamApi =
+    Optional.absent();
+
+  // When present, applies only check the configs they changed
+  @NotNull
+  private Optional<IncrementalCheckConfiguration> incrementalCheck = Optional.absent();
+
   private boolean turnOffPurgeableCacheInTemplates = false;
 
   @NotNull
@@ -202,4 +226,56 @@ public class LoadBalancerConfiguration {
   public void setMinHealthyAgents(int minHealthyAgents) {
     this.minHealthyAgents = minHealthyAgents;
   }
+
+  public long getReloadCoalesceWindowMs() {
+    return reloadCoalesceWindowMs;
+  }
+
+  public void setReloadCoalesceWindowMs(long reloadCoalesceWindowMs) {
+    this.reloadCoalesceWindowMs = reloadCoalesceWindowMs;
+  }
+
+  public long getReloadMaxLatencyMs() {
+    return reloadMaxLatencyMs;
+  }
+
+  public void setReloadMaxLatencyMs(long reloadMaxLatencyMs) {
+    this.reloadMaxLatencyMs = reloadMaxLatencyMs;
+  }
+
+  public long getWorkerLimitRetryMs() {
+    return workerLimitRetryMs;
+  }
+
+  public void setWorkerLimitRetryMs(long workerLimitRetryMs) {
+    this.workerLimitRetryMs = workerLimitRetryMs;
+  }
+
+  public long getWorkerLimitMaxDeferMs() {
+    return workerLimitMaxDeferMs;
+  }
+
+  public void setWorkerLimitMaxDeferMs(long workerLimitMaxDeferMs) {
+    this.workerLimitMaxDeferMs = workerLimitMaxDeferMs;
+  }
+
+  public Optional<RuntimeUpstreamApiConfiguration> getRuntimeUpstreamApi() {
+    return runtimeUpstreamApi;
+  }
+
+  public void setRuntimeUpstreamApi(
+    Optional<RuntimeUpstreamApiConfiguration> runtimeUpstreamApi
+  ) {
+    this.runtimeUpstreamApi = runtimeUpstreamApi;
+  }
+
+  public Optional<IncrementalCheckConfiguration> getIncrementalCheck() {
+    return incrementalCheck;
+  }
+
+  public void setIncrementalCheck(
+    Optional<IncrementalCheckConfiguration> incrementalCheck
+  ) {
+    this.incrementalCheck = incrementalCheck;
+  }
 }
@@ -0,0 +1,38 @@
+package com.hubspot.baragon.agent.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import javax.validation.constraints.NotNull;
+
+/*
+ * Endpoint of a dynamic upstream module on the local load balancer (e.g.
+ * ngx_dynamic_upstream), used to add and remove upstream servers without a reload. The
+ * upstreams it manages must be declared with a shared memory zone.
+ */
+public class RuntimeUpstreamApiConfiguration {
+  @NotNull
+  @JsonProperty("uri")
+  private String uri;
+
+  // Formatted with the service id and an upstream group to get the name of the group's
+  // upstream block, e.g. baragon_%s_%s. A format without the group names a single block
+  // per service, services with upstreams in several groups are then reloaded instead.
+  @NotNull
+  @JsonProperty("upstreamNameFormat")
+  private String upstreamNameFormat = "baragon_%s";
+
+  public String getUri() {
+    return uri;
+  }
+
+  public void setUri(String uri) {
+    this.uri = uri;
+  }
+
+  public String getUpstreamNameFormat() {
+    return upstreamNameFormat;
+  }
+
+  public void setUpstreamNameFormat(String upstreamNameFormat) {
+    this.upstreamNameFormat = upstreamNameFormat;
+  }
+}
@@ -0,0 +1,196 @@
+package com.hubspot.baragon.agent.handlebars;
+
+import com.github.jknack.handlebars.ValueResolver;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.ServiceContext;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/*
+ * Resolves the properties of the models rendered into agent configs with plain getter
+ * calls, instead of the reflective lookups of the JavaBean resolver. Each type exposes
+ * the same properties the JavaBean resolver would, anything else is left to the next
+ * resolver.
+ */
+public enum BaragonModelValueResolver implements ValueResolver {
+  INSTANCE;
+
+  @Override
+  public Object resolve(Object context, String name) {
+    if (context instanceof UpstreamInfo) {
+      return resolveUpstream((UpstreamInfo) context, name);
+    } else if (context instanceof BaragonService) {
+      return resolveService((BaragonService) context, name);
+    } else if (context instanceof ServiceContext) {
+      return resolveServiceContext((ServiceContext) context, name);
+    } else if (context instanceof BaragonAgentMetadata) {
+      return resolveAgentMetadata((BaragonAgentMetadata) context, name);
+    }
+    return UNRESOLVED;
+  }
+
+  @Override
+  public Object resolve(Object context) {
+    return UNRESOLVED;
+  }
+
+  @Override
+  public Set<Entry<String, Object>> propertySet(Object context) {
+    final String[] names;
+    if (context instanceof UpstreamInfo) {
+      names = UPSTREAM_PROPERTIES;
+    } else if (context instanceof BaragonService) {
+      names = SERVICE_PROPERTIES;
+    } else if (context instanceof ServiceContext) {
+      names = SERVICE_CONTEXT_PROPERTIES;
+    } else if (context instanceof BaragonAgentMetadata) {
+      names = AGENT_METADATA_PROPERTIES;
+    } else {
+      return Collections.emptySet();
+    }
+
+    final Map<String, Object> properties = new LinkedHashMap<>();
+    for (String name : names) {
+      properties.put(name, resolve(context, name));
+    }
+    return properties.entrySet();
+  }
+
+  private static final String[] UPSTREAM_PROPERTIES = {
+    "upstream",
+    "resolvedUpstream",
+    "requestId",
+    "rackId",
+    "originalPath",
+    "group"
+  };
+
+  private static final String[] SERVICE_PROPERTIES = {
+    "serviceId",
+    "owners",
+    "serviceBasePath",
+    "additionalPaths",
+    "loadBalancerGroups",
+    "options",
+    "templateName",
+    "domains",
+    "edgeCacheDNS",
+    "edgeCacheDomains",
+    "preResolveUpstreamDNS"
+  };
+
+  private static final String[] SERVICE_CONTEXT_PROPERTIES = {
+    "service",
+    "upstreams",
+    "upstreamGroups",
+    "timestamp",
+    "present",
+    "rootPath"
+  };
+
+  private static final String[] AGENT_METADATA_PROPERTIES = {
+    "baseAgentUri",
+    "domain",
+    "agentId",
+    "ec2",
+    "gcloud",
+    "extraAgentData",
+    "batchEnabled",
+    "batchVersion"
+  };
+
+  private static Object resolveUpstream(UpstreamInfo upstream, String name) {
+    switch (name) {
+      case "upstream":
+        return upstream.getUpstream();
+      case "resolvedUpstream":
+        return upstream.getResolvedUpstream();
+      case "requestId":
+        return upstream.getRequestId();
+      case "rackId":
+        return upstream.getRackId();
+      case "originalPath":
+        return upstream.getOriginalPath();
+      case "group":
+        return upstream.getGroup();
+      default:
+        return UNRESOLVED;
+    }
+  }
+
+  private static Object resolveService(BaragonService service, String name) {
+    switch (name) {
+      case "serviceId":
+        return service.getServiceId();
+      case "owners":
+        return service.getOwners();
+      case "serviceBasePath":
+        return service.getServiceBasePath();
+      case "additionalPaths":
+        return service.getAdditionalPaths();
+      case "loadBalancerGroups":
+        return service.getLoadBalancerGroups();
+      case "options":
+        return service.getOptions();
+      case "templateName":
+        return service.getTemplateName();
+      case "domains":
+        return service.getDomains();
+      case "edgeCacheDNS":
+        return service.getEdgeCacheDNS();
+      case "edgeCacheDomains":
+        return service.getEdgeCacheDomains();
+      case "preResolveUpstreamDNS":
+        return service.isPreResolveUpstreamDNS();
+      default:
+        return UNRESOLVED;
+    }
+  }
+
+  private static Object resolveServiceContext(ServiceContext context, String name) {
+    switch (name) {
+      case "service":
+        return context.getService();
+      case "upstreams":
+        return context.getUpstreams();
+      case "upstreamGroups":
+        return context.getUpstreamGroups();
+      case "timestamp":
+        return context.getTimestamp();
+      case "present":
+        return context.isPresent();
+      case "rootPath":
+        return context.isRootPath();
+      default:
+        return UNRESOLVED;
+    }
+  }
+
+  private static Object resolveAgentMetadata(BaragonAgentMetadata metadata, String name) {
+    switch (name) {
+      case "baseAgentUri":
+        return metadata.getBaseAgentUri();
+      case "domain":
+        return metadata.getDomain();
+      case "agentId":
+        return metadata.getAgentId();
+      case "ec2":
+        return metadata.getEc2();
+      case "gcloud":
+        return metadata.getGcloud();
+      case "extraAgentData":
+        return metadata.getExtraAgentData();
+      case "batchEnabled":
+        return metadata.isBatchEnabled();
+      case "batchVersion":
+        return metadata.getBatchVersion();
+      default:
+        return UNRESOLVED;
+    }
+  }
+}
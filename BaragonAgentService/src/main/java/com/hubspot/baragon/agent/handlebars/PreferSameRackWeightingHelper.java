@@ -1,16 +1,27 @@
 package com.hubspot.baragon.agent.handlebars;
 
 import com.github.jknack.handlebars.Options;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
 import com.hubspot.baragon.models.BaragonAgentMetadata;
 import com.hubspot.baragon.models.UpstreamInfo;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 
 public class PreferSameRackWeightingHelper {
+  // Helpers whose output depends on the racks of every upstream of the service
+  public static final List<String> HELPER_NAMES = ImmutableList.of(
+    "preferSameRackWeighting",
+    "preferSameRackWeightingOperation",
+    "getWeight"
+  );
+
+  @VisibleForTesting
+  static final String RACK_WEIGHTS_DATA_KEY = "preferSameRackWeightingRackWeights";
+
   private final BaragonAgentConfiguration configuration;
   private final BaragonAgentMetadata agentMetadata;
 
@@ -26,126 +37,106 @@ public class PreferSameRackWeightingHelper {
    *
    * @param weight
    * @return a string representing the weight, based on the big decimal weight input
+   * @deprecated weights are computed by {@link RackWeights}, use preferSameRackWeighting
    */
+  @Deprecated
   public String getWeight(BigDecimal weight) {
     if (weight.compareTo(BigDecimal.ZERO) == 0) {
       return configuration.getZeroWeightString();
     }
-    weight = weight.setScale(0, RoundingMode.UP);
-    if (weight.intValue() == 1) {
-      return "";
-    }
-
-    return String.format(configuration.getWeightingFormat(), weight.intValue());
+    return formatWeight(weight.setScale(0, RoundingMode.UP).intValue());
   }
 
   /**
    *
    * @param upstreams
    * @param currentUpstream
+   * @param allRacks
+   * @param capacity
+   * @param multiplier
+   * @param totalPendingLoad
    * @param options
-   * @return wrapper for calling the operation method that computes the balanced weighting
+   * @return the same as preferSameRackWeighting, which derives the racks, capacity,
+   * multiplier and pending load from the upstreams itself, so those are ignored
+   * @deprecated use preferSameRackWeighting
    */
-  public CharSequence preferSameRackWeighting(
+  @Deprecated
+  public CharSequence preferSameRackWeightingOperation(
     Collection<UpstreamInfo> upstreams,
     UpstreamInfo currentUpstream,
+    List<String> allRacks,
+    BigDecimal capacity,
+    BigDecimal multiplier,
+    BigDecimal totalPendingLoad,
     Options options
   ) {
-    final RackMethodsHelper rackHelper = new RackMethodsHelper();
-    final List<String> allRacks = rackHelper.generateAllRacks(upstreams);
-    if (allRacks.size() == 0) {
-      return "";
-    }
-    final BigDecimal totalPendingLoad = rackHelper.getTotalPendingLoad(allRacks);
-    final BigDecimal capacity = rackHelper.calculateCapacity(allRacks);
-    final BigDecimal multiplier = rackHelper.calculateMultiplier(allRacks);
-    return preferSameRackWeightingOperation(
-      upstreams,
-      currentUpstream,
-      allRacks,
-      capacity,
-      multiplier,
-      totalPendingLoad,
-      null
-    );
+    return preferSameRackWeighting(upstreams, currentUpstream, options);
   }
 
   /**
    *
    * @param upstreams
    * @param currentUpstream
-   * @param allRacks
-   * @param capacity
-   * @param totalPendingLoad
    * @param options
    * @return the weight of the current upstream relative to the current rack such that each upstream carries an equal load.
    */
-  public CharSequence preferSameRackWeightingOperation(
+  public CharSequence preferSameRackWeighting(
     Collection<UpstreamInfo> upstreams,
     UpstreamInfo currentUpstream,
-    List<String> allRacks,
-    BigDecimal capacity,
-    BigDecimal multiplier,
-    BigDecimal totalPendingLoad,
     Options options
   ) {
     if (
-      agentMetadata.getEc2().getAvailabilityZone().isPresent() &&
-      currentUpstream.getRackId().isPresent()
+      !agentMetadata.getEc2().getAvailabilityZone().isPresent() ||
+      !currentUpstream.getRackId().isPresent()
     ) {
-      final RackMethodsHelper rackHelper = new RackMethodsHelper();
-
-      final String currentRack = agentMetadata.getEc2().getAvailabilityZone().get();
-      final String testingRack = currentUpstream.getRackId().get();
-      final BigDecimal countOfCurrentRack = new BigDecimal(
-        Collections.frequency(allRacks, currentRack)
-      );
-      final BigDecimal countOfTestingRack = new BigDecimal(
-        (Collections.frequency(allRacks, testingRack))
-      ); // assume this is always in upstream
-
-      if (countOfCurrentRack.intValue() == 0) { // distribute equally to all testing racks if currentRack is not in upstreams
-        return "";
-      }
+      return ""; // If the required data isn't present for some reason, send even traffic everywhere (i.e. everything has a weight of 1)
+    }
 
-      final BigDecimal load = rackHelper.getReciprocal(countOfCurrentRack);
+    final RackWeights rackWeights = getRackWeights(
+      upstreams,
+      agentMetadata.getEc2().getAvailabilityZone().get(),
+      options
+    );
+    if (rackWeights.isEmpty()) {
+      return "";
+    }
+    return formatWeight(rackWeights.getWeight(currentUpstream.getRackId().get()));
+  }
 
-      if (currentRack.equals(testingRack)) {
-        if (load.compareTo(capacity) == -1) { // load is less than capacity
-          return "";
-        }
-        final BigDecimal weight = capacity.multiply(multiplier);
-        return getWeight(weight);
-      }
+  /*
+   * The helper is called once per upstream while rendering a service, always with the
+   * same upstreams collection, so the weights are kept in the render's data for reuse
+   */
+  private RackWeights getRackWeights(
+    Collection<UpstreamInfo> upstreams,
+    String currentRack,
+    Options options
+  ) {
+    if (options == null) {
+      return new RackWeights(upstreams, currentRack);
+    }
 
-      final BigDecimal pendingLoadInCurrentRack = load.subtract(capacity);
-      if (pendingLoadInCurrentRack.compareTo(BigDecimal.ZERO) < 1) { // pendingLoadInCurrentRack <= 0
-        return configuration.getZeroWeightString();
-      }
+    final Object cached = options.data(RACK_WEIGHTS_DATA_KEY);
+    if (
+      cached instanceof RackWeights &&
+      ((RackWeights) cached).isFor(upstreams, currentRack)
+    ) {
+      return (RackWeights) cached;
+    }
 
-      final BigDecimal loadInTestingRackFromItself = rackHelper.getReciprocal(
-        countOfTestingRack
-      );
-      final BigDecimal extraCapacityInTestingRack = capacity.subtract(
-        loadInTestingRackFromItself
-      );
-      if (extraCapacityInTestingRack.compareTo(BigDecimal.ZERO) < 1) { //extraCapacityInTestingRack <= 0
-        return configuration.getZeroWeightString();
-      }
+    final RackWeights rackWeights = new RackWeights(upstreams, currentRack);
+    options.data(RACK_WEIGHTS_DATA_KEY, rackWeights);
+    return rackWeights;
+  }
 
-      final BigDecimal pendingLoadFromCurrentRackToTestingRack =
-        (
-          extraCapacityInTestingRack.divide(
-            totalPendingLoad,
-            10,
-            BigDecimal.ROUND_HALF_UP
-          )
-        ).multiply(pendingLoadInCurrentRack);
-      final BigDecimal weight = pendingLoadFromCurrentRackToTestingRack.multiply(
-        multiplier
-      );
-      return getWeight(weight);
+  private String formatWeight(int weight) {
+    if (weight == 0) {
+      return configuration.getZeroWeightString();
     }
-    return ""; // If the required data isn't present for some reason, send even traffic everywhere (i.e. everything has a weight of 1)
+    if (weight == 1) {
+      return "";
+    }
+
+    return String.format(configuration.getWeightingFormat(), weight);
   }
 }
@@ -0,0 +1,167 @@
+package com.hubspot.baragon.agent.handlebars;
+
+import com.google.common.collect.ImmutableMap;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Rack histogram and per-rack weights for one collection of upstreams, as seen from the
+ * agent's own rack. Built once per render so that weighting every upstream doesn't
+ * recompute the histogram for each of them.
+ *
+ * Values are kept as longs scaled by 10^10 and rounded exactly like the scale-10 HALF_UP
+ * BigDecimal arithmetic the weights were originally defined with, so the rendered weights
+ * are unchanged. This holds while distinct racks * upstreams stays below ~9 * 10^8.
+ */
+public class RackWeights {
+  private static final int SCALE_DIGITS = 10;
+  private static final long SCALE = 10_000_000_000L;
+  private static final long SQRT_SCALE = 100_000L;
+
+  private final Collection<UpstreamInfo> upstreams;
+  private final String currentRack;
+  private final ImmutableMap<String, Integer> rackCounts;
+  private final int countOfCurrentRack;
+  private final long capacity;
+  private final long multiplier;
+  private final long totalPendingLoad;
+  private final ImmutableMap<String, Integer> weights;
+
+  public RackWeights(Collection<UpstreamInfo> upstreams, String currentRack) {
+    this.upstreams = upstreams;
+    this.currentRack = currentRack;
+
+    Map<String, Integer> counts = new HashMap<>();
+    int rackCount = 0;
+    for (UpstreamInfo upstreamInfo : upstreams) {
+      if (upstreamInfo.getRackId().isPresent()) {
+        counts.merge(upstreamInfo.getRackId().get(), 1, Integer::sum);
+        rackCount++;
+      }
+    }
+    this.rackCounts = ImmutableMap.copyOf(counts);
+    this.countOfCurrentRack = getRackCount(currentRack);
+
+    if (rackCount == 0) {
+      this.capacity = 0;
+      this.multiplier = 0;
+      this.totalPendingLoad = 0;
+      this.weights = ImmutableMap.of();
+      return;
+    }
+
+    // capacity is the proportion of unique racks to upstreams, the load each should carry
+    this.capacity = divide(rackCounts.size(), rackCount);
+    // multiplier is the factor by which fractional weights are scaled to get an integer
+    this.multiplier = (long) rackCounts.size() * rackCount;
+
+    long pendingLoad = 0;
+    for (Map.Entry<String, Integer> entry : rackCounts.entrySet()) {
+      long rackPendingLoad = capacity - divide(1, entry.getValue());
+      if (rackPendingLoad > 0) {
+        pendingLoad += rackPendingLoad * entry.getValue();
+      }
+    }
+    this.totalPendingLoad = pendingLoad;
+
+    ImmutableMap.Builder<String, Integer> weights = ImmutableMap.builder();
+    for (Map.Entry<String, Integer> entry : rackCounts.entrySet()) {
+      weights.put(entry.getKey(), computeWeight(entry.getKey(), entry.getValue()));
+    }
+    this.weights = weights.build();
+  }
+
+  public boolean isFor(Collection<UpstreamInfo> upstreams, String currentRack) {
+    return this.upstreams == upstreams && this.currentRack.equals(currentRack);
+  }
+
+  public boolean isEmpty() {
+    return rackCounts.isEmpty();
+  }
+
+  public int getRackCount(String rack) {
+    return rackCounts.getOrDefault(rack, 0);
+  }
+
+  /**
+   * @return the weight of an upstream in testingRack, such that each upstream carries an
+   * equal load. 1 means no preference and 0 that the upstream should only be a backup
+   */
+  public int getWeight(String testingRack) {
+    Integer weight = weights.get(testingRack);
+    if (weight != null) {
+      return weight;
+    }
+    return computeWeight(testingRack, getRackCount(testingRack));
+  }
+
+  private int computeWeight(String testingRack, int countOfTestingRack) {
+    if (countOfCurrentRack == 0) { // distribute equally if currentRack has no upstreams
+      return 1;
+    }
+
+    final long load = divide(1, countOfCurrentRack);
+
+    if (currentRack.equals(testingRack)) {
+      if (load < capacity) {
+        return 1;
+      }
+      return (int) multiplyCeiling(capacity, multiplier);
+    }
+
+    final long pendingLoadInCurrentRack = load - capacity;
+    if (pendingLoadInCurrentRack <= 0) {
+      return 0;
+    }
+
+    final long extraCapacityInTestingRack = capacity - divide(1, countOfTestingRack);
+    if (extraCapacityInTestingRack <= 0) {
+      return 0;
+    }
+
+    final long pendingLoadFromCurrentRackToTestingRack = multiplyCeiling(
+      divide(extraCapacityInTestingRack, totalPendingLoad),
+      pendingLoadInCurrentRack * multiplier
+    );
+    return (int) ceilingOfScaled(pendingLoadFromCurrentRackToTestingRack);
+  }
+
+  /**
+   * @return dividend / divisor rounded HALF_UP to scale 10, for two non-negative values
+   * of the same scale. Uses long division so that dividend * 10^10 can't overflow
+   */
+  static long divide(long dividend, long divisor) {
+    long quotient = dividend / divisor;
+    long remainder = dividend % divisor;
+    for (int i = 0; i < SCALE_DIGITS; i++) {
+      remainder *= 10;
+      quotient = quotient * 10 + remainder / divisor;
+      remainder = remainder % divisor;
+    }
+    return remainder * 2 >= divisor ? quotient + 1 : quotient;
+  }
+
+  /**
+   * @return the ceiling of scaled * unscaled, where scaled is a non-negative scale 10
+   * value and unscaled a non-negative integer or scale 10 value. The result keeps the
+   * scale of unscaled, and is only 0 when the exact product is 0
+   */
+  static long multiplyCeiling(long scaled, long unscaled) {
+    long high = unscaled / SCALE;
+    long low = unscaled % SCALE;
+
+    // scaled * low / 10^10, split so that no intermediate product overflows
+    long partialHigh = (scaled / SQRT_SCALE) * low;
+    long partialLow = (scaled % SQRT_SCALE) * low;
+    long combined = partialHigh + partialLow / SQRT_SCALE;
+    long quotient = scaled * high + combined / SQRT_SCALE;
+    boolean exact = combined % SQRT_SCALE == 0 && partialLow % SQRT_SCALE == 0;
+    return exact ? quotient : quotient + 1;
+  }
+
+  static long ceilingOfScaled(long scaled) {
+    return scaled / SCALE + (scaled % SCALE == 0 ? 0 : 1);
+  }
+}
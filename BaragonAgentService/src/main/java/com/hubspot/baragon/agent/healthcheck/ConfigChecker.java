@@ -4,29 +4,29 @@ import com.google.common.base.Optional;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.agent.BaragonAgentServiceModule;
-import com.hubspot.baragon.agent.lbs.LocalLbAdapter;
+import com.hubspot.baragon.agent.lbs.ConfigValidator;
 import com.hubspot.baragon.exceptions.InvalidConfigException;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class ConfigChecker implements Runnable {
-  private final LocalLbAdapter adapter;
+  private final ConfigValidator configValidator;
   private final AtomicReference<Optional<String>> errorMessage;
 
   @Inject
   public ConfigChecker(
-    LocalLbAdapter adapter,
+    ConfigValidator configValidator,
     @Named(
       BaragonAgentServiceModule.CONFIG_ERROR_MESSAGE
     ) AtomicReference<Optional<String>> errorMessage
   ) {
-    this.adapter = adapter;
+    this.configValidator = configValidator;
     this.errorMessage = errorMessage;
   }
 
   @Override
   public void run() {
     try {
-      adapter.checkConfigs();
+      configValidator.checkConfigsIfChanged();
       errorMessage.set(Optional.<String>absent());
     } catch (InvalidConfigException e) {
       errorMessage.set(Optional.of(e.getMessage()));
@@ -4,6 +4,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.flipkart.zjsonpatch.JsonDiff;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -11,13 +13,14 @@ import com.hubspot.baragon.agent.BaragonAgentServiceModule;
 import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
 import com.hubspot.baragon.agent.lbs.BootstrapFileChecker;
 import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.listeners.BaragonStateMirror;
 import com.hubspot.baragon.data.BaragonRequestDatastore;
-import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.exceptions.LockTimeoutException;
 import com.hubspot.baragon.models.BaragonConfigFile;
 import com.hubspot.baragon.models.BaragonService;
 import com.hubspot.baragon.models.BaragonServiceState;
 import com.hubspot.baragon.models.BasicServiceContext;
+import com.hubspot.baragon.models.QueuedRequestId;
 import com.hubspot.baragon.models.ServiceContext;
 import com.hubspot.baragon.models.UpstreamInfo;
 import java.util.Collection;
@@ -27,6 +30,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,7 +39,7 @@ import org.slf4j.LoggerFactory;
 public class InternalStateChecker implements Runnable {
   private static final Logger LOG = LoggerFactory.getLogger(InternalStateChecker.class);
 
-  private final BaragonStateDatastore stateDatastore;
+  private final BaragonStateMirror stateMirror;
   private final BaragonRequestDatastore requestDatastore;
   private final LoadBalancerConfiguration loadBalancerConfiguration;
   private final FilesystemConfigHelper configHelper;
@@ -46,7 +50,7 @@ public class InternalStateChecker implements Runnable {
 
   @Inject
   public InternalStateChecker(
-    BaragonStateDatastore stateDatastore,
+    BaragonStateMirror stateMirror,
     BaragonRequestDatastore requestDatastore,
     LoadBalancerConfiguration loadBalancerConfiguration,
     ObjectMapper objectMapper,
@@ -57,7 +61,7 @@ public class InternalStateChecker implements Runnable {
     ) Map<String, BasicServiceContext> internalStateCache,
     @Named(BaragonAgentServiceModule.LOCAL_STATE_ERROR_MESSAGE) Set<String> stateErrors
   ) {
-    this.stateDatastore = stateDatastore;
+    this.stateMirror = stateMirror;
     this.requestDatastore = requestDatastore;
     this.loadBalancerConfiguration = loadBalancerConfiguration;
     this.configHelper = configHelper;
@@ -71,10 +75,19 @@ public class InternalStateChecker implements Runnable {
   public void run() {
     Set<String> invalidServiceMessages = new HashSet<>();
     long now = System.currentTimeMillis();
+    // Only needed for services that differ, and then read once for the whole pass
+    Supplier<Set<String>> queuedServiceIds = Suppliers.memoize(
+      () ->
+        requestDatastore
+          .getQueuedRequestIds()
+          .stream()
+          .map(QueuedRequestId::getServiceId)
+          .collect(Collectors.toSet())
+    );
     new HashMap<>(internalStateCache)
     .forEach(
         (serviceId, context) -> {
-          Optional<BaragonService> maybeService = stateDatastore.getService(serviceId);
+          Optional<BaragonService> maybeService = stateMirror.getService(serviceId);
           if (!maybeService.isPresent()) {
             invalidServiceMessages.add(
               String.format(
@@ -99,7 +112,7 @@ public class InternalStateChecker implements Runnable {
             );
             return;
           }
-          Collection<UpstreamInfo> existingUpstreams = stateDatastore.getUpstreams(
+          Collection<UpstreamInfo> existingUpstreams = stateMirror.getUpstreams(
             serviceId
           );
           BasicServiceContext datastoreContext = new BasicServiceContext(
@@ -110,13 +123,8 @@ public class InternalStateChecker implements Runnable {
             !datastoreContext.equals(context) &&
             now - context.getTimestamp() > TimeUnit.MINUTES.toMillis(2)
           ) {
-            if (
-              requestDatastore
-                .getQueuedRequestIds()
-                .stream()
-                .noneMatch(q -> q.getServiceId().equals(serviceId))
-            ) {
-              Optional<BaragonService> maybeUpdatedService = stateDatastore.getService(
+            if (!queuedServiceIds.get().contains(serviceId)) {
+              Optional<BaragonService> maybeUpdatedService = stateMirror.getService(
                 serviceId
               );
               if (!maybeUpdatedService.isPresent()) {
@@ -131,7 +139,7 @@ public class InternalStateChecker implements Runnable {
                 configHelper,
                 new BaragonServiceState(
                   maybeUpdatedService.get(),
-                  stateDatastore.getUpstreams(serviceId)
+                  stateMirror.getUpstreams(serviceId)
                 ),
                 now
               )
@@ -3,7 +3,7 @@ package com.hubspot.baragon.agent.healthcheck;
 import com.codahale.metrics.health.HealthCheck;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.hubspot.baragon.agent.lbs.LocalLbAdapter;
+import com.hubspot.baragon.agent.lbs.ConfigValidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,17 +13,17 @@ public class LoadBalancerHealthcheck extends HealthCheck {
     LoadBalancerHealthcheck.class
   );
 
-  private final LocalLbAdapter adapter;
+  private final ConfigValidator configValidator;
 
   @Inject
-  public LoadBalancerHealthcheck(LocalLbAdapter adapter) {
-    this.adapter = adapter;
+  public LoadBalancerHealthcheck(ConfigValidator configValidator) {
+    this.configValidator = configValidator;
   }
 
   @Override
   protected Result check() throws Exception {
     try {
-      adapter.checkConfigs();
+      configValidator.checkConfigsIfChanged();
       return Result.healthy();
     } catch (Exception e) {
       LOG.warn("Healthcheck failed: " + e.getMessage());
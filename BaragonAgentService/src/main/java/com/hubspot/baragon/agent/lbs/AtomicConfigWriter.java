@@ -0,0 +1,187 @@
+package com.hubspot.baragon.agent.lbs;
+
+import com.google.common.base.Charsets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.models.BaragonConfigFile;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Writes config files so that a reload never sees a partially written file: each file is
+ * staged next to its target, all staged files are synced together once the whole batch
+ * is written, then each is renamed over its target, and every target directory is synced
+ * once after all of the renames. Backups are hardlinks to the live file instead of
+ * copies, and restores rename a link to the backup over the live file.
+ */
+@Singleton
+public class AtomicConfigWriter {
+  private static final Logger LOG = LoggerFactory.getLogger(AtomicConfigWriter.class);
+
+  private static final String TEMP_FILE_FORMAT = ".%s.baragon-tmp";
+
+  private final ConfigFileManifest manifest;
+
+  @Inject
+  public AtomicConfigWriter(ConfigFileManifest manifest) {
+    this.manifest = manifest;
+  }
+
+  public void write(Collection<BaragonConfigFile> files) throws IOException {
+    final List<StagedFile> staged = new ArrayList<>(files.size());
+    try {
+      for (BaragonConfigFile file : files) {
+        final StagedFile stagedFile = new StagedFile(file);
+        Files.createDirectories(stagedFile.target.getParent());
+        staged.add(stagedFile);
+        writeFile(stagedFile.temp, stagedFile.content);
+      }
+      // Syncing after everything is written lets the files be flushed together
+      for (StagedFile stagedFile : staged) {
+        syncFile(stagedFile.temp);
+      }
+    } catch (IOException e) {
+      deleteTempFiles(staged);
+      throw e;
+    }
+
+    final Set<Path> directories = new LinkedHashSet<>();
+    for (int i = 0; i < staged.size(); i++) {
+      final StagedFile stagedFile = staged.get(i);
+      try {
+        manifest.invalidate(stagedFile.fullPath);
+        Files.move(stagedFile.temp, stagedFile.target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        deleteTempFiles(staged.subList(i, staged.size()));
+        syncDirectories(directories);
+        throw e;
+      }
+      directories.add(stagedFile.target.getParent());
+      manifest.recordWrite(stagedFile.fullPath, stagedFile.content);
+    }
+    syncDirectories(directories);
+  }
+
+  public void backup(Path live, Path backup) throws IOException {
+    Files.deleteIfExists(backup);
+    try {
+      Files.createLink(backup, live);
+    } catch (UnsupportedOperationException | FileSystemException e) {
+      LOG.debug("Could not link {} to {}, copying instead", backup, live, e);
+      Files.copy(live, backup, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  public void restore(Path backup, Path live) throws IOException {
+    restore(Collections.singletonMap(backup, live));
+  }
+
+  /*
+   * Restores each backup over its live file, syncing their directories once at the end
+   */
+  public void restore(Map<Path, Path> backupsToLive) throws IOException {
+    final Set<Path> directories = new LinkedHashSet<>();
+    try {
+      for (Map.Entry<Path, Path> entry : backupsToLive.entrySet()) {
+        final Path backup = entry.getKey();
+        final Path live = entry.getValue();
+        final Path temp = tempFileFor(live);
+        Files.deleteIfExists(temp);
+        try {
+          Files.createLink(temp, backup);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+          LOG.debug("Could not link {} to {}, copying instead", temp, backup, e);
+          Files.copy(backup, temp, StandardCopyOption.REPLACE_EXISTING);
+          syncFile(temp);
+        }
+        Files.move(temp, live, StandardCopyOption.ATOMIC_MOVE);
+        directories.add(live.getParent());
+      }
+    } finally {
+      syncDirectories(directories);
+    }
+  }
+
+  private static void writeFile(Path path, byte[] content) throws IOException {
+    try (
+      FileChannel channel = FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING
+      )
+    ) {
+      final ByteBuffer buffer = ByteBuffer.wrap(content);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  private static void syncFile(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.force(false);
+    }
+  }
+
+  private static void syncDirectories(Set<Path> directories) {
+    for (Path directory : directories) {
+      syncDirectory(directory);
+    }
+  }
+
+  private static void syncDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Not every platform allows opening a directory, the renames still happened
+      LOG.debug("Could not sync directory {}", directory, e);
+    }
+  }
+
+  private static void deleteTempFiles(List<StagedFile> staged) {
+    for (StagedFile stagedFile : staged) {
+      try {
+        Files.deleteIfExists(stagedFile.temp);
+      } catch (IOException e) {
+        LOG.warn("Could not delete temp file {}", stagedFile.temp, e);
+      }
+    }
+  }
+
+  private static Path tempFileFor(Path target) {
+    return target.resolveSibling(
+      String.format(TEMP_FILE_FORMAT, target.getFileName().toString())
+    );
+  }
+
+  private static class StagedFile {
+    private final String fullPath;
+    private final Path target;
+    private final Path temp;
+    private final byte[] content;
+
+    StagedFile(BaragonConfigFile file) {
+      this.fullPath = file.getFullPath();
+      this.target = Paths.get(file.getFullPath()).toAbsolutePath();
+      this.temp = tempFileFor(target);
+      this.content = file.getContent().getBytes(Charsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.hubspot.baragon.agent.lbs;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Content hash, size and mtime of the config files the agent has written or verified, so
+ * that deciding whether rendered configs changed only needs a stat of each file. A file
+ * is read and hashed again only when it is unknown or its size or mtime no longer match,
+ * e.g. after it was edited or replaced outside of the agent.
+ */
+@Singleton
+public class ConfigFileManifest {
+  private static final Logger LOG = LoggerFactory.getLogger(ConfigFileManifest.class);
+
+  private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  public boolean contentMatches(String path, String content) {
+    final byte[] bytes = content.getBytes(Charsets.UTF_8);
+    final HashCode hash = HASH_FUNCTION.hashBytes(bytes);
+
+    final BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+    } catch (NoSuchFileException nsfe) {
+      entries.remove(path);
+      return false;
+    } catch (IOException e) {
+      LOG.warn("Could not stat {}, assuming it changed", path, e);
+      entries.remove(path);
+      return false;
+    }
+
+    Entry entry = entries.get(path);
+    if (entry == null || !entry.matches(attributes)) {
+      entry = verify(path);
+      if (entry == null) {
+        return false;
+      }
+    }
+    return entry.size == bytes.length && entry.hash.equals(hash);
+  }
+
+  public void recordWrite(String path, byte[] content) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(
+        Paths.get(path),
+        BasicFileAttributes.class
+      );
+      entries.put(path, new Entry(HASH_FUNCTION.hashBytes(content), attributes));
+    } catch (IOException e) {
+      LOG.warn("Could not stat {} after writing it", path, e);
+      entries.remove(path);
+    }
+  }
+
+  public void invalidate(String path) {
+    entries.remove(path);
+  }
+
+  private Entry verify(String path) {
+    final Path filePath = Paths.get(path);
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(
+        filePath,
+        BasicFileAttributes.class
+      );
+      Entry entry = new Entry(
+        HASH_FUNCTION.hashBytes(Files.readAllBytes(filePath)),
+        attributes
+      );
+      entries.put(path, entry);
+      return entry;
+    } catch (IOException e) {
+      LOG.debug("Could not verify {}", path, e);
+      entries.remove(path);
+      return null;
+    }
+  }
+
+  private static class Entry {
+    private final HashCode hash;
+    private final long size;
+    private final FileTime lastModifiedTime;
+
+    Entry(HashCode hash, BasicFileAttributes attributes) {
+      this.hash = hash;
+      this.size = attributes.size();
+      this.lastModifiedTime = attributes.lastModifiedTime();
+    }
+
+    boolean matches(BasicFileAttributes attributes) {
+      return (
+        size == attributes.size() &&
+        lastModifiedTime.equals(attributes.lastModifiedTime())
+      );
+    }
+  }
+}
@@ -0,0 +1,274 @@
+package com.hubspot.baragon.agent.lbs;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.jknack.handlebars.Handlebars;
+import com.github.jknack.handlebars.Template;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.agent.config.IncrementalCheckConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.exceptions.InvalidConfigException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Decides how much of the config tree to check. Every full check records a hash of the
+ * path, size and mtime of each file under the root path, so a periodic check can be
+ * skipped while the tree hasn't changed since it was last found valid. With incremental
+ * checks configured, applies only check the files they wrote in a harness config. Since
+ * a harness can't catch conflicts between the changed files and the rest of the tree,
+ * a full check is still done every fullCheckIntervalMs and whenever the shared configs
+ * change.
+ */
+@Singleton
+public class ConfigValidator {
+  private static final Logger LOG = LoggerFactory.getLogger(ConfigValidator.class);
+
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  private final LbAdapter adapter;
+  private final LoadBalancerConfiguration configuration;
+  private final MetricRegistry metricRegistry;
+  private final Optional<IncrementalCheckConfiguration> incrementalCheck;
+  private final Optional<Template> harnessTemplate;
+  private final Object harnessLock = new Object();
+
+  private Optional<HashCode> lastValidTreeHash = Optional.absent();
+  private Optional<HashCode> lastSharedHash = Optional.absent();
+  private long lastFullCheckAt = 0;
+
+  @Inject
+  public ConfigValidator(
+    LbAdapter adapter,
+    LoadBalancerConfiguration configuration,
+    MetricRegistry metricRegistry,
+    Handlebars handlebars
+  ) {
+    this.adapter = adapter;
+    this.configuration = configuration;
+    this.metricRegistry = metricRegistry;
+    this.incrementalCheck = configuration.getIncrementalCheck();
+    this.harnessTemplate = compileHarnessTemplate(handlebars, incrementalCheck);
+  }
+
+  /**
+   * Checks the whole config tree
+   */
+  public void checkConfigs() throws InvalidConfigException {
+    final Optional<HashCode> treeHash = hashTree(
+      Collections.singletonList(configuration.getRootPath())
+    );
+    final Optional<HashCode> sharedHash = hashSharedPaths();
+    final long start = System.currentTimeMillis();
+    try {
+      adapter.checkConfigs();
+    } catch (InvalidConfigException e) {
+      synchronized (this) {
+        lastValidTreeHash = Optional.absent();
+      }
+      throw e;
+    }
+
+    // Hashed before the check, so files changed during it are checked again next time
+    synchronized (this) {
+      lastValidTreeHash = treeHash;
+      lastSharedHash = sharedHash;
+      lastFullCheckAt = start;
+    }
+  }
+
+  /**
+   * Checks the whole config tree, unless it is unchanged since it was last found valid
+   */
+  public void checkConfigsIfChanged() throws InvalidConfigException {
+    final Optional<HashCode> treeHash = hashTree(
+      Collections.singletonList(configuration.getRootPath())
+    );
+    synchronized (this) {
+      if (treeHash.isPresent() && treeHash.equals(lastValidTreeHash)) {
+        LOG.debug("Config tree is unchanged since the last check, skipping it");
+        metricRegistry.meter(ConfigValidator.class.getName() + ".skippedChecks").mark();
+        return;
+      }
+    }
+    checkConfigs();
+  }
+
+  /**
+   * Checks the configs at changedPaths in the harness, falling back to a full check if
+   * incremental checks aren't configured or a full check is due. A harness that fails
+   * is confirmed with a full check, so that a broken harness can't fail applies.
+   */
+  public void checkChangedConfigs(Collection<String> changedPaths)
+    throws InvalidConfigException {
+    if (!incrementalCheck.isPresent() || isFullCheckDue()) {
+      checkConfigs();
+      return;
+    }
+
+    final long start = System.currentTimeMillis();
+    try {
+      checkHarness(changedPaths);
+    } catch (InvalidConfigException e) {
+      LOG.warn("Harness check of {} failed, checking all configs", changedPaths, e);
+      checkConfigs();
+      return;
+    }
+    metricRegistry
+      .timer(ConfigValidator.class.getName() + ".incrementalChecks")
+      .update(System.currentTimeMillis() - start, TimeUnit.MILLISECONDS);
+  }
+
+  private boolean isFullCheckDue() {
+    final long lastFullCheck;
+    final Optional<HashCode> sharedHashAtLastCheck;
+    synchronized (this) {
+      lastFullCheck = lastFullCheckAt;
+      sharedHashAtLastCheck = lastSharedHash;
+    }
+    if (
+      lastFullCheck == 0 ||
+      System.currentTimeMillis() - lastFullCheck >=
+      incrementalCheck.get().getFullCheckIntervalMs()
+    ) {
+      return true;
+    }
+    final Optional<HashCode> sharedHash = hashSharedPaths();
+    if (!sharedHash.isPresent() || !sharedHash.equals(sharedHashAtLastCheck)) {
+      LOG.info("Shared configs changed since the last full check");
+      return true;
+    }
+    return false;
+  }
+
+  private void checkHarness(Collection<String> changedPaths)
+    throws InvalidConfigException {
+    final Path root = Paths.get(configuration.getRootPath()).toAbsolutePath();
+    final List<Map<String, String>> files = new ArrayList<>(changedPaths.size());
+    for (String changedPath : changedPaths) {
+      final Path path = Paths.get(changedPath).toAbsolutePath();
+      if (!Files.exists(path)) {
+        continue;
+      }
+      final Path relativePath = path.startsWith(root) ? root.relativize(path) : path;
+      files.add(
+        ImmutableMap.of(
+          "path",
+          path.toString(),
+          "relativePath",
+          relativePath.toString(),
+          "directory",
+          relativePath.getParent() == null ? "" : relativePath.getParent().toString()
+        )
+      );
+    }
+
+    final Path harnessPath = Paths.get(incrementalCheck.get().getHarnessPath());
+    synchronized (harnessLock) {
+      try {
+        Files.write(
+          harnessPath,
+          harnessTemplate
+            .get()
+            .apply(ImmutableMap.of("files", files))
+            .getBytes(StandardCharsets.UTF_8)
+        );
+      } catch (IOException e) {
+        throw new InvalidConfigException(
+          String.format("Could not write harness config: %s", e.getMessage())
+        );
+      }
+      adapter.checkConfigs(
+        String.format(incrementalCheck.get().getCheckConfigCommandFormat(), harnessPath)
+      );
+    }
+  }
+
+  private static Optional<Template> compileHarnessTemplate(
+    Handlebars handlebars,
+    Optional<IncrementalCheckConfiguration> incrementalCheck
+  ) {
+    if (!incrementalCheck.isPresent()) {
+      return Optional.absent();
+    }
+    try {
+      return Optional.of(
+        handlebars.compileInline(incrementalCheck.get().getHarnessTemplate())
+      );
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private Optional<HashCode> hashSharedPaths() {
+    if (!incrementalCheck.isPresent()) {
+      return Optional.absent();
+    }
+    return hashTree(incrementalCheck.get().getSharedPaths());
+  }
+
+  /**
+   * @return a hash of the path, size and mtime of every file under the roots, absent if
+   * they couldn't all be read
+   */
+  private static Optional<HashCode> hashTree(Collection<String> roots) {
+    final List<HashCode> fileHashes = new ArrayList<>();
+    try {
+      for (String root : roots) {
+        Files.walkFileTree(
+          Paths.get(root),
+          new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+              final Hasher hasher = HASH_FUNCTION.newHasher();
+              hasher.putString(file.toString(), StandardCharsets.UTF_8);
+              hasher.putLong(attributes.size());
+              hasher.putLong(attributes.lastModifiedTime().toMillis());
+              fileHashes.add(hasher.hash());
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+              // Files may be replaced while walking, their new version is hashed later
+              if (e instanceof NoSuchFileException) {
+                return FileVisitResult.CONTINUE;
+              }
+              throw Throwables.propagate(e);
+            }
+          }
+        );
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Could not hash config tree under {}", roots, e);
+      return Optional.absent();
+    }
+    if (fileHashes.isEmpty()) {
+      return Optional.of(HASH_FUNCTION.hashInt(0));
+    }
+    return Optional.of(Hashing.combineUnordered(fileHashes));
+  }
+}
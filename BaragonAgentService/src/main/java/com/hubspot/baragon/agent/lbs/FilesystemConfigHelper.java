@@ -17,11 +17,21 @@ import com.hubspot.baragon.exceptions.MissingTemplateException;
 import com.hubspot.baragon.models.BaragonConfigFile;
 import com.hubspot.baragon.models.BaragonService;
 import com.hubspot.baragon.models.ServiceContext;
+import com.hubspot.baragon.models.UpstreamInfo;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
@@ -37,22 +47,34 @@ public class FilesystemConfigHelper {
   private static final Logger LOG = LoggerFactory.getLogger(FilesystemConfigHelper.class);
 
   private final LbConfigGenerator configGenerator;
-  private final LocalLbAdapter adapter;
+  private final LbAdapter adapter;
   private final ReentrantLock agentLock;
   private final long agentLockTimeoutMs;
   private final BaragonAgentConfiguration configuration;
+  private final ConfigFileManifest manifest;
+  private final AtomicConfigWriter atomicConfigWriter;
+  private final ReloadScheduler reloadScheduler;
+  private final ConfigValidator configValidator;
 
   @Inject
   public FilesystemConfigHelper(
     LbConfigGenerator configGenerator,
-    LocalLbAdapter adapter,
+    LbAdapter adapter,
     BaragonAgentConfiguration configuration,
+    ConfigFileManifest manifest,
+    AtomicConfigWriter atomicConfigWriter,
+    ReloadScheduler reloadScheduler,
+    ConfigValidator configValidator,
     @Named(BaragonAgentServiceModule.AGENT_LOCK) ReentrantLock agentLock,
     @Named(BaragonAgentServiceModule.AGENT_LOCK_TIMEOUT_MS) long agentLockTimeoutMs
   ) {
     this.configGenerator = configGenerator;
     this.adapter = adapter;
     this.configuration = configuration;
+    this.manifest = manifest;
+    this.atomicConfigWriter = atomicConfigWriter;
+    this.reloadScheduler = reloadScheduler;
+    this.configValidator = configValidator;
     this.agentLock = agentLock;
     this.agentLockTimeoutMs = agentLockTimeoutMs;
   }
@@ -65,6 +87,7 @@ public class FilesystemConfigHelper {
         continue;
       }
 
+      manifest.invalidate(filename);
       if (!file.delete()) {
         throw new RuntimeException(
           String.format("Failed to remove %s for %s", filename, service.getServiceId())
@@ -74,20 +97,21 @@ public class FilesystemConfigHelper {
   }
 
   public void reloadConfigs() throws Exception {
-    if (!agentLock.tryLock(agentLockTimeoutMs, TimeUnit.MILLISECONDS)) {
-      LOG.warn("Failed to acquire lock for reload");
-      throw new LockTimeoutException(
-        "Timed out waiting to acquire lock for reload",
-        agentLock
-      );
-    }
-    LOG.debug("Acquired agent lock, reloading configs");
-    try {
+    if (agentLock.isHeldByCurrentThread()) {
       LOG.debug("Reloading configs");
       adapter.reloadConfigs();
-    } finally {
-      agentLock.unlock();
+      return;
     }
+    LOG.debug("Waiting for scheduled reload");
+    ReloadScheduler.await(reloadScheduler.requestReload());
+  }
+
+  /**
+   * Requests a reload from the scheduler, for callers that hold the agent lock and wait
+   * for the reload after releasing it
+   */
+  public CompletableFuture<Void> requestReload() {
+    return reloadScheduler.requestReload();
   }
 
   public void checkAndReload() throws Exception {
@@ -98,21 +122,80 @@ public class FilesystemConfigHelper {
         agentLock
       );
     }
-    LOG.debug("Acquired agent lock, reloading configs");
+    LOG.debug("Acquired agent lock, checking configs");
     try {
-      checkAndReloadUnlocked();
+      LOG.debug("Checking configs for reload");
+      configValidator.checkConfigs();
     } finally {
       agentLock.unlock();
     }
+    reloadConfigs();
   }
 
   public void checkAndReloadUnlocked() throws Exception {
     LOG.debug("Checking configs for reload");
-    adapter.checkConfigs();
+    configValidator.checkConfigs();
     LOG.debug("Reloading configs");
     adapter.reloadConfigs();
   }
 
+  public void checkConfigs() throws InvalidConfigException {
+    configValidator.checkConfigs();
+  }
+
+  /**
+   * Checks the configs at changedPaths, see ConfigValidator
+   */
+  public void checkConfigs(Collection<String> changedPaths)
+    throws InvalidConfigException {
+    configValidator.checkChangedConfigs(changedPaths);
+  }
+
+  public Set<String> getConfigPaths(BaragonService service) {
+    return configGenerator.getConfigPathsForProject(service);
+  }
+
+  /**
+   * @return the current content of each path, absent for files that don't exist
+   */
+  public Map<String, Optional<String>> snapshotConfigs(Collection<String> paths) {
+    final Map<String, Optional<String>> snapshot = new HashMap<>();
+    for (String path : paths) {
+      File file = new File(path);
+      try {
+        snapshot.put(
+          path,
+          file.exists()
+            ? Optional.of(Files.asCharSource(file, Charsets.UTF_8).read())
+            : Optional.absent()
+        );
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Writes back the content of each file in the snapshot, removing the ones that didn't
+   * exist when it was taken
+   */
+  public void restoreSnapshot(Map<String, Optional<String>> snapshot) {
+    final List<BaragonConfigFile> files = new ArrayList<>();
+    for (Map.Entry<String, Optional<String>> entry : snapshot.entrySet()) {
+      if (entry.getValue().isPresent()) {
+        files.add(new BaragonConfigFile(entry.getKey(), entry.getValue().get()));
+      } else {
+        manifest.invalidate(entry.getKey());
+        File file = new File(entry.getKey());
+        if (file.exists() && !file.delete()) {
+          throw new RuntimeException(String.format("Failed to remove %s", file));
+        }
+      }
+    }
+    writeConfigs(files, Collections.emptySet());
+  }
+
   public Optional<Collection<BaragonConfigFile>> configsToApply(ServiceContext context)
     throws MissingTemplateException {
     final BaragonService service = context.getService();
@@ -120,18 +203,33 @@ public class FilesystemConfigHelper {
     Collection<BaragonConfigFile> newConfigs = configGenerator.generateConfigsForProject(
       context
     );
-    if (previousConfigsExist && configsMatch(newConfigs, readConfigs(service))) {
+    if (previousConfigsExist && configsMatch(newConfigs, service)) {
       return Optional.absent();
     } else {
       return Optional.of(newConfigs);
     }
   }
 
+  /**
+   * @return true if every new config file is one of currentService's config files and
+   * its content on disk is identical, checked against the manifest of written files
+   */
   public boolean configsMatch(
     Collection<BaragonConfigFile> newConfigs,
-    Collection<BaragonConfigFile> currentConfigs
+    BaragonService currentService
   ) {
-    return currentConfigs.containsAll(newConfigs);
+    final Set<String> currentPaths = configGenerator.getConfigPathsForProject(
+      currentService
+    );
+    for (BaragonConfigFile file : newConfigs) {
+      if (
+        !currentPaths.contains(file.getFullPath()) ||
+        !manifest.contentMatches(file.getFullPath(), file.getContent())
+      ) {
+        return false;
+      }
+    }
+    return true;
   }
 
   public void bootstrapApply(
@@ -146,10 +244,10 @@ public class FilesystemConfigHelper {
       service.getServiceId(),
       Joiner.on(", ").join(context.getUpstreams())
     );
-    backupConfigs(service);
+    final Set<String> backedUpPaths = backupConfigs(service);
     try {
-      writeConfigs(newConfigs);
-      adapter.checkConfigs();
+      writeConfigs(newConfigs, backedUpPaths);
+      configValidator.checkConfigs();
     } catch (Exception e) {
       LOG.error(
         "Caught exception while writing configs for {}, reverting to backups!",
@@ -179,9 +277,9 @@ public class FilesystemConfigHelper {
       service.getServiceId(),
       Joiner.on(", ").join(context.getUpstreams())
     );
-    backupConfigs(service);
+    final Set<String> backedUpPaths = backupConfigs(service);
     try {
-      writeConfigs(newConfigs);
+      writeConfigs(newConfigs, backedUpPaths);
     } catch (Exception e) {
       LOG.error(
         "Caught exception while writing configs for {}, reverting to backups!",
@@ -204,7 +302,7 @@ public class FilesystemConfigHelper {
   ) {
     LOG.info("Going to check the configs");
     try {
-      adapter.checkConfigs();
+      configValidator.checkConfigs();
     } catch (Exception e) {
       LOG.error("Caught exception while checking configs", e);
       applied.forEach(
@@ -228,6 +326,30 @@ public class FilesystemConfigHelper {
     boolean noValidate,
     boolean delayReload,
     Optional<Integer> batchItemNumber
+  )
+    throws InvalidConfigException, LbAdapterExecuteException, IOException, MissingTemplateException, InterruptedException, LockTimeoutException {
+    awaitReload(
+      applyAndRequestReload(
+        context,
+        maybeOldService,
+        revertOnFailure,
+        noReload,
+        noValidate,
+        delayReload,
+        batchItemNumber
+      ),
+      context.getService()
+    );
+  }
+
+  private Optional<CompletableFuture<Void>> applyAndRequestReload(
+    ServiceContext context,
+    Optional<BaragonService> maybeOldService,
+    boolean revertOnFailure,
+    boolean noReload,
+    boolean noValidate,
+    boolean delayReload,
+    Optional<Integer> batchItemNumber
   )
     throws InvalidConfigException, LbAdapterExecuteException, IOException, MissingTemplateException, InterruptedException, LockTimeoutException {
     final BaragonService service = context.getService();
@@ -260,37 +382,39 @@ public class FilesystemConfigHelper {
 
     LOG.debug("({}) Acquired agent lock, applying configs", service.getServiceId());
 
+    Optional<CompletableFuture<Void>> maybeReload = Optional.absent();
     try {
-      if (configsMatch(newConfigs, readConfigs(oldService))) {
+      if (configsMatch(newConfigs, oldService)) {
         LOG.info("({}) Configs are unchanged, skipping apply", service.getServiceId());
         if (
           !noReload &&
           !delayReload &&
           batchItemNumber.isPresent() &&
-          batchItemNumber.get() > 1
+          batchItemNumber.get() > 0
         ) {
           LOG.debug(
             "({}) Item is the last in a batch, reloading configs",
             service.getServiceId()
           );
-          adapter.reloadConfigs();
+          maybeReload = reloadWhileLocked();
         }
-        return;
+        return maybeReload;
       }
 
       // Backup configs
       LOG.debug("({}) Backing up configs", service.getServiceId());
+      final Set<String> backedUpPaths = new HashSet<>();
       if (revertOnFailure) {
-        backupConfigs(service);
+        backedUpPaths.addAll(backupConfigs(service));
         if (oldServiceExists) {
-          backupConfigs(oldService);
+          backedUpPaths.addAll(backupConfigs(oldService));
         }
       }
 
       // Write & check the configs
       if (context.isPresent()) {
         LOG.debug("({}) Writing new configs", service.getServiceId());
-        writeConfigs(newConfigs);
+        writeConfigs(newConfigs, backedUpPaths);
         //If the new service id for this base path is different, remove the configs for the old service id
         if (
           oldServiceExists && !oldService.getServiceId().equals(service.getServiceId())
@@ -308,7 +432,7 @@ public class FilesystemConfigHelper {
 
       if (!noValidate) {
         LOG.debug("({}) Checking configs", service.getServiceId());
-        adapter.checkConfigs();
+        configValidator.checkChangedConfigs(getFullPaths(newConfigs));
       } else {
         LOG.debug(
           "({}) Not validating configs due to 'noValidate' specified in request",
@@ -317,7 +441,7 @@ public class FilesystemConfigHelper {
       }
       if (!noReload && !delayReload) {
         LOG.debug("({}) Reloading configs", service.getServiceId());
-        adapter.reloadConfigs();
+        maybeReload = reloadWhileLocked();
       } else {
         LOG.debug(
           "({}) Not reloading configs: {}",
@@ -353,6 +477,167 @@ public class FilesystemConfigHelper {
 
     removeBackupConfigs(oldService);
     LOG.info(String.format("Apply finished for %s", service.getServiceId()));
+    return maybeReload;
+  }
+
+  /**
+   * Applies a change to a service's upstreams, with the service itself unchanged, through
+   * the adapter's runtime API. The new configs are written so that the next reload picks
+   * them up, but are neither checked nor reloaded.
+   *
+   * @return false if the adapter can't apply the change at runtime or the update failed,
+   * in which case the configs on disk are left as they were and the change should be
+   * applied normally
+   */
+  public boolean applyUpstreamsAtRuntime(
+    ServiceContext context,
+    Collection<UpstreamInfo> previousUpstreams
+  )
+    throws MissingTemplateException, InterruptedException, LockTimeoutException {
+    final BaragonService service = context.getService();
+    // Upstream blocks are only rendered for services that have upstreams
+    if (
+      !adapter.supportsRuntimeUpstreamUpdates() ||
+      !context.isPresent() ||
+      context.getUpstreams().isEmpty() ||
+      previousUpstreams.isEmpty() ||
+      !configsExist(service)
+    ) {
+      return false;
+    }
+
+    if (
+      !adapter.supportsRuntimeUpstreamGroups() &&
+      countGroups(context.getUpstreams(), previousUpstreams) > 1
+    ) {
+      LOG.debug(
+        "({}) Upstreams of several groups can't be updated at runtime, reloading",
+        service.getServiceId()
+      );
+      return false;
+    }
+
+    // Rendered rack weights depend on every upstream, adding or removing one changes them
+    if (
+      configGenerator.rendersRackWeights(service) &&
+      (hasRack(context.getUpstreams()) || hasRack(previousUpstreams))
+    ) {
+      LOG.debug(
+        "({}) Rack weights would change, applying with a reload",
+        service.getServiceId()
+      );
+      return false;
+    }
+
+    // Templates render an upstream block per group, so an upstream moving between groups
+    // is removed from one block and added to another
+    final Map<String, UpstreamInfo> added = byGroupAndUpstream(context.getUpstreams());
+    final Map<String, UpstreamInfo> removed = byGroupAndUpstream(previousUpstreams);
+    for (String key : new ArrayList<>(added.keySet())) {
+      final UpstreamInfo previous = removed.remove(key);
+      if (previous != null) {
+        if (!previous.getRackId().equals(added.get(key).getRackId())) {
+          LOG.debug(
+            "({}) Rack of {} changed, applying with a reload",
+            service.getServiceId(),
+            previous
+          );
+          return false;
+        }
+        added.remove(key);
+      }
+    }
+
+    Collection<BaragonConfigFile> newConfigs = configGenerator.generateConfigsForProject(
+      context
+    );
+
+    if (!agentLock.tryLock(agentLockTimeoutMs, TimeUnit.MILLISECONDS)) {
+      LOG.warn(
+        "Failed to acquire lock for runtime upstream update ({})",
+        service.getServiceId()
+      );
+      throw new LockTimeoutException("Timed out waiting to acquire lock", agentLock);
+    }
+    try {
+      if (configsMatch(newConfigs, service)) {
+        LOG.info("({}) Configs are unchanged, skipping apply", service.getServiceId());
+        return true;
+      }
+
+      final Map<String, Optional<String>> snapshot = snapshotConfigs(
+        getConfigPaths(service)
+      );
+      writeConfigs(newConfigs, Collections.emptySet());
+      try {
+        if (!adapter.updateUpstreams(service, added.values(), removed.values())) {
+          LOG.debug(
+            "({}) Upstreams can't be updated at runtime, applying with a reload",
+            service.getServiceId()
+          );
+          restoreSnapshot(snapshot);
+          return false;
+        }
+      } catch (LbAdapterExecuteException e) {
+        LOG.warn(
+          "({}) Could not update upstreams at runtime, applying with a reload",
+          service.getServiceId(),
+          e
+        );
+        restoreSnapshot(snapshot);
+        return false;
+      }
+    } finally {
+      agentLock.unlock();
+    }
+
+    LOG.info("Runtime upstream update finished for {}", service.getServiceId());
+    return true;
+  }
+
+  private static List<String> getFullPaths(Collection<BaragonConfigFile> configs) {
+    final List<String> paths = new ArrayList<>(configs.size());
+    for (BaragonConfigFile config : configs) {
+      paths.add(config.getFullPath());
+    }
+    return paths;
+  }
+
+  private static Map<String, UpstreamInfo> byGroupAndUpstream(
+    Collection<UpstreamInfo> upstreams
+  ) {
+    final Map<String, UpstreamInfo> byGroupAndUpstream = new LinkedHashMap<>();
+    for (UpstreamInfo upstream : upstreams) {
+      // Groups can't contain '|'
+      byGroupAndUpstream.putIfAbsent(
+        upstream.getGroup() + "|" + upstream.getUpstream(),
+        upstream
+      );
+    }
+    return byGroupAndUpstream;
+  }
+
+  private static int countGroups(
+    Collection<UpstreamInfo> upstreams,
+    Collection<UpstreamInfo> previousUpstreams
+  ) {
+    final Set<String> groups = new HashSet<>();
+    for (UpstreamInfo upstream : upstreams) {
+      groups.add(upstream.getGroup());
+    }
+    for (UpstreamInfo upstream : previousUpstreams) {
+      groups.add(upstream.getGroup());
+    }
+    return groups.size();
+  }
+
+  private static boolean hasRack(Collection<UpstreamInfo> upstreams) {
+    for (UpstreamInfo upstream : upstreams) {
+      if (upstream.getRackId().isPresent()) {
+        return true;
+      }
+    }
+    return false;
   }
 
   public void delete(
@@ -361,6 +646,20 @@ public class FilesystemConfigHelper {
     boolean noReload,
     boolean noValidate,
     boolean delayReload
+  )
+    throws InvalidConfigException, LbAdapterExecuteException, IOException, MissingTemplateException, InterruptedException, LockTimeoutException {
+    awaitReload(
+      deleteAndRequestReload(service, maybeOldService, noReload, noValidate, delayReload),
+      service
+    );
+  }
+
+  private Optional<CompletableFuture<Void>> deleteAndRequestReload(
+    BaragonService service,
+    Optional<BaragonService> maybeOldService,
+    boolean noReload,
+    boolean noValidate,
+    boolean delayReload
   )
     throws InvalidConfigException, LbAdapterExecuteException, IOException, MissingTemplateException, InterruptedException, LockTimeoutException {
     final boolean oldServiceExists =
@@ -380,6 +679,7 @@ public class FilesystemConfigHelper {
 
     LOG.debug("Acquired agent lock, deleting configs");
 
+    Optional<CompletableFuture<Void>> maybeReload = Optional.absent();
     try {
       if (previousConfigsExist) {
         backupConfigs(service);
@@ -390,12 +690,12 @@ public class FilesystemConfigHelper {
         remove(maybeOldService.get());
       }
       if (!noValidate) {
-        adapter.checkConfigs();
+        configValidator.checkConfigs();
       } else {
         LOG.debug("Not validating configs due to 'noValidate' specified in request");
       }
       if (!noReload && !delayReload) {
-        adapter.reloadConfigs();
+        maybeReload = reloadWhileLocked();
       } else {
         LOG.debug(
           "Not reloading configs: {}",
@@ -426,9 +726,49 @@ public class FilesystemConfigHelper {
     } finally {
       agentLock.unlock();
     }
+    return maybeReload;
+  }
+
+  /*
+   * The scheduler can't take the agent lock while it is held, so a caller that held it
+   * before apply or delete took it gets its reload done right away instead
+   */
+  private Optional<CompletableFuture<Void>> reloadWhileLocked() throws Exception {
+    if (agentLock.getHoldCount() > 1) {
+      adapter.reloadConfigs();
+      return Optional.absent();
+    }
+    return Optional.of(reloadScheduler.requestReload());
   }
 
-  private void writeConfigs(Collection<BaragonConfigFile> files) {
+  /*
+   * Configs were validated before the reload was requested, so they are kept if the
+   * reload fails, and the failure is reported to the caller
+   */
+  private void awaitReload(
+    Optional<CompletableFuture<Void>> maybeReload,
+    BaragonService service
+  ) {
+    if (!maybeReload.isPresent()) {
+      return;
+    }
+    try {
+      ReloadScheduler.await(maybeReload.get());
+    } catch (Exception e) {
+      LOG.error("Reload failed after applying {}", service.getServiceId(), e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void writeConfigs(
+    Collection<BaragonConfigFile> files,
+    Set<String> backedUpPaths
+  ) {
+    if (configuration.isAtomicConfigWrites()) {
+      writeConfigsAtomically(files, backedUpPaths);
+      return;
+    }
+
     for (BaragonConfigFile file : files) {
       try {
         File configFile = new File(file.getFullPath());
@@ -444,10 +784,9 @@ public class FilesystemConfigHelper {
             );
           }
         }
-        Files.write(
-          file.getContent().getBytes(Charsets.UTF_8),
-          new File(file.getFullPath())
-        );
+        final byte[] content = file.getContent().getBytes(Charsets.UTF_8);
+        Files.write(content, configFile);
+        manifest.recordWrite(file.getFullPath(), content);
       } catch (IOException e) {
         LOG.error("Failed writing {}", file.getFullPath(), e);
         throw new RuntimeException(
@@ -479,10 +818,58 @@ public class FilesystemConfigHelper {
     return configs;
   }
 
-  private void backupConfigs(BaragonService service) {
+  /*
+   * Every file has been staged before the first one is renamed into place. Backups are
+   * links rather than moves here, so backed up files that weren't rewritten are removed
+   * to leave the same files behind as a non-atomic write would
+   */
+  private void writeConfigsAtomically(
+    Collection<BaragonConfigFile> files,
+    Set<String> backedUpPaths
+  ) {
+    try {
+      atomicConfigWriter.write(files);
+    } catch (IOException e) {
+      LOG.error("Failed writing configs {}", files, e);
+      throw new RuntimeException("Failed writing configs", e);
+    }
+
+    final Set<String> writtenPaths = files
+      .stream()
+      .map(BaragonConfigFile::getFullPath)
+      .collect(Collectors.toSet());
+    for (String filename : backedUpPaths) {
+      if (!writtenPaths.contains(filename)) {
+        manifest.invalidate(filename);
+        if (!new File(filename).delete()) {
+          LOG.warn("Failed to remove {} after backing it up", filename);
+        }
+      }
+    }
+  }
+
+  private Set<String> backupConfigs(BaragonService service) {
+    final Set<String> backedUpPaths = new HashSet<>();
     for (String filename : configGenerator.getConfigPathsForProject(service)) {
-      backupFile(filename);
+      if (!new File(filename).exists()) {
+        continue;
+      }
+      if (configuration.isAtomicConfigWrites()) {
+        try {
+          atomicConfigWriter.backup(
+            Paths.get(filename),
+            Paths.get(filename + BACKUP_FILENAME_SUFFIX)
+          );
+        } catch (IOException e) {
+          LOG.error("Failed to backup {}", filename, e);
+          throw new RuntimeException(String.format("Failed to backup %s", filename));
+        }
+      } else {
+        backupFile(filename);
+      }
+      backedUpPaths.add(filename);
     }
+    return backedUpPaths;
   }
 
   private void removeBackupConfigs(BaragonService service) {
@@ -501,6 +888,7 @@ public class FilesystemConfigHelper {
         return;
       }
       File dest = new File(filename + BACKUP_FILENAME_SUFFIX);
+      manifest.invalidate(filename);
       Files.move(src, dest);
     } catch (IOException e) {
       LOG.error("Failed to backup {}", filename, e);
@@ -536,8 +924,28 @@ public class FilesystemConfigHelper {
   }
 
   private void restoreConfigs(BaragonService service) {
+    if (!configuration.isAtomicConfigWrites()) {
+      for (String filename : configGenerator.getConfigPathsForProject(service)) {
+        restoreFile(filename);
+      }
+      return;
+    }
+
+    final Map<Path, Path> backupsToLive = new LinkedHashMap<>();
     for (String filename : configGenerator.getConfigPathsForProject(service)) {
-      restoreFile(filename);
+      final File src = new File(filename + BACKUP_FILENAME_SUFFIX);
+      if (src.exists()) {
+        manifest.invalidate(filename);
+        backupsToLive.put(src.toPath(), Paths.get(filename));
+      }
+    }
+    try {
+      atomicConfigWriter.restore(backupsToLive);
+    } catch (IOException e) {
+      LOG.error("Failed to restore {}", backupsToLive.values(), e);
+      throw new RuntimeException(
+        String.format("Failed to restore %s", backupsToLive.values())
+      );
     }
   }
 
@@ -548,7 +956,12 @@ public class FilesystemConfigHelper {
         return;
       }
       File dest = new File(filename);
-      Files.copy(src, dest);
+      manifest.invalidate(filename);
+      if (configuration.isAtomicConfigWrites()) {
+        atomicConfigWriter.restore(src.toPath(), dest.toPath());
+      } else {
+        Files.copy(src, dest);
+      }
     } catch (IOException e) {
       LOG.error("Failed to restore {}", filename, e);
       throw new RuntimeException(String.format("Failed to restore %s", filename));
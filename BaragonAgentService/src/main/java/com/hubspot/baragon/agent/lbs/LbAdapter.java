@@ -0,0 +1,59 @@
+package com.hubspot.baragon.agent.lbs;
+
+import com.hubspot.baragon.exceptions.InvalidConfigException;
+import com.hubspot.baragon.exceptions.LbAdapterExecuteException;
+import com.hubspot.baragon.exceptions.WorkerLimitReachedException;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.io.IOException;
+import java.util.Collection;
+
+/*
+ * Operations the agent runs against its load balancer. Config files are always written
+ * by the agent, the adapter only checks and reloads them. Adapters that can change the
+ * servers of a running upstream in place also apply upstream-only changes, so that those
+ * don't need a reload.
+ */
+public interface LbAdapter {
+  void checkConfigs() throws InvalidConfigException;
+
+  /**
+   * Checks configs with a command other than the configured check command, e.g. one that
+   * only checks part of them
+   */
+  void checkConfigs(String checkConfigCommand) throws InvalidConfigException;
+
+  void reloadConfigs()
+    throws LbAdapterExecuteException, IOException, WorkerLimitReachedException;
+
+  void triggerLogrotate();
+
+  default boolean supportsRuntimeUpstreamUpdates() {
+    return false;
+  }
+
+  /**
+   * Whether updateUpstreams can tell the upstream blocks of a service's groups apart.
+   * If not, it is only called for services whose upstreams are all in one group.
+   */
+  default boolean supportsRuntimeUpstreamGroups() {
+    return false;
+  }
+
+  /**
+   * Changes the servers of the service's running upstreams, without a reload. Each
+   * added or removed upstream belongs to the upstream block of its group. Only called
+   * when the service has upstreams both before and after the change.
+   *
+   * @return false if the adapter can't update upstreams at runtime, in which case the
+   * change is applied with a reload instead
+   */
+  default boolean updateUpstreams(
+    BaragonService service,
+    Collection<UpstreamInfo> added,
+    Collection<UpstreamInfo> removed
+  )
+    throws LbAdapterExecuteException {
+    return false;
+  }
+}
@@ -1,7 +1,14 @@
 package com.hubspot.baragon.agent.lbs;
 
 import com.github.jknack.handlebars.Context;
+import com.github.jknack.handlebars.ValueResolver;
+import com.github.jknack.handlebars.context.JavaBeanValueResolver;
+import com.github.jknack.handlebars.context.MapValueResolver;
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
@@ -9,13 +16,14 @@ import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.agent.BaragonAgentServiceModule;
 import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.handlebars.BaragonModelValueResolver;
+import com.hubspot.baragon.agent.handlebars.PreferSameRackWeightingHelper;
 import com.hubspot.baragon.agent.models.LbConfigTemplate;
 import com.hubspot.baragon.exceptions.MissingTemplateException;
 import com.hubspot.baragon.models.BaragonAgentMetadata;
 import com.hubspot.baragon.models.BaragonConfigFile;
 import com.hubspot.baragon.models.BaragonService;
 import com.hubspot.baragon.models.ServiceContext;
-import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -27,9 +35,18 @@ import java.util.Set;
 
 @Singleton
 public class LbConfigGenerator {
+  private static final ValueResolver[] VALUE_RESOLVERS = {
+    BaragonModelValueResolver.INSTANCE,
+    MapValueResolver.INSTANCE,
+    JavaBeanValueResolver.INSTANCE
+  };
+  private static final int MAX_MEMOIZED_SERVICES = 50000;
+
   private final LoadBalancerConfiguration loadBalancerConfiguration;
   private final Map<String, List<LbConfigTemplate>> templates;
   private final BaragonAgentMetadata agentMetadata;
+  // Template values derived from the service id alone, keyed by service id
+  private final LoadingCache<String, Map<String, Object>> serviceValues;
 
   @Inject
   public LbConfigGenerator(
@@ -42,6 +59,27 @@ public class LbConfigGenerator {
     this.loadBalancerConfiguration = loadBalancerConfiguration;
     this.agentMetadata = agentMetadata;
     this.templates = templates;
+    this.serviceValues =
+      CacheBuilder
+        .newBuilder()
+        .maximumSize(MAX_MEMOIZED_SERVICES)
+        .build(CacheLoader.from(this::computeServiceValues));
+  }
+
+  private Map<String, Object> computeServiceValues(String serviceId) {
+    final boolean turnOffPurgeableCacheInTemplates =
+      loadBalancerConfiguration.isTurnOffPurgeableCacheInTemplates() ||
+      loadBalancerConfiguration
+        .getServicesToBlockFromPurgeableCache()
+        .contains(serviceId);
+    return ImmutableMap.of(
+      "agentProperties",
+      agentMetadata,
+      "serviceIdHash",
+      Hashing.sha256().hashString(serviceId, StandardCharsets.UTF_8).toString(),
+      "turnOffPurgeableCacheInTemplates",
+      turnOffPurgeableCacheInTemplates
+    );
   }
 
   public Collection<BaragonConfigFile> generateConfigsForProject(ServiceContext snapshot)
@@ -58,35 +96,28 @@ public class LbConfigGenerator {
       for (LbConfigTemplate template : matchingTemplates) {
         final List<String> filenames = getFilenames(template, snapshot.getService());
 
-        final StringWriter sw = new StringWriter();
-        final boolean turnOffPurgeableCacheInTemplates =
-          loadBalancerConfiguration.isTurnOffPurgeableCacheInTemplates() ||
-          loadBalancerConfiguration
-            .getServicesToBlockFromPurgeableCache()
-            .contains(snapshot.getService().getServiceId());
         final Context context = Context
           .newBuilder(snapshot)
-          .combine("agentProperties", agentMetadata)
-          .combine(
-            "serviceIdHash",
-            Hashing
-              .sha256()
-              .hashString(snapshot.getService().getServiceId(), StandardCharsets.UTF_8)
-              .toString()
-          )
-          .combine("turnOffPurgeableCacheInTemplates", turnOffPurgeableCacheInTemplates)
+          .combine(serviceValues.getUnchecked(snapshot.getService().getServiceId()))
+          .resolver(VALUE_RESOLVERS)
           .build();
+        final RenderBuffer buffer = RenderBuffer.acquire();
+        final String content;
         try {
-          template.getTemplate().apply(context, sw);
+          template.getTemplate().apply(context, buffer);
+          content = buffer.toString();
         } catch (Exception e) {
           throw Throwables.propagate(e);
+        } finally {
+          buffer.release();
+          context.destroy();
         }
 
         for (String filename : filenames) {
           files.add(
             new BaragonConfigFile(
               String.format("%s/%s", loadBalancerConfiguration.getRootPath(), filename),
-              sw.toString()
+              content
             )
           );
         }
@@ -103,6 +134,28 @@ public class LbConfigGenerator {
     return files;
   }
 
+  /*
+   * Whether any of the service's templates calls a rack weighting helper. Only the
+   * templates' own text is searched, not partials they include.
+   */
+  public boolean rendersRackWeights(BaragonService service) {
+    final List<LbConfigTemplate> matchingTemplates = templates.get(
+      service.getTemplateName().or(BaragonAgentServiceModule.DEFAULT_TEMPLATE_NAME)
+    );
+    if (matchingTemplates == null) {
+      return false;
+    }
+    for (LbConfigTemplate template : matchingTemplates) {
+      final String text = template.getTemplate().text();
+      for (String helperName : PreferSameRackWeightingHelper.HELPER_NAMES) {
+        if (text.contains(helperName)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
   public Set<String> getConfigPathsForProject(BaragonService service) {
     final Set<String> paths = new HashSet<>();
     for (Map.Entry<String, List<LbConfigTemplate>> entry : templates.entrySet()) {
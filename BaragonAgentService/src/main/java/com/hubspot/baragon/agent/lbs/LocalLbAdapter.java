@@ -31,7 +31,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @Singleton
-public class LocalLbAdapter {
+public class LocalLbAdapter implements LbAdapter {
   private static final Logger LOG = LoggerFactory.getLogger(LocalLbAdapter.class);
 
   private static final int LOGROTATE_TIMEOUT = (int) TimeUnit.MINUTES.toMillis(15);
@@ -118,6 +118,7 @@ public class LocalLbAdapter {
     }
   }
 
+  @Override
   public void triggerLogrotate() {
     try {
       int exitCode = executeWithTimeout(
@@ -130,17 +131,23 @@ public class LocalLbAdapter {
     }
   }
 
+  @Override
   @Timed
   public void checkConfigs() throws InvalidConfigException {
+    checkConfigs(loadBalancerConfiguration.getCheckConfigCommand());
+  }
+
+  @Override
+  public void checkConfigs(String checkConfigCommand) throws InvalidConfigException {
     try {
       final long start = System.currentTimeMillis();
       final int exitCode = executeWithTimeout(
-        CommandLine.parse(loadBalancerConfiguration.getCheckConfigCommand()),
+        CommandLine.parse(checkConfigCommand),
         loadBalancerConfiguration.getCommandTimeoutMs()
       );
       LOG.info(
         "Checked configs via '{}' in {}ms (exit code = {})",
-        loadBalancerConfiguration.getCheckConfigCommand(),
+        checkConfigCommand,
         System.currentTimeMillis() - start,
         exitCode
       );
@@ -151,6 +158,7 @@ public class LocalLbAdapter {
     }
   }
 
+  @Override
   @Timed
   public void reloadConfigs()
     throws LbAdapterExecuteException, IOException, WorkerLimitReachedException {
@@ -0,0 +1,207 @@
+package com.hubspot.baragon.agent.lbs;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.hubspot.baragon.agent.BaragonAgentServiceModule;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.exceptions.LockTimeoutException;
+import com.hubspot.baragon.exceptions.WorkerLimitReachedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Runs load balancer reloads on a single thread, so that reloads requested close
+ * together are done as one. A reload starts once no further reload has been requested
+ * for reloadCoalesceWindowMs, but no later than reloadMaxLatencyMs after the first
+ * request it covers. Requests made while a reload is running are covered by the next
+ * one, since their changes may not have been written when it started. When the worker
+ * limit is reached, the reload is retried until workerLimitMaxDeferMs has passed.
+ *
+ * Reloads take the agent lock, so callers must not wait for a reload while holding it.
+ */
+@Singleton
+public class ReloadScheduler {
+  private static final Logger LOG = LoggerFactory.getLogger(ReloadScheduler.class);
+
+  private final LbAdapter adapter;
+  private final LoadBalancerConfiguration configuration;
+  private final MetricRegistry metricRegistry;
+  private final ReentrantLock agentLock;
+  private final long agentLockTimeoutMs;
+  private final ScheduledExecutorService executor;
+
+  private List<CompletableFuture<Void>> pending = new ArrayList<>();
+  private long firstPendingAt;
+  private long deferringSince;
+  private boolean running;
+  private ScheduledFuture<?> scheduledReload;
+
+  @Inject
+  public ReloadScheduler(
+    LbAdapter adapter,
+    LoadBalancerConfiguration configuration,
+    MetricRegistry metricRegistry,
+    @Named(BaragonAgentServiceModule.AGENT_LOCK) ReentrantLock agentLock,
+    @Named(BaragonAgentServiceModule.AGENT_LOCK_TIMEOUT_MS) long agentLockTimeoutMs
+  ) {
+    this.adapter = adapter;
+    this.configuration = configuration;
+    this.metricRegistry = metricRegistry;
+    this.agentLock = agentLock;
+    this.agentLockTimeoutMs = agentLockTimeoutMs;
+    this.executor =
+      Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("lb-reload-%d").setDaemon(true).build()
+      );
+  }
+
+  /**
+   * @return a future completed once a reload that started after this call has finished,
+   * or completed exceptionally if that reload failed
+   */
+  public synchronized CompletableFuture<Void> requestReload() {
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+    final long now = System.currentTimeMillis();
+    if (pending.isEmpty()) {
+      firstPendingAt = now;
+    }
+    pending.add(future);
+
+    // While running or deferring, the next reload is scheduled once that is done
+    if (!running && deferringSince == 0) {
+      final long delay = Math.min(
+        configuration.getReloadCoalesceWindowMs(),
+        Math.max(0, firstPendingAt + configuration.getReloadMaxLatencyMs() - now)
+      );
+      if (scheduledReload == null || scheduledReload.cancel(false)) {
+        scheduledReload = executor.schedule(this::reload, delay, TimeUnit.MILLISECONDS);
+      }
+    }
+    return future;
+  }
+
+  /**
+   * Waits for a reload requested from requestReload, rethrowing the reason it failed
+   */
+  public static void await(CompletableFuture<Void> reload) throws Exception {
+    try {
+      reload.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private void reload() {
+    final List<CompletableFuture<Void>> covered;
+    synchronized (this) {
+      scheduledReload = null;
+      running = true;
+      covered = pending;
+      pending = new ArrayList<>();
+    }
+
+    Exception failure = null;
+    try {
+      if (!agentLock.tryLock(agentLockTimeoutMs, TimeUnit.MILLISECONDS)) {
+        throw new LockTimeoutException(
+          "Timed out waiting to acquire lock for reload",
+          agentLock
+        );
+      }
+      try {
+        adapter.reloadConfigs();
+      } finally {
+        agentLock.unlock();
+      }
+    } catch (WorkerLimitReachedException e) {
+      if (defer(covered, e)) {
+        return;
+      }
+      failure = e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure = e;
+    } catch (Exception e) {
+      failure = e;
+    }
+
+    metricRegistry
+      .histogram(ReloadScheduler.class.getName() + ".coalescedRequests")
+      .update(covered.size());
+    if (failure == null) {
+      LOG.debug("Reload covered {} requests", covered.size());
+    } else {
+      LOG.error("Reload covering {} requests failed", covered.size(), failure);
+    }
+    for (CompletableFuture<Void> future : covered) {
+      if (failure == null) {
+        future.complete(null);
+      } else {
+        future.completeExceptionally(failure);
+      }
+    }
+
+    synchronized (this) {
+      deferringSince = 0;
+      running = false;
+      if (!pending.isEmpty()) {
+        final long delay = Math.max(
+          0,
+          firstPendingAt +
+          Math.min(
+            configuration.getReloadCoalesceWindowMs(),
+            configuration.getReloadMaxLatencyMs()
+          ) -
+          System.currentTimeMillis()
+        );
+        scheduledReload = executor.schedule(this::reload, delay, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Puts the covered requests back in front of any newer ones and retries the reload
+   * later, unless it has already been deferred for longer than allowed
+   */
+  private synchronized boolean defer(
+    List<CompletableFuture<Void>> covered,
+    WorkerLimitReachedException e
+  ) {
+    final long now = System.currentTimeMillis();
+    if (deferringSince == 0) {
+      deferringSince = now;
+    }
+    if (now - deferringSince >= configuration.getWorkerLimitMaxDeferMs()) {
+      return false;
+    }
+
+    LOG.info("Deferring reload: {}", e.getMessage());
+    metricRegistry.meter(ReloadScheduler.class.getName() + ".deferred").mark();
+    covered.addAll(pending);
+    pending = covered;
+    firstPendingAt = now;
+    running = false;
+    scheduledReload =
+      executor.schedule(
+        this::reload,
+        configuration.getWorkerLimitRetryMs(),
+        TimeUnit.MILLISECONDS
+      );
+    return true;
+  }
+}
@@ -0,0 +1,83 @@
+package com.hubspot.baragon.agent.lbs;
+
+import java.io.Writer;
+
+/*
+ * Writer over a StringBuilder that is kept per thread and reused for every config that
+ * thread renders, so that rendering doesn't grow a new buffer for each file. Buffers that
+ * grew past MAX_RETAINED_CAPACITY are dropped when released, and a thread that renders
+ * while its buffer is in use gets a new one.
+ */
+class RenderBuffer extends Writer {
+  private static final int INITIAL_CAPACITY = 16 * 1024;
+  private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+
+  private static final ThreadLocal<RenderBuffer> BUFFERS = ThreadLocal.withInitial(
+    RenderBuffer::new
+  );
+
+  private StringBuilder builder = new StringBuilder(INITIAL_CAPACITY);
+  private boolean inUse = false;
+
+  static RenderBuffer acquire() {
+    final RenderBuffer buffer = BUFFERS.get();
+    if (buffer.inUse) {
+      return new RenderBuffer();
+    }
+    buffer.inUse = true;
+    return buffer;
+  }
+
+  void release() {
+    if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+      builder = new StringBuilder(INITIAL_CAPACITY);
+    } else {
+      builder.setLength(0);
+    }
+    inUse = false;
+  }
+
+  @Override
+  public void write(int c) {
+    builder.append((char) c);
+  }
+
+  @Override
+  public void write(char[] chars, int offset, int length) {
+    builder.append(chars, offset, length);
+  }
+
+  @Override
+  public void write(String str, int offset, int length) {
+    builder.append(str, offset, offset + length);
+  }
+
+  @Override
+  public Writer append(CharSequence csq) {
+    builder.append(csq);
+    return this;
+  }
+
+  @Override
+  public Writer append(CharSequence csq, int start, int end) {
+    builder.append(csq, start, end);
+    return this;
+  }
+
+  @Override
+  public Writer append(char c) {
+    builder.append(c);
+    return this;
+  }
+
+  @Override
+  public void flush() {}
+
+  @Override
+  public void close() {}
+
+  @Override
+  public String toString() {
+    return builder.toString();
+  }
+}
@@ -0,0 +1,194 @@
+package com.hubspot.baragon.agent.lbs;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.annotation.Timed;
+import com.google.common.base.Optional;
+import com.google.common.collect.Iterables;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.hubspot.baragon.agent.BaragonAgentServiceModule;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.config.RuntimeUpstreamApiConfiguration;
+import com.hubspot.baragon.exceptions.InvalidConfigException;
+import com.hubspot.baragon.exceptions.LbAdapterExecuteException;
+import com.hubspot.baragon.exceptions.WorkerLimitReachedException;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.UpstreamInfo;
+import com.hubspot.horizon.HttpRequest;
+import com.hubspot.horizon.HttpRequest.Method;
+import com.hubspot.horizon.HttpResponse;
+import com.hubspot.horizon.ning.NingHttpClient;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Adds and removes the servers of running upstreams through a dynamic upstream API on the
+ * load balancer, with the same parameters as ngx_dynamic_upstream: the upstream name,
+ * the server, and an add or remove flag. Checks, reloads and log rotation still run the
+ * configured commands. Without a configured API it updates nothing at runtime, so it is
+ * safe to create on agents that reload for every change.
+ */
+@Singleton
+public class RuntimeUpstreamLbAdapter implements LbAdapter {
+  private static final Logger LOG = LoggerFactory.getLogger(
+    RuntimeUpstreamLbAdapter.class
+  );
+
+  private final LocalLbAdapter localLbAdapter;
+  private final Optional<RuntimeUpstreamApiConfiguration> configuration;
+  private final MetricRegistry metricRegistry;
+  private final NingHttpClient httpClient;
+
+  @Inject
+  public RuntimeUpstreamLbAdapter(
+    LocalLbAdapter localLbAdapter,
+    LoadBalancerConfiguration loadBalancerConfiguration,
+    MetricRegistry metricRegistry,
+    @Named(BaragonAgentServiceModule.BARAGON_AGENT_HTTP_CLIENT) NingHttpClient httpClient
+  ) {
+    this.localLbAdapter = localLbAdapter;
+    this.configuration = loadBalancerConfiguration.getRuntimeUpstreamApi();
+    this.metricRegistry = metricRegistry;
+    this.httpClient = httpClient;
+  }
+
+  @Override
+  public void checkConfigs() throws InvalidConfigException {
+    localLbAdapter.checkConfigs();
+  }
+
+  @Override
+  public void checkConfigs(String checkConfigCommand) throws InvalidConfigException {
+    localLbAdapter.checkConfigs(checkConfigCommand);
+  }
+
+  @Override
+  public void reloadConfigs()
+    throws LbAdapterExecuteException, IOException, WorkerLimitReachedException {
+    localLbAdapter.reloadConfigs();
+  }
+
+  @Override
+  public void triggerLogrotate() {
+    localLbAdapter.triggerLogrotate();
+  }
+
+  @Override
+  public boolean supportsRuntimeUpstreamUpdates() {
+    return configuration.isPresent();
+  }
+
+  @Override
+  public boolean supportsRuntimeUpstreamGroups() {
+    if (!configuration.isPresent()) {
+      return false;
+    }
+    // Extra format arguments are ignored, so a format without the group gives one name
+    return !getUpstreamName("service", "a").equals(getUpstreamName("service", "b"));
+  }
+
+  /*
+   * Servers are added before any are removed, so no upstream is left empty. A failure
+   * part way through leaves the running upstreams partially updated, the caller is
+   * expected to reload to bring them back in line with the config files.
+   */
+  @Override
+  @Timed
+  public boolean updateUpstreams(
+    BaragonService service,
+    Collection<UpstreamInfo> added,
+    Collection<UpstreamInfo> removed
+  )
+    throws LbAdapterExecuteException {
+    if (!configuration.isPresent()) {
+      return false;
+    }
+    final long start = System.currentTimeMillis();
+    final Set<String> upstreamNames = new TreeSet<>();
+    for (UpstreamInfo upstream : Iterables.concat(added, removed)) {
+      upstreamNames.add(getUpstreamName(service.getServiceId(), upstream.getGroup()));
+    }
+    if (upstreamNames.size() > 1 && !supportsRuntimeUpstreamGroups()) {
+      return false;
+    }
+
+    for (UpstreamInfo upstream : added) {
+      sendUpdate(
+        getUpstreamName(service.getServiceId(), upstream.getGroup()),
+        upstream,
+        "add"
+      );
+    }
+    for (UpstreamInfo upstream : removed) {
+      sendUpdate(
+        getUpstreamName(service.getServiceId(), upstream.getGroup()),
+        upstream,
+        "remove"
+      );
+    }
+
+    metricRegistry
+      .timer(RuntimeUpstreamLbAdapter.class.getName() + ".updateUpstreams")
+      .update(System.currentTimeMillis() - start, TimeUnit.MILLISECONDS);
+    LOG.info(
+      "Updated upstreams {} at runtime ({} added, {} removed) in {}ms",
+      upstreamNames,
+      added.size(),
+      removed.size(),
+      System.currentTimeMillis() - start
+    );
+    return true;
+  }
+
+  private String getUpstreamName(String serviceId, String group) {
+    return String.format(configuration.get().getUpstreamNameFormat(), serviceId, group);
+  }
+
+  private void sendUpdate(String upstreamName, UpstreamInfo upstream, String operation)
+    throws LbAdapterExecuteException {
+    final String description = String.format(
+      "%s %s on %s",
+      operation,
+      upstream.getUpstream(),
+      upstreamName
+    );
+    final HttpRequest request = HttpRequest
+      .newBuilder()
+      .setUrl(configuration.get().getUri())
+      .setMethod(Method.GET)
+      .setQueryParam("upstream")
+      .to(upstreamName)
+      .setQueryParam("server")
+      .to(upstream.getUpstream())
+      .setQueryParam(operation)
+      .to("")
+      .build();
+
+    final HttpResponse response;
+    try {
+      response = httpClient.execute(request);
+    } catch (RuntimeException e) {
+      throw new LbAdapterExecuteException(
+        String.format(
+          "Could not reach %s: %s",
+          configuration.get().getUri(),
+          e.getMessage()
+        ),
+        e,
+        description
+      );
+    }
+    if (response.isError()) {
+      throw new LbAdapterExecuteException(
+        String.format("%s: %s", response.getStatusCode(), response.getAsString()),
+        description
+      );
+    }
+  }
+}
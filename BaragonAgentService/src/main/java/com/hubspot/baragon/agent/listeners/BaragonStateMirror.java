@@ -0,0 +1,312 @@
+package com.hubspot.baragon.agent.listeners;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.io.Closeables;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.UpstreamBlob;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.apache.curator.utils.ZKPaths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Local copy of the /state subtree, kept up to date by ZooKeeper watches, so that the
+ * reconciler and lookups of a single service don't have to read from ZooKeeper. Services
+ * are decoded as their nodes change, and the services deployed to this agent's group
+ * are indexed separately. Upstreams stored as a blob are mirrored from /state-upstreams
+ * and decoded the first time they are read after changing; chunked blobs are read from
+ * the state datastore. The version of the state node is mirrored too, so that a version
+ * can be read that the mirrored services are at least as new as. Until the initial load
+ * has finished, and if the mirror is disabled, reads go to the state datastore instead.
+ */
+@Singleton
+public class BaragonStateMirror implements TreeCacheListener {
+  private static final Logger LOG = LoggerFactory.getLogger(BaragonStateMirror.class);
+
+  private static final int SERVICE_DEPTH = 1;
+  private static final int UPSTREAM_DEPTH = 2;
+  private static final int UPSTREAM_BLOB_DEPTH = 1;
+  private static final int STATE_VERSION_DEPTH = 0;
+
+  private final BaragonStateDatastore stateDatastore;
+  private final ObjectMapper objectMapper;
+  private final BaragonAgentConfiguration configuration;
+  private final ZooKeeperConfiguration zooKeeperConfiguration;
+  private final TreeCache treeCache;
+  private final TreeCache blobCache;
+  private final TreeCache versionCache;
+  private final CountDownLatch initialized;
+  private final Map<String, BaragonService> services;
+  private final Map<String, BaragonService> groupServices;
+  private final Map<String, DecodedBlob> decodedBlobs;
+
+  @Inject
+  public BaragonStateMirror(
+    CuratorFramework curatorFramework,
+    BaragonStateDatastore stateDatastore,
+    ObjectMapper objectMapper,
+    BaragonAgentConfiguration configuration,
+    ZooKeeperConfiguration zooKeeperConfiguration
+  ) {
+    this.stateDatastore = stateDatastore;
+    this.objectMapper = objectMapper;
+    this.configuration = configuration;
+    this.zooKeeperConfiguration = zooKeeperConfiguration;
+    this.treeCache =
+      TreeCache
+        .newBuilder(curatorFramework, BaragonStateDatastore.SERVICES_FORMAT)
+        .setMaxDepth(UPSTREAM_DEPTH)
+        .setCacheData(true)
+        .build();
+    this.blobCache =
+      TreeCache
+        .newBuilder(curatorFramework, BaragonStateDatastore.UPSTREAM_BLOBS_FORMAT)
+        .setMaxDepth(UPSTREAM_BLOB_DEPTH)
+        .setCacheData(true)
+        .build();
+    this.versionCache =
+      TreeCache
+        .newBuilder(curatorFramework, BaragonStateDatastore.LAST_UPDATED_FORMAT)
+        .setMaxDepth(STATE_VERSION_DEPTH)
+        .setCacheData(false)
+        .build();
+    // Counted down as each of the caches finishes its initial load
+    this.initialized = new CountDownLatch(3);
+    this.services = new ConcurrentHashMap<>();
+    this.groupServices = new ConcurrentHashMap<>();
+    this.decodedBlobs = new ConcurrentHashMap<>();
+  }
+
+  public void start() throws Exception {
+    if (!configuration.isStateMirrorEnabled()) {
+      LOG.info("State mirror is disabled, reading state from ZooKeeper");
+      return;
+    }
+
+    treeCache.getListenable().addListener(this);
+    blobCache.getListenable().addListener(this::blobEvent);
+    versionCache.getListenable().addListener(this::versionEvent);
+    treeCache.start();
+    blobCache.start();
+    versionCache.start();
+    final long timeoutMillis = zooKeeperConfiguration.getSessionTimeoutMillis();
+    if (!initialized.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+      LOG.warn("State mirror not loaded yet, reading from ZooKeeper until it is");
+    }
+  }
+
+  public void stop() throws IOException {
+    Closeables.close(treeCache, true);
+    Closeables.close(blobCache, true);
+    Closeables.close(versionCache, true);
+  }
+
+  public boolean isInitialized() {
+    return initialized.getCount() == 0;
+  }
+
+  public Optional<BaragonService> getService(String serviceId) {
+    if (!isInitialized()) {
+      return stateDatastore.getService(serviceId);
+    }
+    return Optional.fromNullable(services.get(serviceId));
+  }
+
+  public Collection<UpstreamInfo> getUpstreams(String serviceId) {
+    if (!isInitialized()) {
+      return stateDatastore.getUpstreams(serviceId);
+    }
+    return readUpstreams(serviceId);
+  }
+
+  /**
+   * @return the version of the state node. All of the caches are updated from the same
+   * ZooKeeper session in the order the changes were made, and the version is bumped after
+   * the services it covers are written, so services read after this are at least as new
+   * as the version returned.
+   */
+  public Optional<Integer> getStateVersion() {
+    if (!isInitialized()) {
+      return stateDatastore.getStateVersion();
+    }
+    final ChildData data = versionCache.getCurrentData(
+      BaragonStateDatastore.LAST_UPDATED_FORMAT
+    );
+    if (data == null || data.getStat() == null) {
+      return Optional.absent();
+    }
+    return Optional.of(data.getStat().getVersion());
+  }
+
+  /**
+   * @return the state of every service deployed to this agent's group, absent if the
+   * mirror hasn't been loaded
+   */
+  public Optional<Collection<BaragonServiceState>> getGroupServiceStates() {
+    if (!isInitialized()) {
+      return Optional.absent();
+    }
+
+    final List<BaragonServiceState> states = new ArrayList<>(groupServices.size());
+    for (BaragonService service : groupServices.values()) {
+      states.add(new BaragonServiceState(service, readUpstreams(service.getServiceId())));
+    }
+    return Optional.of(states);
+  }
+
+  @Override
+  public void childEvent(CuratorFramework client, TreeCacheEvent event) {
+    switch (event.getType()) {
+      case NODE_ADDED:
+      case NODE_UPDATED:
+        if (isServicePath(event.getData())) {
+          updateService(event.getData());
+        }
+        break;
+      case NODE_REMOVED:
+        if (isServicePath(event.getData())) {
+          String serviceId = ZKPaths.getNodeFromPath(event.getData().getPath());
+          services.remove(serviceId);
+          groupServices.remove(serviceId);
+        }
+        break;
+      case INITIALIZED:
+        markInitialized();
+        break;
+      default:
+        LOG.debug("State mirror received {}", event.getType());
+    }
+  }
+
+  private void blobEvent(CuratorFramework client, TreeCacheEvent event) {
+    switch (event.getType()) {
+      case NODE_REMOVED:
+        decodedBlobs.remove(ZKPaths.getNodeFromPath(event.getData().getPath()));
+        break;
+      case INITIALIZED:
+        markInitialized();
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void versionEvent(CuratorFramework client, TreeCacheEvent event) {
+    if (event.getType() == TreeCacheEvent.Type.INITIALIZED) {
+      markInitialized();
+    }
+  }
+
+  private void markInitialized() {
+    initialized.countDown();
+    if (isInitialized()) {
+      LOG.info("Loaded {} services into the state mirror", services.size());
+    }
+  }
+
+  private void updateService(ChildData data) {
+    final String serviceId = ZKPaths.getNodeFromPath(data.getPath());
+    if (data.getData() == null || data.getData().length == 0) {
+      services.remove(serviceId);
+      groupServices.remove(serviceId);
+      return;
+    }
+
+    try {
+      BaragonService service = objectMapper.readValue(
+        data.getData(),
+        BaragonService.class
+      );
+      services.put(serviceId, service);
+      if (
+        service.getLoadBalancerGroups() != null &&
+        service
+          .getLoadBalancerGroups()
+          .contains(configuration.getLoadBalancerConfiguration().getName())
+      ) {
+        groupServices.put(serviceId, service);
+      } else {
+        groupServices.remove(serviceId);
+      }
+    } catch (IOException e) {
+      LOG.error("Could not parse service at {}", data.getPath(), e);
+    }
+  }
+
+  private Collection<UpstreamInfo> readUpstreams(String serviceId) {
+    final ChildData blobData = blobCache.getCurrentData(
+      String.format(BaragonStateDatastore.UPSTREAM_BLOB_FORMAT, serviceId)
+    );
+    if (blobData != null && blobData.getData() != null) {
+      return readBlobUpstreams(serviceId, blobData);
+    }
+
+    final Map<String, ChildData> children = treeCache.getCurrentChildren(
+      String.format(BaragonStateDatastore.SERVICE_FORMAT, serviceId)
+    );
+    if (children == null) {
+      return Collections.emptyList();
+    }
+
+    final List<UpstreamInfo> upstreams = new ArrayList<>(children.size());
+    for (String node : children.keySet()) {
+      upstreams.add(UpstreamInfo.fromString(node));
+    }
+    return upstreams;
+  }
+
+  private Collection<UpstreamInfo> readBlobUpstreams(String serviceId, ChildData data) {
+    final int version = data.getStat().getVersion();
+    final DecodedBlob decoded = decodedBlobs.get(serviceId);
+    if (decoded != null && decoded.version == version) {
+      return decoded.upstreams;
+    }
+
+    final UpstreamBlob blob = UpstreamBlob.fromBytes(data.getData());
+    final Collection<UpstreamInfo> upstreams = blob.isChunked()
+      ? stateDatastore.getUpstreams(serviceId)
+      : blob.toUpstreams(Collections.emptyList());
+    decodedBlobs.put(serviceId, new DecodedBlob(version, upstreams));
+    return upstreams;
+  }
+
+  private static boolean isServicePath(ChildData data) {
+    return (
+      data != null &&
+      ZKPaths.split(data.getPath()).size() ==
+      ZKPaths.split(BaragonStateDatastore.SERVICES_FORMAT).size() +
+      SERVICE_DEPTH
+    );
+  }
+
+  private static class DecodedBlob {
+    private final int version;
+    private final Collection<UpstreamInfo> upstreams;
+
+    private DecodedBlob(int version, Collection<UpstreamInfo> upstreams) {
+      this.version = version;
+      this.upstreams = upstreams;
+    }
+  }
+}
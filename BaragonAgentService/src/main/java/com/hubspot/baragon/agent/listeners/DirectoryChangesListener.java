@@ -8,6 +8,7 @@ import com.google.inject.name.Named;
 import com.hubspot.baragon.agent.BaragonAgentServiceModule;
 import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
 import com.hubspot.baragon.agent.config.WatchedDirectoryConfig;
+import com.hubspot.baragon.agent.lbs.ConfigFileManifest;
 import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
 import com.hubspot.baragon.exceptions.LockTimeoutException;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -47,6 +48,7 @@ public class DirectoryChangesListener {
 
   private final BaragonAgentConfiguration configuration;
   private final FilesystemConfigHelper filesystemConfigHelper;
+  private final ConfigFileManifest manifest;
   private final ReentrantLock agentLock;
   private final ExecutorService executorService;
   private final AtomicReference<String> fileCopyErrorMessage;
@@ -59,10 +61,12 @@ public class DirectoryChangesListener {
   public DirectoryChangesListener(
     BaragonAgentConfiguration configuration,
     FilesystemConfigHelper filesystemConfigHelper,
+    ConfigFileManifest manifest,
     @Named(BaragonAgentServiceModule.AGENT_LOCK) ReentrantLock agentLock
   ) {
     this.configuration = configuration;
     this.filesystemConfigHelper = filesystemConfigHelper;
+    this.manifest = manifest;
     this.agentLock = agentLock;
     this.fileCopyErrorMessage = new AtomicReference<>(null);
     this.timer = new Timer();
@@ -214,6 +218,7 @@ public class DirectoryChangesListener {
               .getDestinationAsPath()
               .resolve(from.getFileName().toString());
             LOG.info("Copying {} to {}", from, to);
+            manifest.invalidate(to.toAbsolutePath().toString());
             Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
             newCopiedFiles.add(to);
           }
@@ -230,6 +235,7 @@ public class DirectoryChangesListener {
           for (Path path : newCopiedFiles) {
             if (Files.exists(path)) {
               LOG.info("Deleting possibly invalid file {}", path);
+              manifest.invalidate(path.toAbsolutePath().toString());
               Files.delete(path);
             }
           }
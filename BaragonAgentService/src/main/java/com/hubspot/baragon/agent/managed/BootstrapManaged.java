@@ -6,7 +6,8 @@ import com.hubspot.baragon.agent.BaragonAgentServiceModule;
 import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
 import com.hubspot.baragon.agent.healthcheck.ConfigChecker;
 import com.hubspot.baragon.agent.healthcheck.InternalStateChecker;
-import com.hubspot.baragon.agent.lbs.LocalLbAdapter;
+import com.hubspot.baragon.agent.lbs.LbAdapter;
+import com.hubspot.baragon.agent.listeners.BaragonStateMirror;
 import com.hubspot.baragon.agent.listeners.DirectoryChangesListener;
 import com.hubspot.baragon.agent.listeners.ResyncListener;
 import com.hubspot.baragon.agent.workers.AgentHeartbeatWorker;
@@ -41,7 +42,8 @@ public class BootstrapManaged implements Managed {
   private final ConfigChecker configChecker;
   private final InternalStateChecker internalStateChecker;
   private final DirectoryChangesListener directoryChangesListener;
-  private final LocalLbAdapter lbAdapter;
+  private final BaragonStateMirror stateMirror;
+  private final LbAdapter lbAdapter;
   private final AtomicReference<BaragonAgentState> agentState;
 
   private ScheduledFuture<?> requestWorkerFuture = null;
@@ -62,7 +64,8 @@ public class BootstrapManaged implements Managed {
     AtomicReference<BaragonAgentState> agentState,
     InternalStateChecker internalStateChecker,
     DirectoryChangesListener directoryChangesListener,
-    LocalLbAdapter lbAdapter,
+    BaragonStateMirror stateMirror,
+    LbAdapter lbAdapter,
     @Named(
       BaragonAgentServiceModule.AGENT_SCHEDULED_EXECUTOR
     ) ScheduledExecutorService executorService,
@@ -81,6 +84,7 @@ public class BootstrapManaged implements Managed {
     this.configChecker = configChecker;
     this.internalStateChecker = internalStateChecker;
     this.directoryChangesListener = directoryChangesListener;
+    this.stateMirror = stateMirror;
     this.lbAdapter = lbAdapter;
     this.agentState = agentState;
   }
@@ -90,6 +94,9 @@ public class BootstrapManaged implements Managed {
     LOG.info("Updating watched files");
     directoryChangesListener.start();
 
+    LOG.info("Loading state mirror");
+    stateMirror.start();
+
     LOG.info("Applying current configs...");
     lifecycleHelper.applyCurrentConfigs();
 
@@ -180,5 +187,6 @@ public class BootstrapManaged implements Managed {
       stateCheckerFuture.cancel(true);
     }
     directoryChangesListener.stop();
+    stateMirror.stop();
   }
 }
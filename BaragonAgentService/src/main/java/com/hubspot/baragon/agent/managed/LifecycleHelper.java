@@ -1,6 +1,7 @@
 package com.hubspot.baragon.agent.managed;
 
 import ch.qos.logback.classic.LoggerContext;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.github.rholder.retry.Retryer;
 import com.github.rholder.retry.RetryerBuilder;
@@ -9,6 +10,7 @@ import com.github.rholder.retry.WaitStrategies;
 import com.google.common.base.Optional;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.agent.BaragonAgentServiceModule;
@@ -16,6 +18,7 @@ import com.hubspot.baragon.agent.ServerProvider;
 import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
 import com.hubspot.baragon.agent.lbs.BootstrapFileChecker;
 import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.listeners.BaragonStateMirror;
 import com.hubspot.baragon.data.BaragonAuthDatastore;
 import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.data.BaragonWorkerDatastore;
@@ -46,6 +49,9 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -67,12 +73,16 @@ public class LifecycleHelper {
   private static final String SERVICE_CHECKIN_URL_FORMAT = "%s/checkin/%s/%s";
   private static final String GLOBAL_STATE_FORMAT = "%s/state";
 
+  public static final String BOOTSTRAP_METRIC_PREFIX =
+    LifecycleHelper.class.getName() + ".bootstrap.";
+
   private final BaragonAuthDatastore authDatastore;
   private final BaragonWorkerDatastore workerDatastore;
   private final BaragonAgentConfiguration configuration;
   private final BaragonAgentMetadata baragonAgentMetadata;
   private final FilesystemConfigHelper configHelper;
   private final BaragonStateDatastore stateDatastore;
+  private final BaragonStateMirror stateMirror;
   private final ServerProvider serverProvider;
   private final AtomicReference<BaragonAgentState> agentState;
   private final NingHttpClient httpClient;
@@ -81,6 +91,7 @@ public class LifecycleHelper {
   private final ReentrantLock agentLock;
   private final long agentLockTimeoutMs;
   private final Map<String, BasicServiceContext> internalStateCache;
+  private final MetricRegistry metricRegistry;
   private final AtomicInteger bootstrapStateNodeVersion = new AtomicInteger(0);
 
   @Inject
@@ -91,6 +102,7 @@ public class LifecycleHelper {
     BaragonAgentMetadata baragonAgentMetadata,
     FilesystemConfigHelper configHelper,
     BaragonStateDatastore stateDatastore,
+    BaragonStateMirror stateMirror,
     ServerProvider serverProvider,
     AtomicReference<BaragonAgentState> agentState,
     @Named(BaragonAgentServiceModule.BARAGON_AGENT_HTTP_CLIENT) NingHttpClient httpClient,
@@ -102,7 +114,8 @@ public class LifecycleHelper {
     @Named(BaragonAgentServiceModule.AGENT_LOCK_TIMEOUT_MS) long agentLockTimeoutMs,
     @Named(
       BaragonAgentServiceModule.INTERNAL_STATE_CACHE
-    ) Map<String, BasicServiceContext> internalStateCache
+    ) Map<String, BasicServiceContext> internalStateCache,
+    MetricRegistry metricRegistry
   ) {
     this.workerDatastore = workerDatastore;
     this.authDatastore = authDatastore;
@@ -110,6 +123,7 @@ public class LifecycleHelper {
     this.baragonAgentMetadata = baragonAgentMetadata;
     this.configHelper = configHelper;
     this.stateDatastore = stateDatastore;
+    this.stateMirror = stateMirror;
     this.serverProvider = serverProvider;
     this.agentState = agentState;
     this.httpClient = httpClient;
@@ -118,6 +132,7 @@ public class LifecycleHelper {
     this.agentLock = agentLock;
     this.agentLockTimeoutMs = agentLockTimeoutMs;
     this.internalStateCache = internalStateCache;
+    this.metricRegistry = metricRegistry;
   }
 
   public void notifyService(String action) throws Exception {
@@ -253,17 +268,19 @@ public class LifecycleHelper {
 
     final Collection<String> services = stateDatastore.getServices();
     if (services.size() > 0) {
-      ExecutorService executorService = Executors.newFixedThreadPool(services.size());
-      List<Callable<Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>>>> todo = new ArrayList<>(
-        services.size()
-      );
-
-      Optional<Integer> maybeVersion = stateDatastore.getStateVersion();
+      List<BootstrapFileChecker> todo = new ArrayList<>(services.size());
+
+      // The version is read before the services, and from the same source, so that the
+      // services applied are at least as new as the version recorded
+      final boolean mirrored = stateMirror.isInitialized();
+      Optional<Integer> maybeVersion = mirrored
+        ? stateMirror.getStateVersion()
+        : stateDatastore.getStateVersion();
       if (maybeVersion.isPresent()) {
         bootstrapStateNodeVersion.set(maybeVersion.get());
       }
 
-      for (BaragonServiceState serviceState : getGlobalStateWithRetry()) {
+      for (BaragonServiceState serviceState : getBootstrapState(mirrored)) {
         if (
           (serviceState.getService().getLoadBalancerGroups() != null) &&
           (
@@ -276,35 +293,26 @@ public class LifecycleHelper {
           todo.add(new BootstrapFileChecker(configHelper, serviceState, now));
         }
       }
+      updateBootstrapTimer("fetchState", stopwatch.elapsed(TimeUnit.MILLISECONDS));
 
       LOG.info("Going to apply {} services...", todo.size());
 
+      ExecutorService renderExecutor = newBootstrapExecutor(
+        "bootstrap-render-%d",
+        configuration.getBootstrapRenderThreads()
+      );
+      ExecutorService writeExecutor = newBootstrapExecutor(
+        "bootstrap-write-%d",
+        configuration.getBootstrapWriteThreads()
+      );
       try {
-        List<Pair<ServiceContext, Collection<BaragonConfigFile>>> toApply = new ArrayList<>();
-        List<Future<Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>>>> applied = executorService.invokeAll(
-          todo
-        );
-        for (Future<Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>>> serviceFuture : applied) {
-          Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>> maybeToApply = serviceFuture.get();
-          if (maybeToApply.isPresent()) {
-            toApply.add(maybeToApply.get());
-          }
-        }
-
-        toApply.forEach(
-          item -> {
-            try {
-              configHelper.bootstrapApplyWrite(item.getKey(), item.getValue());
-            } catch (Exception e) {
-              LOG.error(
-                "Caught exception while applying write {} during bootstrap",
-                item.getKey().getService().getServiceId(),
-                e
-              );
-            }
-          }
+        List<Pair<ServiceContext, Collection<BaragonConfigFile>>> toApply = renderAndWrite(
+          todo,
+          renderExecutor,
+          writeExecutor
         );
 
+        final Stopwatch stageStopwatch = Stopwatch.createStarted();
         try {
           configHelper.bootstrapApplyCheck(toApply);
         } catch (Exception e) {
@@ -312,8 +320,12 @@ public class LifecycleHelper {
             configHelper.bootstrapApply(item.getKey(), item.getValue());
           }
         }
+        updateBootstrapTimer("check", stageStopwatch.elapsed(TimeUnit.MILLISECONDS));
 
+        stageStopwatch.reset().start();
         configHelper.reloadConfigs();
+        updateBootstrapTimer("reload", stageStopwatch.elapsed(TimeUnit.MILLISECONDS));
+
         toApply.forEach(
           item ->
             internalStateCache.put(
@@ -329,8 +341,12 @@ public class LifecycleHelper {
         if (configuration.isExitOnStartupError()) {
           Throwables.propagate(e);
         }
+      } finally {
+        renderExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
       }
 
+      updateBootstrapTimer("total", stopwatch.elapsed(TimeUnit.MILLISECONDS));
       LOG.info(
         "Applied {} services in {}ms",
         todo.size(),
@@ -341,6 +357,99 @@ public class LifecycleHelper {
     }
   }
 
+  /*
+   * Renders every service on the render pool and, as rendered configs come back, hands
+   * them to the write pool in batches so that writing overlaps with rendering
+   */
+  private List<Pair<ServiceContext, Collection<BaragonConfigFile>>> renderAndWrite(
+    List<BootstrapFileChecker> todo,
+    ExecutorService renderExecutor,
+    ExecutorService writeExecutor
+  )
+    throws InterruptedException, ExecutionException {
+    final Stopwatch renderStopwatch = Stopwatch.createStarted();
+    final Stopwatch writeStopwatch = Stopwatch.createUnstarted();
+    CompletionService<Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>>> rendered = new ExecutorCompletionService<>(
+      renderExecutor
+    );
+    for (BootstrapFileChecker checker : todo) {
+      rendered.submit(checker);
+    }
+
+    List<Pair<ServiceContext, Collection<BaragonConfigFile>>> toApply = new ArrayList<>();
+    List<Pair<ServiceContext, Collection<BaragonConfigFile>>> batch = new ArrayList<>();
+    List<Future<?>> writes = new ArrayList<>();
+    for (int i = 0; i < todo.size(); i++) {
+      Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>> maybeToApply = rendered.take().get();
+      if (maybeToApply.isPresent()) {
+        toApply.add(maybeToApply.get());
+        batch.add(maybeToApply.get());
+      }
+      if (batch.size() >= configuration.getBootstrapWriteBatchSize()) {
+        if (!writeStopwatch.isRunning()) {
+          writeStopwatch.start();
+        }
+        writes.add(writeExecutor.submit(writeBatch(batch)));
+        batch = new ArrayList<>();
+      }
+    }
+    updateBootstrapTimer("render", renderStopwatch.elapsed(TimeUnit.MILLISECONDS));
+
+    if (!batch.isEmpty()) {
+      if (!writeStopwatch.isRunning()) {
+        writeStopwatch.start();
+      }
+      writes.add(writeExecutor.submit(writeBatch(batch)));
+    }
+    for (Future<?> write : writes) {
+      write.get();
+    }
+    updateBootstrapTimer("write", writeStopwatch.elapsed(TimeUnit.MILLISECONDS));
+
+    return toApply;
+  }
+
+  private Runnable writeBatch(
+    List<Pair<ServiceContext, Collection<BaragonConfigFile>>> batch
+  ) {
+    return () ->
+      batch.forEach(
+        item -> {
+          try {
+            configHelper.bootstrapApplyWrite(item.getKey(), item.getValue());
+          } catch (Exception e) {
+            LOG.error(
+              "Caught exception while applying write {} during bootstrap",
+              item.getKey().getService().getServiceId(),
+              e
+            );
+          }
+        }
+      );
+  }
+
+  private ExecutorService newBootstrapExecutor(String nameFormat, int threads) {
+    return Executors.newFixedThreadPool(
+      threads,
+      new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build()
+    );
+  }
+
+  private void updateBootstrapTimer(String stage, long durationMillis) {
+    metricRegistry
+      .timer(BOOTSTRAP_METRIC_PREFIX + stage)
+      .update(durationMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private Collection<BaragonServiceState> getBootstrapState(boolean mirrored) {
+    if (mirrored) {
+      Collection<BaragonServiceState> states = stateMirror.getGroupServiceStates().get();
+      LOG.info("Using {} services from the state mirror", states.size());
+      return states;
+    }
+    return getGlobalStateWithRetry();
+  }
+
   private Collection<BaragonServiceState> getGlobalStateWithRetry() {
     Retryer<Collection<BaragonServiceState>> retryer = RetryerBuilder
       .<Collection<BaragonServiceState>>newBuilder()
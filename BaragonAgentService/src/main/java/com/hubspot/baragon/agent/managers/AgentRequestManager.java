@@ -12,6 +12,8 @@ import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
 import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
 import com.hubspot.baragon.agent.config.TestingConfiguration;
 import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.lbs.ReloadScheduler;
+import com.hubspot.baragon.agent.listeners.BaragonStateMirror;
 import com.hubspot.baragon.data.BaragonRequestDatastore;
 import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.exceptions.LockTimeoutException;
@@ -20,6 +22,7 @@ import com.hubspot.baragon.models.AgentBatchResponseItem;
 import com.hubspot.baragon.models.BaragonAgentState;
 import com.hubspot.baragon.models.BaragonConfigFile;
 import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonRequestBatch;
 import com.hubspot.baragon.models.BaragonRequestBatchItem;
 import com.hubspot.baragon.models.BaragonService;
 import com.hubspot.baragon.models.BasicServiceContext;
@@ -35,10 +38,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import javax.ws.rs.core.Response;
@@ -50,6 +60,7 @@ public class AgentRequestManager {
   private static final Logger LOG = LoggerFactory.getLogger(AgentRequestManager.class);
   private final FilesystemConfigHelper configHelper;
   private final BaragonStateDatastore stateDatastore;
+  private final BaragonStateMirror stateMirror;
   private final BaragonRequestDatastore requestDatastore;
   private final AtomicReference<String> mostRecentRequestId;
   private final Optional<TestingConfiguration> maybeTestingConfiguration;
@@ -60,10 +71,12 @@ public class AgentRequestManager {
   private final long agentLockTimeoutMs;
   private final Map<String, BasicServiceContext> internalStateCache;
   private final NingHttpClient httpClient;
+  private final ReentrantLock agentLock;
 
   @Inject
   public AgentRequestManager(
     BaragonStateDatastore stateDatastore,
+    BaragonStateMirror stateMirror,
     BaragonRequestDatastore requestDatastore,
     FilesystemConfigHelper configHelper,
     Optional<TestingConfiguration> maybeTestingConfiguration,
@@ -78,9 +91,11 @@ public class AgentRequestManager {
     @Named(
       BaragonAgentServiceModule.INTERNAL_STATE_CACHE
     ) Map<String, BasicServiceContext> internalStateCache,
-    @Named(BARAGON_AGENT_HTTP_CLIENT) NingHttpClient httpClient
+    @Named(BARAGON_AGENT_HTTP_CLIENT) NingHttpClient httpClient,
+    @Named(BaragonAgentServiceModule.AGENT_LOCK) ReentrantLock agentLock
   ) {
     this.stateDatastore = stateDatastore;
+    this.stateMirror = stateMirror;
     this.configHelper = configHelper;
     this.maybeTestingConfiguration = maybeTestingConfiguration;
     this.requestDatastore = requestDatastore;
@@ -92,12 +107,30 @@ public class AgentRequestManager {
     this.agentLockTimeoutMs = agentLockTimeoutMs;
     this.internalStateCache = internalStateCache;
     this.httpClient = httpClient;
+    this.agentLock = agentLock;
   }
 
   public List<AgentBatchResponseItem> processRequests(
     List<BaragonRequestBatchItem> batch
   )
     throws InterruptedException {
+    return processRequests(
+      new BaragonRequestBatch(
+        batch,
+        Collections.emptyMap(),
+        Collections.emptyMap(),
+        Collections.emptyMap()
+      )
+    );
+  }
+
+  /*
+   * Requests, prior services and upstreams included in the batch are used as sent, and
+   * anything missing from it (everything, for batches of ids only) is read from ZooKeeper
+   */
+  public List<AgentBatchResponseItem> processRequests(BaragonRequestBatch requestBatch)
+    throws InterruptedException {
+    final List<BaragonRequestBatchItem> batch = requestBatch.getItems();
     Map<String, Optional<BaragonRequest>> requests = new HashMap<>();
     Map<String, Optional<BaragonService>> services = new HashMap<>();
 
@@ -106,16 +139,21 @@ public class AgentRequestManager {
       .stream()
       .map(
         requestItem -> {
-          final Optional<BaragonRequest> maybeRequest = requestDatastore.getRequest(
-            requestItem.getRequestId()
-          );
+          final Optional<BaragonRequest> maybeRequest = requestBatch
+              .getRequests()
+              .containsKey(requestItem.getRequestId())
+            ? Optional.of(requestBatch.getRequests().get(requestItem.getRequestId()))
+            : requestDatastore.getRequest(requestItem.getRequestId());
 
           requests.put(requestItem.getRequestId(), maybeRequest);
 
           if (maybeRequest.isPresent()) {
             services.computeIfAbsent(
               maybeRequest.get().getLoadBalancerService().getServiceId(),
-              r -> getOldService(maybeRequest.get())
+              serviceId ->
+                requestBatch.getRequests().containsKey(requestItem.getRequestId())
+                  ? Optional.fromNullable(requestBatch.getServices().get(serviceId))
+                  : getOldService(maybeRequest.get())
             );
           }
           return maybeRequest;
@@ -139,6 +177,9 @@ public class AgentRequestManager {
         Collectors.toMap(
           Function.identity(),
           serviceId -> {
+            if (requestBatch.getUpstreams().containsKey(serviceId)) {
+              return new ArrayList<>(requestBatch.getUpstreams().get(serviceId));
+            }
             try {
               return stateDatastore.getUpstreams(serviceId);
             } catch (Exception e) {
@@ -152,7 +193,18 @@ public class AgentRequestManager {
         )
       );
 
+    if (baragonAgentConfiguration.isTransactionalBatchApply() && batch.size() > 1) {
+      return processRequestsTransactionally(
+        batch,
+        existingUpstreamsForThisBatch,
+        services,
+        requests
+      );
+    }
+
     List<AgentBatchResponseItem> responses = new ArrayList<>(batch.size());
+    // Set once an item leaves its reload to the last one, which must then reload
+    final AtomicBoolean reloadDeferred = new AtomicBoolean(false);
     int i = 0;
     for (BaragonRequestBatchItem item : batch) {
       boolean isLast = i == batch.size() - 1;
@@ -165,6 +217,8 @@ public class AgentRequestManager {
             requests,
             actionForBatchItem(item),
             !isLast,
+            false,
+            reloadDeferred,
             Optional.of(i)
           ),
           item
@@ -175,6 +229,247 @@ public class AgentRequestManager {
     return responses;
   }
 
+  /*
+   * Writes the configs for every item without checking them, then checks them once. If
+   * that fails, every service in the batch is set back to its configs from before the
+   * batch and the services are added back half at a time, so that only the items of the
+   * services that break the check are reverted and reported as failed. Configs are
+   * reloaded once at the end
+   */
+  private List<AgentBatchResponseItem> processRequestsTransactionally(
+    List<BaragonRequestBatchItem> batch,
+    Map<String, Collection<UpstreamInfo>> existingUpstreams,
+    Map<String, Optional<BaragonService>> services,
+    Map<String, Optional<BaragonRequest>> requests
+  )
+    throws InterruptedException {
+    if (!agentLock.tryLock(agentLockTimeoutMs, TimeUnit.MILLISECONDS)) {
+      LOG.warn("Failed to acquire lock for batch apply");
+      final Response conflict = Response
+        .status(Response.Status.CONFLICT)
+        .entity(
+          String.format(
+            "Couldn't acquire agent lock for batch in %s ms. Lock Info: %s",
+            agentLockTimeoutMs,
+            agentLock
+          )
+        )
+        .build();
+      final List<AgentBatchResponseItem> responseItems = new ArrayList<>(batch.size());
+      for (BaragonRequestBatchItem item : batch) {
+        responseItems.add(getResponseItem(conflict, item));
+      }
+      return responseItems;
+    }
+
+    final List<Response> responses = new ArrayList<>(batch.size());
+    final List<BatchService> applied = new ArrayList<>();
+    Optional<CompletableFuture<Void>> maybeReload = Optional.absent();
+    try {
+      final Map<String, BatchService> batchServices = new LinkedHashMap<>();
+      for (BaragonRequestBatchItem item : batch) {
+        final Optional<BaragonRequest> maybeRequest = requests.get(item.getRequestId());
+        if (maybeRequest == null || !maybeRequest.isPresent()) {
+          continue;
+        }
+        final BaragonService service = maybeRequest.get().getLoadBalancerService();
+        final BatchService batchService = batchServices.computeIfAbsent(
+          service.getServiceId(),
+          BatchService::new
+        );
+        batchService.paths.addAll(configHelper.getConfigPaths(service));
+        final Optional<BaragonService> maybeOldService = services.get(
+          service.getServiceId()
+        );
+        if (maybeOldService != null && maybeOldService.isPresent()) {
+          batchService.paths.addAll(configHelper.getConfigPaths(maybeOldService.get()));
+        }
+      }
+      for (BatchService batchService : batchServices.values()) {
+        batchService.before = configHelper.snapshotConfigs(batchService.paths);
+        batchService.cachedContext = internalStateCache.get(batchService.serviceId);
+      }
+
+      for (int i = 0; i < batch.size(); i++) {
+        final BaragonRequestBatchItem item = batch.get(i);
+        final Response response = processRequest(
+          item.getRequestId(),
+          existingUpstreams,
+          services,
+          requests,
+          actionForBatchItem(item),
+          true,
+          true,
+          new AtomicBoolean(false),
+          Optional.of(i)
+        );
+        responses.add(response);
+        if (response.getStatus() < 300 && requests.get(item.getRequestId()) != null) {
+          final BaragonRequest request = requests.get(item.getRequestId()).get();
+          batchServices
+            .get(request.getLoadBalancerService().getServiceId())
+            .appliedItems.put(i, request);
+        }
+      }
+
+      for (BatchService batchService : batchServices.values()) {
+        if (!batchService.appliedItems.isEmpty()) {
+          applied.add(batchService);
+        }
+      }
+
+      if (applied.stream().anyMatch(BatchService::needsValidation)) {
+        final Optional<Exception> maybeError = checkBatchConfigs(applied);
+        if (maybeError.isPresent()) {
+          LOG.warn(
+            "Configs for batch of {} services are invalid, isolating invalid services",
+            applied.size(),
+            maybeError.get()
+          );
+          for (BatchService batchService : applied) {
+            batchService.after = configHelper.snapshotConfigs(batchService.paths);
+            configHelper.restoreSnapshot(batchService.before);
+          }
+
+          final List<BatchService> invalid = new ArrayList<>();
+          final Optional<Exception> maybeBaselineError = checkBatchConfigs(applied);
+          if (maybeBaselineError.isPresent()) {
+            LOG.error("Configs are invalid without this batch, failing all of its items");
+            for (BatchService batchService : applied) {
+              batchService.error = maybeBaselineError.get();
+              invalid.add(batchService);
+            }
+          } else {
+            isolateInvalidServices(applied, invalid);
+          }
+
+          for (BatchService batchService : invalid) {
+            failBatchService(batchService, responses, "failed validation");
+          }
+          applied.removeAll(invalid);
+        }
+      }
+
+      if (applied.stream().anyMatch(BatchService::needsReload)) {
+        maybeReload = Optional.of(configHelper.requestReload());
+      }
+    } finally {
+      agentLock.unlock();
+    }
+
+    // The reload takes the agent lock itself, and may cover other requests as well
+    if (maybeReload.isPresent()) {
+      try {
+        ReloadScheduler.await(maybeReload.get());
+      } catch (Exception e) {
+        LOG.error("Caught exception while reloading configs for batch", e);
+        // The configs passed the check and stay on disk for the next reload to pick up,
+        // so the cache keeps the contexts they were rendered from
+        for (BatchService batchService : applied) {
+          failBatchItems(
+            batchService,
+            responses,
+            String.format(
+              "Configs for %s were applied in batch but failed to reload: %s",
+              batchService.serviceId,
+              e.getMessage()
+            )
+          );
+        }
+      }
+    }
+
+    final List<AgentBatchResponseItem> responseItems = new ArrayList<>(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      responseItems.add(getResponseItem(responses.get(i), batch.get(i)));
+    }
+    return responseItems;
+  }
+
+  /*
+   * Expects every service in candidates to have its configs from before the batch on disk
+   * and every other applied service to pass the check. Services that pass are left with
+   * their new configs, and the others with their old configs are added to invalid
+   */
+  private void isolateInvalidServices(
+    List<BatchService> candidates,
+    List<BatchService> invalid
+  ) {
+    for (BatchService batchService : candidates) {
+      configHelper.restoreSnapshot(batchService.after);
+    }
+    final Optional<Exception> maybeError = checkBatchConfigs(candidates);
+    if (!maybeError.isPresent()) {
+      return;
+    }
+
+    for (BatchService batchService : candidates) {
+      configHelper.restoreSnapshot(batchService.before);
+    }
+    if (candidates.size() == 1) {
+      LOG.warn("Configs for {} are invalid", candidates.get(0).serviceId);
+      candidates.get(0).error = maybeError.get();
+      invalid.add(candidates.get(0));
+      return;
+    }
+
+    final int middle = candidates.size() / 2;
+    isolateInvalidServices(candidates.subList(0, middle), invalid);
+    isolateInvalidServices(candidates.subList(middle, candidates.size()), invalid);
+  }
+
+  private Optional<Exception> checkBatchConfigs(Collection<BatchService> batchServices) {
+    final Set<String> paths = new HashSet<>();
+    for (BatchService batchService : batchServices) {
+      paths.addAll(batchService.paths);
+    }
+    try {
+      configHelper.checkConfigs(paths);
+      return Optional.absent();
+    } catch (Exception e) {
+      return Optional.of(e);
+    }
+  }
+
+  /*
+   * For a service whose configs from before the batch have been restored, so its cached
+   * context is set back to match
+   */
+  private void failBatchService(
+    BatchService batchService,
+    List<Response> responses,
+    String reason
+  ) {
+    if (batchService.cachedContext == null) {
+      internalStateCache.remove(batchService.serviceId);
+    } else {
+      internalStateCache.put(batchService.serviceId, batchService.cachedContext);
+    }
+    failBatchItems(
+      batchService,
+      responses,
+      String.format(
+        "Configs for %s %s in batch, reverted: %s",
+        batchService.serviceId,
+        reason,
+        batchService.error.getMessage()
+      )
+    );
+  }
+
+  private void failBatchItems(
+    BatchService batchService,
+    List<Response> responses,
+    String message
+  ) {
+    for (int i : batchService.appliedItems.keySet()) {
+      responses.set(
+        i,
+        Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(message).build()
+      );
+    }
+  }
+
   private AgentBatchResponseItem getResponseItem(
     Response httpResponse,
     BaragonRequestBatchItem item
@@ -213,6 +508,31 @@ public class AgentRequestManager {
     Optional<RequestAction> maybeAction,
     boolean delayReload,
     Optional<Integer> batchItemNumber
+  )
+    throws InterruptedException {
+    return processRequest(
+      requestId,
+      existingUpstreams,
+      services,
+      requests,
+      maybeAction,
+      delayReload,
+      false,
+      new AtomicBoolean(false),
+      batchItemNumber
+    );
+  }
+
+  private Response processRequest(
+    String requestId,
+    Map<String, Collection<UpstreamInfo>> existingUpstreams,
+    Map<String, Optional<BaragonService>> services,
+    Map<String, Optional<BaragonRequest>> requests,
+    Optional<RequestAction> maybeAction,
+    boolean delayReload,
+    boolean deferValidation,
+    AtomicBoolean reloadDeferred,
+    Optional<Integer> batchItemNumber
   )
     throws InterruptedException {
     if (requests.get(requestId) == null || !requests.get(requestId).isPresent()) {
@@ -233,6 +553,8 @@ public class AgentRequestManager {
       services.get(request.getLoadBalancerService().getServiceId()),
       existingUpstreams,
       delayReload,
+      deferValidation,
+      reloadDeferred,
       batchItemNumber
     );
   }
@@ -245,6 +567,36 @@ public class AgentRequestManager {
     Map<String, Collection<UpstreamInfo>> existingUpstreams,
     boolean delayReload,
     Optional<Integer> batchItemNumber
+  ) {
+    return processRequest(
+      requestId,
+      action,
+      request,
+      maybeOldService,
+      existingUpstreams,
+      delayReload,
+      false,
+      new AtomicBoolean(false),
+      batchItemNumber
+    );
+  }
+
+  /**
+   * @param deferValidation skip checking configs after writing them, for a batch that
+   * checks them once at the end
+   * @param reloadDeferred set when an item of the batch left its reload to a later one.
+   * While it is set, changes are always written and reloaded, never applied at runtime.
+   */
+  private Response processRequest(
+    String requestId,
+    RequestAction action,
+    BaragonRequest request,
+    Optional<BaragonService> maybeOldService,
+    Map<String, Collection<UpstreamInfo>> existingUpstreams,
+    boolean delayReload,
+    boolean deferValidation,
+    AtomicBoolean reloadDeferred,
+    Optional<Integer> batchItemNumber
   ) {
     long start = System.currentTimeMillis();
     try {
@@ -253,8 +605,10 @@ public class AgentRequestManager {
       String serviceId;
       switch (action) {
         case DELETE:
-          return delete(request, maybeOldService, delayReload);
+          markReloadDeferred(request, delayReload, reloadDeferred);
+          return delete(request, maybeOldService, delayReload, deferValidation);
         case RELOAD:
+          markReloadDeferred(request, delayReload, reloadDeferred);
           return reload(request, delayReload);
         case GET_RENDERED_CONFIG:
           return getRenderedConfigs(request.getLoadBalancerService().getServiceId());
@@ -262,11 +616,13 @@ public class AgentRequestManager {
           return purgeCache(request.getLoadBalancerService().getServiceId());
         case REVERT:
           serviceId = request.getLoadBalancerService().getServiceId();
+          markReloadDeferred(request, delayReload, reloadDeferred);
           return revert(
             request,
             maybeOldService,
             existingUpstreams.computeIfAbsent(serviceId, key -> new ArrayList<>()),
             delayReload,
+            deferValidation,
             batchItemNumber
           );
         default:
@@ -276,6 +632,8 @@ public class AgentRequestManager {
             maybeOldService,
             existingUpstreams.computeIfAbsent(serviceId, key -> new ArrayList<>()),
             delayReload,
+            deferValidation,
+            reloadDeferred,
             batchItemNumber
           );
           if (request.isPurgeCache()) {
@@ -338,14 +696,15 @@ public class AgentRequestManager {
   private Response delete(
     BaragonRequest request,
     Optional<BaragonService> maybeOldService,
-    boolean delayReload
+    boolean delayReload,
+    boolean deferValidation
   )
     throws Exception {
     configHelper.delete(
       request.getLoadBalancerService(),
       maybeOldService,
       request.isNoReload(),
-      request.isNoValidate(),
+      request.isNoValidate() || deferValidation,
       delayReload
     );
     mostRecentRequestId.set(request.getLoadBalancerRequestId());
@@ -358,7 +717,7 @@ public class AgentRequestManager {
     if (internalStateCache.containsKey(serviceId)) {
       result = configHelper.readConfigs(internalStateCache.get(serviceId).getService());
     } else {
-      Optional<BaragonService> maybeService = stateDatastore.getService(serviceId);
+      Optional<BaragonService> maybeService = stateMirror.getService(serviceId);
       if (maybeService.isPresent()) {
         result = configHelper.readConfigs(maybeService.get());
       }
@@ -373,7 +732,7 @@ public class AgentRequestManager {
     if (internalStateCache.containsKey(serviceId)) {
       maybeService = Optional.of(internalStateCache.get(serviceId).getService());
     } else {
-      maybeService = stateDatastore.getService(serviceId);
+      maybeService = stateMirror.getService(serviceId);
     }
 
     // 1. if no service exists, return an error response early
@@ -419,20 +778,32 @@ public class AgentRequestManager {
     Optional<BaragonService> maybeOldService,
     Collection<UpstreamInfo> existingUpstreams,
     boolean delayReload,
+    boolean deferValidation,
+    AtomicBoolean reloadDeferred,
     Optional<Integer> batchItemNumber
   )
     throws Exception {
+    final Collection<UpstreamInfo> previousUpstreams = new ArrayList<>(existingUpstreams);
     final ServiceContext update = getApplyContext(request, existingUpstreams);
     triggerTesting();
-    configHelper.apply(
-      update,
-      maybeOldService,
-      true,
-      request.isNoReload(),
-      request.isNoValidate(),
-      delayReload,
-      batchItemNumber
-    );
+    // A change applied at runtime doesn't reload, so it can't cover earlier changes that
+    // left their reload to it
+    if (
+      reloadDeferred.get() ||
+      !isUpstreamOnlyChange(request, maybeOldService, deferValidation) ||
+      !configHelper.applyUpstreamsAtRuntime(update, previousUpstreams)
+    ) {
+      markReloadDeferred(request, delayReload, reloadDeferred);
+      configHelper.apply(
+        update,
+        maybeOldService,
+        true,
+        request.isNoReload(),
+        request.isNoValidate() || deferValidation,
+        delayReload,
+        batchItemNumber
+      );
+    }
     mostRecentRequestId.set(request.getLoadBalancerRequestId());
     if (movedOffLoadBalancer(request)) {
       internalStateCache.remove(update.getService().getServiceId());
@@ -450,6 +821,7 @@ public class AgentRequestManager {
     Optional<BaragonService> maybeOldService,
     Collection<UpstreamInfo> existingUpstreams,
     boolean delayReload,
+    boolean deferValidation,
     Optional<Integer> batchItemNumber
   )
     throws Exception {
@@ -482,7 +854,7 @@ public class AgentRequestManager {
         Optional.<BaragonService>absent(),
         false,
         request.isNoReload(),
-        request.isNoValidate(),
+        request.isNoValidate() || deferValidation,
         delayReload,
         batchItemNumber
       );
@@ -560,6 +932,34 @@ public class AgentRequestManager {
     }
   }
 
+  /*
+   * Changes in a transactional batch are left out, since the batch may restore their
+   * configs after they were applied
+   */
+  private boolean isUpstreamOnlyChange(
+    BaragonRequest request,
+    Optional<BaragonService> maybeOldService,
+    boolean deferValidation
+  ) {
+    return (
+      !deferValidation &&
+      !request.isNoReload() &&
+      maybeOldService.isPresent() &&
+      maybeOldService.get().equals(request.getLoadBalancerService()) &&
+      !movedOffLoadBalancer(request)
+    );
+  }
+
+  private static void markReloadDeferred(
+    BaragonRequest request,
+    boolean delayReload,
+    AtomicBoolean reloadDeferred
+  ) {
+    if (delayReload && !request.isNoReload()) {
+      reloadDeferred.set(true);
+    }
+  }
+
   private boolean movedOffLoadBalancer(Optional<BaragonService> maybeOldService) {
     return (
       !maybeOldService.isPresent() ||
@@ -610,4 +1010,26 @@ public class AgentRequestManager {
       }
     }
   }
+
+  private static class BatchService {
+    private final String serviceId;
+    private final Set<String> paths = new HashSet<>();
+    private final Map<Integer, BaragonRequest> appliedItems = new LinkedHashMap<>();
+    private Map<String, Optional<String>> before;
+    private Map<String, Optional<String>> after;
+    private BasicServiceContext cachedContext;
+    private Exception error;
+
+    BatchService(String serviceId) {
+      this.serviceId = serviceId;
+    }
+
+    boolean needsValidation() {
+      return appliedItems.values().stream().anyMatch(request -> !request.isNoValidate());
+    }
+
+    boolean needsReload() {
+      return appliedItems.values().stream().anyMatch(request -> !request.isNoReload());
+    }
+  }
 }
@@ -3,6 +3,7 @@ package com.hubspot.baragon.agent.resources;
 import com.google.inject.Inject;
 import com.hubspot.baragon.agent.managers.AgentRequestManager;
 import com.hubspot.baragon.models.AgentBatchResponseItem;
+import com.hubspot.baragon.models.BaragonRequestBatch;
 import com.hubspot.baragon.models.BaragonRequestBatchItem;
 import java.util.List;
 import javax.ws.rs.Consumes;
@@ -30,4 +31,12 @@ public class BatchRequestResource {
     throws InterruptedException {
     return agentRequestManager.processRequests(batch);
   }
+
+  @POST
+  @Path("/inline")
+  @Consumes(MediaType.APPLICATION_JSON)
+  public List<AgentBatchResponseItem> applyInline(BaragonRequestBatch batch)
+    throws InterruptedException {
+    return agentRequestManager.processRequests(batch);
+  }
 }
@@ -1,7 +1,10 @@
 package com.hubspot.baragon.agent.resources;
 
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.inject.Inject;
+import com.hubspot.baragon.agent.managed.LifecycleHelper;
+import java.util.SortedMap;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
@@ -23,4 +26,12 @@ public class MetricsResource {
   public MetricRegistry getRegistry() {
     return registry;
   }
+
+  @GET
+  @Path("/bootstrap")
+  public SortedMap<String, Timer> getBootstrapTimers() {
+    return registry.getTimers(
+      (name, metric) -> name.startsWith(LifecycleHelper.BOOTSTRAP_METRIC_PREFIX)
+    );
+  }
 }
@@ -6,7 +6,7 @@ import com.google.inject.name.Named;
 import com.hubspot.baragon.BaragonDataModule;
 import com.hubspot.baragon.agent.BaragonAgentServiceModule;
 import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
-import com.hubspot.baragon.agent.lbs.LocalLbAdapter;
+import com.hubspot.baragon.agent.lbs.ConfigValidator;
 import com.hubspot.baragon.agent.listeners.DirectoryChangesListener;
 import com.hubspot.baragon.auth.NoAuth;
 import com.hubspot.baragon.exceptions.InvalidConfigException;
@@ -31,7 +31,7 @@ import org.apache.curator.framework.state.ConnectionState;
 @Path("/status")
 @Produces(MediaType.APPLICATION_JSON)
 public class StatusResource {
-  private final LocalLbAdapter adapter;
+  private final ConfigValidator configValidator;
   private final LoadBalancerConfiguration loadBalancerConfiguration;
   private final LeaderLatch leaderLatch;
   private final AtomicReference<String> mostRecentRequestId;
@@ -45,7 +45,7 @@ public class StatusResource {
 
   @Inject
   public StatusResource(
-    LocalLbAdapter adapter,
+    ConfigValidator configValidator,
     LoadBalancerConfiguration loadBalancerConfiguration,
     BaragonAgentMetadata agentMetadata,
     AtomicReference<BaragonAgentState> agentState,
@@ -65,7 +65,7 @@ public class StatusResource {
       BaragonAgentServiceModule.INTERNAL_STATE_CACHE
     ) Map<String, BasicServiceContext> internalStateCache
   ) {
-    this.adapter = adapter;
+    this.configValidator = configValidator;
     this.loadBalancerConfiguration = loadBalancerConfiguration;
     this.leaderLatch = leaderLatch;
     this.mostRecentRequestId = mostRecentRequestId;
@@ -85,7 +85,7 @@ public class StatusResource {
   ) {
     if (skipCache) {
       try {
-        adapter.checkConfigs();
+        configValidator.checkConfigs();
         errorMessage.set(Optional.<String>absent());
       } catch (InvalidConfigException e) {
         errorMessage.set(Optional.of(e.getMessage()));
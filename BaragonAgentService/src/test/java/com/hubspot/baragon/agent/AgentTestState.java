@@ -0,0 +1,35 @@
+package com.hubspot.baragon.agent;
+
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.listeners.BaragonStateMirror;
+import com.hubspot.baragon.data.ZooKeeperTestState;
+
+/*
+ * The shared ZooKeeper test state, with the agent configuration of a load balancer in
+ * its group that the agent's state handling is built from
+ */
+public class AgentTestState extends ZooKeeperTestState {
+  private final BaragonAgentConfiguration agentConfiguration;
+
+  public AgentTestState() throws Exception {
+    LoadBalancerConfiguration loadBalancerConfiguration = new LoadBalancerConfiguration();
+    loadBalancerConfiguration.setName(GROUP);
+    this.agentConfiguration = new BaragonAgentConfiguration();
+    agentConfiguration.setLoadBalancerConfiguration(loadBalancerConfiguration);
+  }
+
+  public BaragonStateMirror newStateMirror() {
+    return new BaragonStateMirror(
+      getCuratorFramework(),
+      getStateDatastore(),
+      getObjectMapper(),
+      agentConfiguration,
+      getZooKeeperConfiguration()
+    );
+  }
+
+  public BaragonAgentConfiguration getAgentConfiguration() {
+    return agentConfiguration;
+  }
+}
@@ -0,0 +1,144 @@
+package com.hubspot.baragon.agent.handlebars;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.github.jknack.handlebars.Handlebars;
+import com.github.jknack.handlebars.Helper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.models.BaragonAgentEc2Metadata;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class PreferSameRackWeightingHelperTest {
+  private static final List<UpstreamInfo> UPSTREAMS = ImmutableList.of(
+    upstream("10.0.0.1:8080", "us-east-1a"),
+    upstream("10.0.0.2:8080", "us-east-1a"),
+    upstream("10.0.0.3:8080", "us-east-1b"),
+    upstream("10.0.0.4:8080", "us-east-1c"),
+    upstream("10.0.0.5:8080", "us-east-1e")
+  );
+
+  private BaragonAgentConfiguration configuration;
+  private PreferSameRackWeightingHelper helper;
+
+  @BeforeEach
+  public void setup() {
+    configuration = new BaragonAgentConfiguration();
+    helper =
+      new PreferSameRackWeightingHelper(configuration, agentMetadata("us-east-1b"));
+  }
+
+  @Test
+  public void itReusesTheRackWeightsForEveryUpstreamOfARender() throws Exception {
+    final List<Object> cachedWeights = new ArrayList<>();
+    final Handlebars handlebars = new Handlebars();
+    handlebars.registerHelpers(helper);
+    handlebars.registerHelper(
+      "recordRackWeights",
+      (Helper<Object>) (context, options) -> {
+        cachedWeights.add(
+          options.data(PreferSameRackWeightingHelper.RACK_WEIGHTS_DATA_KEY)
+        );
+        return "";
+      }
+    );
+
+    final String rendered = handlebars
+      .compileInline(
+        "{{#each upstreams}}" +
+        "{{{preferSameRackWeighting ../upstreams this}}}{{recordRackWeights}};" +
+        "{{/each}}"
+      )
+      .apply(ImmutableMap.of("upstreams", UPSTREAMS));
+
+    assertEquals(expectedWeights(), rendered);
+    assertEquals(UPSTREAMS.size(), cachedWeights.size());
+    assertNotNull(cachedWeights.get(0));
+    for (Object weights : cachedWeights) {
+      assertSame(cachedWeights.get(0), weights);
+    }
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void itKeepsTheDeprecatedHelpersWorking() throws Exception {
+    for (UpstreamInfo upstream : UPSTREAMS) {
+      assertEquals(
+        helper.preferSameRackWeighting(UPSTREAMS, upstream, null),
+        helper.preferSameRackWeightingOperation(
+          UPSTREAMS,
+          upstream,
+          Collections.emptyList(),
+          BigDecimal.ZERO,
+          BigDecimal.ZERO,
+          BigDecimal.ZERO,
+          null
+        )
+      );
+    }
+
+    assertEquals(configuration.getZeroWeightString(), helper.getWeight(BigDecimal.ZERO));
+    assertEquals("", helper.getWeight(new BigDecimal("0.4")));
+    assertEquals("", helper.getWeight(BigDecimal.ONE));
+    assertEquals(
+      String.format(configuration.getWeightingFormat(), 3),
+      helper.getWeight(new BigDecimal("2.1"))
+    );
+
+    final Handlebars handlebars = new Handlebars();
+    handlebars.registerHelpers(helper);
+    assertEquals(
+      expectedWeights(),
+      handlebars
+        .compileInline(
+          "{{#each upstreams}}" +
+          "{{{preferSameRackWeightingOperation ../upstreams this " +
+          "null null null null}}};" +
+          "{{/each}}"
+        )
+        .apply(ImmutableMap.of("upstreams", UPSTREAMS))
+    );
+  }
+
+  // The weights rendered one after the other, computed without a render to cache them in
+  private String expectedWeights() {
+    return UPSTREAMS
+      .stream()
+      .map(upstream -> helper.preferSameRackWeighting(UPSTREAMS, upstream, null) + ";")
+      .collect(Collectors.joining());
+  }
+
+  private static UpstreamInfo upstream(String upstream, String rackId) {
+    return new UpstreamInfo(upstream, Optional.absent(), Optional.of(rackId));
+  }
+
+  private static BaragonAgentMetadata agentMetadata(String availabilityZone) {
+    return new BaragonAgentMetadata(
+      "http://localhost:8882/baragon-agent/v2",
+      "agent",
+      Optional.absent(),
+      new BaragonAgentEc2Metadata(
+        Optional.absent(),
+        Optional.of(availabilityZone),
+        Optional.absent(),
+        Optional.absent(),
+        Optional.absent()
+      ),
+      Optional.absent(),
+      Collections.emptyMap(),
+      true
+    );
+  }
+}
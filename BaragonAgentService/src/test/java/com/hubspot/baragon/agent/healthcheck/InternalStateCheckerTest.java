@@ -0,0 +1,108 @@
+package com.hubspot.baragon.agent.healthcheck;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.hubspot.baragon.agent.AgentTestState;
+import com.hubspot.baragon.agent.listeners.BaragonStateMirror;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BasicServiceContext;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class InternalStateCheckerTest {
+  private AgentTestState zk;
+  private BaragonStateMirror stateMirror;
+  private Map<String, BasicServiceContext> internalStateCache;
+  private Set<String> stateErrors;
+  private InternalStateChecker checker;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zk = new AgentTestState();
+    stateMirror = zk.newStateMirror();
+    internalStateCache = new ConcurrentHashMap<>();
+    stateErrors = ConcurrentHashMap.newKeySet();
+    // Services that differ and need fixing up would need the config helper
+    checker =
+      new InternalStateChecker(
+        stateMirror,
+        zk.getRequestDatastore(),
+        zk.getAgentConfiguration().getLoadBalancerConfiguration(),
+        zk.getObjectMapper(),
+        null,
+        new ReentrantLock(),
+        internalStateCache,
+        stateErrors
+      );
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    stateMirror.stop();
+    zk.close();
+  }
+
+  @Test
+  public void itClearsErrorsOnceTheAgentMatchesTheState() throws Exception {
+    BaragonService service = zk.saveService(
+      "service",
+      AgentTestState.GROUP,
+      "10.0.0.1:8080"
+    );
+    stateMirror.start();
+    internalStateCache.put(
+      "service",
+      new BasicServiceContext(service, AgentTestState.toUpstreams("10.0.0.1:8080"))
+    );
+    stateErrors.add("service does not match state");
+
+    checker.run();
+
+    assertTrue(stateErrors.isEmpty());
+  }
+
+  @Test
+  public void itReportsServicesRemovedFromTheState() throws Exception {
+    BaragonService service = zk.saveService("removed", AgentTestState.GROUP);
+    zk.getStateDatastore().removeService("removed");
+    stateMirror.start();
+    internalStateCache.put(
+      "removed",
+      new BasicServiceContext(service, AgentTestState.toUpstreams())
+    );
+
+    checker.run();
+
+    assertEquals(
+      Collections.singleton(
+        "removed no longer exists in state datastore, but exists in agent"
+      ),
+      stateErrors
+    );
+  }
+
+  @Test
+  public void itReportsServicesMovedToAnotherGroup() throws Exception {
+    BaragonService service = zk.saveService("moved", AgentTestState.GROUP);
+    zk.saveService("moved", "other");
+    stateMirror.start();
+    internalStateCache.put(
+      "moved",
+      new BasicServiceContext(service, AgentTestState.toUpstreams())
+    );
+
+    checker.run();
+
+    assertEquals(
+      Collections.singleton("moved is no longer deployed to group test"),
+      stateErrors
+    );
+  }
+}
@@ -0,0 +1,103 @@
+package com.hubspot.baragon.agent.lbs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.hubspot.baragon.models.BaragonConfigFile;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+
+public class AtomicConfigWriterTest {
+
+  @Test
+  public void itWritesABatchAcrossDirectories() throws IOException {
+    ConfigFileManifest manifest = new ConfigFileManifest();
+    AtomicConfigWriter writer = new AtomicConfigWriter(manifest);
+    Path directory = Files.createTempDirectory("atomic");
+    Path first = directory.resolve("proxy/first.conf");
+    Path second = directory.resolve("upstreams/second.conf");
+
+    writer.write(
+      Arrays.asList(
+        new BaragonConfigFile(first.toString(), "location /first;"),
+        new BaragonConfigFile(second.toString(), "upstream second;")
+      )
+    );
+
+    assertEquals("location /first;", read(first));
+    assertEquals("upstream second;", read(second));
+    assertTrue(manifest.contentMatches(first.toString(), "location /first;"));
+    assertEquals(1, list(first.getParent()).size());
+    assertEquals(1, list(second.getParent()).size());
+  }
+
+  @Test
+  public void itLeavesLiveFilesAloneWhenStagingFails() throws IOException {
+    AtomicConfigWriter writer = new AtomicConfigWriter(new ConfigFileManifest());
+    Path directory = Files.createTempDirectory("atomic");
+    Path live = write(directory.resolve("live.conf"), "upstream old;");
+    Path blocked = write(directory.resolve("blocked"), "not a directory");
+
+    assertThrows(
+      IOException.class,
+      () ->
+        writer.write(
+          Arrays.asList(
+            new BaragonConfigFile(live.toString(), "upstream new;"),
+            new BaragonConfigFile(blocked.resolve("other.conf").toString(), "")
+          )
+        )
+    );
+
+    assertEquals("upstream old;", read(live));
+    // The file staged before the failure was cleaned up
+    assertEquals(2, list(directory).size());
+  }
+
+  @Test
+  public void itRestoresBackupsTogether() throws IOException {
+    AtomicConfigWriter writer = new AtomicConfigWriter(new ConfigFileManifest());
+    Path directory = Files.createTempDirectory("atomic");
+    Path first = write(directory.resolve("first.conf"), "upstream first;");
+    Path second = write(directory.resolve("second.conf"), "upstream second;");
+    Path firstBackup = directory.resolve("first.conf.bak");
+    Path secondBackup = directory.resolve("second.conf.bak");
+    writer.backup(first, firstBackup);
+    writer.backup(second, secondBackup);
+
+    writer.write(
+      Arrays.asList(
+        new BaragonConfigFile(first.toString(), "upstream broken;"),
+        new BaragonConfigFile(second.toString(), "upstream broken;")
+      )
+    );
+    writer.restore(ImmutableMap.of(firstBackup, first, secondBackup, second));
+
+    assertEquals("upstream first;", read(first));
+    assertEquals("upstream second;", read(second));
+    assertEquals(4, list(directory).size());
+  }
+
+  private static Path write(Path path, String content) throws IOException {
+    return Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+  }
+
+  private static List<Path> list(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.list(directory)) {
+      return paths.collect(Collectors.toList());
+    }
+  }
+}
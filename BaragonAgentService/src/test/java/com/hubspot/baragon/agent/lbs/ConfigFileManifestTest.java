@@ -0,0 +1,55 @@
+package com.hubspot.baragon.agent.lbs;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.jupiter.api.Test;
+
+public class ConfigFileManifestTest {
+
+  @Test
+  public void itMatchesWrittenContent() throws IOException {
+    ConfigFileManifest manifest = new ConfigFileManifest();
+    Path file = write(Files.createTempDirectory("manifest"), "upstream a;");
+    manifest.recordWrite(file.toString(), "upstream a;".getBytes(StandardCharsets.UTF_8));
+
+    assertTrue(manifest.contentMatches(file.toString(), "upstream a;"));
+    assertFalse(manifest.contentMatches(file.toString(), "upstream b;"));
+  }
+
+  @Test
+  public void itVerifiesFilesChangedOutsideOfTheAgent() throws IOException {
+    ConfigFileManifest manifest = new ConfigFileManifest();
+    Path file = write(Files.createTempDirectory("manifest"), "upstream a;");
+    manifest.recordWrite(file.toString(), "upstream a;".getBytes(StandardCharsets.UTF_8));
+
+    write(file.getParent(), "upstream b;");
+    Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+
+    assertFalse(manifest.contentMatches(file.toString(), "upstream a;"));
+    assertTrue(manifest.contentMatches(file.toString(), "upstream b;"));
+  }
+
+  @Test
+  public void itVerifiesUnknownAndMissingFiles() throws IOException {
+    ConfigFileManifest manifest = new ConfigFileManifest();
+    Path file = write(Files.createTempDirectory("manifest"), "upstream a;");
+
+    assertTrue(manifest.contentMatches(file.toString(), "upstream a;"));
+
+    Files.delete(file);
+    assertFalse(manifest.contentMatches(file.toString(), "upstream a;"));
+  }
+
+  private static Path write(Path directory, String content) throws IOException {
+    return Files.write(
+      directory.resolve("service.conf"),
+      content.getBytes(StandardCharsets.UTF_8)
+    );
+  }
+}
@@ -0,0 +1,108 @@
+package com.hubspot.baragon.agent.lbs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.jknack.handlebars.Handlebars;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.hubspot.baragon.agent.config.IncrementalCheckConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ConfigValidatorTest {
+  private final List<String> checks = new ArrayList<>();
+  private Path root;
+  private Path config;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("configs");
+    Files.createDirectories(root.resolve("proxy"));
+    config = Files.write(
+      root.resolve("proxy").resolve("a.conf"),
+      "location /a {}".getBytes(StandardCharsets.UTF_8)
+    );
+  }
+
+  @Test
+  public void itSkipsChecksWhileTheTreeIsUnchanged() throws Exception {
+    ConfigValidator validator = buildValidator(Optional.absent());
+
+    validator.checkConfigsIfChanged();
+    validator.checkConfigsIfChanged();
+    assertEquals(1, checks.size());
+
+    Files.write(config, "location /b {}".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(config, FileTime.fromMillis(0));
+    validator.checkConfigsIfChanged();
+    assertEquals(2, checks.size());
+  }
+
+  @Test
+  public void itChecksChangedFilesInAHarness() throws Exception {
+    IncrementalCheckConfiguration incrementalCheck = new IncrementalCheckConfiguration();
+    incrementalCheck.setCheckConfigCommandFormat("check %s");
+    incrementalCheck.setHarnessPath(root.resolve("harness.conf").toString());
+    incrementalCheck.setHarnessTemplate(
+      "{{#each files}}{{directory}}: include {{{path}}};\n{{/each}}"
+    );
+    ConfigValidator validator = buildValidator(Optional.of(incrementalCheck));
+
+    // The first check is always a full one
+    validator.checkChangedConfigs(ImmutableList.of(config.toString()));
+    validator.checkChangedConfigs(ImmutableList.of(config.toString()));
+
+    assertEquals(
+      ImmutableList.of("full", String.format("check %s", root.resolve("harness.conf"))),
+      checks
+    );
+    String harness = new String(
+      Files.readAllBytes(root.resolve("harness.conf")),
+      StandardCharsets.UTF_8
+    );
+    assertTrue(harness.contains(String.format("proxy: include %s;", config)));
+  }
+
+  private ConfigValidator buildValidator(
+    Optional<IncrementalCheckConfiguration> incrementalCheck
+  ) {
+    LoadBalancerConfiguration configuration = new LoadBalancerConfiguration();
+    configuration.setRootPath(root.toString());
+    configuration.setIncrementalCheck(incrementalCheck);
+    return new ConfigValidator(
+      new RecordingLbAdapter(),
+      configuration,
+      new MetricRegistry(),
+      new Handlebars()
+    );
+  }
+
+  private class RecordingLbAdapter implements LbAdapter {
+
+    @Override
+    public void checkConfigs() {
+      checks.add("full");
+    }
+
+    @Override
+    public void checkConfigs(String checkConfigCommand) {
+      checks.add(checkConfigCommand);
+    }
+
+    @Override
+    public void reloadConfigs() {}
+
+    @Override
+    public void triggerLogrotate() {}
+  }
+}
@@ -0,0 +1,142 @@
+package com.hubspot.baragon.agent.lbs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.exceptions.LbAdapterExecuteException;
+import com.hubspot.baragon.exceptions.WorkerLimitReachedException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ReloadSchedulerTest {
+  private static final long TIMEOUT_MS = 5000;
+
+  private TestLbAdapter adapter;
+  private LoadBalancerConfiguration configuration;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    adapter = new TestLbAdapter(Files.createTempDirectory("reload-scheduler"));
+    configuration = new LoadBalancerConfiguration();
+  }
+
+  @Test
+  public void itCoalescesRequestsWithinTheWindow() throws Exception {
+    configuration.setReloadCoalesceWindowMs(200);
+    ReloadScheduler scheduler = buildScheduler();
+
+    List<CompletableFuture<Void>> reloads = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      reloads.add(scheduler.requestReload());
+    }
+    for (CompletableFuture<Void> reload : reloads) {
+      reload.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    assertEquals(1, adapter.getReloads());
+  }
+
+  @Test
+  public void itReloadsByTheDeadlineWhileRequestsKeepComing() throws Exception {
+    configuration.setReloadCoalesceWindowMs(200);
+    configuration.setReloadMaxLatencyMs(400);
+    ReloadScheduler scheduler = buildScheduler();
+
+    // Each request would push a reload waiting on the window alone past the last one
+    CompletableFuture<Void> first = scheduler.requestReload();
+    final long until = System.currentTimeMillis() + 2000;
+    while (System.currentTimeMillis() < until) {
+      Thread.sleep(50);
+      scheduler.requestReload();
+    }
+
+    assertTrue(first.isDone());
+    assertFalse(first.isCompletedExceptionally());
+    assertTrue(adapter.getReloads() > 1);
+  }
+
+  @Test
+  public void itCoversRequestsMadeDuringAReloadWithTheNextOne() throws Exception {
+    adapter.setReloadDurationMs(300);
+    ReloadScheduler scheduler = buildScheduler();
+
+    CompletableFuture<Void> first = scheduler.requestReload();
+    waitForReloads(1);
+    CompletableFuture<Void> second = scheduler.requestReload();
+
+    first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertFalse(second.isDone());
+    second.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertEquals(2, adapter.getReloads());
+  }
+
+  @Test
+  public void itFailsEveryRequestCoveredByAFailedReload() throws Exception {
+    configuration.setReloadCoalesceWindowMs(200);
+    adapter.setFailReloads(true);
+    ReloadScheduler scheduler = buildScheduler();
+
+    CompletableFuture<Void> first = scheduler.requestReload();
+    CompletableFuture<Void> second = scheduler.requestReload();
+
+    assertThrows(LbAdapterExecuteException.class, () -> ReloadScheduler.await(first));
+    assertThrows(LbAdapterExecuteException.class, () -> ReloadScheduler.await(second));
+    assertEquals(1, adapter.getReloads());
+
+    adapter.setFailReloads(false);
+    ReloadScheduler.await(scheduler.requestReload());
+    assertEquals(2, adapter.getReloads());
+  }
+
+  @Test
+  public void itDefersReloadsWhileTheWorkerLimitIsReached() throws Exception {
+    configuration.setWorkerLimitRetryMs(50);
+    adapter.setWorkerLimitReloads(2);
+    ReloadScheduler scheduler = buildScheduler();
+
+    ReloadScheduler.await(scheduler.requestReload());
+
+    assertEquals(3, adapter.getReloads());
+  }
+
+  @Test
+  public void itFailsReloadsDeferredForTooLong() throws Exception {
+    configuration.setWorkerLimitRetryMs(50);
+    configuration.setWorkerLimitMaxDeferMs(200);
+    adapter.setWorkerLimitReloads(Integer.MAX_VALUE);
+    ReloadScheduler scheduler = buildScheduler();
+
+    CompletableFuture<Void> reload = scheduler.requestReload();
+
+    assertThrows(WorkerLimitReachedException.class, () -> ReloadScheduler.await(reload));
+  }
+
+  private ReloadScheduler buildScheduler() {
+    return new ReloadScheduler(
+      adapter,
+      configuration,
+      new MetricRegistry(),
+      new ReentrantLock(),
+      1000
+    );
+  }
+
+  private void waitForReloads(int reloads) throws InterruptedException {
+    final long until = System.currentTimeMillis() + TIMEOUT_MS;
+    while (adapter.getReloads() < reloads && System.currentTimeMillis() < until) {
+      Thread.sleep(10);
+    }
+    assertEquals(reloads, adapter.getReloads());
+  }
+}
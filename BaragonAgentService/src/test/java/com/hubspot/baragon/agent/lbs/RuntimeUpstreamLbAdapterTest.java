@@ -0,0 +1,216 @@
+package com.hubspot.baragon.agent.lbs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.config.RuntimeUpstreamApiConfiguration;
+import com.hubspot.baragon.exceptions.LbAdapterExecuteException;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.UpstreamInfo;
+import com.hubspot.horizon.HttpConfig;
+import com.hubspot.horizon.ning.NingHttpClient;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class RuntimeUpstreamLbAdapterTest {
+  private static final BaragonService SERVICE = new BaragonService(
+    "testService",
+    Collections.emptyList(),
+    "/test",
+    ImmutableSet.of("test"),
+    Collections.emptyMap()
+  );
+
+  private final List<Map<String, String>> received = new ArrayList<>();
+  private HttpServer server;
+  private NingHttpClient httpClient;
+  private int responseStatus = 200;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+      "/dynamic",
+      exchange -> {
+        synchronized (received) {
+          received.add(parseQuery(exchange.getRequestURI().getRawQuery()));
+        }
+        byte[] body = "server 127.0.0.1:8080;".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(responseStatus, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      }
+    );
+    server.start();
+    httpClient = new NingHttpClient(HttpConfig.newBuilder().setMaxRetries(0).build());
+  }
+
+  @AfterEach
+  public void teardown() throws IOException {
+    httpClient.close();
+    server.stop(0);
+  }
+
+  @Test
+  public void itAddsServersBeforeRemovingThem() throws Exception {
+    buildAdapter()
+      .updateUpstreams(
+        SERVICE,
+        ImmutableList.of(upstream("127.0.0.1:8081")),
+        ImmutableList.of(upstream("127.0.0.1:8080"))
+      );
+
+    assertEquals(2, received.size());
+    assertEquals("baragon_testService", received.get(0).get("upstream"));
+    assertEquals("127.0.0.1:8081", received.get(0).get("server"));
+    assertEquals("", received.get(0).get("add"));
+    assertEquals("baragon_testService", received.get(1).get("upstream"));
+    assertEquals("127.0.0.1:8080", received.get(1).get("server"));
+    assertEquals("", received.get(1).get("remove"));
+  }
+
+  @Test
+  public void itUpdatesTheUpstreamOfEachGroup() throws Exception {
+    RuntimeUpstreamLbAdapter adapter = buildAdapter("baragon_%s_%s");
+
+    assertTrue(adapter.supportsRuntimeUpstreamGroups());
+    assertTrue(
+      adapter.updateUpstreams(
+        SERVICE,
+        ImmutableList.of(upstream("127.0.0.1:8081", "a")),
+        ImmutableList.of(upstream("127.0.0.1:8080", "b"))
+      )
+    );
+
+    assertEquals(2, received.size());
+    assertEquals("baragon_testService_a", received.get(0).get("upstream"));
+    assertEquals("127.0.0.1:8081", received.get(0).get("server"));
+    assertEquals("baragon_testService_b", received.get(1).get("upstream"));
+    assertEquals("127.0.0.1:8080", received.get(1).get("server"));
+  }
+
+  @Test
+  public void itDoesntUpdateSeveralGroupsWithoutTheGroupInTheName() throws Exception {
+    RuntimeUpstreamLbAdapter adapter = buildAdapter();
+
+    assertFalse(adapter.supportsRuntimeUpstreamGroups());
+    assertFalse(
+      adapter.updateUpstreams(
+        SERVICE,
+        ImmutableList.of(upstream("127.0.0.1:8081", "a")),
+        ImmutableList.of(upstream("127.0.0.1:8080", "b"))
+      )
+    );
+    assertTrue(received.isEmpty());
+  }
+
+  @Test
+  public void itFailsWhenTheApiRejectsAnUpdate() {
+    responseStatus = 400;
+    RuntimeUpstreamLbAdapter adapter = buildAdapter();
+
+    assertThrows(
+      LbAdapterExecuteException.class,
+      () ->
+        adapter.updateUpstreams(
+          SERVICE,
+          ImmutableList.of(upstream("127.0.0.1:8081")),
+          Collections.emptyList()
+        )
+    );
+  }
+
+  @Test
+  public void itCanBeCreatedWithoutAConfiguredApi() throws Exception {
+    LoadBalancerConfiguration configuration = new LoadBalancerConfiguration();
+    MetricRegistry metricRegistry = new MetricRegistry();
+    RuntimeUpstreamLbAdapter adapter = new RuntimeUpstreamLbAdapter(
+      new LocalLbAdapter(configuration, metricRegistry),
+      configuration,
+      metricRegistry,
+      httpClient
+    );
+
+    assertFalse(adapter.supportsRuntimeUpstreamUpdates());
+    assertFalse(
+      adapter.updateUpstreams(
+        SERVICE,
+        ImmutableList.of(upstream("127.0.0.1:8081")),
+        Collections.emptyList()
+      )
+    );
+    assertTrue(received.isEmpty());
+  }
+
+  private RuntimeUpstreamLbAdapter buildAdapter() {
+    return buildAdapter(new RuntimeUpstreamApiConfiguration().getUpstreamNameFormat());
+  }
+
+  private RuntimeUpstreamLbAdapter buildAdapter(String upstreamNameFormat) {
+    RuntimeUpstreamApiConfiguration apiConfiguration =
+      new RuntimeUpstreamApiConfiguration();
+    apiConfiguration.setUpstreamNameFormat(upstreamNameFormat);
+    apiConfiguration.setUri(
+      String.format("http://127.0.0.1:%d/dynamic", server.getAddress().getPort())
+    );
+    LoadBalancerConfiguration configuration = new LoadBalancerConfiguration();
+    configuration.setRuntimeUpstreamApi(Optional.of(apiConfiguration));
+
+    MetricRegistry metricRegistry = new MetricRegistry();
+    return new RuntimeUpstreamLbAdapter(
+      new LocalLbAdapter(configuration, metricRegistry),
+      configuration,
+      metricRegistry,
+      httpClient
+    );
+  }
+
+  private static UpstreamInfo upstream(String upstream) {
+    return new UpstreamInfo(upstream, Optional.absent(), Optional.absent());
+  }
+
+  private static UpstreamInfo upstream(String upstream, String group) {
+    return new UpstreamInfo(
+      upstream,
+      Optional.absent(),
+      Optional.absent(),
+      Optional.of(group)
+    );
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> params = new TreeMap<>();
+    for (String param : query.split("&")) {
+      String[] parts = param.split("=", 2);
+      try {
+        params.put(
+          URLDecoder.decode(parts[0], "UTF-8"),
+          parts.length > 1 ? URLDecoder.decode(parts[1], "UTF-8") : ""
+        );
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return params;
+  }
+}
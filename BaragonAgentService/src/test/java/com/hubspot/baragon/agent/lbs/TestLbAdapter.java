@@ -0,0 +1,167 @@
+package com.hubspot.baragon.agent.lbs;
+
+import com.hubspot.baragon.exceptions.InvalidConfigException;
+import com.hubspot.baragon.exceptions.LbAdapterExecuteException;
+import com.hubspot.baragon.exceptions.WorkerLimitReachedException;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Load balancer over a directory of configs, whose check fails for every .conf file that
+ * contains the word invalid. Upstreams are only updated at runtime once enabled.
+ */
+public class TestLbAdapter implements LbAdapter {
+  public static final String INVALID = "invalid";
+
+  private final Path rootPath;
+  private final AtomicInteger checks = new AtomicInteger();
+  private final AtomicInteger reloads = new AtomicInteger();
+  private final AtomicInteger runtimeUpdates = new AtomicInteger();
+  private final AtomicInteger workerLimitReloads = new AtomicInteger();
+  private volatile boolean failReloads = false;
+  private volatile long reloadDurationMs = 0;
+  private volatile boolean runtimeUpstreamUpdates = false;
+  private volatile boolean runtimeUpstreamGroups = false;
+  private final List<UpstreamInfo> runtimeAdded = new CopyOnWriteArrayList<>();
+  private final List<UpstreamInfo> runtimeRemoved = new CopyOnWriteArrayList<>();
+
+  public TestLbAdapter(Path rootPath) {
+    this.rootPath = rootPath;
+  }
+
+  @Override
+  public void checkConfigs() throws InvalidConfigException {
+    checks.incrementAndGet();
+    final List<Path> invalid = findInvalidConfigs();
+    if (!invalid.isEmpty()) {
+      throw new InvalidConfigException(String.format("Invalid configs: %s", invalid));
+    }
+  }
+
+  @Override
+  public void checkConfigs(String checkConfigCommand) throws InvalidConfigException {
+    checkConfigs();
+  }
+
+  @Override
+  public void reloadConfigs()
+    throws LbAdapterExecuteException, WorkerLimitReachedException {
+    reloads.incrementAndGet();
+    if (workerLimitReloads.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+      throw new WorkerLimitReachedException("Too many workers");
+    }
+    if (reloadDurationMs > 0) {
+      try {
+        Thread.sleep(reloadDurationMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (failReloads) {
+      throw new LbAdapterExecuteException("Reload failed", "reload");
+    }
+  }
+
+  @Override
+  public void triggerLogrotate() {}
+
+  @Override
+  public boolean supportsRuntimeUpstreamUpdates() {
+    return runtimeUpstreamUpdates;
+  }
+
+  @Override
+  public boolean supportsRuntimeUpstreamGroups() {
+    return runtimeUpstreamGroups;
+  }
+
+  @Override
+  public boolean updateUpstreams(
+    BaragonService service,
+    Collection<UpstreamInfo> added,
+    Collection<UpstreamInfo> removed
+  ) {
+    if (!runtimeUpstreamUpdates) {
+      return false;
+    }
+    runtimeUpdates.incrementAndGet();
+    runtimeAdded.addAll(added);
+    runtimeRemoved.addAll(removed);
+    return true;
+  }
+
+  public int getChecks() {
+    return checks.get();
+  }
+
+  public int getReloads() {
+    return reloads.get();
+  }
+
+  public int getRuntimeUpdates() {
+    return runtimeUpdates.get();
+  }
+
+  public List<UpstreamInfo> getRuntimeAdded() {
+    return runtimeAdded;
+  }
+
+  public List<UpstreamInfo> getRuntimeRemoved() {
+    return runtimeRemoved;
+  }
+
+  public void setRuntimeUpstreamUpdates(boolean runtimeUpstreamUpdates) {
+    this.runtimeUpstreamUpdates = runtimeUpstreamUpdates;
+  }
+
+  public void setRuntimeUpstreamGroups(boolean runtimeUpstreamGroups) {
+    this.runtimeUpstreamGroups = runtimeUpstreamGroups;
+  }
+
+  public void setFailReloads(boolean failReloads) {
+    this.failReloads = failReloads;
+  }
+
+  public void setReloadDurationMs(long reloadDurationMs) {
+    this.reloadDurationMs = reloadDurationMs;
+  }
+
+  /*
+   * The next reloads fail as if the worker limit had been reached
+   */
+  public void setWorkerLimitReloads(int workerLimitReloads) {
+    this.workerLimitReloads.set(workerLimitReloads);
+  }
+
+  private List<Path> findInvalidConfigs() {
+    try (Stream<Path> paths = Files.walk(rootPath)) {
+      return paths
+        .filter(path -> path.toString().endsWith(".conf"))
+        .filter(TestLbAdapter::isInvalid)
+        .sorted()
+        .collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static boolean isInvalid(Path path) {
+    try {
+      return new String(Files.readAllBytes(path), StandardCharsets.UTF_8)
+        .contains(INVALID);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package com.hubspot.baragon.agent.listeners;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Optional;
+import com.hubspot.baragon.agent.AgentTestState;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BaragonStateMirrorTest {
+  private AgentTestState zk;
+  private BaragonStateMirror stateMirror;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zk = new AgentTestState();
+    stateMirror = zk.newStateMirror();
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    stateMirror.stop();
+    zk.close();
+  }
+
+  @Test
+  public void itIndexesTheServicesInTheAgentsGroup() throws Exception {
+    zk.saveService("inGroup", AgentTestState.GROUP, "10.0.0.1:8080");
+    zk.saveService("otherGroup", "other", "10.0.0.2:8080");
+    stateMirror.start();
+
+    assertTrue(stateMirror.isInitialized());
+    Collection<BaragonServiceState> states = stateMirror.getGroupServiceStates().get();
+    assertEquals(1, states.size());
+    BaragonServiceState state = states.iterator().next();
+    assertEquals("inGroup", state.getService().getServiceId());
+    assertEquals(
+      Collections.singletonList("10.0.0.1:8080"),
+      state
+        .getUpstreams()
+        .stream()
+        .map(UpstreamInfo::getUpstream)
+        .collect(Collectors.toList())
+    );
+    assertTrue(stateMirror.getService("otherGroup").isPresent());
+  }
+
+  @Test
+  public void itReadsTheStateVersionFromTheMirror() throws Exception {
+    zk.saveService("first", AgentTestState.GROUP, "10.0.0.1:8080");
+    stateMirror.start();
+    assertEquals(zk.getStateDatastore().getStateVersion(), stateMirror.getStateVersion());
+
+    BaragonService second = zk.saveService(
+      "second",
+      AgentTestState.GROUP,
+      "10.0.0.2:8080"
+    );
+    int version = zk.getStateDatastore().getStateVersion().get();
+    while (!stateMirror.getStateVersion().equals(Optional.of(version))) {
+      Thread.sleep(5);
+    }
+
+    // Services read after the version are at least as new as it
+    assertEquals(Optional.of(second), stateMirror.getService("second"));
+    assertEquals(2, stateMirror.getGroupServiceStates().get().size());
+  }
+
+  @Test
+  public void itReadsUpstreamsStoredAsABlob() throws Exception {
+    zk.getZooKeeperConfiguration().setCompactUpstreamsEnabled(true);
+    zk.saveService("inline", AgentTestState.GROUP, "10.0.0.1:8080");
+    zk.getZooKeeperConfiguration().setCompactUpstreamsChunkBytes(64);
+    String[] upstreams = new String[100];
+    for (int i = 0; i < upstreams.length; i++) {
+      upstreams[i] = "10.0.1." + i + ":8080";
+    }
+    zk.saveService("chunked", AgentTestState.GROUP, upstreams);
+    stateMirror.start();
+
+    assertEquals(
+      Collections.singleton("10.0.0.1:8080"),
+      upstreamNames(stateMirror, "inline")
+    );
+    assertEquals(
+      Arrays.stream(upstreams).collect(Collectors.toSet()),
+      upstreamNames(stateMirror, "chunked")
+    );
+  }
+
+  private static Set<String> upstreamNames(
+    BaragonStateMirror stateMirror,
+    String serviceId
+  ) {
+    for (BaragonServiceState state : stateMirror.getGroupServiceStates().get()) {
+      if (state.getService().getServiceId().equals(serviceId)) {
+        return state
+          .getUpstreams()
+          .stream()
+          .map(UpstreamInfo::getUpstream)
+          .collect(Collectors.toSet());
+      }
+    }
+    throw new AssertionError("No state for " + serviceId);
+  }
+}
@@ -0,0 +1,211 @@
+package com.hubspot.baragon.agent.managed;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.agent.AgentTestState;
+import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.listeners.BaragonStateMirror;
+import com.hubspot.baragon.models.BaragonConfigFile;
+import com.hubspot.baragon.models.BasicServiceContext;
+import com.hubspot.baragon.models.ServiceContext;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class LifecycleHelperTest {
+  private static final int RENDER_THREADS = 2;
+
+  private AgentTestState zk;
+  private BaragonStateMirror stateMirror;
+  private RecordingConfigHelper configHelper;
+  private Map<String, BasicServiceContext> internalStateCache;
+  private MetricRegistry metricRegistry;
+  private LifecycleHelper lifecycleHelper;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zk = new AgentTestState();
+    zk.getAgentConfiguration().setBootstrapRenderThreads(RENDER_THREADS);
+    zk.getAgentConfiguration().setBootstrapWriteThreads(1);
+    zk.getAgentConfiguration().setBootstrapWriteBatchSize(2);
+    stateMirror = zk.newStateMirror();
+    configHelper = new RecordingConfigHelper();
+    internalStateCache = new ConcurrentHashMap<>();
+    metricRegistry = new MetricRegistry();
+    // Bootstrapping from the state mirror doesn't talk to BaragonService
+    lifecycleHelper =
+      new LifecycleHelper(
+        null,
+        null,
+        zk.getAgentConfiguration(),
+        null,
+        configHelper,
+        zk.getStateDatastore(),
+        stateMirror,
+        null,
+        null,
+        null,
+        null,
+        null,
+        null,
+        1000,
+        internalStateCache,
+        metricRegistry
+      );
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    stateMirror.stop();
+    zk.close();
+  }
+
+  @Test
+  public void itRendersAndWritesOnBoundedPoolsAndTimesEachStage() throws Exception {
+    List<String> serviceIds = ImmutableList.of("s1", "s2", "s3", "s4", "s5");
+    for (String serviceId : serviceIds) {
+      zk.saveService(serviceId, AgentTestState.GROUP, "10.0.0.1:8080");
+    }
+    zk.saveService(RecordingConfigHelper.UNCHANGED, AgentTestState.GROUP);
+    zk.saveService("elsewhere", "other");
+    stateMirror.start();
+
+    lifecycleHelper.applyCurrentConfigs();
+
+    // Services of other groups aren't rendered, unchanged ones aren't written
+    Set<String> rendered = ImmutableSet
+      .<String>builder()
+      .addAll(serviceIds)
+      .add(RecordingConfigHelper.UNCHANGED)
+      .build();
+    assertEquals(rendered, configHelper.rendered);
+    assertEquals(ImmutableSet.copyOf(serviceIds), configHelper.written);
+    assertEquals(ImmutableSet.copyOf(serviceIds), internalStateCache.keySet());
+    assertEquals(serviceIds.size(), configHelper.checked.get());
+    assertEquals(1, configHelper.reloads.get());
+
+    assertTrue(configHelper.maxConcurrentRenders.get() <= RENDER_THREADS);
+    assertTrue(configHelper.renderThreads.size() <= RENDER_THREADS);
+    assertTrue(allStartWith(configHelper.renderThreads, "bootstrap-render-"));
+    assertEquals(1, configHelper.writeThreads.size());
+    assertTrue(allStartWith(configHelper.writeThreads, "bootstrap-write-"));
+    awaitBootstrapThreadsStopped();
+
+    for (String stage : ImmutableList.of(
+      "fetchState",
+      "render",
+      "write",
+      "check",
+      "reload",
+      "total"
+    )) {
+      assertEquals(
+        1,
+        metricRegistry.timer(LifecycleHelper.BOOTSTRAP_METRIC_PREFIX + stage).getCount(),
+        stage
+      );
+    }
+  }
+
+  private static boolean allStartWith(Collection<String> threadNames, String prefix) {
+    return threadNames.stream().allMatch(name -> name.startsWith(prefix));
+  }
+
+  // The pools are shut down once bootstrap is done, their threads exit shortly after
+  private static void awaitBootstrapThreadsStopped() throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (!bootstrapThreads().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(ImmutableSet.of(), bootstrapThreads());
+  }
+
+  private static Set<String> bootstrapThreads() {
+    return Thread
+      .getAllStackTraces()
+      .keySet()
+      .stream()
+      .filter(Thread::isAlive)
+      .map(Thread::getName)
+      .filter(name -> name.startsWith("bootstrap-"))
+      .collect(Collectors.toSet());
+  }
+
+  // Records which services were rendered and written, and on which threads
+  private static class RecordingConfigHelper extends FilesystemConfigHelper {
+    private static final String UNCHANGED = "unchanged";
+
+    private final Set<String> rendered = ConcurrentHashMap.newKeySet();
+    private final Set<String> written = ConcurrentHashMap.newKeySet();
+    private final Set<String> renderThreads = ConcurrentHashMap.newKeySet();
+    private final Set<String> writeThreads = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger concurrentRenders = new AtomicInteger();
+    private final AtomicInteger maxConcurrentRenders = new AtomicInteger();
+    private final AtomicInteger checked = new AtomicInteger();
+    private final AtomicInteger reloads = new AtomicInteger();
+
+    RecordingConfigHelper() {
+      super(null, null, null, null, null, null, null, null);
+    }
+
+    @Override
+    public Optional<Collection<BaragonConfigFile>> configsToApply(
+      ServiceContext context
+    ) {
+      final String serviceId = context.getService().getServiceId();
+      maxConcurrentRenders.accumulateAndGet(
+        concurrentRenders.incrementAndGet(),
+        Math::max
+      );
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        concurrentRenders.decrementAndGet();
+      }
+      rendered.add(serviceId);
+      renderThreads.add(Thread.currentThread().getName());
+      if (UNCHANGED.equals(serviceId)) {
+        return Optional.absent();
+      }
+      return Optional.of(
+        ImmutableList.of(new BaragonConfigFile("/tmp/" + serviceId + ".conf", serviceId))
+      );
+    }
+
+    @Override
+    public void bootstrapApplyWrite(
+      ServiceContext context,
+      Collection<BaragonConfigFile> newConfigs
+    ) {
+      written.add(context.getService().getServiceId());
+      writeThreads.add(Thread.currentThread().getName());
+    }
+
+    @Override
+    public void bootstrapApplyCheck(
+      List<Pair<ServiceContext, Collection<BaragonConfigFile>>> applied
+    ) {
+      checked.addAndGet(applied.size());
+    }
+
+    @Override
+    public void reloadConfigs() {
+      reloads.incrementAndGet();
+    }
+  }
+}
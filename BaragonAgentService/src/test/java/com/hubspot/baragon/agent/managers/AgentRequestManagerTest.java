@@ -0,0 +1,610 @@
+package com.hubspot.baragon.agent.managers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.github.jknack.handlebars.Handlebars;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.agent.BaragonAgentServiceModule;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.handlebars.PreferSameRackWeightingHelper;
+import com.hubspot.baragon.agent.lbs.AtomicConfigWriter;
+import com.hubspot.baragon.agent.lbs.ConfigFileManifest;
+import com.hubspot.baragon.agent.lbs.ConfigValidator;
+import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.lbs.LbConfigGenerator;
+import com.hubspot.baragon.agent.lbs.ReloadScheduler;
+import com.hubspot.baragon.agent.lbs.TestLbAdapter;
+import com.hubspot.baragon.agent.models.FilePathFormatType;
+import com.hubspot.baragon.agent.models.LbConfigTemplate;
+import com.hubspot.baragon.agent.resources.BatchRequestResource;
+import com.hubspot.baragon.models.AgentBatchResponseItem;
+import com.hubspot.baragon.models.AgentRequestType;
+import com.hubspot.baragon.models.BaragonAgentEc2Metadata;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonAgentState;
+import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonRequestBatch;
+import com.hubspot.baragon.models.BaragonRequestBatchItem;
+import com.hubspot.baragon.models.BaragonRequestBuilder;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BasicServiceContext;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AgentRequestManagerTest {
+  private static final String GROUP = "test";
+  private static final String GROUP_DEFAULT = UpstreamInfo.DEFAULT_GROUP;
+  private static final String TEMPLATE =
+    "location {{{service.serviceBasePath}}} {{{service.options.content}}};\n" +
+    "{{#each upstreams}}server {{{upstream}}};\n{{/each}}";
+  private static final String GROUPED_TEMPLATE =
+    "location {{{service.serviceBasePath}}};\n" +
+    "{{#each upstreams}}server {{{upstream}}} {{{group}}} {{{rackId}}};\n{{/each}}";
+  private static final String RACK_WEIGHTED_TEMPLATE =
+    "location {{{service.serviceBasePath}}};\n" +
+    "{{#each upstreams}}server {{{upstream}}}" +
+    "{{preferSameRackWeighting ../upstreams this}};\n{{/each}}";
+
+  private Path rootPath;
+  private TestLbAdapter adapter;
+  private BaragonAgentConfiguration agentConfiguration;
+  private Map<String, BasicServiceContext> internalStateCache;
+  private String template;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    rootPath = Files.createTempDirectory("agent-request-manager");
+    adapter = new TestLbAdapter(rootPath);
+    agentConfiguration = new BaragonAgentConfiguration();
+    internalStateCache = new ConcurrentHashMap<>();
+    template = TEMPLATE;
+  }
+
+  @Test
+  public void itRevertsOnlyTheInvalidServiceOfATransactionalBatch() throws Exception {
+    agentConfiguration.setTransactionalBatchApply(true);
+
+    List<AgentBatchResponseItem> responses = process(
+      request("s1", service("s1", "ok"), "10.0.0.1:8080"),
+      request("s2", service("s2", "ok"), "10.0.0.2:8080"),
+      request("s3", service("s3", TestLbAdapter.INVALID), "10.0.0.3:8080"),
+      request("s4", service("s4", "ok"), "10.0.0.4:8080")
+    );
+
+    assertEquals(Arrays.asList(200, 200, 500, 200), statuses(responses));
+    assertTrue(responses.get(2).getMessage().get().contains("failed validation"));
+    assertEquals(ImmutableSet.of("s1", "s2", "s4"), configuredServices());
+    assertEquals(ImmutableSet.of("s1", "s2", "s4"), internalStateCache.keySet());
+    assertEquals(1, adapter.getReloads());
+  }
+
+  @Test
+  public void itRevertsEveryInvalidServiceOfATransactionalBatch() throws Exception {
+    agentConfiguration.setTransactionalBatchApply(true);
+
+    List<AgentBatchResponseItem> responses = process(
+      request("s1", service("s1", "ok"), "10.0.0.1:8080"),
+      request("s2", service("s2", TestLbAdapter.INVALID), "10.0.0.2:8080"),
+      request("s3", service("s3", "ok"), "10.0.0.3:8080"),
+      request("s4", service("s4", "ok"), "10.0.0.4:8080"),
+      request("s5", service("s5", TestLbAdapter.INVALID), "10.0.0.5:8080")
+    );
+
+    assertEquals(Arrays.asList(200, 500, 200, 200, 500), statuses(responses));
+    assertEquals(ImmutableSet.of("s1", "s3", "s4"), configuredServices());
+    assertEquals(ImmutableSet.of("s1", "s3", "s4"), internalStateCache.keySet());
+    assertEquals(1, adapter.getReloads());
+  }
+
+  @Test
+  public void itRevertsATransactionalBatchOfOnlyInvalidServices() throws Exception {
+    agentConfiguration.setTransactionalBatchApply(true);
+
+    List<AgentBatchResponseItem> responses = process(
+      request("s1", service("s1", TestLbAdapter.INVALID), "10.0.0.1:8080"),
+      request("s2", service("s2", TestLbAdapter.INVALID), "10.0.0.2:8080"),
+      request("s3", service("s3", TestLbAdapter.INVALID), "10.0.0.3:8080")
+    );
+
+    assertEquals(Arrays.asList(500, 500, 500), statuses(responses));
+    assertTrue(configuredServices().isEmpty());
+    assertTrue(internalStateCache.isEmpty());
+    assertEquals(0, adapter.getReloads());
+  }
+
+  @Test
+  public void itRestoresTheConfigsAndCacheOfAnInvalidUpdate() throws Exception {
+    agentConfiguration.setTransactionalBatchApply(true);
+    BaragonService existing = service("s1", "ok");
+    process(request("s1-create", existing, "10.0.0.1:8080"));
+    String existingConfig = readConfig("s1");
+    BasicServiceContext existingContext = internalStateCache.get("s1");
+
+    List<AgentBatchResponseItem> responses = process(
+      ImmutableMap.of("s1", existing),
+      ImmutableMap.<String, Collection<UpstreamInfo>>of(
+        "s1",
+        upstreams("10.0.0.1:8080")
+      ),
+      request("s1-update", service("s1", TestLbAdapter.INVALID), "10.0.0.2:8080"),
+      request("s2", service("s2", "ok"), "10.0.0.3:8080")
+    );
+
+    assertEquals(Arrays.asList(500, 200), statuses(responses));
+    assertEquals(existingConfig, readConfig("s1"));
+    assertSame(existingContext, internalStateCache.get("s1"));
+  }
+
+  @Test
+  public void itFailsATransactionalBatchWhenConfigsAreInvalidWithoutIt()
+    throws Exception {
+    agentConfiguration.setTransactionalBatchApply(true);
+    writeConfig("broken", TestLbAdapter.INVALID);
+
+    List<AgentBatchResponseItem> responses = process(
+      request("s1", service("s1", "ok"), "10.0.0.1:8080"),
+      request("s2", service("s2", "ok"), "10.0.0.2:8080")
+    );
+
+    assertEquals(Arrays.asList(500, 500), statuses(responses));
+    assertEquals(ImmutableSet.of("broken"), configuredServices());
+    assertFalse(internalStateCache.containsKey("s1"));
+    assertFalse(internalStateCache.containsKey("s2"));
+  }
+
+  @Test
+  public void itKeepsTheCacheInStepWithTheConfigsWhenABatchFailsToReload()
+    throws Exception {
+    agentConfiguration.setTransactionalBatchApply(true);
+    adapter.setFailReloads(true);
+
+    List<AgentBatchResponseItem> responses = process(
+      request("s1", service("s1", "ok"), "10.0.0.1:8080"),
+      request("s2", service("s2", "ok"), "10.0.0.2:8080")
+    );
+
+    assertEquals(Arrays.asList(500, 500), statuses(responses));
+    assertTrue(responses.get(0).getMessage().get().contains("failed to reload"));
+    assertFalse(responses.get(0).getMessage().get().contains("reverted"));
+    // The checked configs are left for the next reload, and the cache describes them
+    assertEquals(ImmutableSet.of("s1", "s2"), configuredServices());
+    assertEquals(ImmutableSet.of("s1", "s2"), internalStateCache.keySet());
+  }
+
+  @Test
+  public void itAppliesUpstreamOnlyChangesOfABatchAtRuntime() throws Exception {
+    BaragonService first = service("s1", "ok");
+    BaragonService second = service("s2", "ok");
+    process(request("s1-create", first, "10.0.0.1:8080"));
+    process(request("s2-create", second, "10.0.0.2:8080"));
+    final int reloads = adapter.getReloads();
+    adapter.setRuntimeUpstreamUpdates(true);
+
+    List<AgentBatchResponseItem> responses = process(
+      ImmutableMap.of("s1", first, "s2", second),
+      ImmutableMap.<String, Collection<UpstreamInfo>>of(
+        "s1",
+        upstreams("10.0.0.1:8080"),
+        "s2",
+        upstreams("10.0.0.2:8080")
+      ),
+      request("s1-add", first, "10.0.0.3:8080"),
+      request("s2-add", second, "10.0.0.4:8080")
+    );
+
+    assertEquals(Arrays.asList(200, 200), statuses(responses));
+    assertEquals(2, adapter.getRuntimeUpdates());
+    assertEquals(reloads, adapter.getReloads());
+    assertTrue(readConfig("s2").contains("server 10.0.0.4:8080;"));
+  }
+
+  @Test
+  public void itReloadsForAnUpstreamOnlyChangeAfterADeferredReload() throws Exception {
+    BaragonService first = service("s1", "ok");
+    BaragonService second = service("s2", "ok");
+    process(request("s1-create", first, "10.0.0.1:8080"));
+    process(request("s2-create", second, "10.0.0.2:8080"));
+    final int reloads = adapter.getReloads();
+    adapter.setRuntimeUpstreamUpdates(true);
+
+    // The first item leaves its reload to the last one, which is upstream-only
+    List<AgentBatchResponseItem> responses = process(
+      ImmutableMap.of("s1", first, "s2", second),
+      ImmutableMap.<String, Collection<UpstreamInfo>>of(
+        "s1",
+        upstreams("10.0.0.1:8080"),
+        "s2",
+        upstreams("10.0.0.2:8080")
+      ),
+      request("s1-update", service("s1", "changed"), "10.0.0.1:8080"),
+      request("s2-add", second, "10.0.0.4:8080")
+    );
+
+    assertEquals(Arrays.asList(200, 200), statuses(responses));
+    assertEquals(0, adapter.getRuntimeUpdates());
+    assertEquals(reloads + 1, adapter.getReloads());
+    assertTrue(readConfig("s1").contains("changed"));
+    assertTrue(readConfig("s2").contains("server 10.0.0.4:8080;"));
+  }
+
+  @Test
+  public void itMovesAnUpstreamBetweenGroupsAtRuntime() throws Exception {
+    template = GROUPED_TEMPLATE;
+    BaragonService service = service("s1", "ok");
+    process(request("s1-create", service, "10.0.0.1:8080"));
+    final int reloads = adapter.getReloads();
+    adapter.setRuntimeUpstreamUpdates(true);
+    adapter.setRuntimeUpstreamGroups(true);
+
+    List<AgentBatchResponseItem> responses = process(
+      ImmutableMap.of("s1", service),
+      ImmutableMap.<String, Collection<UpstreamInfo>>of(
+        "s1",
+        upstreams("10.0.0.1:8080")
+      ),
+      moveRequest(service)
+    );
+
+    assertEquals(Arrays.asList(200), statuses(responses));
+    assertEquals(1, adapter.getRuntimeUpdates());
+    assertEquals(reloads, adapter.getReloads());
+    assertEquals(
+      ImmutableList.of(upstream("10.0.0.1:8080", Optional.absent(), "canary")),
+      adapter.getRuntimeAdded()
+    );
+    assertEquals(
+      ImmutableList.of(upstream("10.0.0.1:8080", Optional.absent(), GROUP_DEFAULT)),
+      adapter.getRuntimeRemoved()
+    );
+    assertTrue(readConfig("s1").contains("server 10.0.0.1:8080 canary"));
+  }
+
+  @Test
+  public void itReloadsForSeveralGroupsWhenTheAdapterCantTellThemApart()
+    throws Exception {
+    template = GROUPED_TEMPLATE;
+    BaragonService service = service("s1", "ok");
+    process(request("s1-create", service, "10.0.0.1:8080"));
+    final int reloads = adapter.getReloads();
+    adapter.setRuntimeUpstreamUpdates(true);
+
+    List<AgentBatchResponseItem> responses = process(
+      ImmutableMap.of("s1", service),
+      ImmutableMap.<String, Collection<UpstreamInfo>>of(
+        "s1",
+        upstreams("10.0.0.1:8080")
+      ),
+      moveRequest(service)
+    );
+
+    assertEquals(Arrays.asList(200), statuses(responses));
+    assertEquals(0, adapter.getRuntimeUpdates());
+    assertEquals(reloads + 1, adapter.getReloads());
+    assertTrue(readConfig("s1").contains("server 10.0.0.1:8080 canary"));
+  }
+
+  @Test
+  public void itReloadsWhenTheRackOfAnUpstreamChanges() throws Exception {
+    template = GROUPED_TEMPLATE;
+    BaragonService service = service("s1", "ok");
+    UpstreamInfo before = upstream("10.0.0.1:8080", Optional.of("r1"), GROUP_DEFAULT);
+    UpstreamInfo after = upstream("10.0.0.1:8080", Optional.of("r2"), GROUP_DEFAULT);
+    process(request("s1-create", service, ImmutableList.of(before)));
+    final int reloads = adapter.getReloads();
+    adapter.setRuntimeUpstreamUpdates(true);
+    adapter.setRuntimeUpstreamGroups(true);
+
+    List<AgentBatchResponseItem> responses = process(
+      ImmutableMap.of("s1", service),
+      ImmutableMap.<String, Collection<UpstreamInfo>>of("s1", ImmutableList.of(before)),
+      request("s1-rack", service, ImmutableList.of(after))
+    );
+
+    assertEquals(Arrays.asList(200), statuses(responses));
+    assertEquals(0, adapter.getRuntimeUpdates());
+    assertEquals(reloads + 1, adapter.getReloads());
+    assertTrue(readConfig("s1").contains("r2"));
+  }
+
+  @Test
+  public void itReloadsWhenTheTemplateWeightsUpstreamsByRack() throws Exception {
+    template = RACK_WEIGHTED_TEMPLATE;
+    BaragonService service = service("s1", "ok");
+    UpstreamInfo first = upstream("10.0.0.1:8080", Optional.of("r1"), GROUP_DEFAULT);
+    UpstreamInfo second = upstream("10.0.0.2:8080", Optional.of("r2"), GROUP_DEFAULT);
+    process(request("s1-create", service, ImmutableList.of(first)));
+    final int reloads = adapter.getReloads();
+    adapter.setRuntimeUpstreamUpdates(true);
+    adapter.setRuntimeUpstreamGroups(true);
+
+    List<AgentBatchResponseItem> responses = process(
+      ImmutableMap.of("s1", service),
+      ImmutableMap.<String, Collection<UpstreamInfo>>of("s1", ImmutableList.of(first)),
+      request("s1-add", service, ImmutableList.of(second))
+    );
+
+    assertEquals(Arrays.asList(200), statuses(responses));
+    assertEquals(0, adapter.getRuntimeUpdates());
+    assertEquals(reloads + 1, adapter.getReloads());
+    assertTrue(readConfig("s1").contains("server 10.0.0.2:8080"));
+  }
+
+  @Test
+  public void itAppliesAnInlineBatchPostedAsJson() throws Exception {
+    BaragonService service = service("s1", "ok");
+    process(request("s1-create", service, "10.0.0.1:8080"));
+    BaragonRequest request = request("s1-add", service, "10.0.0.2:8080");
+    BaragonRequestBatch batch = new BaragonRequestBatch(
+      ImmutableList.of(
+        new BaragonRequestBatchItem("s1-add", Optional.absent(), AgentRequestType.APPLY)
+      ),
+      ImmutableMap.of("s1-add", request),
+      ImmutableMap.of("s1", service),
+      ImmutableMap.<String, Collection<UpstreamInfo>>of(
+        "s1",
+        upstreams("10.0.0.1:8080")
+      )
+    );
+    ObjectMapper objectMapper = new ObjectMapper()
+      .registerModule(new GuavaModule())
+      .registerModule(new Jdk8Module());
+    BaragonRequestBatch posted = objectMapper.readValue(
+      objectMapper.writeValueAsBytes(batch),
+      BaragonRequestBatch.class
+    );
+    assertEquals(batch.getRequests(), posted.getRequests());
+
+    // Nothing is read from ZooKeeper, the request manager has no datastores to read from
+    BatchRequestResource resource = new BatchRequestResource(buildRequestManager());
+    List<AgentBatchResponseItem> responses = resource.applyInline(posted);
+
+    assertEquals(Arrays.asList(200), statuses(responses));
+    assertTrue(readConfig("s1").contains("server 10.0.0.1:8080;"));
+    assertTrue(readConfig("s1").contains("server 10.0.0.2:8080;"));
+  }
+
+  private List<AgentBatchResponseItem> process(BaragonRequest... requests)
+    throws Exception {
+    return process(Collections.emptyMap(), Collections.emptyMap(), requests);
+  }
+
+  /*
+   * Sends the requests as a single batch, with the services and upstreams stored before
+   * it, everything not given being absent
+   */
+  private List<AgentBatchResponseItem> process(
+    Map<String, BaragonService> services,
+    Map<String, Collection<UpstreamInfo>> upstreams,
+    BaragonRequest... requests
+  )
+    throws Exception {
+    final List<BaragonRequestBatchItem> items = new ArrayList<>();
+    final Map<String, BaragonRequest> requestsById = new HashMap<>();
+    final Map<String, Collection<UpstreamInfo>> batchUpstreams = new HashMap<>(
+      upstreams
+    );
+    for (BaragonRequest request : requests) {
+      items.add(
+        new BaragonRequestBatchItem(
+          request.getLoadBalancerRequestId(),
+          Optional.absent(),
+          AgentRequestType.APPLY
+        )
+      );
+      requestsById.put(request.getLoadBalancerRequestId(), request);
+      batchUpstreams.putIfAbsent(
+        request.getLoadBalancerService().getServiceId(),
+        Collections.emptyList()
+      );
+    }
+    return buildRequestManager()
+      .processRequests(
+        new BaragonRequestBatch(items, requestsById, services, batchUpstreams)
+      );
+  }
+
+  private AgentRequestManager buildRequestManager() throws IOException {
+    final LoadBalancerConfiguration configuration = new LoadBalancerConfiguration();
+    configuration.setName(GROUP);
+    configuration.setRootPath(rootPath.toString());
+    agentConfiguration.setLoadBalancerConfiguration(configuration);
+
+    final MetricRegistry metricRegistry = new MetricRegistry();
+    final ReentrantLock agentLock = new ReentrantLock();
+    final BaragonAgentMetadata agentMetadata = new BaragonAgentMetadata(
+      "http://localhost:8882/baragon-agent/v2",
+      "agent",
+      Optional.absent(),
+      new BaragonAgentEc2Metadata(
+        Optional.absent(),
+        Optional.absent(),
+        Optional.absent(),
+        Optional.absent(),
+        Optional.absent()
+      ),
+      Optional.absent(),
+      Collections.emptyMap(),
+      true
+    );
+    final Handlebars handlebars = new Handlebars();
+    handlebars.registerHelpers(
+      new PreferSameRackWeightingHelper(agentConfiguration, agentMetadata)
+    );
+    final LbConfigGenerator configGenerator = new LbConfigGenerator(
+      configuration,
+      agentMetadata,
+      ImmutableMap.of(
+        BaragonAgentServiceModule.DEFAULT_TEMPLATE_NAME,
+        ImmutableList.of(
+          new LbConfigTemplate(
+            "proxy/%s.conf",
+            handlebars.compileInline(template),
+            FilePathFormatType.SERVICE
+          )
+        )
+      )
+    );
+    final ConfigFileManifest manifest = new ConfigFileManifest();
+    final FilesystemConfigHelper configHelper = new FilesystemConfigHelper(
+      configGenerator,
+      adapter,
+      agentConfiguration,
+      manifest,
+      new AtomicConfigWriter(manifest),
+      new ReloadScheduler(adapter, configuration, metricRegistry, agentLock, 1000),
+      new ConfigValidator(adapter, configuration, metricRegistry, handlebars),
+      agentLock,
+      1000
+    );
+    return new AgentRequestManager(
+      null,
+      null,
+      null,
+      configHelper,
+      Optional.absent(),
+      configuration,
+      new Random(),
+      new AtomicReference<>(BaragonAgentState.ACCEPTING),
+      agentConfiguration,
+      new AtomicReference<>(),
+      1000,
+      internalStateCache,
+      null,
+      agentLock
+    );
+  }
+
+  private static BaragonService service(String serviceId, String content) {
+    return new BaragonService(
+      serviceId,
+      Collections.emptyList(),
+      "/" + serviceId,
+      ImmutableSet.of(GROUP),
+      ImmutableMap.of("content", content)
+    );
+  }
+
+  private static BaragonRequest request(
+    String requestId,
+    BaragonService service,
+    String... upstreams
+  ) {
+    return new BaragonRequestBuilder()
+      .setLoadBalancerRequestId(requestId)
+      .setLoadBalancerService(service)
+      .setAddUpstreams(upstreams(upstreams))
+      .setRemoveUpstreams(Collections.emptyList())
+      .setAction(Optional.absent())
+      .build();
+  }
+
+  private static BaragonRequest request(
+    String requestId,
+    BaragonService service,
+    List<UpstreamInfo> addUpstreams
+  ) {
+    return new BaragonRequestBuilder()
+      .setLoadBalancerRequestId(requestId)
+      .setLoadBalancerService(service)
+      .setAddUpstreams(addUpstreams)
+      .setRemoveUpstreams(Collections.emptyList())
+      .setAction(Optional.absent())
+      .build();
+  }
+
+  // Moves 10.0.0.1:8080 from the default group to the canary group
+  private static BaragonRequest moveRequest(BaragonService service) {
+    return new BaragonRequestBuilder()
+      .setLoadBalancerRequestId(service.getServiceId() + "-move")
+      .setLoadBalancerService(service)
+      .setAddUpstreams(
+        ImmutableList.of(upstream("10.0.0.1:8080", Optional.absent(), "canary"))
+      )
+      .setRemoveUpstreams(
+        ImmutableList.of(upstream("10.0.0.1:8080", Optional.absent(), GROUP_DEFAULT))
+      )
+      .setAction(Optional.absent())
+      .build();
+  }
+
+  private static UpstreamInfo upstream(
+    String upstream,
+    Optional<String> rackId,
+    String group
+  ) {
+    return new UpstreamInfo(upstream, Optional.absent(), rackId, Optional.of(group));
+  }
+
+  private static List<UpstreamInfo> upstreams(String... upstreams) {
+    return Arrays
+      .stream(upstreams)
+      .map(upstream -> new UpstreamInfo(upstream, Optional.absent(), Optional.absent()))
+      .collect(Collectors.toList());
+  }
+
+  private static List<Integer> statuses(List<AgentBatchResponseItem> responses) {
+    return responses
+      .stream()
+      .map(AgentBatchResponseItem::getStatusCode)
+      .collect(Collectors.toList());
+  }
+
+  private Set<String> configuredServices() throws IOException {
+    final Path proxyPath = rootPath.resolve("proxy");
+    if (!Files.exists(proxyPath)) {
+      return Collections.emptySet();
+    }
+    try (Stream<Path> paths = Files.list(proxyPath)) {
+      return paths
+        .map(path -> path.getFileName().toString())
+        .filter(name -> name.endsWith(".conf"))
+        .map(name -> name.substring(0, name.length() - ".conf".length()))
+        .collect(Collectors.toSet());
+    }
+  }
+
+  private String readConfig(String serviceId) throws IOException {
+    return new String(
+      Files.readAllBytes(rootPath.resolve("proxy/" + serviceId + ".conf")),
+      StandardCharsets.UTF_8
+    );
+  }
+
+  private void writeConfig(String serviceId, String content) throws IOException {
+    Files.createDirectories(rootPath.resolve("proxy"));
+    Files.write(
+      rootPath.resolve("proxy/" + serviceId + ".conf"),
+      content.getBytes(StandardCharsets.UTF_8)
+    );
+  }
+}
@@ -14,6 +14,7 @@ import com.hubspot.baragon.models.BaragonResponse;
 import com.hubspot.baragon.models.BaragonService;
 import com.hubspot.baragon.models.BaragonServiceState;
 import com.hubspot.baragon.models.BaragonServiceStatus;
+import com.hubspot.baragon.models.BaragonStateDelta;
 import com.hubspot.baragon.models.QueuedRequestId;
 import com.hubspot.baragon.models.UpstreamInfo;
 import com.hubspot.horizon.HttpClient;
@@ -355,6 +356,17 @@ public class BaragonServiceClient {
     return getCollection(uri, "global state", BARAGON_SERVICE_STATE_COLLECTION);
   }
 
+  public Optional<BaragonStateDelta> getStateDelta(int sinceVersion) {
+    final String uri = String.format(STATE_FORMAT, getBaseUrl());
+    return getSingle(
+      uri,
+      "state delta",
+      Integer.toString(sinceVersion),
+      BaragonStateDelta.class,
+      ImmutableMap.of("sinceVersion", Integer.toString(sinceVersion))
+    );
+  }
+
   public Optional<BaragonServiceState> getServiceState(String serviceId) {
     final String uri = String.format(STATE_SERVICE_ID_FORMAT, getBaseUrl(), serviceId);
     return getSingle(uri, "service state", serviceId, BaragonServiceState.class);
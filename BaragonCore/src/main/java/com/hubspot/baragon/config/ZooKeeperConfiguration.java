@@ -1,5 +1,6 @@
 package com.hubspot.baragon.config;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class ZooKeeperConfiguration {
@@ -24,6 +25,27 @@ public class ZooKeeperConfiguration {
   private long debugCuratorCallOverBytes = 25000;
   private long debugCuratorCallOverMillis = 250;
 
+  @Min(1)
+  private int parallelFetchMaxInFlight = 256;
+
+  @Min(1)
+  private long parallelFetchPathTimeoutMillis = 10000;
+
+  @Min(1)
+  private int parallelFetchParseThreads = Runtime.getRuntime().availableProcessors();
+
+  // Store the upstreams of each service as a single blob rather than a node per upstream
+  private boolean compactUpstreamsEnabled = false;
+
+  // Blobs bigger than this are split into chunks, must stay below jute.maxbuffer
+  @Min(1024)
+  private int compactUpstreamsChunkBytes = 512 * 1024;
+
+  // Queue requests under this many shards handled by every service instance rather than
+  // the leader alone. Only change it while the queue is empty.
+  @Min(0)
+  private int queueShardCount = 0;
+
   public String getQuorum() {
     return quorum;
   }
@@ -87,4 +109,52 @@ public class ZooKeeperConfiguration {
   public void setDebugCuratorCallOverMillis(long debugCuratorCallOverMillis) {
     this.debugCuratorCallOverMillis = debugCuratorCallOverMillis;
   }
+
+  public int getParallelFetchMaxInFlight() {
+    return parallelFetchMaxInFlight;
+  }
+
+  public void setParallelFetchMaxInFlight(int parallelFetchMaxInFlight) {
+    this.parallelFetchMaxInFlight = parallelFetchMaxInFlight;
+  }
+
+  public long getParallelFetchPathTimeoutMillis() {
+    return parallelFetchPathTimeoutMillis;
+  }
+
+  public void setParallelFetchPathTimeoutMillis(long parallelFetchPathTimeoutMillis) {
+    this.parallelFetchPathTimeoutMillis = parallelFetchPathTimeoutMillis;
+  }
+
+  public int getParallelFetchParseThreads() {
+    return parallelFetchParseThreads;
+  }
+
+  public void setParallelFetchParseThreads(int parallelFetchParseThreads) {
+    this.parallelFetchParseThreads = parallelFetchParseThreads;
+  }
+
+  public boolean isCompactUpstreamsEnabled() {
+    return compactUpstreamsEnabled;
+  }
+
+  public void setCompactUpstreamsEnabled(boolean compactUpstreamsEnabled) {
+    this.compactUpstreamsEnabled = compactUpstreamsEnabled;
+  }
+
+  public int getCompactUpstreamsChunkBytes() {
+    return compactUpstreamsChunkBytes;
+  }
+
+  public void setCompactUpstreamsChunkBytes(int compactUpstreamsChunkBytes) {
+    this.compactUpstreamsChunkBytes = compactUpstreamsChunkBytes;
+  }
+
+  public int getQueueShardCount() {
+    return queueShardCount;
+  }
+
+  public void setQueueShardCount(int queueShardCount) {
+    this.queueShardCount = queueShardCount;
+  }
 }
@@ -18,6 +18,11 @@ public class BaragonAgentMetadata {
     "^http[s]?:\\/\\/([^:\\/]+:\\d{1,5})\\/.*$"
   );
 
+  // Batches of request ids, which the agent reads from ZooKeeper
+  public static final int ID_BATCH_VERSION = 1;
+  // Batches carrying the requests, prior services and upstreams they apply to
+  public static final int INLINE_BATCH_VERSION = 2;
+
   private final String baseAgentUri;
 
   @Deprecated
@@ -28,6 +33,7 @@ public class BaragonAgentMetadata {
   private final Optional<BaragonAgentGcloudMetadata> gcloud;
   private final Map<String, String> extraAgentData;
   private final boolean batchEnabled;
+  private final int batchVersion;
 
   @JsonCreator
   public static BaragonAgentMetadata fromString(String value) {
@@ -54,6 +60,18 @@ public class BaragonAgentMetadata {
     );
   }
 
+  public BaragonAgentMetadata(
+    String baseAgentUri,
+    String agentId,
+    Optional<String> domain,
+    BaragonAgentEc2Metadata ec2,
+    Optional<BaragonAgentGcloudMetadata> gcloud,
+    Map<String, String> extraAgentData,
+    boolean batchEnabled
+  ) {
+    this(baseAgentUri, agentId, domain, ec2, gcloud, extraAgentData, batchEnabled, null);
+  }
+
   @JsonCreator
   public BaragonAgentMetadata(
     @JsonProperty("baseAgentUri") String baseAgentUri,
@@ -62,7 +80,8 @@ public class BaragonAgentMetadata {
     @JsonProperty("ec2") BaragonAgentEc2Metadata ec2,
     @JsonProperty("gcloud") Optional<BaragonAgentGcloudMetadata> gcloud,
     @JsonProperty("extraAgentData") Map<String, String> extraAgentData,
-    @JsonProperty("batchEnabled") boolean batchEnabled
+    @JsonProperty("batchEnabled") boolean batchEnabled,
+    @JsonProperty("batchVersion") Integer batchVersion
   ) {
     this.baseAgentUri = baseAgentUri;
     this.domain = domain;
@@ -72,6 +91,8 @@ public class BaragonAgentMetadata {
     this.extraAgentData =
       MoreObjects.firstNonNull(extraAgentData, Collections.<String, String>emptyMap());
     this.batchEnabled = MoreObjects.firstNonNull(batchEnabled, false);
+    this.batchVersion =
+      MoreObjects.firstNonNull(batchVersion, this.batchEnabled ? ID_BATCH_VERSION : 0);
   }
 
   public String getBaseAgentUri() {
@@ -103,6 +124,10 @@ public class BaragonAgentMetadata {
     return batchEnabled;
   }
 
+  public int getBatchVersion() {
+    return batchVersion;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (this == obj) {
@@ -112,6 +137,7 @@ public class BaragonAgentMetadata {
       final BaragonAgentMetadata that = (BaragonAgentMetadata) obj;
       return (
         Objects.equals(this.batchEnabled, that.batchEnabled) &&
+        Objects.equals(this.batchVersion, that.batchVersion) &&
         Objects.equals(this.baseAgentUri, that.baseAgentUri) &&
         Objects.equals(this.domain, that.domain) &&
         Objects.equals(this.agentId, that.agentId) &&
@@ -132,7 +158,8 @@ public class BaragonAgentMetadata {
       ec2,
       gcloud,
       extraAgentData,
-      batchEnabled
+      batchEnabled,
+      batchVersion
     );
   }
 
@@ -156,6 +183,8 @@ public class BaragonAgentMetadata {
       extraAgentData +
       ", batchEnabled=" +
       batchEnabled +
+      ", batchVersion=" +
+      batchVersion +
       '}'
     );
   }
@@ -23,6 +23,30 @@ public class BaragonKnownAgentMetadata extends BaragonAgentMetadata {
       agentMetadata.getGcloud(),
       agentMetadata.getExtraAgentData(),
       agentMetadata.isBatchEnabled(),
+      agentMetadata.getBatchVersion(),
+      lastSeenAt
+    );
+  }
+
+  public BaragonKnownAgentMetadata(
+    String baseAgentUri,
+    String agentId,
+    Optional<String> domain,
+    BaragonAgentEc2Metadata ec2,
+    Optional<BaragonAgentGcloudMetadata> gcloud,
+    Map<String, String> extraAgentData,
+    boolean batchEnabled,
+    long lastSeenAt
+  ) {
+    this(
+      baseAgentUri,
+      agentId,
+      domain,
+      ec2,
+      gcloud,
+      extraAgentData,
+      batchEnabled,
+      null,
       lastSeenAt
     );
   }
@@ -36,9 +60,19 @@ public class BaragonKnownAgentMetadata extends BaragonAgentMetadata {
     @JsonProperty("gcloud") Optional<BaragonAgentGcloudMetadata> gcloud,
     @JsonProperty("extraAgentData") Map<String, String> extraAgentData,
     @JsonProperty("batchEnabled") boolean batchEnabled,
+    @JsonProperty("batchVersion") Integer batchVersion,
     @JsonProperty("lastSeenAt") long lastSeenAt
   ) {
-    super(baseAgentUri, agentId, domain, ec2, gcloud, extraAgentData, batchEnabled);
+    super(
+      baseAgentUri,
+      agentId,
+      domain,
+      ec2,
+      gcloud,
+      extraAgentData,
+      batchEnabled,
+      batchVersion
+    );
     this.lastSeenAt = lastSeenAt;
   }
 
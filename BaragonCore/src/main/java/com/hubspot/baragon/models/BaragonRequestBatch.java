@@ -0,0 +1,90 @@
+package com.hubspot.baragon.models;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A batch of agent requests along with everything the agent needs to apply them: the
+ * requests themselves, the currently committed service for each service id (services
+ * that don't exist yet are left out) and the upstreams of each service when the batch
+ * was sent.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BaragonRequestBatch {
+  private final List<BaragonRequestBatchItem> items;
+  private final Map<String, BaragonRequest> requests;
+  private final Map<String, BaragonService> services;
+  private final Map<String, Collection<UpstreamInfo>> upstreams;
+
+  @JsonCreator
+  public BaragonRequestBatch(
+    @JsonProperty("items") List<BaragonRequestBatchItem> items,
+    @JsonProperty("requests") Map<String, BaragonRequest> requests,
+    @JsonProperty("services") Map<String, BaragonService> services,
+    @JsonProperty("upstreams") Map<String, Collection<UpstreamInfo>> upstreams
+  ) {
+    this.items = MoreObjects.firstNonNull(items, Collections.emptyList());
+    this.requests = MoreObjects.firstNonNull(requests, Collections.emptyMap());
+    this.services = MoreObjects.firstNonNull(services, Collections.emptyMap());
+    this.upstreams = MoreObjects.firstNonNull(upstreams, Collections.emptyMap());
+  }
+
+  public List<BaragonRequestBatchItem> getItems() {
+    return items;
+  }
+
+  public Map<String, BaragonRequest> getRequests() {
+    return requests;
+  }
+
+  public Map<String, BaragonService> getServices() {
+    return services;
+  }
+
+  public Map<String, Collection<UpstreamInfo>> getUpstreams() {
+    return upstreams;
+  }
+
+  public BaragonRequestBatch withItems(List<BaragonRequestBatchItem> items) {
+    return new BaragonRequestBatch(items, requests, services, upstreams);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    BaragonRequestBatch that = (BaragonRequestBatch) o;
+    return (
+      Objects.equal(items, that.items) &&
+      Objects.equal(requests, that.requests) &&
+      Objects.equal(services, that.services) &&
+      Objects.equal(upstreams, that.upstreams)
+    );
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(items, requests, services, upstreams);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects
+      .toStringHelper(this)
+      .add("items", items)
+      .add("requests", requests.keySet())
+      .add("services", services.keySet())
+      .toString();
+  }
+}
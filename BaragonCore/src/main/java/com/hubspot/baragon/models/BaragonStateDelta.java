@@ -0,0 +1,118 @@
+package com.hubspot.baragon.models;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import java.util.Collection;
+import java.util.Collections;
+
+/*
+ * Services that changed between two state versions. When fullState is set the changes
+ * couldn't be determined (e.g. the change journal no longer reaches back to fromVersion)
+ * and updatedServices holds every service at toVersion instead.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BaragonStateDelta {
+  private final int fromVersion;
+  private final int toVersion;
+  private final boolean fullState;
+  private final Collection<BaragonServiceState> updatedServices;
+  private final Collection<String> removedServiceIds;
+
+  public static BaragonStateDelta full(
+    int fromVersion,
+    int toVersion,
+    Collection<BaragonServiceState> services
+  ) {
+    return new BaragonStateDelta(
+      fromVersion,
+      toVersion,
+      true,
+      services,
+      Collections.emptyList()
+    );
+  }
+
+  @JsonCreator
+  public BaragonStateDelta(
+    @JsonProperty("fromVersion") int fromVersion,
+    @JsonProperty("toVersion") int toVersion,
+    @JsonProperty("fullState") boolean fullState,
+    @JsonProperty("updatedServices") Collection<BaragonServiceState> updatedServices,
+    @JsonProperty("removedServiceIds") Collection<String> removedServiceIds
+  ) {
+    this.fromVersion = fromVersion;
+    this.toVersion = toVersion;
+    this.fullState = fullState;
+    this.updatedServices =
+      MoreObjects.firstNonNull(
+        updatedServices,
+        Collections.<BaragonServiceState>emptyList()
+      );
+    this.removedServiceIds =
+      MoreObjects.firstNonNull(removedServiceIds, Collections.<String>emptyList());
+  }
+
+  public int getFromVersion() {
+    return fromVersion;
+  }
+
+  public int getToVersion() {
+    return toVersion;
+  }
+
+  public boolean isFullState() {
+    return fullState;
+  }
+
+  public Collection<BaragonServiceState> getUpdatedServices() {
+    return updatedServices;
+  }
+
+  public Collection<String> getRemovedServiceIds() {
+    return removedServiceIds;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    BaragonStateDelta that = (BaragonStateDelta) o;
+    return (
+      fromVersion == that.fromVersion &&
+      toVersion == that.toVersion &&
+      fullState == that.fullState &&
+      Objects.equal(updatedServices, that.updatedServices) &&
+      Objects.equal(removedServiceIds, that.removedServiceIds)
+    );
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(
+      fromVersion,
+      toVersion,
+      fullState,
+      updatedServices,
+      removedServiceIds
+    );
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects
+      .toStringHelper(this)
+      .add("fromVersion", fromVersion)
+      .add("toVersion", toVersion)
+      .add("fullState", fullState)
+      .add("updatedServices", updatedServices)
+      .add("removedServiceIds", removedServiceIds)
+      .toString();
+  }
+}
@@ -0,0 +1,21 @@
+package com.hubspot.baragon.models;
+
+/*
+ * Where the state of every service is kept in ZooKeeper. BaragonData writes it, and
+ * clients like BaragonWatcher read it from the same nodes without depending on it.
+ */
+public final class BaragonStatePaths {
+  public static final String SERVICES_FORMAT = "/state";
+  public static final String SERVICE_FORMAT = SERVICES_FORMAT + "/%s";
+  public static final String LAST_UPDATED_FORMAT = "/state-last-updated";
+  public static final String UPSTREAM_BLOBS_FORMAT = "/state-upstreams";
+  public static final String UPSTREAM_BLOB_FORMAT = UPSTREAM_BLOBS_FORMAT + "/%s";
+  public static final String UPSTREAM_BLOB_CHUNKS_FORMAT = "/state-upstream-chunks/%s";
+  public static final String CHANGELOG_FORMAT = "/state-changelog";
+  public static final String CHANGELOG_ENTRY_FORMAT = CHANGELOG_FORMAT + "/%010d";
+
+  // Number of state versions for which the changed serviceIds are kept around
+  public static final int CHANGELOG_SIZE = 1000;
+
+  private BaragonStatePaths() {}
+}
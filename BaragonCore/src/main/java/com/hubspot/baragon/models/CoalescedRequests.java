@@ -0,0 +1,65 @@
+package com.hubspot.baragon.models;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import java.util.List;
+
+/*
+ * Kept with a request that later upstream changes for the same service were coalesced
+ * into: the request as it was enqueued, and the ids of the requests coalesced into it,
+ * which are given its outcome once it completes.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CoalescedRequests {
+  private final BaragonRequest originalRequest;
+  private final List<String> requestIds;
+
+  @JsonCreator
+  public CoalescedRequests(
+    @JsonProperty("originalRequest") BaragonRequest originalRequest,
+    @JsonProperty("requestIds") List<String> requestIds
+  ) {
+    this.originalRequest = originalRequest;
+    this.requestIds = requestIds;
+  }
+
+  public BaragonRequest getOriginalRequest() {
+    return originalRequest;
+  }
+
+  public List<String> getRequestIds() {
+    return requestIds;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    CoalescedRequests that = (CoalescedRequests) o;
+    return (
+      Objects.equal(originalRequest, that.originalRequest) &&
+      Objects.equal(requestIds, that.requestIds)
+    );
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(originalRequest, requestIds);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects
+      .toStringHelper(this)
+      .add("originalRequest", originalRequest)
+      .add("requestIds", requestIds)
+      .toString();
+  }
+}
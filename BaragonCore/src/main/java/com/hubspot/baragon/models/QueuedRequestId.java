@@ -5,17 +5,30 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class QueuedRequestId {
   private final String serviceId;
   private final String requestId;
   private final int index;
+  // The queue the id was read from, so that it is removed from there whatever the
+  // current queue shard count. Not part of the id's identity.
+  private final Optional<String> queuePath;
 
   public static QueuedRequestId fromString(String value) {
+    return fromString(value, Optional.absent());
+  }
+
+  public static QueuedRequestId fromString(String value, Optional<String> queuePath) {
     final String[] splits = value.split("\\|", 3);
 
-    return new QueuedRequestId(splits[0], splits[1], Integer.parseInt(splits[2]));
+    return new QueuedRequestId(
+      splits[0],
+      splits[1],
+      Integer.parseInt(splits[2]),
+      queuePath
+    );
   }
 
   @JsonCreator
@@ -23,10 +36,20 @@ public class QueuedRequestId {
     @JsonProperty("serviceId") String serviceId,
     @JsonProperty("requestId") String requestId,
     @JsonProperty("index") int index
+  ) {
+    this(serviceId, requestId, index, Optional.absent());
+  }
+
+  public QueuedRequestId(
+    String serviceId,
+    String requestId,
+    int index,
+    Optional<String> queuePath
   ) {
     this.serviceId = serviceId;
     this.requestId = requestId;
     this.index = index;
+    this.queuePath = queuePath;
   }
 
   public String getServiceId() {
@@ -41,6 +64,11 @@ public class QueuedRequestId {
     return index;
   }
 
+  @JsonIgnore
+  public Optional<String> getQueuePath() {
+    return queuePath;
+  }
+
   @JsonIgnore
   public String buildZkPath() {
     return String.format("%s|%s|%010d", serviceId, requestId, index);
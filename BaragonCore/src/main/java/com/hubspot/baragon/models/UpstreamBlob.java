@@ -0,0 +1,183 @@
+package com.hubspot.baragon.models;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * The compact storage layout of a service's upstreams: a single node holding the gzipped,
+ * newline separated UpstreamInfo.toPath() of every upstream, in place of one child node
+ * per upstream. The node starts with a header; if the payload doesn't fit in a single
+ * node, it is split into chunks stored in nodes of their own, named after the generation
+ * of the blob, so that a new generation can be written next to the current one before
+ * the header is switched over to it.
+ */
+public class UpstreamBlob {
+  public static final byte FORMAT_VERSION = 1;
+
+  // Format version, generation, chunk count
+  private static final int HEADER_BYTES = 1 + Long.BYTES + Integer.BYTES;
+
+  private final long generation;
+  private final int chunkCount;
+  private final byte[] inlinePayload;
+
+  private UpstreamBlob(long generation, int chunkCount, byte[] inlinePayload) {
+    this.generation = generation;
+    this.chunkCount = chunkCount;
+    this.inlinePayload = inlinePayload;
+  }
+
+  public static UpstreamBlob inline(long generation, byte[] payload) {
+    return new UpstreamBlob(generation, 0, payload);
+  }
+
+  public static UpstreamBlob chunked(long generation, int chunkCount) {
+    return new UpstreamBlob(generation, chunkCount, new byte[0]);
+  }
+
+  public static UpstreamBlob fromBytes(byte[] data) {
+    final ByteBuffer buffer = ByteBuffer.wrap(data);
+    final byte formatVersion = buffer.get();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IllegalArgumentException(
+        String.format("Unknown upstream blob format version %d", formatVersion)
+      );
+    }
+    final long generation = buffer.getLong();
+    final int chunkCount = buffer.getInt();
+    return new UpstreamBlob(
+      generation,
+      chunkCount,
+      Arrays.copyOfRange(data, HEADER_BYTES, data.length)
+    );
+  }
+
+  public byte[] toBytes() {
+    return ByteBuffer
+      .allocate(HEADER_BYTES + inlinePayload.length)
+      .put(FORMAT_VERSION)
+      .putLong(generation)
+      .putInt(chunkCount)
+      .put(inlinePayload)
+      .array();
+  }
+
+  public static int getHeaderBytes() {
+    return HEADER_BYTES;
+  }
+
+  public long getGeneration() {
+    return generation;
+  }
+
+  public boolean isChunked() {
+    return chunkCount > 0;
+  }
+
+  public List<String> getChunkNames() {
+    final List<String> names = new ArrayList<>(chunkCount);
+    for (int i = 0; i < chunkCount; i++) {
+      names.add(chunkName(generation, i));
+    }
+    return names;
+  }
+
+  public byte[] getInlinePayload() {
+    return inlinePayload;
+  }
+
+  public static String chunkName(long generation, int index) {
+    return String.format("%016x-%04d", generation, index);
+  }
+
+  public static byte[] compress(Collection<String> upstreamPaths) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+      gzip.write(Joiner.on('\n').join(upstreamPaths).getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  public static List<String> decompress(byte[] payload) {
+    final String paths;
+    try (
+      GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(payload))
+    ) {
+      paths = new String(ByteStreams.toByteArray(gzip), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (paths.isEmpty()) {
+      return new ArrayList<>();
+    }
+    return Splitter.on('\n').splitToList(paths);
+  }
+
+  public static List<byte[]> split(byte[] payload, int chunkBytes) {
+    final List<byte[]> chunks = new ArrayList<>();
+    for (int offset = 0; offset < payload.length; offset += chunkBytes) {
+      chunks.add(
+        Arrays.copyOfRange(payload, offset, Math.min(payload.length, offset + chunkBytes))
+      );
+    }
+    return chunks;
+  }
+
+  public static byte[] join(List<byte[]> chunks) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (byte[] chunk : chunks) {
+      bytes.write(chunk, 0, chunk.length);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @return the UpstreamInfo.toPath() of every upstream in the blob, given the payload
+   * of its chunks, in order, if it is chunked
+   */
+  public List<String> toPaths(List<byte[]> chunks) {
+    return decompress(isChunked() ? join(chunks) : inlinePayload);
+  }
+
+  /**
+   * @return every upstream in the blob, given the payload of its chunks, in order, if it
+   * is chunked
+   */
+  public List<UpstreamInfo> toUpstreams(List<byte[]> chunks) {
+    final List<String> paths = toPaths(chunks);
+    final List<UpstreamInfo> upstreams = new ArrayList<>(paths.size());
+    for (String path : paths) {
+      upstreams.add(UpstreamInfo.fromString(path));
+    }
+    return upstreams;
+  }
+
+  @Override
+  public String toString() {
+    return (
+      "UpstreamBlob{" +
+      "generation=" +
+      generation +
+      ", chunkCount=" +
+      chunkCount +
+      ", inlinePayload=" +
+      inlinePayload.length +
+      '}'
+    );
+  }
+}
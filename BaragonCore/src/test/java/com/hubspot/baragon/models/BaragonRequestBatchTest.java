@@ -0,0 +1,93 @@
+package com.hubspot.baragon.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Collection;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+public class BaragonRequestBatchTest {
+
+  @Test
+  public void itTreatsMissingPartsAsEmpty() {
+    BaragonRequestBatch batch = new BaragonRequestBatch(null, null, null, null);
+
+    assertTrue(batch.getItems().isEmpty());
+    assertTrue(batch.getRequests().isEmpty());
+    assertTrue(batch.getServices().isEmpty());
+    assertTrue(batch.getUpstreams().isEmpty());
+  }
+
+  @Test
+  public void itKeepsEverythingButTheItemsWhenNarrowed() {
+    BaragonRequestBatchItem first = item("first");
+    BaragonRequestBatchItem second = item("second");
+    BaragonService service = new BaragonService(
+      "service",
+      Collections.emptySet(),
+      "/service",
+      ImmutableSet.of("test"),
+      Collections.emptyMap()
+    );
+    BaragonRequestBatch batch = new BaragonRequestBatch(
+      ImmutableList.of(first, second),
+      Collections.emptyMap(),
+      ImmutableMap.of("service", service),
+      ImmutableMap.<String, Collection<UpstreamInfo>>of(
+        "service",
+        ImmutableList.of(
+          new UpstreamInfo("10.0.0.1:80", Optional.absent(), Optional.absent())
+        )
+      )
+    );
+
+    BaragonRequestBatch narrowed = batch.withItems(ImmutableList.of(second));
+
+    assertEquals(ImmutableList.of(second), narrowed.getItems());
+    assertEquals(batch.getServices(), narrowed.getServices());
+    assertEquals(batch.getUpstreams(), narrowed.getUpstreams());
+    assertEquals(batch, narrowed.withItems(ImmutableList.of(first, second)));
+  }
+
+  @Test
+  public void itDefaultsTheBatchVersionOfAgentsThatDontSendOne() {
+    assertEquals(
+      BaragonAgentMetadata.ID_BATCH_VERSION,
+      metadata(true, null).getBatchVersion()
+    );
+    assertEquals(0, metadata(false, null).getBatchVersion());
+    assertEquals(
+      BaragonAgentMetadata.INLINE_BATCH_VERSION,
+      metadata(true, BaragonAgentMetadata.INLINE_BATCH_VERSION).getBatchVersion()
+    );
+  }
+
+  private static BaragonRequestBatchItem item(String requestId) {
+    return new BaragonRequestBatchItem(
+      requestId,
+      Optional.absent(),
+      AgentRequestType.APPLY
+    );
+  }
+
+  private static BaragonAgentMetadata metadata(
+    boolean batchEnabled,
+    Integer batchVersion
+  ) {
+    return new BaragonAgentMetadata(
+      "http://agent",
+      "agent",
+      Optional.absent(),
+      null,
+      Optional.absent(),
+      null,
+      batchEnabled,
+      batchVersion
+    );
+  }
+}
@@ -0,0 +1,87 @@
+package com.hubspot.baragon.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Optional;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class UpstreamBlobTest {
+
+  @Test
+  public void itRoundTripsAnInlineBlob() {
+    List<String> paths = toPaths(5);
+    UpstreamBlob blob = UpstreamBlob.inline(42L, UpstreamBlob.compress(paths));
+
+    UpstreamBlob read = UpstreamBlob.fromBytes(blob.toBytes());
+    assertEquals(42L, read.getGeneration());
+    assertFalse(read.isChunked());
+    assertTrue(read.getChunkNames().isEmpty());
+    assertEquals(paths, read.toPaths(Collections.emptyList()));
+
+    List<UpstreamInfo> upstreams = read.toUpstreams(Collections.emptyList());
+    assertEquals(paths.size(), upstreams.size());
+    for (int i = 0; i < paths.size(); i++) {
+      assertEquals(upstream(i).getUpstream(), upstreams.get(i).getUpstream());
+      assertEquals(upstream(i).getRackId(), upstreams.get(i).getRackId());
+      assertEquals(upstream(i).getGroup(), upstreams.get(i).getGroup());
+    }
+  }
+
+  @Test
+  public void itRoundTripsAChunkedBlob() {
+    List<String> paths = toPaths(500);
+    byte[] payload = UpstreamBlob.compress(paths);
+    List<byte[]> chunks = UpstreamBlob.split(payload, 64);
+    assertTrue(chunks.size() > 1);
+    UpstreamBlob blob = UpstreamBlob.chunked(-7L, chunks.size());
+
+    UpstreamBlob read = UpstreamBlob.fromBytes(blob.toBytes());
+    assertEquals(-7L, read.getGeneration());
+    assertTrue(read.isChunked());
+    assertEquals(UpstreamBlob.getHeaderBytes(), blob.toBytes().length);
+    assertEquals(chunks.size(), read.getChunkNames().size());
+    assertEquals(UpstreamBlob.chunkName(-7L, 0), read.getChunkNames().get(0));
+    assertEquals(paths, read.toPaths(chunks));
+  }
+
+  @Test
+  public void itRoundTripsNoUpstreams() {
+    UpstreamBlob blob = UpstreamBlob.inline(
+      1L,
+      UpstreamBlob.compress(Collections.emptyList())
+    );
+    assertTrue(
+      UpstreamBlob.fromBytes(blob.toBytes()).toPaths(Collections.emptyList()).isEmpty()
+    );
+  }
+
+  @Test
+  public void itRejectsUnknownFormatVersions() {
+    byte[] data = UpstreamBlob.inline(1L, new byte[0]).toBytes();
+    data[0] = UpstreamBlob.FORMAT_VERSION + 1;
+    assertThrows(IllegalArgumentException.class, () -> UpstreamBlob.fromBytes(data));
+  }
+
+  private static List<String> toPaths(int count) {
+    List<String> paths = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      paths.add(upstream(i).toPath());
+    }
+    return paths;
+  }
+
+  private static UpstreamInfo upstream(int i) {
+    return new UpstreamInfo(
+      String.format("10.0.%d.%d:8080", i / 256, i % 256),
+      Optional.of("request" + i),
+      Optional.of("rack" + (i % 3)),
+      Optional.of("group" + (i % 2))
+    );
+  }
+}
@@ -24,6 +24,7 @@ import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.data.BaragonWorkerDatastore;
 import com.hubspot.baragon.data.BaragonZkMetaDatastore;
 import com.hubspot.baragon.managers.BaragonAuthManager;
+import com.hubspot.baragon.migrations.CompactUpstreamsMigration;
 import com.hubspot.baragon.migrations.ServiceDomainsMigration;
 import com.hubspot.baragon.migrations.UpstreamsMigration;
 import com.hubspot.baragon.migrations.ZkDataMigration;
@@ -92,6 +93,7 @@ public class BaragonDataModule extends AbstractModule {
     );
     zkMigrationBinder.addBinding().to(UpstreamsMigration.class);
     zkMigrationBinder.addBinding().to(ServiceDomainsMigration.class);
+    zkMigrationBinder.addBinding().to(CompactUpstreamsMigration.class);
   }
 
   @Provides
@@ -1,19 +1,52 @@
 package com.hubspot.baragon.cache;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BaragonStateDelta;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Singleton
 public class BaragonStateCache {
+  private static final Logger LOG = LoggerFactory.getLogger(BaragonStateCache.class);
+
   private final BaragonStateDatastore stateDatastore;
+  private final ObjectMapper objectMapper;
   private final AtomicReference<CachedBaragonState> currentState;
 
+  // Serialized form of each service in the current state, only touched in updateState
+  private Map<String, byte[]> encodedServices;
+
+  // Always set before currentState, so it reaches at least as far as the cached state
+  private volatile RecentChanges recentChanges;
+
   @Inject
-  public BaragonStateCache(BaragonStateDatastore stateDatastore) {
+  public BaragonStateCache(
+    BaragonStateDatastore stateDatastore,
+    ObjectMapper objectMapper
+  ) {
     this.stateDatastore = stateDatastore;
+    this.objectMapper = objectMapper;
     this.currentState = new AtomicReference<>(new CachedBaragonState(new byte[0], -2));
+    this.encodedServices = new TreeMap<>();
+    this.recentChanges = RecentChanges.startingAt(-2);
   }
 
   public CachedBaragonState getState() {
@@ -27,19 +60,214 @@ public class BaragonStateCache {
     }
   }
 
+  public BaragonStateSnapshot getSnapshot() {
+    return getState().getSnapshot();
+  }
+
+  public BaragonStateDelta getDelta(int sinceVersion) {
+    BaragonStateSnapshot snapshot = getSnapshot();
+    Optional<Set<String>> maybeChangedServiceIds = recentChanges.getChangedServiceIds(
+      sinceVersion,
+      snapshot.getVersion()
+    );
+
+    if (!maybeChangedServiceIds.isPresent()) {
+      return BaragonStateDelta.full(
+        sinceVersion,
+        snapshot.getVersion(),
+        snapshot.getServices()
+      );
+    }
+
+    List<BaragonServiceState> updatedServices = new ArrayList<>();
+    List<String> removedServiceIds = new ArrayList<>();
+    for (String serviceId : maybeChangedServiceIds.get()) {
+      Optional<BaragonServiceState> maybeState = snapshot.getService(serviceId);
+      if (maybeState.isPresent()) {
+        updatedServices.add(maybeState.get());
+      } else {
+        removedServiceIds.add(serviceId);
+      }
+    }
+
+    return new BaragonStateDelta(
+      sinceVersion,
+      snapshot.getVersion(),
+      false,
+      updatedServices,
+      removedServiceIds
+    );
+  }
+
   private synchronized CachedBaragonState updateState(int version) {
     CachedBaragonState previousState = currentState.get();
 
     if (previousState.getVersion() >= version) {
       return previousState;
     } else {
-      CachedBaragonState newState = fetchState(version);
+      Optional<Set<String>> maybeChangedServiceIds = stateDatastore.getChangedServiceIds(
+        previousState.getVersion(),
+        version
+      );
+      CachedBaragonState newState;
+      if (maybeChangedServiceIds.isPresent()) {
+        newState = patchState(previousState, maybeChangedServiceIds.get(), version);
+        recentChanges =
+          recentChanges.append(
+            previousState.getVersion(),
+            version,
+            maybeChangedServiceIds.get()
+          );
+      } else {
+        newState = fetchState(version);
+        recentChanges = RecentChanges.startingAt(version);
+      }
       currentState.set(newState);
       return newState;
     }
   }
 
+  private CachedBaragonState patchState(
+    CachedBaragonState previousState,
+    Set<String> changedServiceIds,
+    int version
+  ) {
+    Map<String, BaragonServiceState> states = new HashMap<>(
+      previousState.getSnapshot().getServicesById()
+    );
+    Map<String, BaragonServiceState> changedStates = stateDatastore.getServiceStates(
+      changedServiceIds
+    );
+
+    for (String serviceId : changedServiceIds) {
+      BaragonServiceState changedState = changedStates.get(serviceId);
+      if (changedState == null) {
+        states.remove(serviceId);
+        encodedServices.remove(serviceId);
+      } else {
+        states.put(serviceId, changedState);
+        encodedServices.put(serviceId, encode(changedState));
+      }
+    }
+
+    LOG.debug(
+      "Patched {} services from version {} to {}",
+      changedServiceIds.size(),
+      previousState.getVersion(),
+      version
+    );
+    return new CachedBaragonState(
+      assembleEncodedServices(),
+      new BaragonStateSnapshot(states.values(), version)
+    );
+  }
+
   private CachedBaragonState fetchState(int version) {
-    return new CachedBaragonState(stateDatastore.getGlobalStateAsBytes(), version);
+    Map<String, BaragonServiceState> states = new HashMap<>();
+    Map<String, byte[]> newEncodedServices = new TreeMap<>();
+    for (BaragonServiceState state : stateDatastore.getGlobalState()) {
+      states.put(state.getService().getServiceId(), state);
+      newEncodedServices.put(state.getService().getServiceId(), encode(state));
+    }
+    encodedServices = newEncodedServices;
+    return new CachedBaragonState(
+      assembleEncodedServices(),
+      new BaragonStateSnapshot(states.values(), version)
+    );
+  }
+
+  private byte[] encode(BaragonServiceState state) {
+    try {
+      return objectMapper.writeValueAsBytes(state);
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Same bytes as serializing the whole collection, without re-encoding every service
+  private byte[] assembleEncodedServices() {
+    int size = 2 + encodedServices.size();
+    for (byte[] encoded : encodedServices.values()) {
+      size += encoded.length;
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
+    baos.write('[');
+    boolean first = true;
+    for (byte[] encoded : encodedServices.values()) {
+      if (!first) {
+        baos.write(',');
+      }
+      baos.write(encoded, 0, encoded.length);
+      first = false;
+    }
+    baos.write(']');
+    return baos.toByteArray();
+  }
+
+  /*
+   * The serviceIds changed in each recent version, keyed by the version they were changed
+   * in. Changes are known for every version after startVersion.
+   */
+  @VisibleForTesting
+  static class RecentChanges {
+    private final int startVersion;
+    private final ImmutableSortedMap<Integer, ImmutableSet<String>> changedServiceIds;
+
+    static RecentChanges startingAt(int version) {
+      return new RecentChanges(version, ImmutableSortedMap.of());
+    }
+
+    private RecentChanges(
+      int startVersion,
+      ImmutableSortedMap<Integer, ImmutableSet<String>> changedServiceIds
+    ) {
+      this.startVersion = startVersion;
+      this.changedServiceIds = changedServiceIds;
+    }
+
+    int getLatestVersion() {
+      return changedServiceIds.isEmpty() ? startVersion : changedServiceIds.lastKey();
+    }
+
+    RecentChanges append(int fromVersion, int toVersion, Set<String> serviceIds) {
+      if (fromVersion != getLatestVersion()) {
+        return startingAt(toVersion);
+      }
+
+      // Changes patched in together are recorded against the last of their versions
+      int oldestKept = toVersion - BaragonStateDatastore.CHANGELOG_SIZE;
+      int newStartVersion = startVersion;
+      ImmutableSortedMap.Builder<Integer, ImmutableSet<String>> builder = ImmutableSortedMap.naturalOrder();
+      for (Map.Entry<Integer, ImmutableSet<String>> entry : changedServiceIds
+        .entrySet()) {
+        if (entry.getKey() > oldestKept) {
+          builder.put(entry);
+        } else {
+          newStartVersion = entry.getKey();
+        }
+      }
+      builder.put(toVersion, ImmutableSet.copyOf(serviceIds));
+
+      return new RecentChanges(newStartVersion, builder.build());
+    }
+
+    Optional<Set<String>> getChangedServiceIds(int fromVersion, int toVersion) {
+      if (
+        fromVersion < startVersion ||
+        fromVersion > toVersion ||
+        toVersion > getLatestVersion()
+      ) {
+        return Optional.absent();
+      }
+
+      Set<String> serviceIds = new HashSet<>();
+      for (ImmutableSet<String> changed : changedServiceIds
+        .subMap(fromVersion, false, toVersion, true)
+        .values()) {
+        serviceIds.addAll(changed);
+      }
+      return Optional.of(serviceIds);
+    }
   }
 }
@@ -0,0 +1,84 @@
+package com.hubspot.baragon.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/*
+ * Immutable, decoded view of the global state at a given version, with secondary indexes
+ * so that lookups don't need to parse or scan the serialized state.
+ */
+public class BaragonStateSnapshot {
+  private final int version;
+  private final ImmutableMap<String, BaragonServiceState> servicesById;
+  private final ImmutableSetMultimap<String, String> serviceIdsByUpstream;
+  private final ImmutableListMultimap<String, BaragonServiceState> servicesByGroup;
+
+  public static BaragonStateSnapshot empty(int version) {
+    return new BaragonStateSnapshot(ImmutableList.of(), version);
+  }
+
+  public BaragonStateSnapshot(Collection<BaragonServiceState> states, int version) {
+    this.version = version;
+
+    ImmutableMap.Builder<String, BaragonServiceState> servicesById = ImmutableMap.builder();
+    ImmutableSetMultimap.Builder<String, String> serviceIdsByUpstream = ImmutableSetMultimap.builder();
+    ImmutableListMultimap.Builder<String, BaragonServiceState> servicesByGroup = ImmutableListMultimap.builder();
+
+    for (BaragonServiceState state : states) {
+      String serviceId = state.getService().getServiceId();
+      servicesById.put(serviceId, state);
+      for (UpstreamInfo upstream : state.getUpstreams()) {
+        serviceIdsByUpstream.put(upstream.getUpstream(), serviceId);
+      }
+      for (String group : state.getService().getLoadBalancerGroups()) {
+        servicesByGroup.put(group, state);
+      }
+    }
+
+    this.servicesById = servicesById.build();
+    this.serviceIdsByUpstream = serviceIdsByUpstream.build();
+    this.servicesByGroup = servicesByGroup.build();
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public ImmutableCollection<BaragonServiceState> getServices() {
+    return servicesById.values();
+  }
+
+  public ImmutableMap<String, BaragonServiceState> getServicesById() {
+    return servicesById;
+  }
+
+  public Optional<BaragonServiceState> getService(String serviceId) {
+    return Optional.fromNullable(servicesById.get(serviceId));
+  }
+
+  public Set<String> getServiceIdsForUpstream(String hostPort) {
+    return serviceIdsByUpstream.get(hostPort);
+  }
+
+  public List<BaragonServiceState> getServicesForUpstream(String hostPort) {
+    return serviceIdsByUpstream
+      .get(hostPort)
+      .stream()
+      .map(servicesById::get)
+      .collect(Collectors.toList());
+  }
+
+  public List<BaragonServiceState> getServicesForGroup(String loadBalancerGroup) {
+    return servicesByGroup.get(loadBalancerGroup);
+  }
+}
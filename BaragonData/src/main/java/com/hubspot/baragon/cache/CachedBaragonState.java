@@ -10,12 +10,18 @@ public class CachedBaragonState {
   private final byte[] uncompressed;
   private final byte[] gzip;
   private final int version;
+  private final BaragonStateSnapshot snapshot;
 
-  @SuppressFBWarnings("EI_EXPOSE_REP2")
   public CachedBaragonState(byte[] uncompressed, int version) {
+    this(uncompressed, BaragonStateSnapshot.empty(version));
+  }
+
+  @SuppressFBWarnings("EI_EXPOSE_REP2")
+  public CachedBaragonState(byte[] uncompressed, BaragonStateSnapshot snapshot) {
     this.uncompressed = uncompressed;
     this.gzip = compress(uncompressed);
-    this.version = version;
+    this.version = snapshot.getVersion();
+    this.snapshot = snapshot;
   }
 
   @SuppressFBWarnings("EI_EXPOSE_REP")
@@ -32,6 +38,10 @@ public class CachedBaragonState {
     return version;
   }
 
+  public BaragonStateSnapshot getSnapshot() {
+    return snapshot;
+  }
+
   private static byte[] compress(byte[] uncompressed) {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
@@ -0,0 +1,79 @@
+package com.hubspot.baragon.data;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.hubspot.baragon.models.AgentRequestType;
+
+/*
+ * An agent's response to a request, to be recorded along with clearing the request's
+ * pending marker for that agent
+ */
+public class AgentResponseUpdate {
+  private final String requestId;
+  private final AgentRequestType requestType;
+  private final String baseUrl;
+  private final String url;
+  private final Optional<Integer> statusCode;
+  private final Optional<String> content;
+  private final Optional<String> exception;
+
+  public AgentResponseUpdate(
+    String requestId,
+    AgentRequestType requestType,
+    String baseUrl,
+    String url,
+    Optional<Integer> statusCode,
+    Optional<String> content,
+    Optional<String> exception
+  ) {
+    this.requestId = requestId;
+    this.requestType = requestType;
+    this.baseUrl = baseUrl;
+    this.url = url;
+    this.statusCode = statusCode;
+    this.content = content;
+    this.exception = exception;
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  public AgentRequestType getRequestType() {
+    return requestType;
+  }
+
+  public String getBaseUrl() {
+    return baseUrl;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public Optional<Integer> getStatusCode() {
+    return statusCode;
+  }
+
+  public Optional<String> getContent() {
+    return content;
+  }
+
+  public Optional<String> getException() {
+    return exception;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects
+      .toStringHelper(this)
+      .add("requestId", requestId)
+      .add("requestType", requestType)
+      .add("baseUrl", baseUrl)
+      .add("url", url)
+      .add("statusCode", statusCode)
+      .add("content", content)
+      .add("exception", exception)
+      .toString();
+  }
+}
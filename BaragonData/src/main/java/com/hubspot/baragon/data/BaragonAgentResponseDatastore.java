@@ -2,27 +2,52 @@ package com.hubspot.baragon.data;
 
 import com.codahale.metrics.annotation.Timed;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.BaragonStateDatastore.BaragonDeserializer;
 import com.hubspot.baragon.models.AgentRequestId;
 import com.hubspot.baragon.models.AgentRequestType;
 import com.hubspot.baragon.models.AgentResponse;
 import com.hubspot.baragon.models.AgentResponseId;
+import com.hubspot.baragon.utils.ZkParallelFetcher;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Singleton
 public class BaragonAgentResponseDatastore extends AbstractDataStore {
-  public static final String PENDING_REQUEST_FORMAT = "/request/%s/pendingRequests/%s";
+  private static final Logger LOG = LoggerFactory.getLogger(
+    BaragonAgentResponseDatastore.class
+  );
+
+  public static final String PENDING_REQUESTS_FORMAT = "/request/%s/pendingRequests";
+  public static final String PENDING_REQUEST_FORMAT = PENDING_REQUESTS_FORMAT + "/%s";
 
   public static final String AGENT_REQUESTS_FORMAT = "/request/%s/agent";
   public static final String AGENT_RESPONSES_FORMAT = AGENT_REQUESTS_FORMAT + "/%s-%s";
@@ -30,16 +55,23 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
     AGENT_RESPONSES_FORMAT + "/%s-%s-";
   public static final String AGENT_RESPONSE_FORMAT = AGENT_RESPONSES_FORMAT + "/%s";
 
-  private final Map<String, AtomicInteger> pendingRequests;
+  private static final int MAX_COMMIT_ATTEMPTS = 3;
+
+  // The requests in flight to each agent, by base url. Releasing one is idempotent, so it
+  // is only counted once whether its response is recorded or its marker expires.
+  private final Map<String, Set<String>> pendingRequests;
+  private final ZkParallelFetcher zkFetcher;
 
   @Inject
   public BaragonAgentResponseDatastore(
     CuratorFramework curatorFramework,
     ObjectMapper objectMapper,
-    ZooKeeperConfiguration zooKeeperConfiguration
+    ZooKeeperConfiguration zooKeeperConfiguration,
+    ZkParallelFetcher zkFetcher
   ) {
     super(curatorFramework, objectMapper, zooKeeperConfiguration);
     this.pendingRequests = new ConcurrentHashMap<>();
+    this.zkFetcher = zkFetcher;
   }
 
   @Timed
@@ -77,6 +109,283 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
     return agentResponse;
   }
 
+  /*
+   * Records all of the given responses and clears their pending markers in a single
+   * transaction. If that is rejected they are written one at a time instead. If its
+   * outcome is unknown, e.g. after a connection loss, the pending markers tell whether it
+   * was applied: the transaction deletes all of them or none, so it is only committed
+   * again while they remain. Each response's request stops counting as pending on its
+   * agent exactly once, whichever path is taken.
+   */
+  @Timed
+  public void addAgentResponses(Collection<AgentResponseUpdate> updates) {
+    if (updates.isEmpty()) {
+      return;
+    }
+
+    try {
+      final Set<String> pendingRequestPaths;
+      try {
+        pendingRequestPaths = prepareAgentResponses(updates);
+      } catch (Exception e) {
+        LOG.warn(
+          "Could not prepare {} agent responses, writing them individually",
+          updates.size(),
+          e
+        );
+        addAgentResponsesIndividually(updates);
+        return;
+      }
+
+      for (int attempt = 1;; attempt++) {
+        try {
+          commitAgentResponses(updates, pendingRequestPaths);
+          return;
+        } catch (
+          KeeperException.NoNodeException | KeeperException.NodeExistsException e
+        ) {
+          // The transaction was rejected as a whole, none of it was applied
+          LOG.warn(
+            "Could not commit {} agent responses together, writing them individually",
+            updates.size(),
+            e
+          );
+          addAgentResponsesIndividually(updates);
+          return;
+        } catch (Exception e) {
+          if (pendingRequestPaths.isEmpty()) {
+            // Nothing tells whether it was applied. Writing again could record the
+            // responses twice, while a response that is missing only has its request
+            // sent again.
+            LOG.warn(
+              "Unknown outcome committing {} agent responses without pending markers",
+              updates.size(),
+              e
+            );
+            return;
+          }
+          if (isCommitted(pendingRequestPaths)) {
+            LOG.info(
+              "Commit of {} agent responses was applied despite {}",
+              updates.size(),
+              e.getMessage()
+            );
+            return;
+          }
+          if (attempt >= MAX_COMMIT_ATTEMPTS) {
+            throw e;
+          }
+          LOG.warn(
+            "Commit of {} agent responses was not applied (attempt {}), retrying",
+            updates.size(),
+            attempt,
+            e
+          );
+        }
+      }
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    } finally {
+      for (AgentResponseUpdate update : updates) {
+        releasePendingRequest(update.getRequestId(), update.getBaseUrl());
+      }
+    }
+  }
+
+  /*
+   * Whether a transaction that deleted the given pending markers was applied, once
+   * connected again. If the check itself can't be made the outcome is still unknown and
+   * this counts as not applied, so that the caller tries again.
+   */
+  private boolean isCommitted(Set<String> pendingRequestPaths) {
+    try {
+      if (!curatorFramework.getZookeeperClient().blockUntilConnectedOrTimedOut()) {
+        return false;
+      }
+      for (String pendingRequestPath : pendingRequestPaths) {
+        if (curatorFramework.checkExists().forPath(pendingRequestPath) != null) {
+          return false;
+        }
+      }
+      return true;
+    } catch (Exception e) {
+      LOG.warn("Could not check whether agent responses were committed", e);
+      return false;
+    }
+  }
+
+  private void releasePendingRequest(String requestId, String baseUrl) {
+    pendingRequests.computeIfAbsent(baseUrl, b -> ConcurrentHashMap.newKeySet()).remove(
+      requestId
+    );
+  }
+
+  @VisibleForTesting
+  protected void commitAgentResponses(
+    Collection<AgentResponseUpdate> updates,
+    Set<String> pendingRequestPaths
+  )
+    throws Exception {
+    final long start = System.currentTimeMillis();
+    final CuratorTransaction transaction = curatorFramework.inTransaction();
+    int bytes = 0;
+    for (AgentResponseUpdate update : updates) {
+      // The attempt is the node's sequence number, which isn't known until the node is
+      // created, so readers take it from the node name (see withAttempt)
+      final byte[] data = serialize(
+        new AgentResponse(
+          update.getUrl(),
+          0,
+          update.getStatusCode(),
+          update.getContent(),
+          update.getException()
+        )
+      );
+      bytes += data.length;
+      transaction
+        .create()
+        .withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+        .forPath(getCreateAgentResponsePath(update), data)
+        .and();
+    }
+    for (String pendingRequestPath : pendingRequestPaths) {
+      transaction.delete().forPath(pendingRequestPath).and();
+    }
+    ((CuratorTransactionFinal) transaction).commit();
+
+    log(
+      OperationType.WRITE,
+      Optional.of(updates.size() + pendingRequestPaths.size()),
+      Optional.of(bytes),
+      start,
+      String.format("Transaction for %s agent responses", updates.size())
+    );
+  }
+
+  private void addAgentResponsesIndividually(Collection<AgentResponseUpdate> updates) {
+    for (AgentResponseUpdate update : updates) {
+      addAgentResponse(
+        update.getRequestId(),
+        update.getRequestType(),
+        update.getBaseUrl(),
+        update.getUrl(),
+        update.getStatusCode(),
+        update.getContent(),
+        update.getException()
+      );
+      deleteNode(
+        String.format(
+          PENDING_REQUEST_FORMAT,
+          update.getRequestId(),
+          encodeUrl(update.getBaseUrl())
+        )
+      );
+    }
+  }
+
+  /*
+   * Creates any missing response parents, which can't be done as part of a transaction,
+   * and returns which of the updates' pending markers exist. All of these reads and writes
+   * are issued at once rather than one after another.
+   */
+  private Set<String> prepareAgentResponses(Collection<AgentResponseUpdate> updates)
+    throws Exception {
+    final Set<String> parentPaths = new HashSet<>();
+    final Set<String> pendingRequestPaths = new HashSet<>();
+    for (AgentResponseUpdate update : updates) {
+      parentPaths.add(
+        String.format(
+          AGENT_RESPONSES_FORMAT,
+          update.getRequestId(),
+          update.getRequestType(),
+          encodeUrl(update.getBaseUrl())
+        )
+      );
+      pendingRequestPaths.add(
+        String.format(
+          PENDING_REQUEST_FORMAT,
+          update.getRequestId(),
+          encodeUrl(update.getBaseUrl())
+        )
+      );
+    }
+
+    final CountDownLatch latch = new CountDownLatch(
+      parentPaths.size() + pendingRequestPaths.size()
+    );
+    final Set<String> existingPendingRequestPaths = ConcurrentHashMap.newKeySet();
+    final Set<KeeperException.Code> errors = ConcurrentHashMap.newKeySet();
+
+    final BackgroundCallback createCallback = (client, event) -> {
+      final KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+      if (code != KeeperException.Code.OK && code != KeeperException.Code.NODEEXISTS) {
+        errors.add(code);
+      }
+      latch.countDown();
+    };
+    final BackgroundCallback existsCallback = (client, event) -> {
+      if (event.getStat() != null) {
+        existingPendingRequestPaths.add(event.getPath());
+      }
+      latch.countDown();
+    };
+
+    for (String parentPath : parentPaths) {
+      curatorFramework
+        .create()
+        .creatingParentsIfNeeded()
+        .inBackground(createCallback)
+        .forPath(parentPath);
+    }
+    for (String pendingRequestPath : pendingRequestPaths) {
+      curatorFramework
+        .checkExists()
+        .inBackground(existsCallback)
+        .forPath(pendingRequestPath);
+    }
+
+    if (
+      !latch.await(
+        zooKeeperConfiguration.getSessionTimeoutMillis(),
+        TimeUnit.MILLISECONDS
+      )
+    ) {
+      throw new TimeoutException("Timed out preparing agent responses");
+    }
+    if (!errors.isEmpty()) {
+      throw KeeperException.create(errors.iterator().next());
+    }
+
+    return existingPendingRequestPaths;
+  }
+
+  private String getCreateAgentResponsePath(AgentResponseUpdate update) {
+    return String.format(
+      CREATE_AGENT_RESPONSE_FORMAT,
+      update.getRequestId(),
+      update.getRequestType(),
+      encodeUrl(update.getBaseUrl()),
+      update.getStatusCode().or(0),
+      update.getException().isPresent()
+    );
+  }
+
+  private static AgentResponse withAttempt(
+    AgentResponse agentResponse,
+    AgentResponseId agentResponseId
+  ) {
+    if (agentResponse.getAttempt() == agentResponseId.getAttempt()) {
+      return agentResponse;
+    }
+    return new AgentResponse(
+      agentResponse.getUrl(),
+      agentResponseId.getAttempt(),
+      agentResponse.getStatusCode(),
+      agentResponse.getContent(),
+      agentResponse.getException()
+    );
+  }
+
   @Timed
   public Collection<AgentRequestId> getAgentRequestIds(String requestId) {
     final Collection<String> nodes = getChildren(
@@ -106,24 +415,24 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
   }
 
   public int getPendingRequestsCount(String baseUrl) {
-    return pendingRequests.computeIfAbsent(baseUrl, b -> new AtomicInteger(0)).get();
+    return pendingRequests
+      .computeIfAbsent(baseUrl, b -> ConcurrentHashMap.newKeySet())
+      .size();
   }
 
   @Timed
   public void setPendingRequestStatus(String requestId, String baseUrl, boolean value) {
     if (value) {
       pendingRequests
-        .computeIfAbsent(baseUrl, b -> new AtomicInteger())
-        .getAndIncrement();
+        .computeIfAbsent(baseUrl, b -> ConcurrentHashMap.newKeySet())
+        .add(requestId);
       writeToZk(
         String.format(PENDING_REQUEST_FORMAT, requestId, encodeUrl(baseUrl)),
         System.currentTimeMillis()
       );
     } else {
       deleteNode(String.format(PENDING_REQUEST_FORMAT, requestId, encodeUrl(baseUrl)));
-      pendingRequests
-        .computeIfAbsent(baseUrl, b -> new AtomicInteger())
-        .getAndDecrement();
+      releasePendingRequest(requestId, baseUrl);
     }
   }
 
@@ -156,6 +465,164 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
     return Optional.of(AgentResponseId.fromString(agentResponseIds.get(0)));
   }
 
+  /*
+   * Reads the pending request markers and the latest response from every agent for all of
+   * the given requests. The reads for all requests are pipelined, so this takes a fixed
+   * number of round trips rather than a few per agent per request.
+   */
+  @Timed
+  public Map<String, RequestAgentResponses> getRequestAgentResponses(
+    Collection<String> requestIds
+  ) {
+    if (requestIds.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    final long start = System.currentTimeMillis();
+
+    try {
+      final Collection<String> parentPaths = new ArrayList<>(requestIds.size() * 2);
+      for (String requestId : requestIds) {
+        parentPaths.add(String.format(PENDING_REQUESTS_FORMAT, requestId));
+        parentPaths.add(String.format(AGENT_REQUESTS_FORMAT, requestId));
+      }
+      final Map<String, Collection<String>> parentChildren = zkFetcher.fetchChildrenByPathInParallel(
+        parentPaths
+      );
+
+      final Collection<String> pendingRequestPaths = new ArrayList<>();
+      final Collection<String> agentRequestPaths = new ArrayList<>();
+      for (String requestId : requestIds) {
+        addChildPaths(
+          String.format(PENDING_REQUESTS_FORMAT, requestId),
+          parentChildren,
+          pendingRequestPaths
+        );
+        addChildPaths(
+          String.format(AGENT_REQUESTS_FORMAT, requestId),
+          parentChildren,
+          agentRequestPaths
+        );
+      }
+
+      final Map<String, Long> pendingRequestTimes = zkFetcher.fetchDataByPathInParallel(
+        pendingRequestPaths,
+        new BaragonDeserializer<>(objectMapper, Long.class)
+      );
+      final Map<String, Collection<String>> agentResponseIds = zkFetcher.fetchChildrenByPathInParallel(
+        agentRequestPaths
+      );
+
+      final Map<String, String> lastResponsePaths = new HashMap<>();
+      for (Map.Entry<String, Collection<String>> entry : agentResponseIds.entrySet()) {
+        if (!entry.getValue().isEmpty()) {
+          lastResponsePaths.put(
+            entry.getKey(),
+            ZKPaths.makePath(
+              entry.getKey(),
+              Collections.max(entry.getValue(), SEQUENCE_NODE_COMPARATOR_LOW_TO_HIGH)
+            )
+          );
+        }
+      }
+      final Map<String, AgentResponse> lastResponses = zkFetcher.fetchDataByPathInParallel(
+        lastResponsePaths.values(),
+        new BaragonDeserializer<>(objectMapper, AgentResponse.class)
+      );
+
+      final Map<String, RequestAgentResponses> results = new HashMap<>(
+        requestIds.size()
+      );
+      for (String requestId : requestIds) {
+        final ImmutableMap.Builder<String, Long> pending = ImmutableMap.builder();
+        final String pendingRequestsPath = String.format(
+          PENDING_REQUESTS_FORMAT,
+          requestId
+        );
+        for (String node : parentChildren.getOrDefault(
+          pendingRequestsPath,
+          Collections.emptyList()
+        )) {
+          final Long pendingSince = pendingRequestTimes.get(
+            ZKPaths.makePath(pendingRequestsPath, node)
+          );
+          if (pendingSince != null) {
+            pending.put(decodeUrl(node), pendingSince);
+          }
+        }
+
+        final ImmutableTable.Builder<AgentRequestType, String, AgentResponseId> responseIds = ImmutableTable.builder();
+        final ImmutableTable.Builder<AgentRequestType, String, AgentResponse> responses = ImmutableTable.builder();
+        final String agentRequestsPath = String.format(AGENT_REQUESTS_FORMAT, requestId);
+        for (String node : parentChildren.getOrDefault(
+          agentRequestsPath,
+          Collections.emptyList()
+        )) {
+          final String agentRequestPath = ZKPaths.makePath(agentRequestsPath, node);
+          final String lastResponsePath = lastResponsePaths.get(agentRequestPath);
+          if (lastResponsePath == null) {
+            continue;
+          }
+
+          final AgentRequestId agentRequestId = AgentRequestId.fromString(node);
+          final AgentResponseId lastResponseId = AgentResponseId.fromString(
+            ZKPaths.getNodeFromPath(lastResponsePath)
+          );
+          responseIds.put(
+            agentRequestId.getType(),
+            agentRequestId.getBaseUrl(),
+            lastResponseId
+          );
+          final AgentResponse lastResponse = lastResponses.get(lastResponsePath);
+          if (lastResponse != null) {
+            responses.put(
+              agentRequestId.getType(),
+              agentRequestId.getBaseUrl(),
+              withAttempt(lastResponse, lastResponseId)
+            );
+          }
+        }
+
+        results.put(
+          requestId,
+          new RequestAgentResponses(
+            requestId,
+            pending.build(),
+            responseIds.build(),
+            responses.build()
+          )
+        );
+      }
+
+      log(
+        OperationType.READ,
+        Optional.of(
+          parentPaths.size() +
+          pendingRequestPaths.size() +
+          agentRequestPaths.size() +
+          lastResponsePaths.size()
+        ),
+        Optional.<Integer>absent(),
+        start,
+        String.format("Agent responses for %s requests", requestIds.size())
+      );
+
+      return results;
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private static void addChildPaths(
+    String parentPath,
+    Map<String, Collection<String>> children,
+    Collection<String> childPaths
+  ) {
+    for (String child : children.getOrDefault(parentPath, Collections.emptyList())) {
+      childPaths.add(ZKPaths.makePath(parentPath, child));
+    }
+  }
+
   @Timed
   public Map<String, Collection<AgentResponse>> getLastResponses(String requestId) {
     final Map<String, Collection<AgentResponse>> responses = Maps.newHashMap();
@@ -194,7 +661,7 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
     AgentResponseId agentResponseId,
     String baseUrl
   ) {
-    return readFromZk(
+    final Optional<AgentResponse> maybeAgentResponse = readFromZk(
       String.format(
         AGENT_RESPONSE_FORMAT,
         requestId,
@@ -204,6 +671,9 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
       ),
       AgentResponse.class
     );
+    return maybeAgentResponse.transform(
+      agentResponse -> withAttempt(agentResponse, agentResponseId)
+    );
   }
 
   @Timed
@@ -212,7 +682,7 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
     AgentRequestId agentRequestId,
     AgentResponseId agentResponseId
   ) {
-    return readFromZk(
+    final Optional<AgentResponse> maybeAgentResponse = readFromZk(
       String.format(
         AGENT_RESPONSE_FORMAT,
         requestId,
@@ -222,5 +692,8 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
       ),
       AgentResponse.class
     );
+    return maybeAgentResponse.transform(
+      agentResponse -> withAttempt(agentResponse, agentResponseId)
+    );
   }
 }
@@ -2,22 +2,45 @@ package com.hubspot.baragon.data;
 
 import com.codahale.metrics.annotation.Timed;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.hubspot.baragon.config.ZooKeeperConfiguration;
 import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.CoalescedRequests;
 import com.hubspot.baragon.models.InternalRequestStates;
 import com.hubspot.baragon.models.QueuedRequestId;
+import com.hubspot.baragon.models.QueuedRequestWithState;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
 import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache.StartMode;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheSelector;
 import org.apache.curator.utils.ZKPaths;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.apache.zookeeper.KeeperException.NodeExistsException;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
@@ -33,11 +56,37 @@ public class BaragonRequestDatastore extends AbstractDataStore {
   public static final String REQUEST_FORMAT = REQUESTS_FORMAT + "/%s";
   public static final String REQUEST_STATE_FORMAT = REQUEST_FORMAT + "/status";
   public static final String REQUEST_MESSAGE_FORMAT = REQUEST_FORMAT + "/message";
+  public static final String REQUEST_COALESCED_FORMAT = REQUEST_FORMAT + "/coalesced";
 
   public static final String REQUEST_QUEUE_FORMAT = "/queue";
   public static final String REQUEST_ENQUEUE_FORMAT = REQUEST_QUEUE_FORMAT + "/%s|%s|";
   public static final String REQUEST_QUEUE_ITEM_FORMAT = REQUEST_QUEUE_FORMAT + "/%s";
 
+  public static final String REQUEST_QUEUE_SHARDS_FORMAT = "/queue-shards";
+  public static final String REQUEST_QUEUE_SHARD_FORMAT =
+    REQUEST_QUEUE_SHARDS_FORMAT + "/%04d";
+  public static final String REQUEST_SHARD_ENQUEUE_FORMAT =
+    REQUEST_QUEUE_SHARD_FORMAT + "/%s|%s|";
+  public static final String REQUEST_QUEUE_SHARD_ITEM_FORMAT =
+    REQUEST_QUEUE_SHARD_FORMAT + "/%s";
+  public static final String REQUEST_QUEUE_SHARD_LEASE_FORMAT =
+    "/queue-shard-leases/%04d";
+
+  // /request/{id}/status is the deepest node the queue view needs
+  private static final int REQUEST_CACHE_MAX_DEPTH = 2;
+  private static final String REQUEST_STATE_NODE = "status";
+
+  private final List<Runnable> queueListeners;
+  private final Set<String> locallyRemovedQueueNodes;
+  private final Map<String, VersionedValue> decodedNodes;
+  private final Map<String, VersionedValue> localWrites;
+
+  private volatile PathChildrenCache queueCache = null;
+  private volatile TreeCache requestCache = null;
+  private volatile CountDownLatch requestCacheInitialized = new CountDownLatch(1);
+  // Set while requests may be queued in a shard other than their own
+  private volatile boolean adoptingMisplacedRequests = false;
+
   @Inject
   public BaragonRequestDatastore(
     CuratorFramework curatorFramework,
@@ -45,6 +94,10 @@ public class BaragonRequestDatastore extends AbstractDataStore {
     ZooKeeperConfiguration zooKeeperConfiguration
   ) {
     super(curatorFramework, objectMapper, zooKeeperConfiguration);
+    this.queueListeners = new CopyOnWriteArrayList<>();
+    this.locallyRemovedQueueNodes = ConcurrentHashMap.newKeySet();
+    this.decodedNodes = new ConcurrentHashMap<>();
+    this.localWrites = new ConcurrentHashMap<>();
   }
 
   //
@@ -61,6 +114,7 @@ public class BaragonRequestDatastore extends AbstractDataStore {
 
     if (maybeRequest.isPresent()) {
       deleteNode(String.format(REQUEST_FORMAT, requestId), true);
+      forgetLocalWrites(String.format(REQUEST_FORMAT, requestId));
     }
 
     return maybeRequest;
@@ -81,7 +135,9 @@ public class BaragonRequestDatastore extends AbstractDataStore {
       request.getLoadBalancerRequestId()
     );
 
+    final long baseVersion = getQueueViewVersion(requestPath);
     writeToZk(requestPath, request);
+    recordLocalWrite(requestPath, baseVersion, request);
 
     return maybeRequest.get();
   }
@@ -113,7 +169,10 @@ public class BaragonRequestDatastore extends AbstractDataStore {
 
   @Timed
   public void setRequestState(String requestId, InternalRequestStates state) {
-    writeToZk(String.format(REQUEST_STATE_FORMAT, requestId), state);
+    final String statePath = String.format(REQUEST_STATE_FORMAT, requestId);
+    final long baseVersion = getQueueViewVersion(statePath);
+    writeToZk(statePath, state);
+    recordLocalWrite(statePath, baseVersion, state);
   }
 
   // REQUEST MESSAGE
@@ -127,6 +186,113 @@ public class BaragonRequestDatastore extends AbstractDataStore {
     writeToZk(String.format(REQUEST_MESSAGE_FORMAT, requestId), message);
   }
 
+  //
+  // REQUEST COALESCING
+  //
+  @Timed
+  public Optional<CoalescedRequests> getCoalescedRequests(String requestId) {
+    return readFromZk(
+      String.format(REQUEST_COALESCED_FORMAT, requestId),
+      CoalescedRequests.class
+    );
+  }
+
+  /*
+   * Replaces a queued request with the combined change of it and the requests coalesced
+   * into it, and takes those requests off the queue, in a single transaction. A request
+   * coalesced into again on a later run keeps the request as it was first enqueued, and
+   * adds the new requests to those already coalesced into it.
+   */
+  @Timed
+  public void coalesceRequests(
+    BaragonRequest request,
+    CoalescedRequests coalescedRequests,
+    Collection<QueuedRequestId> coalescedQueuedRequestIds
+  )
+    throws Exception {
+    final long start = System.currentTimeMillis();
+
+    final String requestPath = String.format(
+      REQUEST_FORMAT,
+      request.getLoadBalancerRequestId()
+    );
+    final String coalescedPath = String.format(
+      REQUEST_COALESCED_FORMAT,
+      request.getLoadBalancerRequestId()
+    );
+    final byte[] requestBytes = serialize(request);
+
+    final Stat coalescedStat = new Stat();
+    Optional<CoalescedRequests> maybeExisting;
+    try {
+      maybeExisting =
+        Optional.of(
+          deserialize(
+            curatorFramework
+              .getData()
+              .storingStatIn(coalescedStat)
+              .forPath(coalescedPath),
+            CoalescedRequests.class,
+            coalescedPath
+          )
+        );
+    } catch (NoNodeException nne) {
+      maybeExisting = Optional.absent();
+    }
+
+    CuratorTransactionFinal transaction = curatorFramework
+      .inTransaction()
+      .setData()
+      .forPath(requestPath, requestBytes)
+      .and();
+    final byte[] coalescedBytes;
+    if (maybeExisting.isPresent()) {
+      final List<String> requestIds = new ArrayList<>(
+        maybeExisting.get().getRequestIds()
+      );
+      requestIds.addAll(coalescedRequests.getRequestIds());
+      coalescedBytes =
+        serialize(
+          new CoalescedRequests(maybeExisting.get().getOriginalRequest(), requestIds)
+        );
+      transaction =
+        transaction
+          .setData()
+          .withVersion(coalescedStat.getVersion())
+          .forPath(coalescedPath, coalescedBytes)
+          .and();
+    } else {
+      coalescedBytes = serialize(coalescedRequests);
+      transaction = transaction.create().forPath(coalescedPath, coalescedBytes).and();
+    }
+    for (QueuedRequestId queuedRequestId : coalescedQueuedRequestIds) {
+      transaction =
+        transaction.delete().forPath(getQueuedRequestPath(queuedRequestId)).and();
+    }
+
+    final long baseVersion = getQueueViewVersion(requestPath);
+    transaction.commit();
+    recordLocalWrite(requestPath, baseVersion, request);
+    if (queueCache != null) {
+      for (QueuedRequestId queuedRequestId : coalescedQueuedRequestIds) {
+        locallyRemovedQueueNodes.add(queuedRequestId.buildZkPath());
+      }
+    }
+
+    log(
+      OperationType.WRITE,
+      Optional.of(2 + coalescedQueuedRequestIds.size()),
+      Optional.of(requestBytes.length + coalescedBytes.length),
+      start,
+      String.format(
+        "Transaction Paths [%s + %s + %d queued requests]",
+        requestPath,
+        coalescedPath,
+        coalescedQueuedRequestIds.size()
+      )
+    );
+  }
+
   //
   // REQUEST QUEUING
   //
@@ -138,11 +304,22 @@ public class BaragonRequestDatastore extends AbstractDataStore {
     throws NodeExistsException {
     final long start = System.currentTimeMillis();
 
-    final String queuedRequestPath = String.format(
-      REQUEST_ENQUEUE_FORMAT,
-      request.getLoadBalancerService().getServiceId(),
-      request.getLoadBalancerRequestId()
-    );
+    final String serviceId = request.getLoadBalancerService().getServiceId();
+    final String queuePath = isQueueSharded()
+      ? String.format(REQUEST_QUEUE_SHARD_FORMAT, getQueueShard(serviceId))
+      : REQUEST_QUEUE_FORMAT;
+    final String queuedRequestPath = isQueueSharded()
+      ? String.format(
+        REQUEST_SHARD_ENQUEUE_FORMAT,
+        getQueueShard(serviceId),
+        serviceId,
+        request.getLoadBalancerRequestId()
+      )
+      : String.format(
+        REQUEST_ENQUEUE_FORMAT,
+        serviceId,
+        request.getLoadBalancerRequestId()
+      );
     final String requestPath = String.format(
       REQUEST_FORMAT,
       request.getLoadBalancerRequestId()
@@ -156,8 +333,8 @@ public class BaragonRequestDatastore extends AbstractDataStore {
       if (!nodeExists(REQUESTS_FORMAT)) {
         createNode(REQUESTS_FORMAT);
       }
-      if (!nodeExists(REQUEST_QUEUE_FORMAT)) {
-        createNode(REQUEST_QUEUE_FORMAT);
+      if (!nodeExists(queuePath)) {
+        createNode(queuePath);
       }
 
       byte[] requestBytes = objectMapper.writeValueAsBytes(request);
@@ -201,7 +378,8 @@ public class BaragonRequestDatastore extends AbstractDataStore {
               )
             )
             .getResultPath()
-        )
+        ),
+        Optional.of(queuePath)
       );
     } catch (NodeExistsException nee) {
       throw nee;
@@ -210,9 +388,118 @@ public class BaragonRequestDatastore extends AbstractDataStore {
     }
   }
 
+  public boolean isQueueSharded() {
+    return zooKeeperConfiguration.getQueueShardCount() > 0;
+  }
+
+  public int getQueueShard(String serviceId) {
+    return Math.floorMod(
+      serviceId.hashCode(),
+      zooKeeperConfiguration.getQueueShardCount()
+    );
+  }
+
+  public InterProcessSemaphoreMutex createQueueShardLease(int shard) {
+    return new InterProcessSemaphoreMutex(
+      curatorFramework,
+      String.format(REQUEST_QUEUE_SHARD_LEASE_FORMAT, shard)
+    );
+  }
+
+  public PathChildrenCache createQueueShardCache(int shard) {
+    return new PathChildrenCache(
+      curatorFramework,
+      String.format(REQUEST_QUEUE_SHARD_FORMAT, shard),
+      false
+    );
+  }
+
   @Timed
   public List<QueuedRequestId> getQueuedRequestIds() {
-    final List<String> nodes = getChildren(REQUEST_QUEUE_FORMAT);
+    final List<QueuedRequestId> queuedRequestIds = new ArrayList<>();
+    for (String queuePath : getQueuePaths()) {
+      queuedRequestIds.addAll(readQueuedRequestIds(queuePath));
+    }
+    return queuedRequestIds;
+  }
+
+  /*
+   * Returns the requests queued in the given shards, in queue order. Requests queued
+   * before the queue was sharded, or in another shard before a change of the shard
+   * count, come before any queued since for the same service.
+   */
+  @Timed
+  public List<QueuedRequestId> getQueuedRequestIds(Set<Integer> shards) {
+    final List<QueuedRequestId> queuedRequestIds = new ArrayList<>();
+    final List<String> shardPaths = new ArrayList<>();
+    for (int shard : new TreeSet<>(shards)) {
+      shardPaths.add(String.format(REQUEST_QUEUE_SHARD_FORMAT, shard));
+    }
+
+    final List<String> otherQueuePaths = adoptingMisplacedRequests
+      ? getQueuePaths()
+      : Collections.singletonList(REQUEST_QUEUE_FORMAT);
+    boolean misplacedFound = false;
+    for (String queuePath : otherQueuePaths) {
+      if (shardPaths.contains(queuePath)) {
+        continue;
+      }
+      for (QueuedRequestId queuedRequestId : readQueuedRequestIds(queuePath)) {
+        final int shard = getQueueShard(queuedRequestId.getServiceId());
+        if (queuePath.equals(String.format(REQUEST_QUEUE_SHARD_FORMAT, shard))) {
+          continue;
+        }
+        misplacedFound |= !queuePath.equals(REQUEST_QUEUE_FORMAT);
+        if (shards.contains(shard)) {
+          queuedRequestIds.add(queuedRequestId);
+        }
+      }
+    }
+
+    for (String shardPath : shardPaths) {
+      for (QueuedRequestId queuedRequestId : readQueuedRequestIds(shardPath)) {
+        // Misplaced ones are adopted by the owner of their service's shard
+        if (
+          shardPath.equals(
+            String.format(
+              REQUEST_QUEUE_SHARD_FORMAT,
+              getQueueShard(queuedRequestId.getServiceId())
+            )
+          )
+        ) {
+          queuedRequestIds.add(queuedRequestId);
+        } else {
+          misplacedFound = true;
+        }
+      }
+    }
+
+    if (misplacedFound != adoptingMisplacedRequests) {
+      LOG.info(
+        misplacedFound
+          ? "Found requests queued in a shard other than their own, adopting them"
+          : "No requests are queued in a shard other than their own anymore"
+      );
+      adoptingMisplacedRequests = misplacedFound;
+    }
+    return queuedRequestIds;
+  }
+
+  // The unsharded queue, then every shard there is, whatever the configured shard count
+  private List<String> getQueuePaths() {
+    final List<String> shards = new ArrayList<>(getChildren(REQUEST_QUEUE_SHARDS_FORMAT));
+    Collections.sort(shards);
+
+    final List<String> queuePaths = new ArrayList<>(shards.size() + 1);
+    queuePaths.add(REQUEST_QUEUE_FORMAT);
+    for (String shard : shards) {
+      queuePaths.add(ZKPaths.makePath(REQUEST_QUEUE_SHARDS_FORMAT, shard));
+    }
+    return queuePaths;
+  }
+
+  private List<QueuedRequestId> readQueuedRequestIds(String queuePath) {
+    final List<String> nodes = new ArrayList<>(getChildren(queuePath));
 
     Collections.sort(nodes, SEQUENCE_NODE_COMPARATOR_LOW_TO_HIGH);
 
@@ -221,25 +508,62 @@ public class BaragonRequestDatastore extends AbstractDataStore {
     );
 
     for (String node : nodes) {
-      queuedRequestIds.add(QueuedRequestId.fromString(node));
+      queuedRequestIds.add(QueuedRequestId.fromString(node, Optional.of(queuePath)));
     }
 
     return queuedRequestIds;
   }
 
+  /*
+   * Paths of the requests queued in a shard other than the one their service is in at
+   * the configured shard count, which are left behind by a change of the shard count
+   */
+  public List<String> getMisplacedQueuedRequests() {
+    final List<String> misplaced = new ArrayList<>();
+    for (String shard : getChildren(REQUEST_QUEUE_SHARDS_FORMAT)) {
+      final String queuePath = ZKPaths.makePath(REQUEST_QUEUE_SHARDS_FORMAT, shard);
+      for (QueuedRequestId queuedRequestId : readQueuedRequestIds(queuePath)) {
+        if (
+          !isQueueSharded() ||
+          !queuePath.equals(
+            String.format(
+              REQUEST_QUEUE_SHARD_FORMAT,
+              getQueueShard(queuedRequestId.getServiceId())
+            )
+          )
+        ) {
+          misplaced.add(ZKPaths.makePath(queuePath, queuedRequestId.buildZkPath()));
+        }
+      }
+    }
+    return misplaced;
+  }
+
+  /*
+   * Has getQueuedRequestIds read the requests queued in a shard other than their own
+   * along with those of their service's shard, until none are left. Returns their paths.
+   */
+  public List<String> adoptMisplacedQueuedRequests() {
+    final List<String> misplaced = getMisplacedQueuedRequests();
+    adoptingMisplacedRequests = !misplaced.isEmpty();
+    return misplaced;
+  }
+
   public long getOldestQueuedRequestAge() {
     long now = System.currentTimeMillis();
     long oldest = now;
-    for (String child : getChildren(REQUEST_QUEUE_FORMAT)) {
-      try {
-        Stat stat = curatorFramework
-          .checkExists()
-          .forPath(ZKPaths.makePath(REQUEST_QUEUE_FORMAT, child));
-        if (stat != null && stat.getMtime() < oldest) {
-          oldest = stat.getMtime();
+    for (String queuePath : getQueuePaths()) {
+      for (String child : getChildren(queuePath)) {
+        try {
+          Stat stat = curatorFramework
+            .checkExists()
+            .forPath(ZKPaths.makePath(queuePath, child));
+          if (stat != null && stat.getMtime() < oldest) {
+            oldest = stat.getMtime();
+          }
+        } catch (Exception e) {
+          LOG.warn("Could not check exists for queued request id {}", child);
         }
-      } catch (Exception e) {
-        LOG.warn("Could not check exists for queued request id {}", child);
       }
     }
     return now - oldest;
@@ -247,11 +571,404 @@ public class BaragonRequestDatastore extends AbstractDataStore {
 
   @Timed
   public int getQueuedRequestCount() {
-    return getChildren(REQUEST_QUEUE_FORMAT).size();
+    int count = 0;
+    for (String queuePath : getQueuePaths()) {
+      count += getChildren(queuePath).size();
+    }
+    return count;
+  }
+
+  /*
+   * The queue an id was read from, otherwise whichever queue holds it. The shard can't
+   * be worked out from the service id, since the shard count may have changed since the
+   * request was queued.
+   */
+  private String getQueuedRequestPath(QueuedRequestId queuedRequestId) {
+    if (queuedRequestId.getQueuePath().isPresent()) {
+      return ZKPaths.makePath(
+        queuedRequestId.getQueuePath().get(),
+        queuedRequestId.buildZkPath()
+      );
+    }
+    for (String queuePath : getQueuePaths()) {
+      final String itemPath = ZKPaths.makePath(queuePath, queuedRequestId.buildZkPath());
+      if (nodeExists(itemPath)) {
+        return itemPath;
+      }
+    }
+    return String.format(REQUEST_QUEUE_ITEM_FORMAT, queuedRequestId.buildZkPath());
   }
 
   @Timed
   public void removeQueuedRequest(QueuedRequestId queuedRequestId) {
-    deleteNode(String.format(REQUEST_QUEUE_ITEM_FORMAT, queuedRequestId.buildZkPath()));
+    deleteNode(getQueuedRequestPath(queuedRequestId));
+    if (queueCache != null) {
+      locallyRemovedQueueNodes.add(queuedRequestId.buildZkPath());
+    }
+  }
+
+  /*
+   * Returns all queued requests along with their current state, in queue order. When the
+   * queue view is started and initialized, only nodes whose version changed since the
+   * last call are read from zk again. Otherwise every request is read from zk.
+   */
+  @Timed
+  public List<QueuedRequestWithState> getQueuedRequestsWithState() {
+    final PathChildrenCache currentQueueCache = queueCache;
+    final TreeCache currentRequestCache = requestCache;
+    final boolean useQueueView =
+      currentQueueCache != null &&
+      currentRequestCache != null &&
+      isQueueViewInitialized();
+    final List<QueuedRequestId> queuedRequestIds = useQueueView
+      ? getQueuedRequestIdsFromQueueView(currentQueueCache)
+      : getQueuedRequestIds();
+    return withState(queuedRequestIds, useQueueView ? currentRequestCache : null);
+  }
+
+  /*
+   * Same as getQueuedRequestsWithState, but only for the requests in the given queue
+   * shards, always read from zk
+   */
+  @Timed
+  public List<QueuedRequestWithState> getQueuedRequestsWithState(Set<Integer> shards) {
+    return withState(getQueuedRequestIds(shards), null);
+  }
+
+  private List<QueuedRequestWithState> withState(
+    List<QueuedRequestId> queuedRequestIds,
+    TreeCache currentRequestCache
+  ) {
+    final boolean useQueueView = currentRequestCache != null;
+    final List<QueuedRequestWithState> queuedRequests = new ArrayList<>(
+      queuedRequestIds.size()
+    );
+
+    for (QueuedRequestId queuedRequestId : queuedRequestIds) {
+      final String requestId = queuedRequestId.getRequestId();
+      final Optional<InternalRequestStates> maybeState = useQueueView
+        ? readFromQueueView(
+          currentRequestCache,
+          String.format(REQUEST_STATE_FORMAT, requestId),
+          InternalRequestStates.class
+        )
+        : getRequestState(requestId);
+
+      if (!maybeState.isPresent()) {
+        logMissingRequestData(
+          useQueueView,
+          "{} does not have a request status!",
+          requestId
+        );
+        continue;
+      }
+
+      final Optional<BaragonRequest> maybeRequest = useQueueView
+        ? readFromQueueView(
+          currentRequestCache,
+          String.format(REQUEST_FORMAT, requestId),
+          BaragonRequest.class
+        )
+        : getRequest(requestId);
+
+      if (!maybeRequest.isPresent()) {
+        logMissingRequestData(
+          useQueueView,
+          "{} does not have a request object!",
+          requestId
+        );
+        continue;
+      }
+
+      queuedRequests.add(
+        new QueuedRequestWithState(queuedRequestId, maybeRequest.get(), maybeState.get())
+      );
+    }
+
+    return queuedRequests;
+  }
+
+  private void logMissingRequestData(
+    boolean fromQueueView,
+    String message,
+    String requestId
+  ) {
+    // The queue and request caches are updated independently, so a queue entry can
+    // briefly show up before its request data does. The next queue event picks it up.
+    if (fromQueueView) {
+      LOG.debug(message, requestId);
+    } else {
+      LOG.warn(message, requestId);
+    }
+  }
+
+  //
+  // QUEUE VIEW
+  //
+  public void addQueueListener(Runnable listener) {
+    queueListeners.add(listener);
+  }
+
+  public boolean isQueueViewStarted() {
+    return queueCache != null && requestCache != null;
+  }
+
+  // Until the request cache has seen every node, requests missing from it may just not
+  // have been loaded yet
+  @VisibleForTesting
+  boolean isQueueViewInitialized() {
+    return requestCacheInitialized.getCount() == 0;
+  }
+
+  public synchronized void startQueueView() throws Exception {
+    if (isQueueViewStarted()) {
+      return;
+    }
+
+    if (!nodeExists(REQUESTS_FORMAT)) {
+      createNode(REQUESTS_FORMAT);
+    }
+    if (!nodeExists(REQUEST_QUEUE_FORMAT)) {
+      createNode(REQUEST_QUEUE_FORMAT);
+    }
+
+    // Only the stats of the request and status nodes are kept, their data is read from zk
+    // when their version changes so that request bodies aren't held in memory twice
+    final CountDownLatch newRequestCacheInitialized = new CountDownLatch(1);
+    final TreeCache newRequestCache = TreeCache
+      .newBuilder(curatorFramework, REQUESTS_FORMAT)
+      .setCacheData(false)
+      .setMaxDepth(REQUEST_CACHE_MAX_DEPTH)
+      .setSelector(new RequestStateSelector())
+      .build();
+    newRequestCache
+      .getListenable()
+      .addListener(
+        (client, event) -> {
+          if (event.getType() == TreeCacheEvent.Type.INITIALIZED) {
+            newRequestCacheInitialized.countDown();
+          }
+          handleRequestEvent(event);
+        }
+      );
+    requestCacheInitialized = newRequestCacheInitialized;
+    newRequestCache.start();
+
+    if (
+      !newRequestCacheInitialized.await(
+        zooKeeperConfiguration.getSessionTimeoutMillis(),
+        TimeUnit.MILLISECONDS
+      )
+    ) {
+      LOG.warn(
+        "Request cache was not initialized after {}ms, reading requests from zk for now",
+        zooKeeperConfiguration.getSessionTimeoutMillis()
+      );
+    }
+
+    final PathChildrenCache newQueueCache = new PathChildrenCache(
+      curatorFramework,
+      REQUEST_QUEUE_FORMAT,
+      false
+    );
+    newQueueCache.getListenable().addListener((client, event) -> handleQueueEvent(event));
+    newQueueCache.start(StartMode.BUILD_INITIAL_CACHE);
+
+    requestCache = newRequestCache;
+    queueCache = newQueueCache;
+    LOG.info("Started queue view");
+  }
+
+  public synchronized void stopQueueView() {
+    final PathChildrenCache oldQueueCache = queueCache;
+    final TreeCache oldRequestCache = requestCache;
+    queueCache = null;
+    requestCache = null;
+
+    try {
+      Closeables.close(oldQueueCache, true);
+    } catch (Exception e) {
+      LOG.warn("Could not close queue cache", e);
+    }
+    if (oldRequestCache != null) {
+      oldRequestCache.close();
+    }
+
+    locallyRemovedQueueNodes.clear();
+    decodedNodes.clear();
+    localWrites.clear();
+  }
+
+  private void handleQueueEvent(PathChildrenCacheEvent event) {
+    switch (event.getType()) {
+      case CHILD_REMOVED:
+        locallyRemovedQueueNodes.remove(
+          ZKPaths.getNodeFromPath(event.getData().getPath())
+        );
+        notifyQueueListeners();
+        break;
+      case CHILD_ADDED:
+      case CHILD_UPDATED:
+      case CONNECTION_RECONNECTED:
+      case INITIALIZED:
+        notifyQueueListeners();
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void handleRequestEvent(TreeCacheEvent event) {
+    switch (event.getType()) {
+      case NODE_REMOVED:
+        decodedNodes.remove(event.getData().getPath());
+        localWrites.remove(event.getData().getPath());
+        break;
+      case NODE_UPDATED:
+        // Another instance (e.g. handling a cancel) may have moved the request along
+        if (
+          ZKPaths.getNodeFromPath(event.getData().getPath()).equals(REQUEST_STATE_NODE)
+        ) {
+          notifyQueueListeners();
+        }
+        break;
+      case CONNECTION_RECONNECTED:
+        notifyQueueListeners();
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void notifyQueueListeners() {
+    for (Runnable listener : queueListeners) {
+      try {
+        listener.run();
+      } catch (Exception e) {
+        LOG.warn("Queue listener threw exception", e);
+      }
+    }
+  }
+
+  private List<QueuedRequestId> getQueuedRequestIdsFromQueueView(
+    PathChildrenCache currentQueueCache
+  ) {
+    final List<ChildData> children = currentQueueCache.getCurrentData();
+    final List<String> nodes = Lists.newArrayListWithCapacity(children.size());
+
+    for (ChildData child : children) {
+      nodes.add(ZKPaths.getNodeFromPath(child.getPath()));
+    }
+
+    // Anything the cache no longer knows about has had its removal event delivered
+    locallyRemovedQueueNodes.retainAll(nodes);
+    nodes.removeAll(locallyRemovedQueueNodes);
+
+    Collections.sort(nodes, SEQUENCE_NODE_COMPARATOR_LOW_TO_HIGH);
+
+    final List<QueuedRequestId> queuedRequestIds = Lists.newArrayListWithCapacity(
+      nodes.size()
+    );
+
+    for (String node : nodes) {
+      queuedRequestIds.add(
+        QueuedRequestId.fromString(node, Optional.of(REQUEST_QUEUE_FORMAT))
+      );
+    }
+
+    return queuedRequestIds;
+  }
+
+  private <T> Optional<T> readFromQueueView(
+    TreeCache currentRequestCache,
+    String path,
+    Class<T> klass
+  ) {
+    final ChildData data = currentRequestCache.getCurrentData(path);
+    final long cachedVersion = data == null ? -1 : data.getStat().getMzxid();
+
+    // A write from this instance is authoritative until the cache has caught up to it
+    final VersionedValue localWrite = localWrites.get(path);
+    if (localWrite != null) {
+      if (localWrite.version == cachedVersion) {
+        return Optional.of(klass.cast(localWrite.value));
+      }
+      localWrites.remove(path, localWrite);
+    }
+
+    if (data == null) {
+      return Optional.absent();
+    }
+
+    // Decoded once per version: only re-read from zk once the cache has a newer version
+    // than the one decoded, which may itself be newer than the cache when read from zk
+    final VersionedValue decoded = decodedNodes.get(path);
+    if (decoded != null && decoded.version >= cachedVersion) {
+      return Optional.fromNullable(klass.cast(decoded.value));
+    }
+
+    final Stat stat = new Stat();
+    final byte[] bytes;
+    try {
+      bytes = curatorFramework.getData().storingStatIn(stat).forPath(path);
+    } catch (NoNodeException nne) {
+      return Optional.absent();
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+
+    final Object value = bytes == null || bytes.length == 0
+      ? null
+      : deserialize(bytes, klass, path);
+    decodedNodes.put(path, new VersionedValue(stat.getMzxid(), value));
+    return Optional.fromNullable(klass.cast(value));
+  }
+
+  private long getQueueViewVersion(String path) {
+    final TreeCache currentRequestCache = requestCache;
+    if (currentRequestCache == null) {
+      return -1;
+    }
+    final ChildData data = currentRequestCache.getCurrentData(path);
+    return data == null ? -1 : data.getStat().getMzxid();
+  }
+
+  private void recordLocalWrite(String path, long baseVersion, Object value) {
+    if (requestCache != null) {
+      localWrites.put(path, new VersionedValue(baseVersion, value));
+    }
+  }
+
+  private void forgetLocalWrites(String requestPath) {
+    localWrites
+      .keySet()
+      .removeIf(path -> path.equals(requestPath) || path.startsWith(requestPath + "/"));
+  }
+
+  // Keeps the request nodes and their status, but none of the other request children
+  private static class RequestStateSelector implements TreeCacheSelector {
+
+    @Override
+    public boolean traverseChildren(String fullPath) {
+      return true;
+    }
+
+    @Override
+    public boolean acceptChild(String fullPath) {
+      return (
+        ZKPaths.getPathAndNode(fullPath).getPath().equals(REQUESTS_FORMAT) ||
+        ZKPaths.getNodeFromPath(fullPath).equals(REQUEST_STATE_NODE)
+      );
+    }
+  }
+
+  private static class VersionedValue {
+    private final long version;
+    private final Object value;
+
+    private VersionedValue(long version, Object value) {
+      this.version = version;
+      this.value = value;
+    }
   }
 }
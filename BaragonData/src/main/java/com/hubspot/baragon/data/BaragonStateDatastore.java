@@ -1,7 +1,9 @@
 package com.hubspot.baragon.data;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
@@ -12,6 +14,8 @@ import com.hubspot.baragon.config.ZooKeeperConfiguration;
 import com.hubspot.baragon.models.BaragonRequest;
 import com.hubspot.baragon.models.BaragonService;
 import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BaragonStatePaths;
+import com.hubspot.baragon.models.UpstreamBlob;
 import com.hubspot.baragon.models.UpstreamInfo;
 import com.hubspot.baragon.utils.ZkParallelFetcher;
 import java.io.IOException;
@@ -20,14 +24,16 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.api.transaction.CuratorTransaction;
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
 import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,10 +42,23 @@ import org.slf4j.LoggerFactory;
 public class BaragonStateDatastore extends AbstractDataStore {
   private static final Logger LOG = LoggerFactory.getLogger(BaragonStateDatastore.class);
 
-  public static final String SERVICES_FORMAT = "/state";
-  public static final String LAST_UPDATED_FORMAT = "/state-last-updated";
-  public static final String SERVICE_FORMAT = SERVICES_FORMAT + "/%s";
+  public static final String SERVICES_FORMAT = BaragonStatePaths.SERVICES_FORMAT;
+  public static final String LAST_UPDATED_FORMAT = BaragonStatePaths.LAST_UPDATED_FORMAT;
+  public static final String SERVICE_FORMAT = BaragonStatePaths.SERVICE_FORMAT;
   public static final String UPSTREAM_FORMAT = SERVICE_FORMAT + "/%s";
+  public static final String UPSTREAM_BLOBS_FORMAT =
+    BaragonStatePaths.UPSTREAM_BLOBS_FORMAT;
+  public static final String UPSTREAM_BLOB_FORMAT =
+    BaragonStatePaths.UPSTREAM_BLOB_FORMAT;
+  public static final String UPSTREAM_BLOB_CHUNKS_FORMAT =
+    BaragonStatePaths.UPSTREAM_BLOB_CHUNKS_FORMAT;
+  public static final String CHANGELOG_FORMAT = BaragonStatePaths.CHANGELOG_FORMAT;
+  public static final String CHANGELOG_ENTRY_FORMAT =
+    BaragonStatePaths.CHANGELOG_ENTRY_FORMAT;
+  public static final int CHANGELOG_SIZE = BaragonStatePaths.CHANGELOG_SIZE;
+
+  private static final int MAX_UPDATE_SERVICE_ATTEMPTS = 5;
+  private static final int MAX_BLOB_READ_ATTEMPTS = 3;
 
   private final ZkParallelFetcher zkFetcher;
 
@@ -70,6 +89,8 @@ public class BaragonStateDatastore extends AbstractDataStore {
     for (String upstream : getUpstreamNodes(serviceId)) {
       deleteNode(String.format(UPSTREAM_FORMAT, serviceId, upstream));
     }
+    deleteNode(String.format(UPSTREAM_BLOB_FORMAT, serviceId));
+    deleteNode(String.format(UPSTREAM_BLOB_CHUNKS_FORMAT, serviceId), true);
 
     deleteNode(String.format(SERVICE_FORMAT, serviceId));
   }
@@ -79,6 +100,11 @@ public class BaragonStateDatastore extends AbstractDataStore {
   }
 
   public Collection<UpstreamInfo> getUpstreams(String serviceId) {
+    final Optional<List<UpstreamInfo>> blobUpstreams = readBlobUpstreams(serviceId);
+    if (blobUpstreams.isPresent()) {
+      return blobUpstreams.get();
+    }
+
     final Collection<String> upstreamNodes = getUpstreamNodes(serviceId);
     final Collection<UpstreamInfo> upstreams = new ArrayList<>(upstreamNodes.size());
     for (String node : upstreamNodes) {
@@ -97,9 +123,19 @@ public class BaragonStateDatastore extends AbstractDataStore {
       return true;
     }
 
-    Optional<BaragonService> maybeExistingService = getService(
-      update.getLoadBalancerService().getServiceId()
+    return isServiceUnchanged(
+      update,
+      getService(update.getLoadBalancerService().getServiceId())
     );
+  }
+
+  private static boolean isServiceUnchanged(
+    BaragonRequest update,
+    Optional<BaragonService> maybeExistingService
+  ) {
+    if (update.isUpstreamUpdateOnly()) {
+      return true;
+    }
 
     if (!maybeExistingService.isPresent()) {
       return false;
@@ -112,134 +148,508 @@ public class BaragonStateDatastore extends AbstractDataStore {
     return false;
   }
 
+  /*
+   * Plans the upstream changes in memory from a single listing of the service's
+   * upstreams, then commits them in one transaction. Whenever the service node already
+   * exists, the transaction writes it with the version it had when its upstreams were
+   * listed, so that it fails if anything changed the service or its upstreams in the
+   * meantime, in which case the changes are planned again.
+   */
   public void updateService(BaragonRequest request) throws Exception {
-    if (!nodeExists(SERVICES_FORMAT)) {
-      createNode(SERVICES_FORMAT);
-    }
-
-    String serviceId = request.getLoadBalancerService().getServiceId();
-    Collection<UpstreamInfo> currentUpstreams = getUpstreams(serviceId);
-    String servicePath = String.format(SERVICE_FORMAT, serviceId);
-    CuratorTransaction transaction = curatorFramework.inTransaction();
-    if (nodeExists(servicePath) && !isServiceUnchanged(request)) {
-      LOG.trace(
-        "Updating existing service {}",
-        request.getLoadBalancerService().getServiceId()
-      );
+    retryOnConflict(
+      request.getLoadBalancerService().getServiceId(),
+      () -> tryUpdateService(request)
+    );
+  }
+
+  /*
+   * Moves the upstreams of a service from a node per upstream into a single blob, if
+   * compact upstreams are enabled and the service isn't stored that way yet
+   */
+  public void compactUpstreams(String serviceId) throws Exception {
+    if (!zooKeeperConfiguration.isCompactUpstreamsEnabled()) {
+      return;
+    }
+
+    retryOnConflict(
+      serviceId,
+      () -> {
+        final StoredService stored = readStoredService(serviceId);
+        if (stored.exists() && !stored.getBlob().isPresent()) {
+          writeService(
+            stored,
+            Optional.absent(),
+            Collections.emptySet(),
+            Collections.emptySet()
+          );
+        }
+      }
+    );
+  }
+
+  private void retryOnConflict(String serviceId, ServiceWrite write) throws Exception {
+    for (int attempt = 1;; attempt++) {
+      try {
+        write.run();
+        return;
+      } catch (
+        KeeperException.BadVersionException
+        | KeeperException.NodeExistsException
+        | KeeperException.NoNodeException e
+      ) {
+        if (attempt >= MAX_UPDATE_SERVICE_ATTEMPTS) {
+          throw e;
+        }
+        LOG.debug("Service {} changed while updating it, retrying", serviceId, e);
+      }
+    }
+  }
+
+  private void tryUpdateService(BaragonRequest request) throws Exception {
+    final String serviceId = request.getLoadBalancerService().getServiceId();
+    final StoredService stored = readStoredService(serviceId);
+
+    final List<String> upstreamNodes = stored.getUpstreamNodes();
+    final Collection<UpstreamInfo> currentUpstreams = new ArrayList<>(
+      upstreamNodes.size()
+    );
+    for (String node : upstreamNodes) {
+      currentUpstreams.add(UpstreamInfo.fromString(node));
+    }
+    final Set<String> nodesToDelete = new LinkedHashSet<>();
+    final Set<String> nodesToCreate = new LinkedHashSet<>();
+    planUpstreamChanges(
+      request,
+      currentUpstreams,
+      new HashSet<>(upstreamNodes),
+      nodesToDelete,
+      nodesToCreate
+    );
+
+    final Optional<byte[]> serviceData;
+    if (!stored.exists()) {
+      LOG.trace("Creating new node for service {}", serviceId);
+      serviceData = Optional.of(serialize(request.getLoadBalancerService()));
+    } else if (
+      !isServiceUnchanged(
+        request,
+        stored.getServiceData().length > 0
+          ? Optional.of(
+            deserialize(
+              stored.getServiceData(),
+              BaragonService.class,
+              stored.getServicePath()
+            )
+          )
+          : Optional.absent()
+      )
+    ) {
+      LOG.trace("Updating existing service {}", serviceId);
+      serviceData = Optional.of(serialize(request.getLoadBalancerService()));
+    } else if (!nodesToDelete.isEmpty() || !nodesToCreate.isEmpty()) {
+      serviceData = Optional.absent();
+    } else {
+      LOG.debug("No changes to commit for service {}", serviceId);
+      return;
+    }
+
+    LOG.trace("Upstream nodes to delete right before the commit: {}", nodesToDelete);
+    writeService(stored, serviceData, nodesToDelete, nodesToCreate);
+  }
+
+  /*
+   * Reads the service node, the list of its children and its upstream blob. Children
+   * are only upstreams while the service is stored a node per upstream, once it has a
+   * blob, that is what holds its upstreams.
+   */
+  private StoredService readStoredService(String serviceId) throws Exception {
+    final String servicePath = String.format(SERVICE_FORMAT, serviceId);
+    final Stat childrenStat = new Stat();
+    final Stat serviceStat = new Stat();
+    List<String> children;
+    byte[] serviceData;
+    try {
+      children =
+        curatorFramework.getChildren().storingStatIn(childrenStat).forPath(servicePath);
+      serviceData =
+        curatorFramework.getData().storingStatIn(serviceStat).forPath(servicePath);
+    } catch (KeeperException.NoNodeException nne) {
+      children = Collections.emptyList();
+      serviceData = null;
+    }
+
+    if (
+      serviceData != null &&
+      (
+        serviceStat.getVersion() != childrenStat.getVersion() ||
+        serviceStat.getCversion() != childrenStat.getCversion()
+      )
+    ) {
+      // The service changed between listing its upstreams and reading it
+      throw new KeeperException.BadVersionException(servicePath);
+    }
+
+    final Stat blobStat = new Stat();
+    final Optional<UpstreamBlob> blob = readUpstreamBlob(serviceId, blobStat);
+    return new StoredService(
+      serviceId,
+      serviceData,
+      serviceStat.getVersion(),
+      children,
+      blob,
+      blobStat.getVersion(),
+      blob.isPresent()
+        ? blob.get().toPaths(readUpstreamBlobChunks(serviceId, blob.get()))
+        : Collections.emptyList()
+    );
+  }
+
+  private void writeService(
+    StoredService stored,
+    Optional<byte[]> serviceData,
+    Set<String> nodesToDelete,
+    Set<String> nodesToCreate
+  )
+    throws Exception {
+    final long start = System.currentTimeMillis();
+    final String servicePath = stored.getServicePath();
+
+    final CuratorTransactionFinal transaction;
+    if (!stored.exists()) {
+      if (!nodeExists(SERVICES_FORMAT)) {
+        createNode(SERVICES_FORMAT);
+      }
       transaction =
         curatorFramework
           .inTransaction()
-          .setData()
-          .forPath(servicePath, serialize(request.getLoadBalancerService()))
+          .create()
+          .forPath(servicePath, serviceData.get())
           .and();
-    } else if (!nodeExists(servicePath)) {
-      LOG.trace(
-        "Creating new node for service {}",
-        request.getLoadBalancerService().getServiceId()
-      );
+    } else {
+      // Written even if unchanged, to guard the upstream changes
       transaction =
         curatorFramework
           .inTransaction()
-          .create()
-          .forPath(servicePath, serialize(request.getLoadBalancerService()))
+          .setData()
+          .withVersion(stored.getServiceVersion())
+          .forPath(servicePath, serviceData.or(stored.getServiceData()))
           .and();
     }
-    // Otherwise, the service node exists, but it hasn't changed, so don't update it.
 
-    Set<String> pathsToDelete = new HashSet<>();
-    if (!request.getReplaceUpstreams().isEmpty()) {
-      for (UpstreamInfo upstreamInfo : currentUpstreams) {
-        deleteMatchingUpstreams(
-          serviceId,
-          currentUpstreams,
-          transaction,
-          pathsToDelete,
-          upstreamInfo
-        );
+    final Set<String> upstreamNodes = new LinkedHashSet<>(stored.getUpstreamNodes());
+    upstreamNodes.removeAll(nodesToDelete);
+    upstreamNodes.addAll(nodesToCreate);
+
+    final Optional<UpstreamBlob> blob;
+    final int operations;
+    if (zooKeeperConfiguration.isCompactUpstreamsEnabled()) {
+      blob = Optional.of(writeUpstreamBlob(transaction, stored, upstreamNodes));
+      operations = 2;
+    } else {
+      blob = Optional.absent();
+      operations = 1 + writeUpstreamNodes(transaction, stored, upstreamNodes);
+    }
+
+    try {
+      commitServiceWrite(transaction);
+    } catch (
+      KeeperException.BadVersionException
+      | KeeperException.NodeExistsException
+      | KeeperException.NoNodeException e
+    ) {
+      // The transaction was rejected, so nothing refers to the chunks written ahead of
+      // it. Any other failure leaves them, as the transaction may have been applied.
+      if (blob.isPresent()) {
+        deleteChunks(stored.getServiceId(), blob.get());
       }
-      for (UpstreamInfo upstreamInfo : request.getReplaceUpstreams()) {
-        String addPath = String.format(UPSTREAM_FORMAT, serviceId, upstreamInfo.toPath());
-        if (!nodeExists(addPath) || pathsToDelete.contains(addPath)) {
-          transaction.create().forPath(addPath).and();
+      throw e;
+    }
+    log(
+      OperationType.WRITE,
+      Optional.of(operations),
+      Optional.<Integer>absent(),
+      start,
+      String.format("Transaction Paths [%s + upstreams]", servicePath)
+    );
+
+    cleanUpUpstreams(stored, blob);
+  }
+
+  @VisibleForTesting
+  protected void commitServiceWrite(CuratorTransactionFinal transaction)
+    throws Exception {
+    transaction.commit();
+  }
+
+  private int writeUpstreamNodes(
+    CuratorTransactionFinal transaction,
+    StoredService stored,
+    Set<String> upstreamNodes
+  )
+    throws Exception {
+    int operations = 0;
+    final Set<String> existingNodes = new HashSet<>(stored.getChildren());
+    for (String node : stored.getChildren()) {
+      if (!upstreamNodes.contains(node)) {
+        transaction
+          .delete()
+          .forPath(ZKPaths.makePath(stored.getServicePath(), node))
+          .and();
+        operations++;
+      }
+    }
+    for (String node : upstreamNodes) {
+      if (!existingNodes.contains(node)) {
+        transaction
+          .create()
+          .forPath(ZKPaths.makePath(stored.getServicePath(), node))
+          .and();
+        operations++;
+      }
+    }
+
+    if (stored.getBlob().isPresent()) {
+      // Back to a node per upstream, the blob would otherwise shadow the nodes
+      transaction
+        .delete()
+        .withVersion(stored.getBlobVersion())
+        .forPath(String.format(UPSTREAM_BLOB_FORMAT, stored.getServiceId()))
+        .and();
+      operations++;
+    }
+    return operations;
+  }
+
+  private UpstreamBlob writeUpstreamBlob(
+    CuratorTransactionFinal transaction,
+    StoredService stored,
+    Set<String> upstreamNodes
+  )
+    throws Exception {
+    final String serviceId = stored.getServiceId();
+    final byte[] payload = UpstreamBlob.compress(upstreamNodes);
+    final int chunkBytes = zooKeeperConfiguration.getCompactUpstreamsChunkBytes();
+    final long generation = ThreadLocalRandom.current().nextLong();
+
+    final UpstreamBlob blob;
+    if (UpstreamBlob.getHeaderBytes() + payload.length <= chunkBytes) {
+      blob = UpstreamBlob.inline(generation, payload);
+    } else {
+      // Chunks go in ahead of the transaction, which would otherwise exceed
+      // jute.maxbuffer, it only switches the blob over to them
+      final List<byte[]> chunks = UpstreamBlob.split(payload, chunkBytes);
+      blob = UpstreamBlob.chunked(generation, chunks.size());
+      try {
+        for (int i = 0; i < chunks.size(); i++) {
+          curatorFramework
+            .create()
+            .creatingParentsIfNeeded()
+            .forPath(
+              getChunkPath(serviceId, UpstreamBlob.chunkName(generation, i)),
+              chunks.get(i)
+            );
         }
+      } catch (Exception e) {
+        deleteChunks(serviceId, blob);
+        throw e;
       }
+    }
+
+    final String blobPath = String.format(UPSTREAM_BLOB_FORMAT, serviceId);
+    if (stored.getBlob().isPresent()) {
+      transaction
+        .setData()
+        .withVersion(stored.getBlobVersion())
+        .forPath(blobPath, blob.toBytes())
+        .and();
     } else {
-      LOG.debug("Removing upstreams {}", request.getRemoveUpstreams());
-      for (UpstreamInfo upstreamInfo : request.getRemoveUpstreams()) {
-        deleteMatchingUpstreams(
-          serviceId,
-          currentUpstreams,
-          transaction,
-          pathsToDelete,
-          upstreamInfo
-        );
+      if (!nodeExists(UPSTREAM_BLOBS_FORMAT)) {
+        createNode(UPSTREAM_BLOBS_FORMAT);
       }
+      transaction.create().forPath(blobPath, blob.toBytes()).and();
+    }
+    return blob;
+  }
 
-      LOG.debug("Adding upstreams {}", request.getAddUpstreams());
-      for (UpstreamInfo upstreamInfo : request.getAddUpstreams()) {
-        String addPath = String.format(UPSTREAM_FORMAT, serviceId, upstreamInfo.toPath());
-        List<String> matchingUpstreamPaths = matchingUpstreamHostPorts(
-          currentUpstreams,
-          upstreamInfo
-        );
-        for (String matchingPath : matchingUpstreamPaths) {
-          String fullPath = String.format(UPSTREAM_FORMAT, serviceId, matchingPath);
-          if (
-            nodeExists(fullPath) &&
-            !pathsToDelete.contains(fullPath) &&
-            !fullPath.equals(addPath)
-          ) {
-            LOG.info(
-              "Deleting existing upstream {} because it matches new upstream",
-              fullPath
-            );
-            pathsToDelete.add(fullPath);
-            transaction.delete().forPath(fullPath).and();
-          }
+  /*
+   * Deletes what is no longer referenced once a write has been committed: the upstream
+   * nodes of a service that was moved into a blob, and the chunks of the blob generation
+   * it replaced. Only that generation's chunks are deleted, any others belong to writes
+   * that are still in flight or committed after this one.
+   */
+  private void cleanUpUpstreams(StoredService stored, Optional<UpstreamBlob> blob) {
+    try {
+      if (blob.isPresent()) {
+        for (String node : stored.getChildren()) {
+          curatorFramework
+            .delete()
+            .inBackground()
+            .forPath(ZKPaths.makePath(stored.getServicePath(), node));
+        }
+      }
+
+      if (stored.getBlob().isPresent()) {
+        deleteChunks(stored.getServiceId(), stored.getBlob().get());
+      }
+    } catch (Exception e) {
+      LOG.warn("Could not clean up old upstreams of {}", stored.getServiceId(), e);
+    }
+  }
+
+  private void deleteChunks(String serviceId, UpstreamBlob blob) {
+    try {
+      for (String chunkName : blob.getChunkNames()) {
+        curatorFramework
+          .delete()
+          .inBackground()
+          .forPath(getChunkPath(serviceId, chunkName));
+      }
+    } catch (Exception e) {
+      LOG.warn("Could not delete upstream chunks of {} ({})", serviceId, blob, e);
+    }
+  }
+
+  private Optional<UpstreamBlob> readUpstreamBlob(String serviceId, Stat stat)
+    throws Exception {
+    try {
+      return Optional.of(
+        UpstreamBlob.fromBytes(
+          curatorFramework
+            .getData()
+            .storingStatIn(stat)
+            .forPath(String.format(UPSTREAM_BLOB_FORMAT, serviceId))
+        )
+      );
+    } catch (KeeperException.NoNodeException nne) {
+      return Optional.absent();
+    }
+  }
+
+  /*
+   * Throws NoNodeException if a chunk is missing, which happens when the blob was
+   * rewritten after its header was read
+   */
+  private List<byte[]> readUpstreamBlobChunks(String serviceId, UpstreamBlob blob)
+    throws Exception {
+    if (!blob.isChunked()) {
+      return Collections.emptyList();
+    }
+
+    final List<String> chunkPaths = new ArrayList<>();
+    for (String chunkName : blob.getChunkNames()) {
+      chunkPaths.add(getChunkPath(serviceId, chunkName));
+    }
+    final Map<String, byte[]> chunks = zkFetcher.fetchDataByPathInParallel(
+      chunkPaths,
+      Functions.<byte[]>identity()
+    );
+
+    final List<byte[]> orderedChunks = new ArrayList<>(chunkPaths.size());
+    for (String chunkPath : chunkPaths) {
+      final byte[] chunk = chunks.get(chunkPath);
+      if (chunk == null) {
+        throw new KeeperException.NoNodeException(chunkPath);
+      }
+      orderedChunks.add(chunk);
+    }
+    return orderedChunks;
+  }
+
+  /*
+   * The upstreams in the blob of the service, absent if they are stored a node per
+   * upstream
+   */
+  private Optional<List<UpstreamInfo>> readBlobUpstreams(String serviceId) {
+    for (int attempt = 1;; attempt++) {
+      try {
+        final Optional<UpstreamBlob> blob = readUpstreamBlob(serviceId, new Stat());
+        if (!blob.isPresent()) {
+          return Optional.absent();
         }
-        boolean nodeExists = nodeExists(addPath);
-        LOG.trace(
-          "About to check if we should create a new upstream node at {}. nodeExists: {}; pathsToDelete: {}",
-          addPath,
-          nodeExists,
-          pathsToDelete
+        return Optional.of(
+          blob.get().toUpstreams(readUpstreamBlobChunks(serviceId, blob.get()))
         );
-        if (!nodeExists || pathsToDelete.contains(addPath)) {
-          LOG.info("Creating new upstream node {}", addPath);
-          transaction.create().forPath(addPath).and();
+      } catch (KeeperException.NoNodeException nne) {
+        if (attempt >= MAX_BLOB_READ_ATTEMPTS) {
+          throw Throwables.propagate(nne);
         }
+        LOG.debug("Upstream blob of {} changed while reading it, retrying", serviceId);
+      } catch (Exception e) {
+        throw Throwables.propagate(e);
       }
     }
+  }
 
-    LOG.trace("pathsToDelete right before the commit: {}", pathsToDelete);
-    ((CuratorTransactionFinal) transaction).commit();
+  private static String getChunkPath(String serviceId, String chunkName) {
+    return ZKPaths.makePath(
+      String.format(UPSTREAM_BLOB_CHUNKS_FORMAT, serviceId),
+      chunkName
+    );
   }
 
-  private void deleteMatchingUpstreams(
-    String serviceId,
+  private void planUpstreamChanges(
+    BaragonRequest request,
     Collection<UpstreamInfo> currentUpstreams,
-    CuratorTransaction transaction,
-    Set<String> pathsToDelete,
-    UpstreamInfo upstreamInfo
-  )
-    throws Exception {
-    List<String> matchingUpstreamPaths = matchingUpstreamHostPorts(
-      currentUpstreams,
-      upstreamInfo
-    );
-    if (matchingUpstreamPaths.isEmpty()) {
-      LOG.warn(
-        "No upstream node found to delete for {}, current upstream nodes are {}",
-        upstreamInfo,
-        currentUpstreams
+    Set<String> existingNodes,
+    Set<String> nodesToDelete,
+    Set<String> nodesToCreate
+  ) {
+    if (!request.getReplaceUpstreams().isEmpty()) {
+      final Set<String> replacementNodes = new LinkedHashSet<>();
+      for (UpstreamInfo upstreamInfo : request.getReplaceUpstreams()) {
+        replacementNodes.add(upstreamInfo.toPath());
+      }
+      for (String node : existingNodes) {
+        if (!replacementNodes.contains(node)) {
+          LOG.info("Deleting {}", node);
+          nodesToDelete.add(node);
+        }
+      }
+      for (String node : replacementNodes) {
+        if (!existingNodes.contains(node)) {
+          nodesToCreate.add(node);
+        }
+      }
+      return;
+    }
+
+    LOG.debug("Removing upstreams {}", request.getRemoveUpstreams());
+    for (UpstreamInfo upstreamInfo : request.getRemoveUpstreams()) {
+      List<String> matchingUpstreamPaths = matchingUpstreamHostPorts(
+        currentUpstreams,
+        upstreamInfo
       );
-    } else {
+      if (matchingUpstreamPaths.isEmpty()) {
+        LOG.warn(
+          "No upstream node found to delete for {}, current upstream nodes are {}",
+          upstreamInfo,
+          currentUpstreams
+        );
+      }
       for (String matchingPath : matchingUpstreamPaths) {
-        String fullPath = String.format(UPSTREAM_FORMAT, serviceId, matchingPath);
-        if (nodeExists(fullPath) && !pathsToDelete.contains(fullPath)) {
-          LOG.info("Deleting {}", fullPath);
-          pathsToDelete.add(fullPath);
-          transaction.delete().forPath(fullPath).and();
+        if (nodesToDelete.add(matchingPath)) {
+          LOG.info("Deleting {}", matchingPath);
+        }
+      }
+    }
+
+    LOG.debug("Adding upstreams {}", request.getAddUpstreams());
+    for (UpstreamInfo upstreamInfo : request.getAddUpstreams()) {
+      String addPath = upstreamInfo.toPath();
+      for (String matchingPath : matchingUpstreamHostPorts(
+        currentUpstreams,
+        upstreamInfo
+      )) {
+        if (!matchingPath.equals(addPath) && nodesToDelete.add(matchingPath)) {
+          LOG.info(
+            "Deleting existing upstream {} because it matches new upstream",
+            matchingPath
+          );
+        }
+      }
+      if (!existingNodes.contains(addPath) || nodesToDelete.contains(addPath)) {
+        if (nodesToCreate.add(addPath)) {
+          LOG.info("Creating new upstream node {}", addPath);
         }
       }
     }
@@ -273,8 +683,186 @@ public class BaragonStateDatastore extends AbstractDataStore {
     return serialize(getGlobalState());
   }
 
+  /*
+   * Bumps the state version without recording what changed, anything caching the global
+   * state will have to recompute it in full.
+   */
   public void incrementStateVersion() {
-    writeToZk(LAST_UPDATED_FORMAT, System.currentTimeMillis());
+    final long start = System.currentTimeMillis();
+    final byte[] lastUpdated = serialize(start);
+
+    try {
+      final Stat stat = curatorFramework
+        .setData()
+        .forPath(LAST_UPDATED_FORMAT, lastUpdated);
+      log(
+        OperationType.WRITE,
+        Optional.<Integer>absent(),
+        Optional.of(lastUpdated.length),
+        start,
+        LAST_UPDATED_FORMAT
+      );
+      pruneChangelog(stat.getVersion());
+    } catch (KeeperException.NoNodeException nne) {
+      writeToZk(LAST_UPDATED_FORMAT, start);
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  public void incrementStateVersion(Collection<String> changedServiceIds) {
+    final long start = System.currentTimeMillis();
+    final byte[] changelogEntry = serialize(changedServiceIds);
+
+    try {
+      if (!nodeExists(CHANGELOG_FORMAT)) {
+        createNode(CHANGELOG_FORMAT);
+      }
+
+      while (true) {
+        final Stat stat = curatorFramework.checkExists().forPath(LAST_UPDATED_FORMAT);
+
+        if (stat == null) {
+          // Version 0 is always computed from scratch, no changelog entry needed
+          writeToZk(LAST_UPDATED_FORMAT, System.currentTimeMillis());
+          return;
+        }
+
+        final int nextVersion = stat.getVersion() + 1;
+        final String entryPath = String.format(CHANGELOG_ENTRY_FORMAT, nextVersion);
+
+        try {
+          curatorFramework
+            .inTransaction()
+            .setData()
+            .withVersion(stat.getVersion())
+            .forPath(LAST_UPDATED_FORMAT, serialize(System.currentTimeMillis()))
+            .and()
+            .create()
+            .forPath(entryPath, changelogEntry)
+            .and()
+            .commit();
+        } catch (KeeperException.BadVersionException bve) {
+          LOG.debug("State version changed while incrementing it, retrying");
+          continue;
+        } catch (KeeperException.NodeExistsException nee) {
+          // Left over from before the version node was recreated
+          deleteNode(entryPath);
+          continue;
+        }
+
+        log(
+          OperationType.WRITE,
+          Optional.of(2),
+          Optional.of(changelogEntry.length),
+          start,
+          String.format("Transaction Paths [%s + %s]", LAST_UPDATED_FORMAT, entryPath)
+        );
+        pruneChangelog(nextVersion);
+        return;
+      }
+    } catch (Exception e) {
+      // Readers must not patch their state from a changelog missing these services, so
+      // the version is bumped without an entry to have them recompute it instead
+      LOG.warn(
+        "Could not record the changes to {}, bumping the state version without them",
+        changedServiceIds,
+        e
+      );
+      incrementStateVersion();
+    }
+  }
+
+  // Every version bump drops the entry falling out of the window, recorded or not
+  private void pruneChangelog(int version) {
+    if (version > CHANGELOG_SIZE) {
+      deleteNode(String.format(CHANGELOG_ENTRY_FORMAT, version - CHANGELOG_SIZE));
+    }
+  }
+
+  /*
+   * Returns the serviceIds changed after fromVersion, up to and including toVersion.
+   * Absent if that can't be determined, e.g. because the changelog has been truncated
+   * or one of the versions was bumped without recording its changes.
+   */
+  public Optional<Set<String>> getChangedServiceIds(int fromVersion, int toVersion) {
+    if (fromVersion < 0 || toVersion < fromVersion) {
+      return Optional.absent();
+    }
+    if (toVersion - fromVersion > CHANGELOG_SIZE) {
+      return Optional.absent();
+    }
+
+    final Collection<String> entryPaths = new ArrayList<>(toVersion - fromVersion);
+    for (int version = fromVersion + 1; version <= toVersion; version++) {
+      entryPaths.add(String.format(CHANGELOG_ENTRY_FORMAT, version));
+    }
+
+    try {
+      final Map<String, String[]> entries = zkFetcher.fetchDataInParallel(
+        entryPaths,
+        new BaragonDeserializer<>(objectMapper, String[].class)
+      );
+
+      final Set<String> changedServiceIds = new HashSet<>();
+      for (String entryPath : entryPaths) {
+        final String[] entry = entries.get(ZKPaths.getNodeFromPath(entryPath));
+        if (entry == null) {
+          return Optional.absent();
+        }
+        Collections.addAll(changedServiceIds, entry);
+      }
+      return Optional.of(changedServiceIds);
+    } catch (Exception e) {
+      LOG.warn("Could not read state changelog from {} to {}", fromVersion, toVersion, e);
+      return Optional.absent();
+    }
+  }
+
+  /*
+   * Fetches the current state of the given services, services that no longer exist are
+   * left out of the result.
+   */
+  public Map<String, BaragonServiceState> getServiceStates(
+    Collection<String> serviceIds
+  ) {
+    try {
+      final Collection<String> servicePaths = new ArrayList<>(serviceIds.size());
+      for (String serviceId : serviceIds) {
+        servicePaths.add(String.format(SERVICE_FORMAT, serviceId));
+      }
+
+      final Map<String, BaragonService> serviceMap = zkFetcher.fetchDataInParallel(
+        servicePaths,
+        new BaragonDeserializer<>(objectMapper, BaragonService.class)
+      );
+      final Map<String, Collection<UpstreamInfo>> serviceToUpstreamInfoMap = fetchServiceToUpstreamInfoMap(
+        servicePaths
+      );
+      final Map<String, BaragonServiceState> serviceStates = new HashMap<>(
+        serviceMap.size()
+      );
+
+      for (Entry<String, BaragonService> serviceEntry : serviceMap.entrySet()) {
+        if (serviceEntry.getValue() == null) {
+          continue;
+        }
+        serviceStates.put(
+          serviceEntry.getKey(),
+          new BaragonServiceState(
+            serviceEntry.getValue(),
+            MoreObjects.firstNonNull(
+              serviceToUpstreamInfoMap.get(serviceEntry.getKey()),
+              Collections.<UpstreamInfo>emptyList()
+            )
+          )
+        );
+      }
+
+      return serviceStates;
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
   }
 
   public Optional<Integer> getStateVersion() {
@@ -329,13 +917,47 @@ public class BaragonStateDatastore extends AbstractDataStore {
     Collection<String> services
   )
     throws Exception {
-    Map<String, Collection<String>> serviceToUpstreams = zkFetcher.fetchChildrenInParallel(
-      services
-    );
     Map<String, Collection<UpstreamInfo>> serviceToUpstreamInfo = new HashMap<>(
       services.size()
     );
 
+    // Services with a blob don't need their children listed. Which ones have a blob is
+    // listed once, so that none are fetched while upstreams are stored a node each.
+    final Set<String> blobServiceIds = new HashSet<>(getChildren(UPSTREAM_BLOBS_FORMAT));
+    final Collection<String> blobPaths = new ArrayList<>();
+    for (String service : services) {
+      final String serviceId = ZKPaths.getNodeFromPath(service);
+      if (blobServiceIds.contains(serviceId)) {
+        blobPaths.add(String.format(UPSTREAM_BLOB_FORMAT, serviceId));
+      }
+    }
+    final Map<String, UpstreamBlob> blobs = blobPaths.isEmpty()
+      ? Collections.<String, UpstreamBlob>emptyMap()
+      : zkFetcher.fetchDataInParallel(blobPaths, UpstreamBlob::fromBytes);
+    for (Entry<String, UpstreamBlob> entry : blobs.entrySet()) {
+      if (entry.getValue().isChunked()) {
+        final Optional<List<UpstreamInfo>> upstreams = readBlobUpstreams(entry.getKey());
+        if (upstreams.isPresent()) {
+          serviceToUpstreamInfo.put(entry.getKey(), upstreams.get());
+        }
+      } else {
+        serviceToUpstreamInfo.put(
+          entry.getKey(),
+          entry.getValue().toUpstreams(Collections.emptyList())
+        );
+      }
+    }
+
+    final Collection<String> nodeServices = new ArrayList<>(services.size());
+    for (String service : services) {
+      if (!blobs.containsKey(ZKPaths.getNodeFromPath(service))) {
+        nodeServices.add(service);
+      }
+    }
+    Map<String, Collection<String>> serviceToUpstreams = zkFetcher.fetchChildrenInParallel(
+      nodeServices
+    );
+
     for (Entry<String, Collection<String>> entry : serviceToUpstreams.entrySet()) {
       for (String upstream : entry.getValue()) {
         if (!serviceToUpstreamInfo.containsKey(entry.getKey())) {
@@ -379,4 +1001,73 @@ public class BaragonStateDatastore extends AbstractDataStore {
       }
     }
   }
+
+  private interface ServiceWrite {
+    void run() throws Exception;
+  }
+
+  private static class StoredService {
+    private final String serviceId;
+    private final byte[] serviceData;
+    private final int serviceVersion;
+    private final List<String> children;
+    private final Optional<UpstreamBlob> blob;
+    private final int blobVersion;
+    private final List<String> blobNodes;
+
+    private StoredService(
+      String serviceId,
+      byte[] serviceData,
+      int serviceVersion,
+      List<String> children,
+      Optional<UpstreamBlob> blob,
+      int blobVersion,
+      List<String> blobNodes
+    ) {
+      this.serviceId = serviceId;
+      this.serviceData = serviceData;
+      this.serviceVersion = serviceVersion;
+      this.children = children;
+      this.blob = blob;
+      this.blobVersion = blobVersion;
+      this.blobNodes = blobNodes;
+    }
+
+    private boolean exists() {
+      return serviceData != null;
+    }
+
+    private String getServiceId() {
+      return serviceId;
+    }
+
+    private String getServicePath() {
+      return String.format(SERVICE_FORMAT, serviceId);
+    }
+
+    private byte[] getServiceData() {
+      return serviceData;
+    }
+
+    private int getServiceVersion() {
+      return serviceVersion;
+    }
+
+    private List<String> getChildren() {
+      return children;
+    }
+
+    private Optional<UpstreamBlob> getBlob() {
+      return blob;
+    }
+
+    private int getBlobVersion() {
+      return blobVersion;
+    }
+
+    // UpstreamInfo.toPath() of the upstreams, whichever way they are stored
+    private List<String> getUpstreamNodes() {
+      return blob.isPresent() ? blobNodes : children;
+    }
+  }
 }
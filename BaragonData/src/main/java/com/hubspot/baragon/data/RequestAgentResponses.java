@@ -0,0 +1,69 @@
+package com.hubspot.baragon.data;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableTable;
+import com.hubspot.baragon.models.AgentRequestType;
+import com.hubspot.baragon.models.AgentResponse;
+import com.hubspot.baragon.models.AgentResponseId;
+
+/*
+ * Pending requests and latest responses from each agent for a single request, as read in
+ * one pass by BaragonAgentResponseDatastore#getRequestAgentResponses
+ */
+public class RequestAgentResponses {
+  private final String requestId;
+  private final ImmutableMap<String, Long> pendingRequests;
+  private final ImmutableTable<AgentRequestType, String, AgentResponseId> lastResponseIds;
+  private final ImmutableTable<AgentRequestType, String, AgentResponse> lastResponses;
+
+  public RequestAgentResponses(
+    String requestId,
+    ImmutableMap<String, Long> pendingRequests,
+    ImmutableTable<AgentRequestType, String, AgentResponseId> lastResponseIds,
+    ImmutableTable<AgentRequestType, String, AgentResponse> lastResponses
+  ) {
+    this.requestId = requestId;
+    this.pendingRequests = pendingRequests;
+    this.lastResponseIds = lastResponseIds;
+    this.lastResponses = lastResponses;
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  public Optional<Long> getPendingRequest(String baseUrl) {
+    return Optional.fromNullable(pendingRequests.get(baseUrl));
+  }
+
+  public Optional<AgentResponseId> getLastAgentResponseId(
+    AgentRequestType requestType,
+    String baseUrl
+  ) {
+    return Optional.fromNullable(lastResponseIds.get(requestType, baseUrl));
+  }
+
+  public Optional<AgentResponse> getLastAgentResponse(
+    AgentRequestType requestType,
+    String baseUrl
+  ) {
+    return Optional.fromNullable(lastResponses.get(requestType, baseUrl));
+  }
+
+  public boolean hasAgentResponses() {
+    return !lastResponses.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects
+      .toStringHelper(this)
+      .add("requestId", requestId)
+      .add("pendingRequests", pendingRequests)
+      .add("lastResponseIds", lastResponseIds)
+      .add("lastResponses", lastResponses)
+      .toString();
+  }
+}
@@ -0,0 +1,37 @@
+package com.hubspot.baragon.migrations;
+
+import com.google.inject.Inject;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+
+public class CompactUpstreamsMigration extends ZkDataMigration {
+  private final BaragonStateDatastore baragonStateDatastore;
+  private final ZooKeeperConfiguration zooKeeperConfiguration;
+
+  @Inject
+  public CompactUpstreamsMigration(
+    BaragonStateDatastore baragonStateDatastore,
+    ZooKeeperConfiguration zooKeeperConfiguration
+  ) {
+    super(3);
+    this.baragonStateDatastore = baragonStateDatastore;
+    this.zooKeeperConfiguration = zooKeeperConfiguration;
+  }
+
+  // Left unrecorded until compact upstreams are enabled, so it runs once they are
+  @Override
+  public boolean isEnabled() {
+    return zooKeeperConfiguration.isCompactUpstreamsEnabled();
+  }
+
+  @Override
+  public void applyMigration() {
+    try {
+      for (String serviceId : baragonStateDatastore.getServices()) {
+        baragonStateDatastore.compactUpstreams(serviceId);
+      }
+    } catch (Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+}
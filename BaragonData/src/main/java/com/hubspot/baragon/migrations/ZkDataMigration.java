@@ -21,6 +21,11 @@ public abstract class ZkDataMigration implements Comparable<ZkDataMigration> {
     return migrationNumber;
   }
 
+  // Disabled migrations aren't applied or recorded, they run once they are enabled
+  public boolean isEnabled() {
+    return true;
+  }
+
   @Override
   public int hashCode() {
     return Objects.hashCode(migrationNumber);
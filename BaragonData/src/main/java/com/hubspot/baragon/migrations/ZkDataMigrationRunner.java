@@ -41,6 +41,15 @@ public class ZkDataMigrationRunner {
 
     for (ZkDataMigration migration : migrations) {
       if (migration.getMigrationNumber() > intVersionNumber) {
+        if (!migration.isEnabled()) {
+          // Recording a later version would skip this one once it is enabled
+          LOG.info(
+            "{} is disabled, leaving it and later migrations unapplied",
+            migration
+          );
+          break;
+        }
+
         numMigrationsApplied++;
 
         final long migrationStart = System.currentTimeMillis();
@@ -1,16 +1,26 @@
 package com.hubspot.baragon.utils;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.base.Function;
 import com.google.inject.Inject;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.api.BackgroundCallback;
 import org.apache.curator.framework.api.CuratorEvent;
@@ -18,15 +28,69 @@ import org.apache.curator.utils.ZKPaths;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 
+/*
+ * Reads many nodes at once with background calls. At most parallelFetchMaxInFlight
+ * calls are outstanding at a time across all fetches, and each path must complete
+ * within parallelFetchPathTimeoutMillis of its call being made. Callbacks only hand the
+ * raw result to a fork-join pool, so that parsing doesn't hold up the ZooKeeper event
+ * thread.
+ *
+ * A fetch must never be started from a curator callback or watcher: permits are only
+ * released by callbacks, which run on that same event thread, so waiting for one there
+ * stalls every fetch in flight until the path timeout.
+ */
 public class ZkParallelFetcher {
   private static final Logger LOG = Logger.getLogger(ZkParallelFetcher.class);
-  private static final int TIMEOUT_SECONDS = 10;
 
-  private final CuratorFramework curatorFramework;
+  // Completes the future of a path that no longer exists
+  private static final Object NO_NODE = new Object();
+
+  private final Supplier<CuratorFramework> curatorSupplier;
+  // Acquired by the fetching thread only, released on the curator event thread
+  private final Semaphore window;
+  private final long pathTimeoutMillis;
+  private final ForkJoinPool parsePool;
+  private final Timer parseTimer;
+  private final Counter inFlight;
 
   @Inject
-  public ZkParallelFetcher(CuratorFramework framework) {
-    this.curatorFramework = framework;
+  public ZkParallelFetcher(
+    CuratorFramework framework,
+    ZooKeeperConfiguration configuration,
+    MetricRegistry metricRegistry
+  ) {
+    this(() -> framework, configuration, metricRegistry);
+  }
+
+  /*
+   * For clients whose curator framework is replaced when its session is lost
+   */
+  public ZkParallelFetcher(
+    Supplier<CuratorFramework> curatorSupplier,
+    ZooKeeperConfiguration configuration,
+    MetricRegistry metricRegistry
+  ) {
+    this.curatorSupplier = curatorSupplier;
+    this.window = new Semaphore(configuration.getParallelFetchMaxInFlight());
+    this.pathTimeoutMillis = configuration.getParallelFetchPathTimeoutMillis();
+    this.parsePool =
+      new ForkJoinPool(
+        configuration.getParallelFetchParseThreads(),
+        pool -> {
+          final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(
+            pool
+          );
+          thread.setName("zk-fetch-parse-" + thread.getPoolIndex());
+          return thread;
+        },
+        null,
+        true
+      );
+    this.parseTimer =
+      metricRegistry.timer(MetricRegistry.name(ZkParallelFetcher.class, "parse"));
+    // Shared by every fetcher reporting to the same registry
+    this.inFlight =
+      metricRegistry.counter(MetricRegistry.name(ZkParallelFetcher.class, "inFlight"));
   }
 
   public <T> Map<String, T> fetchDataInParallel(
@@ -34,144 +98,207 @@ public class ZkParallelFetcher {
     Function<byte[], T> transformFunction
   )
     throws Exception {
-    Map<String, T> dataMap = new ConcurrentHashMap<>();
-    CountDownLatch countDownLatch = new CountDownLatch(paths.size());
-    Queue<KeeperException> exceptions = new ConcurrentLinkedQueue<>();
-    BackgroundCallback callback = new GetDataCallback<>(
-      dataMap,
-      transformFunction,
-      countDownLatch,
-      exceptions
-    );
-
-    for (String path : paths) {
-      curatorFramework.getData().inBackground(callback).forPath(path);
-    }
+    return fetchData(paths, transformFunction, false);
+  }
 
-    waitAndThrowExceptions(countDownLatch, exceptions);
-    return dataMap;
+  /*
+   * Same as fetchDataInParallel, but keyed by full path rather than node name, for when
+   * the paths don't share a parent
+   */
+  public <T> Map<String, T> fetchDataByPathInParallel(
+    Collection<String> paths,
+    Function<byte[], T> transformFunction
+  )
+    throws Exception {
+    return fetchData(paths, transformFunction, true);
   }
 
   public Map<String, Collection<String>> fetchChildrenInParallel(
     Collection<String> paths
   )
     throws Exception {
-    // Didn't use Guava Multimap because we need thread-safety
-    Map<String, Collection<String>> childMap = new ConcurrentHashMap<>();
-    CountDownLatch countDownLatch = new CountDownLatch(paths.size());
-    Queue<KeeperException> exceptions = new ConcurrentLinkedQueue<>();
-    BackgroundCallback callback = new GetChildrenCallback(
-      childMap,
-      countDownLatch,
-      exceptions
-    );
+    return fetchChildren(paths, false);
+  }
 
-    for (String path : paths) {
-      curatorFramework.getChildren().inBackground(callback).forPath(path);
-    }
+  /*
+   * Same as fetchChildrenInParallel, but keyed by full path rather than node name
+   */
+  public Map<String, Collection<String>> fetchChildrenByPathInParallel(
+    Collection<String> paths
+  )
+    throws Exception {
+    return fetchChildren(paths, true);
+  }
 
-    waitAndThrowExceptions(countDownLatch, exceptions);
-    return childMap;
+  private <T> Map<String, T> fetchData(
+    Collection<String> paths,
+    Function<byte[], T> transformFunction,
+    boolean keyByPath
+  )
+    throws Exception {
+    return fetch(
+      paths,
+      (path, callback) ->
+        curatorSupplier.get().getData().inBackground(callback).forPath(path),
+      event ->
+        event.getData() == null ? null : transformFunction.apply(event.getData()),
+      keyByPath
+    );
   }
 
-  private void waitAndThrowExceptions(
-    CountDownLatch countDownLatch,
-    Queue<KeeperException> exceptions
+  private Map<String, Collection<String>> fetchChildren(
+    Collection<String> paths,
+    boolean keyByPath
   )
     throws Exception {
-    if (!countDownLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
-      throw new TimeoutException("ZkChildrenFetcher timed out waiting for data");
-    }
+    return fetch(
+      paths,
+      (path, callback) ->
+        curatorSupplier.get().getChildren().inBackground(callback).forPath(path),
+      event -> new HashSet<>(event.getChildren()),
+      keyByPath
+    );
+  }
 
-    for (KeeperException exception : exceptions) {
-      LOG.error(exception);
-    }
+  /*
+   * Reads every path, leaving out those that don't exist or can't be parsed. Throws the
+   * first failed read, or a TimeoutException if any path didn't complete in time.
+   */
+  private <T> Map<String, T> fetch(
+    Collection<String> paths,
+    BackgroundRead read,
+    Function<CuratorEvent, T> parse,
+    boolean keyByPath
+  )
+    throws Exception {
+    final Map<String, CompletableFuture<Object>> futures = new LinkedHashMap<>();
+    final Map<String, Long> deadlines = new HashMap<>();
 
-    if (!exceptions.isEmpty()) {
-      throw exceptions.peek();
-    }
-  }
+    for (String path : paths) {
+      if (!window.tryAcquire(pathTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        // Every call in the window is taking too long, the rest of the paths time out
+        LOG.warn(
+          String.format(
+            "Timed out waiting to read %d of %d paths",
+            paths.size() - futures.size(),
+            paths.size()
+          )
+        );
+        break;
+      }
+      inFlight.inc();
 
-  private static class GetDataCallback<T> implements BackgroundCallback {
-    private final Map<String, T> dataMap;
-    private final Function<byte[], T> transformFunction;
-    private final CountDownLatch countDownLatch;
-    private final Queue<KeeperException> exceptions;
-
-    private GetDataCallback(
-      Map<String, T> dataMap,
-      Function<byte[], T> transformFunction,
-      CountDownLatch countDownLatch,
-      Queue<KeeperException> exceptions
-    ) {
-      this.dataMap = dataMap;
-      this.transformFunction = transformFunction;
-      this.countDownLatch = countDownLatch;
-      this.exceptions = exceptions;
+      final CompletableFuture<Object> future = new CompletableFuture<>();
+      futures.put(path, future);
+      deadlines.put(path, System.currentTimeMillis() + pathTimeoutMillis);
+      try {
+        read.forPath(
+          path,
+          (client, event) -> {
+            release();
+            handleResult(event, parse, future);
+          }
+        );
+      } catch (Exception e) {
+        release();
+        future.completeExceptionally(e);
+      }
     }
 
-    @Override
-    public void processResult(CuratorFramework client, CuratorEvent event)
-      throws Exception {
+    final Map<String, T> data = new HashMap<>(futures.size());
+    final List<Exception> failures = new ArrayList<>();
+    int timedOut = 0;
+    for (String path : paths) {
+      final CompletableFuture<Object> future = futures.get(path);
+      if (future == null) {
+        timedOut++;
+        continue;
+      }
       try {
-        KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
-
-        switch (code) {
-          case OK:
-            T data = event.getData() == null
-              ? null
-              : transformFunction.apply(event.getData());
-            dataMap.put(ZKPaths.getNodeFromPath(event.getPath()), data);
-            break;
-          case NONODE:
-            // In this case there was a race condition in which the child node was deleted before we asked for data.
-            break;
-          default:
-            exceptions.add(KeeperException.create(code, event.getPath()));
+        final Object value = future.get(
+          Math.max(0, deadlines.get(path) - System.currentTimeMillis()),
+          TimeUnit.MILLISECONDS
+        );
+        // Nodes without data are left out, as a concurrent map would never hold them
+        if (value != NO_NODE && value != null) {
+          @SuppressWarnings("unchecked")
+          final T result = (T) value;
+          data.put(keyByPath ? path : ZKPaths.getNodeFromPath(path), result);
+        }
+      } catch (TimeoutException e) {
+        timedOut++;
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof ParseFailure) {
+          // Nodes that can't be parsed are left out, as they have always been
+          LOG.error(String.format("Could not parse %s", path), e.getCause().getCause());
+        } else {
+          final Exception failure = e.getCause() instanceof Exception
+            ? (Exception) e.getCause()
+            : e;
+          LOG.error(failure);
+          failures.add(failure);
         }
-      } finally {
-        countDownLatch.countDown();
       }
     }
+
+    if (!failures.isEmpty()) {
+      throw failures.get(0);
+    }
+    if (timedOut > 0) {
+      throw new TimeoutException(
+        String.format(
+          "ZkParallelFetcher timed out waiting for %d paths, got %d",
+          timedOut,
+          data.size()
+        )
+      );
+    }
+    return data;
   }
 
-  private static class GetChildrenCallback implements BackgroundCallback {
-    private final Map<String, Collection<String>> childMap;
-    private final CountDownLatch countDownLatch;
-    private final Queue<KeeperException> exceptions;
-
-    private GetChildrenCallback(
-      Map<String, Collection<String>> childMap,
-      CountDownLatch countDownLatch,
-      Queue<KeeperException> exceptions
-    ) {
-      this.childMap = childMap;
-      this.countDownLatch = countDownLatch;
-      this.exceptions = exceptions;
+  private <T> void handleResult(
+    CuratorEvent event,
+    Function<CuratorEvent, T> parse,
+    CompletableFuture<Object> future
+  ) {
+    final KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+    switch (code) {
+      case OK:
+        parsePool.execute(
+          () -> {
+            final Timer.Context context = parseTimer.time();
+            try {
+              future.complete(parse.apply(event));
+            } catch (Exception e) {
+              future.completeExceptionally(new ParseFailure(e));
+            } finally {
+              context.stop();
+            }
+          }
+        );
+        break;
+      case NONODE:
+        // In this case there was a race condition in which the node was deleted before we asked for it.
+        future.complete(NO_NODE);
+        break;
+      default:
+        future.completeExceptionally(KeeperException.create(code, event.getPath()));
     }
+  }
 
-    @Override
-    public void processResult(CuratorFramework client, CuratorEvent event)
-      throws Exception {
-      try {
-        KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
-
-        switch (code) {
-          case OK:
-            childMap.put(
-              ZKPaths.getNodeFromPath(event.getPath()),
-              new HashSet<>(event.getChildren())
-            );
-            break;
-          case NONODE:
-            // In this case there was a race condition in which the child node was deleted before we asked for data.
-            break;
-          default:
-            exceptions.add(KeeperException.create(code, event.getPath()));
-        }
-      } finally {
-        countDownLatch.countDown();
-      }
+  private void release() {
+    inFlight.dec();
+    window.release();
+  }
+
+  private interface BackgroundRead {
+    void forPath(String path, BackgroundCallback callback) throws Exception;
+  }
+
+  private static class ParseFailure extends RuntimeException {
+
+    private ParseFailure(Exception cause) {
+      super(cause);
     }
   }
 }
@@ -0,0 +1,170 @@
+package com.hubspot.baragon.cache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.data.ZooKeeperTestState;
+import com.hubspot.baragon.models.BaragonRequestBuilder;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BaragonStateDelta;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BaragonStateCacheTest {
+  private ZooKeeperTestState zk;
+  private ObjectMapper objectMapper;
+  private CountingStateDatastore stateDatastore;
+  private BaragonStateCache stateCache;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zk = new ZooKeeperTestState();
+    objectMapper = zk.getObjectMapper();
+    stateDatastore = new CountingStateDatastore(zk);
+    stateCache = new BaragonStateCache(stateDatastore, objectMapper);
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    zk.close();
+  }
+
+  @Test
+  public void itPatchesTheChangedServicesIntoTheCachedState() throws Exception {
+    saveService("kept", "10.0.0.1:80");
+    saveService("updated", "10.0.0.2:80");
+    saveService("removed", "10.0.0.3:80");
+    stateDatastore.incrementStateVersion(ImmutableSet.of("kept", "updated", "removed"));
+    CachedBaragonState initial = stateCache.getState();
+    assertEquals(1, stateDatastore.fullFetches.get());
+
+    saveService("updated", "10.0.0.4:80");
+    stateDatastore.incrementStateVersion(ImmutableSet.of("updated"));
+    stateDatastore.removeService("removed");
+    saveService("added", "10.0.0.5:80");
+    stateDatastore.incrementStateVersion(ImmutableSet.of("removed", "added"));
+
+    CachedBaragonState patched = stateCache.getState();
+    assertEquals(1, stateDatastore.fullFetches.get());
+    assertEquals(initial.getVersion() + 2, patched.getVersion());
+    BaragonStateSnapshot snapshot = patched.getSnapshot();
+    assertEquals(
+      ImmutableSet.of("kept", "updated", "added"),
+      snapshot.getServicesById().keySet()
+    );
+    assertEquals(
+      ImmutableSet.of("updated"),
+      snapshot.getServiceIdsForUpstream("10.0.0.4:80")
+    );
+    assertTrue(snapshot.getServiceIdsForUpstream("10.0.0.2:80").isEmpty());
+
+    // The patched bytes are the same as those of a state computed from scratch
+    BaragonStateCache freshCache = new BaragonStateCache(stateDatastore, objectMapper);
+    CachedBaragonState recomputed = freshCache.getState();
+    assertEquals(2, stateDatastore.fullFetches.get());
+    assertArrayEquals(recomputed.getUncompressed(), patched.getUncompressed());
+  }
+
+  @Test
+  public void itRecomputesTheStateWhenTheChangesArentKnown() throws Exception {
+    saveService("first", "10.0.0.1:80");
+    stateDatastore.incrementStateVersion(ImmutableSet.of("first"));
+    stateCache.getState();
+
+    saveService("second", "10.0.0.2:80");
+    stateDatastore.incrementStateVersion();
+
+    CachedBaragonState state = stateCache.getState();
+    assertEquals(2, stateDatastore.fullFetches.get());
+    assertEquals(
+      ImmutableSet.of("first", "second"),
+      state.getSnapshot().getServicesById().keySet()
+    );
+    // Nothing before the recomputed version can be served as a delta
+    assertTrue(stateCache.getDelta(state.getVersion() - 1).isFullState());
+  }
+
+  @Test
+  public void itServesDeltasOfThePatchedVersions() throws Exception {
+    saveService("first", "10.0.0.1:80");
+    stateDatastore.incrementStateVersion(ImmutableSet.of("first"));
+    int version = stateCache.getState().getVersion();
+
+    saveService("second", "10.0.0.2:80");
+    stateDatastore.incrementStateVersion(ImmutableSet.of("second"));
+    stateDatastore.removeService("first");
+    stateDatastore.incrementStateVersion(ImmutableSet.of("first"));
+
+    BaragonStateDelta delta = stateCache.getDelta(version);
+    assertFalse(delta.isFullState());
+    assertEquals(version + 2, delta.getToVersion());
+    assertEquals(1, delta.getUpdatedServices().size());
+    assertEquals(
+      "second",
+      delta.getUpdatedServices().iterator().next().getService().getServiceId()
+    );
+    assertEquals(
+      ImmutableList.of("first"),
+      ImmutableList.copyOf(delta.getRemovedServiceIds())
+    );
+    assertEquals(1, stateDatastore.fullFetches.get());
+  }
+
+  private void saveService(String serviceId, String upstream) throws Exception {
+    stateDatastore.updateService(
+      new BaragonRequestBuilder()
+        .setLoadBalancerRequestId(serviceId + "-" + System.nanoTime())
+        .setLoadBalancerService(
+          new BaragonService(
+            serviceId,
+            Collections.emptySet(),
+            "/" + serviceId,
+            ImmutableSet.of("test"),
+            Collections.emptyMap()
+          )
+        )
+        .setAddUpstreams(Collections.emptyList())
+        .setRemoveUpstreams(Collections.emptyList())
+        .setReplaceUpstreams(
+          ImmutableList.of(
+            new UpstreamInfo(upstream, Optional.absent(), Optional.absent())
+          )
+        )
+        .build()
+    );
+  }
+
+  // Counts how often the state had to be computed from scratch
+  private static class CountingStateDatastore extends BaragonStateDatastore {
+    private final AtomicInteger fullFetches = new AtomicInteger();
+
+    CountingStateDatastore(ZooKeeperTestState zk) {
+      super(
+        zk.getCuratorFramework(),
+        zk.getObjectMapper(),
+        zk.newZkFetcher(new MetricRegistry()),
+        zk.getZooKeeperConfiguration()
+      );
+    }
+
+    @Override
+    public Collection<BaragonServiceState> getGlobalState() {
+      fullFetches.incrementAndGet();
+      return super.getGlobalState();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.hubspot.baragon.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.Collections;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class BaragonStateSnapshotTest {
+
+  @Test
+  public void itIndexesServicesByUpstreamAndGroup() {
+    BaragonStateSnapshot snapshot = new BaragonStateSnapshot(
+      ImmutableList.of(
+        state("service1", "/one", ImmutableSet.of("lb1"), "host1:8080", "host2:8080"),
+        state("service2", "/two", ImmutableSet.of("lb1", "lb2"), "host2:8080")
+      ),
+      3
+    );
+
+    assertEquals(3, snapshot.getVersion());
+    assertEquals(2, snapshot.getServices().size());
+    assertEquals(
+      ImmutableSet.of("service1"),
+      snapshot.getServiceIdsForUpstream("host1:8080")
+    );
+    assertEquals(
+      ImmutableSet.of("service1", "service2"),
+      snapshot.getServiceIdsForUpstream("host2:8080")
+    );
+    assertTrue(snapshot.getServicesForUpstream("host3:8080").isEmpty());
+    assertEquals(2, snapshot.getServicesForGroup("lb1").size());
+    assertEquals(1, snapshot.getServicesForGroup("lb2").size());
+    assertEquals(
+      "/one",
+      snapshot.getService("service1").get().getService().getServiceBasePath()
+    );
+  }
+
+  private static BaragonServiceState state(
+    String serviceId,
+    String basePath,
+    Set<String> groups,
+    String... upstreams
+  ) {
+    ImmutableList.Builder<UpstreamInfo> upstreamInfos = ImmutableList.builder();
+    for (String upstream : upstreams) {
+      upstreamInfos.add(new UpstreamInfo(upstream, Optional.absent(), Optional.absent()));
+    }
+    return new BaragonServiceState(
+      new BaragonService(
+        serviceId,
+        Collections.emptySet(),
+        basePath,
+        groups,
+        Collections.emptyMap()
+      ),
+      upstreamInfos.build()
+    );
+  }
+}
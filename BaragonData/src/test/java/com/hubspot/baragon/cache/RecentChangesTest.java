@@ -0,0 +1,75 @@
+package com.hubspot.baragon.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.cache.BaragonStateCache.RecentChanges;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class RecentChangesTest {
+
+  @Test
+  public void itCombinesTheChangesBetweenTwoVersions() {
+    RecentChanges changes = RecentChanges
+      .startingAt(5)
+      .append(5, 6, ImmutableSet.of("a"))
+      .append(6, 8, ImmutableSet.of("b", "c"));
+
+    assertEquals(8, changes.getLatestVersion());
+    assertEquals(
+      Optional.of(ImmutableSet.of("a", "b", "c")),
+      changes.getChangedServiceIds(5, 8)
+    );
+    assertEquals(
+      Optional.of(ImmutableSet.of("b", "c")),
+      changes.getChangedServiceIds(6, 8)
+    );
+    // Versions patched in together can't be told apart
+    assertEquals(
+      Optional.of(ImmutableSet.of("b", "c")),
+      changes.getChangedServiceIds(7, 8)
+    );
+    assertEquals(Optional.of(ImmutableSet.of()), changes.getChangedServiceIds(8, 8));
+  }
+
+  @Test
+  public void itDoesntKnowChangesOutsideOfItsVersions() {
+    RecentChanges changes = RecentChanges
+      .startingAt(5)
+      .append(5, 6, ImmutableSet.of("a"));
+
+    assertFalse(changes.getChangedServiceIds(4, 6).isPresent());
+    assertFalse(changes.getChangedServiceIds(5, 7).isPresent());
+    assertFalse(changes.getChangedServiceIds(6, 5).isPresent());
+  }
+
+  @Test
+  public void itStartsOverAfterAGap() {
+    RecentChanges changes = RecentChanges
+      .startingAt(5)
+      .append(5, 6, ImmutableSet.of("a"))
+      .append(7, 8, ImmutableSet.of("b"));
+
+    assertEquals(8, changes.getLatestVersion());
+    assertFalse(changes.getChangedServiceIds(6, 8).isPresent());
+    assertEquals(Optional.of(ImmutableSet.of()), changes.getChangedServiceIds(8, 8));
+  }
+
+  @Test
+  public void itOnlyKeepsAsManyVersionsAsTheChangelog() {
+    int latestVersion = BaragonStateDatastore.CHANGELOG_SIZE + 2;
+    RecentChanges changes = RecentChanges.startingAt(0);
+    for (int version = 1; version <= latestVersion; version++) {
+      changes = changes.append(version - 1, version, ImmutableSet.of("s" + version));
+    }
+
+    assertFalse(changes.getChangedServiceIds(1, latestVersion).isPresent());
+    Optional<Set<String>> kept = changes.getChangedServiceIds(2, latestVersion);
+    assertEquals(BaragonStateDatastore.CHANGELOG_SIZE, kept.get().size());
+    assertFalse(kept.get().contains("s2"));
+  }
+}
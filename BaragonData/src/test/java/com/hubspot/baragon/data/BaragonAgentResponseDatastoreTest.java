@@ -0,0 +1,146 @@
+package com.hubspot.baragon.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.models.AgentRequestType;
+import com.hubspot.baragon.models.AgentResponse;
+import com.hubspot.baragon.models.AgentResponseId;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BaragonAgentResponseDatastoreTest {
+  private static final String FIRST_AGENT = "http://agent1:8882/baragon-agent/v2";
+  private static final String SECOND_AGENT = "http://agent2:8882/baragon-agent/v2";
+  private static final List<String> AGENTS = ImmutableList.of(FIRST_AGENT, SECOND_AGENT);
+
+  private ZooKeeperTestState zk;
+  private BaragonAgentResponseDatastore agentResponseDatastore;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zk = new ZooKeeperTestState();
+    agentResponseDatastore =
+      new BaragonAgentResponseDatastore(
+        zk.getCuratorFramework(),
+        zk.getObjectMapper(),
+        zk.getZooKeeperConfiguration(),
+        zk.newZkFetcher(new MetricRegistry())
+      );
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    zk.close();
+  }
+
+  @Test
+  public void itReadsTheSameResponsesAsThePerRequestReads() {
+    // One agent is still working on the request, the other failed once then succeeded
+    agentResponseDatastore.setPendingRequestStatus("applying", FIRST_AGENT, true);
+    addResponse("applying", AgentRequestType.APPLY, SECOND_AGENT, 500);
+    addResponse("applying", AgentRequestType.APPLY, SECOND_AGENT, 200);
+    // Responses of different types are kept apart
+    addResponse("reverting", AgentRequestType.APPLY, FIRST_AGENT, 500);
+    addResponse("reverting", AgentRequestType.REVERT, FIRST_AGENT, 200);
+
+    List<String> requestIds = ImmutableList.of("applying", "reverting", "unsent");
+    Map<String, RequestAgentResponses> responses;
+    responses = agentResponseDatastore.getRequestAgentResponses(requestIds);
+
+    assertEquals(ImmutableSet.copyOf(requestIds), responses.keySet());
+    for (String requestId : requestIds) {
+      RequestAgentResponses requestResponses = responses.get(requestId);
+      assertEquals(requestId, requestResponses.getRequestId());
+      for (String agent : AGENTS) {
+        assertEquals(
+          agentResponseDatastore.getPendingRequest(requestId, agent),
+          requestResponses.getPendingRequest(agent)
+        );
+        for (AgentRequestType requestType : AgentRequestType.values()) {
+          assertEquals(
+            agentResponseDatastore.getLastAgentResponseId(requestId, requestType, agent),
+            requestResponses.getLastAgentResponseId(requestType, agent)
+          );
+          assertEquals(
+            lastResponse(requestId, requestType, agent),
+            requestResponses.getLastAgentResponse(requestType, agent)
+          );
+        }
+      }
+    }
+
+    RequestAgentResponses applying = responses.get("applying");
+    assertTrue(applying.getPendingRequest(FIRST_AGENT).isPresent());
+    assertEquals(
+      Optional.of(200),
+      applying
+        .getLastAgentResponse(AgentRequestType.APPLY, SECOND_AGENT)
+        .get()
+        .getStatusCode()
+    );
+    assertEquals(
+      Optional.of(200),
+      responses
+        .get("reverting")
+        .getLastAgentResponse(AgentRequestType.REVERT, FIRST_AGENT)
+        .get()
+        .getStatusCode()
+    );
+    assertFalse(responses.get("unsent").hasAgentResponses());
+  }
+
+  @Test
+  public void itReadsNothingForNoRequests() {
+    assertTrue(
+      agentResponseDatastore.getRequestAgentResponses(Collections.emptyList()).isEmpty()
+    );
+  }
+
+  private void addResponse(
+    String requestId,
+    AgentRequestType requestType,
+    String agent,
+    int statusCode
+  ) {
+    agentResponseDatastore.addAgentResponse(
+      requestId,
+      requestType,
+      agent,
+      agent + "/request/" + requestId,
+      Optional.of(statusCode),
+      Optional.absent(),
+      Optional.absent()
+    );
+  }
+
+  private Optional<AgentResponse> lastResponse(
+    String requestId,
+    AgentRequestType requestType,
+    String agent
+  ) {
+    Optional<AgentResponseId> responseId = agentResponseDatastore.getLastAgentResponseId(
+      requestId,
+      requestType,
+      agent
+    );
+    if (!responseId.isPresent()) {
+      return Optional.absent();
+    }
+    return agentResponseDatastore.getAgentResponse(
+      requestId,
+      requestType,
+      responseId.get(),
+      agent
+    );
+  }
+}
@@ -0,0 +1,246 @@
+package com.hubspot.baragon.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonRequestBuilder;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.InternalRequestStates;
+import com.hubspot.baragon.models.QueuedRequestId;
+import com.hubspot.baragon.models.QueuedRequestWithState;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import org.apache.curator.framework.CuratorFramework;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BaragonRequestDatastoreTest {
+  private static final long WAIT_MILLIS = 10000;
+
+  private ZooKeeperTestState zk;
+  private ToggledRequestDatastore requestDatastore;
+  // Another instance, which always reads from zk
+  private BaragonRequestDatastore otherInstance;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zk = new ZooKeeperTestState();
+    requestDatastore =
+      new ToggledRequestDatastore(
+        zk.getCuratorFramework(),
+        zk.getObjectMapper(),
+        zk.getZooKeeperConfiguration()
+      );
+    otherInstance = zk.getRequestDatastore();
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    requestDatastore.stopQueueView();
+    zk.close();
+  }
+
+  @Test
+  public void itServesLocalWritesUntilTheCacheCatchesUp() throws Exception {
+    requestDatastore.startQueueView();
+    otherInstance.enqueueRequest(
+      request("local", "10.0.0.1:80"),
+      InternalRequestStates.PENDING
+    );
+    awaitStates(InternalRequestStates.PENDING);
+
+    // Visible right away, before the cache has seen the write
+    requestDatastore.setRequestState("local", InternalRequestStates.SEND_APPLY_REQUESTS);
+    assertEquals(ImmutableList.of(InternalRequestStates.SEND_APPLY_REQUESTS), states());
+
+    BaragonRequest updated = request("local", "10.0.0.2:80");
+    requestDatastore.updateRequest(updated);
+    assertEquals(updated, firstRequest());
+
+    // A later write of another instance replaces the local one once its event arrives
+    otherInstance.setRequestState("local", InternalRequestStates.CHECK_APPLY_RESPONSES);
+    awaitStates(InternalRequestStates.CHECK_APPLY_RESPONSES);
+    assertEquals(updated, firstRequest());
+  }
+
+  @Test
+  public void itPicksUpChangesOfOtherInstances() throws Exception {
+    requestDatastore.startQueueView();
+    otherInstance.enqueueRequest(
+      request("first", "10.0.0.1:80"),
+      InternalRequestStates.PENDING
+    );
+    otherInstance.enqueueRequest(
+      request("second", "10.0.0.1:80"),
+      InternalRequestStates.PENDING
+    );
+    awaitQueueView(() -> requestDatastore.getQueuedRequestsWithState().size() == 2);
+
+    otherInstance.updateRequest(request("first", "10.0.0.3:80"));
+    otherInstance.setRequestState("second", InternalRequestStates.COMPLETED);
+    awaitQueueView(
+      () ->
+        requestDatastore
+          .getQueuedRequestsWithState()
+          .equals(otherInstance.getQueuedRequestsWithState())
+    );
+
+    List<QueuedRequestWithState> queued = requestDatastore.getQueuedRequestsWithState();
+    assertEquals(otherInstance.getRequest("first").get(), queued.get(0).getRequest());
+    assertEquals(InternalRequestStates.COMPLETED, queued.get(1).getCurrentState());
+  }
+
+  @Test
+  public void itHidesLocallyRemovedRequestsRightAway() throws Exception {
+    requestDatastore.startQueueView();
+    QueuedRequestId queuedRequestId = otherInstance.enqueueRequest(
+      request("removed", "10.0.0.1:80"),
+      InternalRequestStates.COMPLETED
+    );
+    awaitQueueView(() -> requestDatastore.getQueuedRequestsWithState().size() == 1);
+
+    requestDatastore.removeQueuedRequest(queuedRequestId);
+    assertTrue(requestDatastore.getQueuedRequestsWithState().isEmpty());
+
+    // Later queue nodes aren't hidden by the removal
+    otherInstance.enqueueRequest(
+      request("readded", "10.0.0.1:80"),
+      InternalRequestStates.PENDING
+    );
+    awaitQueueView(() -> requestDatastore.getQueuedRequestsWithState().size() == 1);
+  }
+
+  @Test
+  public void itForgetsDeletedRequests() throws Exception {
+    requestDatastore.startQueueView();
+    QueuedRequestId queuedRequestId = otherInstance.enqueueRequest(
+      request("deleted", "10.0.0.1:80"),
+      InternalRequestStates.PENDING
+    );
+    requestDatastore.setRequestState("deleted", InternalRequestStates.COMPLETED);
+    awaitStates(InternalRequestStates.COMPLETED);
+
+    // A request that is deleted and queued again under the same id starts over
+    otherInstance.removeQueuedRequest(queuedRequestId);
+    otherInstance.deleteRequest("deleted");
+    awaitQueueView(() -> requestDatastore.getQueuedRequestsWithState().isEmpty());
+    otherInstance.enqueueRequest(
+      request("deleted", "10.0.0.1:80"),
+      InternalRequestStates.PENDING
+    );
+    awaitStates(InternalRequestStates.PENDING);
+  }
+
+  @Test
+  public void itReadsFromZkUntilTheCacheIsInitialized() throws Exception {
+    requestDatastore.initialized = false;
+    requestDatastore.startQueueView();
+    assertTrue(requestDatastore.isQueueViewStarted());
+
+    otherInstance.enqueueRequest(
+      request("early", "10.0.0.1:80"),
+      InternalRequestStates.PENDING
+    );
+    otherInstance.setRequestState("early", InternalRequestStates.SEND_APPLY_REQUESTS);
+    // Read straight from zk, without waiting for any cache event
+    assertEquals(
+      otherInstance.getQueuedRequestsWithState(),
+      requestDatastore.getQueuedRequestsWithState()
+    );
+    assertEquals(ImmutableList.of(InternalRequestStates.SEND_APPLY_REQUESTS), states());
+
+    requestDatastore.initialized = true;
+    awaitQueueView(
+      () ->
+        requestDatastore
+          .getQueuedRequestsWithState()
+          .equals(otherInstance.getQueuedRequestsWithState())
+    );
+  }
+
+  @Test
+  public void itReadsFromZkWithoutAQueueView() throws Exception {
+    otherInstance.enqueueRequest(
+      request("unviewed", "10.0.0.1:80"),
+      InternalRequestStates.PENDING
+    );
+    assertFalse(requestDatastore.isQueueViewStarted());
+    assertEquals(ImmutableList.of(InternalRequestStates.PENDING), states());
+  }
+
+  private List<InternalRequestStates> states() {
+    return ImmutableList.copyOf(
+      requestDatastore
+        .getQueuedRequestsWithState()
+        .stream()
+        .map(QueuedRequestWithState::getCurrentState)
+        .iterator()
+    );
+  }
+
+  private BaragonRequest firstRequest() {
+    return requestDatastore.getQueuedRequestsWithState().get(0).getRequest();
+  }
+
+  private void awaitStates(InternalRequestStates... expected) throws Exception {
+    awaitQueueView(() -> states().equals(ImmutableList.copyOf(expected)));
+  }
+
+  private static void awaitQueueView(BooleanSupplier condition) throws Exception {
+    long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+    while (!condition.getAsBoolean()) {
+      assertTrue(
+        System.currentTimeMillis() < deadline,
+        "Queue view did not catch up"
+      );
+      Thread.sleep(20);
+    }
+  }
+
+  private static BaragonRequest request(String requestId, String upstream) {
+    return new BaragonRequestBuilder()
+      .setLoadBalancerRequestId(requestId)
+      .setLoadBalancerService(
+        new BaragonService(
+          "service",
+          Collections.emptySet(),
+          "/service",
+          ImmutableSet.of("test"),
+          Collections.emptyMap()
+        )
+      )
+      .setAddUpstreams(
+        ImmutableList.of(new UpstreamInfo(upstream, Optional.absent(), Optional.absent()))
+      )
+      .setRemoveUpstreams(Collections.emptyList())
+      .build();
+  }
+
+  // Lets a test hold off the queue view as if its request cache was still loading
+  private static class ToggledRequestDatastore extends BaragonRequestDatastore {
+    private volatile boolean initialized = true;
+
+    ToggledRequestDatastore(
+      CuratorFramework curatorFramework,
+      ObjectMapper objectMapper,
+      ZooKeeperConfiguration zooKeeperConfiguration
+    ) {
+      super(curatorFramework, objectMapper, zooKeeperConfiguration);
+    }
+
+    @Override
+    boolean isQueueViewInitialized() {
+      return initialized && super.isQueueViewInitialized();
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.hubspot.baragon.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.CreateMode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BaragonStateDatastoreTest {
+  private ZooKeeperTestState zk;
+  private CuratorFramework curatorFramework;
+  private BaragonStateDatastore stateDatastore;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zk = new ZooKeeperTestState();
+    curatorFramework = zk.getCuratorFramework();
+    stateDatastore = zk.getStateDatastore();
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    zk.close();
+  }
+
+  @Test
+  public void itRecordsTheChangesOfEachVersion() {
+    // The first version is always computed in full
+    stateDatastore.incrementStateVersion(ImmutableSet.of("a"));
+    assertEquals(Optional.of(0), stateDatastore.getStateVersion());
+
+    stateDatastore.incrementStateVersion(ImmutableSet.of("b"));
+    stateDatastore.incrementStateVersion(ImmutableSet.of("c", "d"));
+    assertEquals(Optional.of(2), stateDatastore.getStateVersion());
+
+    assertEquals(
+      Optional.of(ImmutableSet.of("b", "c", "d")),
+      stateDatastore.getChangedServiceIds(0, 2)
+    );
+    assertEquals(
+      Optional.of(ImmutableSet.of("c", "d")),
+      stateDatastore.getChangedServiceIds(1, 2)
+    );
+    assertEquals(
+      Optional.of(ImmutableSet.of()),
+      stateDatastore.getChangedServiceIds(2, 2)
+    );
+    assertFalse(stateDatastore.getChangedServiceIds(-1, 2).isPresent());
+    assertFalse(stateDatastore.getChangedServiceIds(0, 3).isPresent());
+  }
+
+  @Test
+  public void itDoesntKnowTheChangesOfAnUnrecordedVersion() {
+    stateDatastore.incrementStateVersion(ImmutableSet.of("a"));
+    stateDatastore.incrementStateVersion(ImmutableSet.of("b"));
+    stateDatastore.incrementStateVersion();
+    stateDatastore.incrementStateVersion(ImmutableSet.of("c"));
+
+    assertFalse(stateDatastore.getChangedServiceIds(0, 3).isPresent());
+    assertFalse(stateDatastore.getChangedServiceIds(1, 3).isPresent());
+    assertEquals(
+      Optional.of(ImmutableSet.of("c")),
+      stateDatastore.getChangedServiceIds(2, 3)
+    );
+  }
+
+  @Test
+  public void itReplacesAnEntryLeftOverForTheNextVersion() throws Exception {
+    stateDatastore.incrementStateVersion(ImmutableSet.of("a"));
+    // e.g. written before the version node was deleted and created again
+    curatorFramework
+      .create()
+      .forPath(
+        String.format(BaragonStateDatastore.CHANGELOG_ENTRY_FORMAT, 1),
+        "[\"stale\"]".getBytes(StandardCharsets.UTF_8)
+      );
+
+    stateDatastore.incrementStateVersion(ImmutableSet.of("fresh"));
+
+    assertEquals(Optional.of(1), stateDatastore.getStateVersion());
+    assertEquals(
+      Optional.of(ImmutableSet.of("fresh")),
+      stateDatastore.getChangedServiceIds(0, 1)
+    );
+  }
+
+  @Test
+  public void itBumpsTheVersionWithoutAnEntryWhenItCantRecordOne() throws Exception {
+    stateDatastore.incrementStateVersion(ImmutableSet.of("a"));
+    // Ephemeral nodes can't have children, so no entry can be written
+    curatorFramework.delete().forPath(BaragonStateDatastore.CHANGELOG_FORMAT);
+    curatorFramework
+      .create()
+      .withMode(CreateMode.EPHEMERAL)
+      .forPath(BaragonStateDatastore.CHANGELOG_FORMAT);
+
+    stateDatastore.incrementStateVersion(ImmutableSet.of("b"));
+
+    assertEquals(Optional.of(1), stateDatastore.getStateVersion());
+    assertFalse(stateDatastore.getChangedServiceIds(0, 1).isPresent());
+  }
+
+  @Test
+  public void itGivesConcurrentIncrementsTheirOwnVersion() throws Exception {
+    stateDatastore.incrementStateVersion(ImmutableSet.of("initial"));
+    int writers = 8;
+    ExecutorService executorService = Executors.newFixedThreadPool(writers);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < writers; i++) {
+        String serviceId = "service" + i;
+        futures.add(
+          executorService.submit(
+            () -> stateDatastore.incrementStateVersion(ImmutableList.of(serviceId))
+          )
+        );
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+
+    assertEquals(Optional.of(writers), stateDatastore.getStateVersion());
+    Set<String> changed = new HashSet<>();
+    for (int version = 1; version <= writers; version++) {
+      Set<String> changedInVersion = stateDatastore
+        .getChangedServiceIds(version - 1, version)
+        .get();
+      assertEquals(1, changedInVersion.size());
+      changed.addAll(changedInVersion);
+    }
+    assertEquals(writers, changed.size());
+  }
+}
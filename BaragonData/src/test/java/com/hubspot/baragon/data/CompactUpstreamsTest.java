@@ -0,0 +1,242 @@
+package com.hubspot.baragon.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.migrations.CompactUpstreamsMigration;
+import com.hubspot.baragon.migrations.ZkDataMigrationRunner;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.UpstreamBlob;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.curator.framework.CuratorFramework;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CompactUpstreamsTest {
+  private ZooKeeperTestState zk;
+  private BaragonStateDatastore stateDatastore;
+  private CuratorFramework curatorFramework;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zk = new ZooKeeperTestState();
+    stateDatastore = zk.getStateDatastore();
+    curatorFramework = zk.getCuratorFramework();
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    zk.close();
+  }
+
+  @Test
+  public void itStoresFewUpstreamsInline() throws Exception {
+    zk.getZooKeeperConfiguration().setCompactUpstreamsEnabled(true);
+    zk.saveService("inline", ZooKeeperTestState.GROUP, upstreams(0, 3));
+
+    UpstreamBlob blob = readBlob("inline");
+    assertFalse(blob.isChunked());
+    assertTrue(getChildren(servicePath("inline")).isEmpty());
+    assertTrue(getChildren(chunksPath("inline")).isEmpty());
+    assertEquals(
+      toSet(upstreams(0, 3)),
+      upstreamNames(stateDatastore.getUpstreams("inline"))
+    );
+    assertEquals(toSet(upstreams(0, 3)), globalStateUpstreams("inline"));
+  }
+
+  @Test
+  public void itSplitsManyUpstreamsIntoChunks() throws Exception {
+    zk.getZooKeeperConfiguration().setCompactUpstreamsEnabled(true);
+    zk.getZooKeeperConfiguration().setCompactUpstreamsChunkBytes(64);
+    zk.saveService("chunked", ZooKeeperTestState.GROUP, upstreams(0, 200));
+
+    UpstreamBlob blob = readBlob("chunked");
+    assertTrue(blob.isChunked());
+    assertTrue(blob.getChunkNames().size() > 1);
+    assertEquals(new HashSet<>(blob.getChunkNames()), getChildren(chunksPath("chunked")));
+    assertEquals(
+      toSet(upstreams(0, 200)),
+      upstreamNames(stateDatastore.getUpstreams("chunked"))
+    );
+    assertEquals(toSet(upstreams(0, 200)), globalStateUpstreams("chunked"));
+
+    // A new generation replaces the chunks of the one before
+    zk.saveService("chunked", ZooKeeperTestState.GROUP, upstreams(200, 201));
+    UpstreamBlob updated = readBlob("chunked");
+    awaitChildren(chunksPath("chunked"), new HashSet<>(updated.getChunkNames()));
+    assertEquals(
+      toSet(upstreams(0, 201)),
+      upstreamNames(stateDatastore.getUpstreams("chunked"))
+    );
+  }
+
+  @Test
+  public void itOnlyDeletesTheChunksOfTheReplacedGeneration() throws Exception {
+    zk.getZooKeeperConfiguration().setCompactUpstreamsEnabled(true);
+    zk.getZooKeeperConfiguration().setCompactUpstreamsChunkBytes(64);
+    zk.saveService("concurrent", ZooKeeperTestState.GROUP, upstreams(0, 100));
+    UpstreamBlob first = readBlob("concurrent");
+
+    // Chunks of another writer's generation, written ahead of its transaction
+    String otherChunk = UpstreamBlob.chunkName(first.getGeneration() + 1, 0);
+    curatorFramework
+      .create()
+      .forPath(chunksPath("concurrent") + "/" + otherChunk, new byte[] { 1 });
+
+    zk.saveService("concurrent", ZooKeeperTestState.GROUP, upstreams(100, 101));
+    UpstreamBlob second = readBlob("concurrent");
+    Set<String> expected = new HashSet<>(second.getChunkNames());
+    expected.add(otherChunk);
+    awaitChildren(chunksPath("concurrent"), expected);
+  }
+
+  @Test
+  public void itSwitchesBackToANodePerUpstream() throws Exception {
+    zk.getZooKeeperConfiguration().setCompactUpstreamsEnabled(true);
+    zk.getZooKeeperConfiguration().setCompactUpstreamsChunkBytes(64);
+    zk.saveService("switchBack", ZooKeeperTestState.GROUP, upstreams(0, 50));
+    assertTrue(readBlob("switchBack").isChunked());
+
+    zk.getZooKeeperConfiguration().setCompactUpstreamsEnabled(false);
+    zk.saveService("switchBack", ZooKeeperTestState.GROUP, upstreams(50, 51));
+
+    assertNull(curatorFramework.checkExists().forPath(blobPath("switchBack")));
+    assertEquals(51, getChildren(servicePath("switchBack")).size());
+    assertEquals(
+      toSet(upstreams(0, 51)),
+      upstreamNames(stateDatastore.getUpstreams("switchBack"))
+    );
+    assertEquals(toSet(upstreams(0, 51)), globalStateUpstreams("switchBack"));
+    awaitChildren(chunksPath("switchBack"), new HashSet<>());
+  }
+
+  @Test
+  public void itMigratesServicesIntoBlobs() throws Exception {
+    zk.saveService("first", ZooKeeperTestState.GROUP, upstreams(0, 10));
+    zk.saveService("second", ZooKeeperTestState.GROUP, upstreams(10, 12));
+    assertNull(curatorFramework.checkExists().forPath(blobPath("first")));
+
+    zk.getZooKeeperConfiguration().setCompactUpstreamsEnabled(true);
+    CompactUpstreamsMigration migration = new CompactUpstreamsMigration(
+      stateDatastore,
+      zk.getZooKeeperConfiguration()
+    );
+    migration.applyMigration();
+
+    assertNotNull(curatorFramework.checkExists().forPath(blobPath("first")));
+    assertNotNull(curatorFramework.checkExists().forPath(blobPath("second")));
+    awaitChildren(servicePath("first"), new HashSet<>());
+    awaitChildren(servicePath("second"), new HashSet<>());
+    assertEquals(
+      toSet(upstreams(0, 10)),
+      upstreamNames(stateDatastore.getUpstreams("first"))
+    );
+    assertEquals(toSet(upstreams(10, 12)), globalStateUpstreams("second"));
+  }
+
+  @Test
+  public void itRunsTheMigrationOnceCompactUpstreamsAreEnabled() throws Exception {
+    zk.saveService("later", ZooKeeperTestState.GROUP, upstreams(0, 10));
+    BaragonZkMetaDatastore metaDatastore = new BaragonZkMetaDatastore(
+      curatorFramework,
+      zk.getObjectMapper(),
+      zk.getZooKeeperConfiguration()
+    );
+    metaDatastore.setZkDataVersion("2");
+    ZkDataMigrationRunner runner = new ZkDataMigrationRunner(
+      metaDatastore,
+      ImmutableSet.of(
+        new CompactUpstreamsMigration(stateDatastore, zk.getZooKeeperConfiguration())
+      )
+    );
+
+    assertEquals(0, runner.checkMigrations());
+    assertEquals(Optional.of("2"), metaDatastore.getZkDataVersion());
+    assertNull(curatorFramework.checkExists().forPath(blobPath("later")));
+
+    // Enabled by a restart with the new configuration, checked again on leadership
+    zk.getZooKeeperConfiguration().setCompactUpstreamsEnabled(true);
+    assertEquals(1, runner.checkMigrations());
+    assertEquals(Optional.of("3"), metaDatastore.getZkDataVersion());
+    assertNotNull(curatorFramework.checkExists().forPath(blobPath("later")));
+    awaitChildren(servicePath("later"), new HashSet<>());
+    assertEquals(
+      toSet(upstreams(0, 10)),
+      upstreamNames(stateDatastore.getUpstreams("later"))
+    );
+  }
+
+  private static String[] upstreams(int from, int to) {
+    return IntStream
+      .range(from, to)
+      .mapToObj(i -> String.format("10.0.%d.%d:8080", i / 256, i % 256))
+      .toArray(String[]::new);
+  }
+
+  private static Set<String> toSet(String[] upstreams) {
+    Set<String> set = new HashSet<>();
+    for (String upstream : upstreams) {
+      set.add(upstream);
+    }
+    return set;
+  }
+
+  private static Set<String> upstreamNames(Collection<UpstreamInfo> upstreams) {
+    return upstreams.stream().map(UpstreamInfo::getUpstream).collect(Collectors.toSet());
+  }
+
+  private Set<String> globalStateUpstreams(String serviceId) {
+    for (BaragonServiceState state : stateDatastore.getGlobalState()) {
+      if (state.getService().getServiceId().equals(serviceId)) {
+        return upstreamNames(state.getUpstreams());
+      }
+    }
+    throw new AssertionError("No state for " + serviceId);
+  }
+
+  private UpstreamBlob readBlob(String serviceId) throws Exception {
+    return UpstreamBlob.fromBytes(
+      curatorFramework.getData().forPath(blobPath(serviceId))
+    );
+  }
+
+  private Set<String> getChildren(String path) throws Exception {
+    if (curatorFramework.checkExists().forPath(path) == null) {
+      return new HashSet<>();
+    }
+    return new HashSet<>(curatorFramework.getChildren().forPath(path));
+  }
+
+  // Old upstreams are deleted in the background once a write is committed
+  private void awaitChildren(String path, Set<String> expected) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!getChildren(path).equals(expected)) {
+      assertTrue(System.currentTimeMillis() < deadline, "Children of " + path);
+      Thread.sleep(10);
+    }
+  }
+
+  private static String servicePath(String serviceId) {
+    return String.format(BaragonStateDatastore.SERVICE_FORMAT, serviceId);
+  }
+
+  private static String blobPath(String serviceId) {
+    return String.format(BaragonStateDatastore.UPSTREAM_BLOB_FORMAT, serviceId);
+  }
+
+  private static String chunksPath(String serviceId) {
+    return String.format(BaragonStateDatastore.UPSTREAM_BLOB_CHUNKS_FORMAT, serviceId);
+  }
+}
@@ -0,0 +1,223 @@
+package com.hubspot.baragon.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonRequestBuilder;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.UpstreamInfo;
+import com.hubspot.baragon.utils.ZkParallelFetcher;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class UpdateServiceTest {
+  private ZooKeeperTestState zk;
+  private InterleavedStateDatastore stateDatastore;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zk = new ZooKeeperTestState();
+    stateDatastore =
+      new InterleavedStateDatastore(zk, zk.newZkFetcher(new MetricRegistry()));
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    zk.close();
+  }
+
+  @Test
+  public void itAddsRemovesAndReplacesUpstreams() throws Exception {
+    BaragonService service = zk.saveService(
+      "service",
+      ZooKeeperTestState.GROUP,
+      "10.0.0.1:8080",
+      "10.0.0.2:8080"
+    );
+
+    stateDatastore.updateService(
+      request(
+        service,
+        ZooKeeperTestState.toUpstreams("10.0.0.3:8080"),
+        ZooKeeperTestState.toUpstreams("10.0.0.1:8080"),
+        Collections.emptyList()
+      )
+    );
+    assertEquals(
+      ImmutableSet.of("10.0.0.2:8080", "10.0.0.3:8080"),
+      upstreamNames(stateDatastore.getUpstreams("service"))
+    );
+
+    // An added upstream takes the place of the one with the same address
+    UpstreamInfo racked = new UpstreamInfo(
+      "10.0.0.2:8080",
+      Optional.absent(),
+      Optional.of("rack1")
+    );
+    stateDatastore.updateService(
+      request(
+        service,
+        Collections.singletonList(racked),
+        Collections.emptyList(),
+        Collections.emptyList()
+      )
+    );
+    Collection<UpstreamInfo> upstreams = stateDatastore.getUpstreams("service");
+    assertEquals(2, upstreams.size());
+    assertEquals(
+      Optional.of("rack1"),
+      upstreams
+        .stream()
+        .filter(upstream -> upstream.getUpstream().equals("10.0.0.2:8080"))
+        .findFirst()
+        .get()
+        .getRackId()
+    );
+
+    stateDatastore.updateService(
+      request(
+        service,
+        Collections.emptyList(),
+        Collections.emptyList(),
+        ZooKeeperTestState.toUpstreams("10.0.0.4:8080", "10.0.0.5:8080")
+      )
+    );
+    assertEquals(
+      ImmutableSet.of("10.0.0.4:8080", "10.0.0.5:8080"),
+      upstreamNames(stateDatastore.getUpstreams("service"))
+    );
+    assertEquals(3, stateDatastore.commits.get());
+  }
+
+  @Test
+  public void itRetriesWhenTheServiceChangesBeforeTheCommit() throws Exception {
+    BaragonService service = zk.saveService(
+      "concurrent",
+      ZooKeeperTestState.GROUP,
+      "10.0.0.1:8080"
+    );
+    BaragonStateDatastore otherWriter = zk.getStateDatastore();
+    stateDatastore.beforeNextCommit =
+      () -> {
+        otherWriter.updateService(
+          request(
+            service,
+            ZooKeeperTestState.toUpstreams("10.0.0.9:8080"),
+            Collections.emptyList(),
+            Collections.emptyList()
+          )
+        );
+        return null;
+      };
+
+    stateDatastore.updateService(
+      request(
+        service,
+        ZooKeeperTestState.toUpstreams("10.0.0.2:8080"),
+        ZooKeeperTestState.toUpstreams("10.0.0.1:8080"),
+        Collections.emptyList()
+      )
+    );
+
+    // The first commit fails with a BadVersion, the second is planned from the new state
+    assertEquals(2, stateDatastore.commits.get());
+    assertEquals(
+      ImmutableSet.of("10.0.0.2:8080", "10.0.0.9:8080"),
+      upstreamNames(stateDatastore.getUpstreams("concurrent"))
+    );
+  }
+
+  @Test
+  public void itDoesntWriteAnUnchangedService() throws Exception {
+    BaragonService service = zk.saveService(
+      "unchanged",
+      ZooKeeperTestState.GROUP,
+      "10.0.0.1:8080"
+    );
+    Stat before = serviceStat("unchanged");
+
+    stateDatastore.updateService(
+      request(
+        service,
+        ZooKeeperTestState.toUpstreams("10.0.0.1:8080"),
+        Collections.emptyList(),
+        Collections.emptyList()
+      )
+    );
+
+    assertEquals(0, stateDatastore.commits.get());
+    Stat after = serviceStat("unchanged");
+    assertEquals(before.getVersion(), after.getVersion());
+    assertEquals(before.getCversion(), after.getCversion());
+  }
+
+  private static BaragonRequest request(
+    BaragonService service,
+    List<UpstreamInfo> addUpstreams,
+    List<UpstreamInfo> removeUpstreams,
+    List<UpstreamInfo> replaceUpstreams
+  ) {
+    return new BaragonRequestBuilder()
+      .setLoadBalancerRequestId(service.getServiceId() + "-" + System.nanoTime())
+      .setLoadBalancerService(service)
+      .setAddUpstreams(addUpstreams)
+      .setRemoveUpstreams(removeUpstreams)
+      .setReplaceUpstreams(replaceUpstreams)
+      .setAction(Optional.absent())
+      .build();
+  }
+
+  private static Set<String> upstreamNames(Collection<UpstreamInfo> upstreams) {
+    return upstreams.stream().map(UpstreamInfo::getUpstream).collect(Collectors.toSet());
+  }
+
+  private Stat serviceStat(String serviceId) throws Exception {
+    return zk
+      .getCuratorFramework()
+      .checkExists()
+      .forPath(String.format(BaragonStateDatastore.SERVICE_FORMAT, serviceId));
+  }
+
+  /*
+   * Counts the commits of service writes, and runs a change of another writer right
+   * before the next one
+   */
+  private static class InterleavedStateDatastore extends BaragonStateDatastore {
+    private final AtomicInteger commits = new AtomicInteger();
+    private volatile Callable<Void> beforeNextCommit = null;
+
+    InterleavedStateDatastore(ZooKeeperTestState zk, ZkParallelFetcher zkFetcher) {
+      super(
+        zk.getCuratorFramework(),
+        zk.getObjectMapper(),
+        zkFetcher,
+        zk.getZooKeeperConfiguration()
+      );
+    }
+
+    @Override
+    protected void commitServiceWrite(CuratorTransactionFinal transaction)
+      throws Exception {
+      commits.incrementAndGet();
+      Callable<Void> change = beforeNextCommit;
+      beforeNextCommit = null;
+      if (change != null) {
+        change.call();
+      }
+      super.commitServiceWrite(transaction);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.hubspot.baragon.data;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonRequestBuilder;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.UpstreamInfo;
+import com.hubspot.baragon.utils.ZkParallelFetcher;
+import io.dropwizard.jackson.Jackson;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+
+/*
+ * A ZooKeeper test server with a client and the datastores built on it, shared by the
+ * tests of everything that keeps its state in ZooKeeper
+ */
+public class ZooKeeperTestState implements AutoCloseable {
+  public static final String GROUP = "test";
+
+  private final TestingServer testingServer;
+  private final CuratorFramework curatorFramework;
+  private final ObjectMapper objectMapper;
+  private final ZooKeeperConfiguration zooKeeperConfiguration;
+  private final BaragonStateDatastore stateDatastore;
+  private final BaragonRequestDatastore requestDatastore;
+
+  public ZooKeeperTestState() throws Exception {
+    this.testingServer = new TestingServer();
+    this.curatorFramework =
+      CuratorFrameworkFactory
+        .builder()
+        .connectString(testingServer.getConnectString())
+        .connectionTimeoutMs(30000)
+        .retryPolicy(new RetryOneTime(100))
+        .build();
+    curatorFramework.start();
+
+    this.objectMapper = Jackson.newObjectMapper();
+
+    this.zooKeeperConfiguration = new ZooKeeperConfiguration();
+    zooKeeperConfiguration.setQuorum(testingServer.getConnectString());
+    zooKeeperConfiguration.setSessionTimeoutMillis(10000);
+
+    this.stateDatastore =
+      new BaragonStateDatastore(
+        curatorFramework,
+        objectMapper,
+        newZkFetcher(new MetricRegistry()),
+        zooKeeperConfiguration
+      );
+    this.requestDatastore =
+      new BaragonRequestDatastore(curatorFramework, objectMapper, zooKeeperConfiguration);
+  }
+
+  public ZkParallelFetcher newZkFetcher(MetricRegistry metricRegistry) {
+    return new ZkParallelFetcher(curatorFramework, zooKeeperConfiguration, metricRegistry);
+  }
+
+  public BaragonService saveService(String serviceId, String group, String... upstreams)
+    throws Exception {
+    BaragonService service = new BaragonService(
+      serviceId,
+      Collections.emptySet(),
+      "/" + serviceId,
+      ImmutableSet.of(group),
+      Collections.emptyMap()
+    );
+    List<UpstreamInfo> upstreamInfos = toUpstreams(upstreams);
+    BaragonRequest request = new BaragonRequestBuilder()
+      .setLoadBalancerRequestId(serviceId + "-" + System.nanoTime())
+      .setLoadBalancerService(service)
+      .setAddUpstreams(upstreamInfos)
+      .setRemoveUpstreams(Collections.emptyList())
+      .setReplaceUpstreams(Collections.emptyList())
+      .setAction(Optional.absent())
+      .build();
+    stateDatastore.updateService(request);
+    stateDatastore.incrementStateVersion(Collections.singleton(serviceId));
+    return service;
+  }
+
+  public static List<UpstreamInfo> toUpstreams(String... upstreams) {
+    return Arrays
+      .stream(upstreams)
+      .map(upstream -> new UpstreamInfo(upstream, Optional.absent(), Optional.absent()))
+      .collect(Collectors.toList());
+  }
+
+  public CuratorFramework getCuratorFramework() {
+    return curatorFramework;
+  }
+
+  public ZooKeeperConfiguration getZooKeeperConfiguration() {
+    return zooKeeperConfiguration;
+  }
+
+  public ObjectMapper getObjectMapper() {
+    return objectMapper;
+  }
+
+  public BaragonStateDatastore getStateDatastore() {
+    return stateDatastore;
+  }
+
+  public BaragonRequestDatastore getRequestDatastore() {
+    return requestDatastore;
+  }
+
+  // Calls made while it is stopped don't complete until the connection times out
+  public void stopServer() throws IOException {
+    testingServer.stop();
+  }
+
+  @Override
+  public void close() throws IOException {
+    curatorFramework.close();
+    testingServer.close();
+  }
+}
@@ -0,0 +1,183 @@
+package com.hubspot.baragon.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.ZooKeeperTestState;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.curator.framework.CuratorFramework;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ZkParallelFetcherTest {
+  private static final String IN_FLIGHT = MetricRegistry.name(
+    ZkParallelFetcher.class,
+    "inFlight"
+  );
+
+  private ZooKeeperTestState zk;
+  private CuratorFramework curatorFramework;
+  private ZooKeeperConfiguration configuration;
+  private MetricRegistry metricRegistry;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zk = new ZooKeeperTestState();
+    curatorFramework = zk.getCuratorFramework();
+    configuration = zk.getZooKeeperConfiguration();
+    metricRegistry = new MetricRegistry();
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    zk.close();
+  }
+
+  @Test
+  public void itReadsEveryPathThroughASmallWindow() throws Exception {
+    configuration.setParallelFetchMaxInFlight(2);
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      paths.add(create("/window/node" + i, "value" + i));
+    }
+
+    Map<String, String> data = newFetcher().fetchDataInParallel(paths, this::parse);
+
+    assertEquals(50, data.size());
+    assertEquals("value7", data.get("node7"));
+    assertEquals(0, metricRegistry.counter(IN_FLIGHT).getCount());
+  }
+
+  @Test
+  public void itLeavesOutNodesThatDontExist() throws Exception {
+    String present = create("/nonode/present", "value");
+
+    Map<String, String> data = newFetcher()
+      .fetchDataByPathInParallel(
+        ImmutableList.of(present, "/nonode/missing"),
+        this::parse
+      );
+    assertEquals(ImmutableMap.of(present, "value"), data);
+
+    assertTrue(
+      newFetcher().fetchChildrenInParallel(ImmutableList.of("/nonode/missing")).isEmpty()
+    );
+  }
+
+  @Test
+  public void itLeavesOutNodesThatCantBeParsed() throws Exception {
+    String good = create("/parse/good", "value");
+    String bad = create("/parse/bad", "unparseable");
+
+    Map<String, String> data = newFetcher()
+      .fetchDataInParallel(
+        ImmutableList.of(good, bad),
+        bytes -> {
+          String value = parse(bytes);
+          if (value.equals("unparseable")) {
+            throw new IllegalArgumentException(value);
+          }
+          return value;
+        }
+      );
+
+    assertEquals(ImmutableMap.of("good", "value"), data);
+  }
+
+  @Test
+  public void itFailsPathsThatMissTheirDeadline() throws Exception {
+    configuration.setParallelFetchPathTimeoutMillis(200);
+    String fast = create("/deadline/fast", "fast");
+    String slow = create("/deadline/slow", "slow");
+    CountDownLatch parsed = new CountDownLatch(1);
+    ZkParallelFetcher fetcher = newFetcher();
+
+    try {
+      assertThrows(
+        TimeoutException.class,
+        () ->
+          fetcher.fetchDataInParallel(
+            ImmutableList.of(fast, slow),
+            bytes -> {
+              String value = parse(bytes);
+              if (value.equals("slow")) {
+                awaitUninterruptibly(parsed);
+              }
+              return value;
+            }
+          )
+      );
+      // The call completed, only its parsing was late, so it doesn't hold up the window
+      assertEquals(0, metricRegistry.counter(IN_FLIGHT).getCount());
+    } finally {
+      parsed.countDown();
+    }
+  }
+
+  @Test
+  public void itTimesOutPathsWaitingForTheWindow() throws Exception {
+    configuration.setParallelFetchMaxInFlight(1);
+    configuration.setParallelFetchPathTimeoutMillis(300);
+    List<String> paths = ImmutableList.of(
+      create("/stalled/first", "first"),
+      create("/stalled/second", "second")
+    );
+    ZkParallelFetcher fetcher = newFetcher();
+
+    // Calls made while the server is down don't complete until the connection times out
+    zk.stopServer();
+    assertThrows(
+      TimeoutException.class,
+      () -> fetcher.fetchDataInParallel(paths, this::parse)
+    );
+    assertEquals(1, metricRegistry.counter(IN_FLIGHT).getCount());
+  }
+
+  @Test
+  public void itSharesARegistryWithOtherFetchers() throws Exception {
+    String path = create("/shared/node", "value");
+    ZkParallelFetcher first = newFetcher();
+    ZkParallelFetcher second = newFetcher();
+
+    List<String> paths = ImmutableList.of(path);
+    assertEquals(1, first.fetchDataInParallel(paths, this::parse).size());
+    assertEquals(1, second.fetchDataInParallel(paths, this::parse).size());
+    assertEquals(0, metricRegistry.counter(IN_FLIGHT).getCount());
+  }
+
+  private ZkParallelFetcher newFetcher() {
+    return zk.newZkFetcher(metricRegistry);
+  }
+
+  private String create(String path, String value) throws Exception {
+    curatorFramework
+      .create()
+      .creatingParentsIfNeeded()
+      .forPath(path, value.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  private String parse(byte[] bytes) {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -49,9 +49,11 @@ import com.hubspot.baragon.service.listeners.AgentCleanupListener;
 import com.hubspot.baragon.service.listeners.ElbSyncWorkerListener;
 import com.hubspot.baragon.service.listeners.RequestPurgingListener;
 import com.hubspot.baragon.service.listeners.RequestWorkerListener;
+import com.hubspot.baragon.service.managed.AgentResponseWriterManaged;
 import com.hubspot.baragon.service.managed.BaragonExceptionNotifierManaged;
 import com.hubspot.baragon.service.managed.BaragonGraphiteReporterManaged;
 import com.hubspot.baragon.service.managed.BaragonManaged;
+import com.hubspot.baragon.service.managed.QueueShardWorkerManaged;
 import com.hubspot.baragon.service.managers.AgentManager;
 import com.hubspot.baragon.service.managers.ElbManager;
 import com.hubspot.baragon.service.managers.PurgeCacheManager;
@@ -62,6 +64,8 @@ import com.hubspot.baragon.service.managers.StatusManager;
 import com.hubspot.baragon.service.resources.BaragonResourcesModule;
 import com.hubspot.baragon.service.worker.BaragonElbSyncWorker;
 import com.hubspot.baragon.service.worker.BaragonRequestWorker;
+import com.hubspot.baragon.service.worker.QueueShardOwnership;
+import com.hubspot.baragon.service.worker.RequestScheduler;
 import com.hubspot.baragon.service.worker.RequestPurgingWorker;
 import com.hubspot.baragon.utils.JavaUtils;
 import com.hubspot.baragon.utils.UpstreamResolver;
@@ -131,9 +135,11 @@ public class BaragonServiceModule extends DropwizardAwareModule<BaragonConfigura
     binder.bind(BaragonExceptionNotifier.class).in(Scopes.SINGLETON);
 
     // Managed
+    binder.bind(AgentResponseWriterManaged.class).asEagerSingleton();
     binder.bind(BaragonExceptionNotifierManaged.class).asEagerSingleton();
     binder.bind(BaragonGraphiteReporterManaged.class).asEagerSingleton();
     binder.bind(BaragonManaged.class).asEagerSingleton();
+    binder.bind(QueueShardWorkerManaged.class).asEagerSingleton();
 
     // Managers
     binder.bind(AgentManager.class).in(Scopes.SINGLETON);
@@ -158,6 +164,8 @@ public class BaragonServiceModule extends DropwizardAwareModule<BaragonConfigura
     // Workers
     binder.bind(BaragonElbSyncWorker.class).in(Scopes.SINGLETON);
     binder.bind(BaragonRequestWorker.class).in(Scopes.SINGLETON);
+    binder.bind(QueueShardOwnership.class).in(Scopes.SINGLETON);
+    binder.bind(RequestScheduler.class).in(Scopes.SINGLETON);
     binder.bind(RequestPurgingWorker.class).in(Scopes.SINGLETON);
 
     binder.bind(ClassicLoadBalancer.class);
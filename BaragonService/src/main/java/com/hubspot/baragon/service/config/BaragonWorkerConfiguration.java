@@ -18,6 +18,45 @@ public class BaragonWorkerConfiguration {
 
   private int maxRequestsPerPoll = 10;
 
+  private boolean queueViewEnabled = true;
+
+  @Min(0)
+  private int queueEventDebounceMs = 100;
+
+  @Min(1)
+  private int agentResponseWriterThreads = 2;
+
+  @Min(1)
+  private int agentResponseWriterQueueSize = 1000;
+
+  // How long stopping waits for queued agent responses to be recorded
+  @Min(0)
+  private int agentResponseWriterDrainMs = 10000;
+
+  // Requests sharing no load balancer group are handled concurrently when above 1
+  @Min(1)
+  private int groupWorkerThreads = 1;
+
+  // How long a run waits for its groups, slower ones are left to finish in the background
+  @Min(0)
+  private int groupWorkerWaitMs = 30000;
+
+  // Merge consecutive pending requests only adding or removing upstreams of a service
+  private boolean coalesceUpstreamRequests = false;
+
+  // Share each poll between scheduling classes and services instead of by queue order
+  private boolean fairSchedulingEnabled = false;
+
+  // Shares of upstream-only, service change and reload requests when scheduling fairly
+  @Min(1)
+  private int upstreamRequestWeight = 8;
+
+  @Min(1)
+  private int serviceChangeRequestWeight = 4;
+
+  @Min(1)
+  private int bulkRequestWeight = 1;
+
   public boolean isEnabled() {
     return enabled;
   }
@@ -57,4 +96,100 @@ public class BaragonWorkerConfiguration {
   public void setMaxRequestsPerPoll(int maxRequestsPerPoll) {
     this.maxRequestsPerPoll = maxRequestsPerPoll;
   }
+
+  public boolean isQueueViewEnabled() {
+    return queueViewEnabled;
+  }
+
+  public void setQueueViewEnabled(boolean queueViewEnabled) {
+    this.queueViewEnabled = queueViewEnabled;
+  }
+
+  public int getQueueEventDebounceMs() {
+    return queueEventDebounceMs;
+  }
+
+  public void setQueueEventDebounceMs(int queueEventDebounceMs) {
+    this.queueEventDebounceMs = queueEventDebounceMs;
+  }
+
+  public int getAgentResponseWriterThreads() {
+    return agentResponseWriterThreads;
+  }
+
+  public void setAgentResponseWriterThreads(int agentResponseWriterThreads) {
+    this.agentResponseWriterThreads = agentResponseWriterThreads;
+  }
+
+  public int getAgentResponseWriterQueueSize() {
+    return agentResponseWriterQueueSize;
+  }
+
+  public void setAgentResponseWriterQueueSize(int agentResponseWriterQueueSize) {
+    this.agentResponseWriterQueueSize = agentResponseWriterQueueSize;
+  }
+
+  public int getAgentResponseWriterDrainMs() {
+    return agentResponseWriterDrainMs;
+  }
+
+  public void setAgentResponseWriterDrainMs(int agentResponseWriterDrainMs) {
+    this.agentResponseWriterDrainMs = agentResponseWriterDrainMs;
+  }
+
+  public int getGroupWorkerThreads() {
+    return groupWorkerThreads;
+  }
+
+  public void setGroupWorkerThreads(int groupWorkerThreads) {
+    this.groupWorkerThreads = groupWorkerThreads;
+  }
+
+  public int getGroupWorkerWaitMs() {
+    return groupWorkerWaitMs;
+  }
+
+  public void setGroupWorkerWaitMs(int groupWorkerWaitMs) {
+    this.groupWorkerWaitMs = groupWorkerWaitMs;
+  }
+
+  public boolean isCoalesceUpstreamRequests() {
+    return coalesceUpstreamRequests;
+  }
+
+  public void setCoalesceUpstreamRequests(boolean coalesceUpstreamRequests) {
+    this.coalesceUpstreamRequests = coalesceUpstreamRequests;
+  }
+
+  public boolean isFairSchedulingEnabled() {
+    return fairSchedulingEnabled;
+  }
+
+  public void setFairSchedulingEnabled(boolean fairSchedulingEnabled) {
+    this.fairSchedulingEnabled = fairSchedulingEnabled;
+  }
+
+  public int getUpstreamRequestWeight() {
+    return upstreamRequestWeight;
+  }
+
+  public void setUpstreamRequestWeight(int upstreamRequestWeight) {
+    this.upstreamRequestWeight = upstreamRequestWeight;
+  }
+
+  public int getServiceChangeRequestWeight() {
+    return serviceChangeRequestWeight;
+  }
+
+  public void setServiceChangeRequestWeight(int serviceChangeRequestWeight) {
+    this.serviceChangeRequestWeight = serviceChangeRequestWeight;
+  }
+
+  public int getBulkRequestWeight() {
+    return bulkRequestWeight;
+  }
+
+  public void setBulkRequestWeight(int bulkRequestWeight) {
+    this.bulkRequestWeight = bulkRequestWeight;
+  }
 }
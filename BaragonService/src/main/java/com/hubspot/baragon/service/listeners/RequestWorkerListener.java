@@ -4,10 +4,13 @@ import com.google.inject.Inject;
 import com.hubspot.baragon.migrations.ZkDataMigrationRunner;
 import com.hubspot.baragon.service.BaragonServiceModule;
 import com.hubspot.baragon.service.config.BaragonConfiguration;
+import com.hubspot.baragon.service.managers.RequestManager;
 import com.hubspot.baragon.service.worker.BaragonRequestWorker;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.inject.Named;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,8 +20,12 @@ public class RequestWorkerListener extends AbstractLatchListener {
 
   private final ScheduledExecutorService executorService;
   private final BaragonRequestWorker requestWorker;
+  private final RequestManager requestManager;
   private final BaragonConfiguration config;
   private final ZkDataMigrationRunner migrationRunner;
+  private final ReentrantLock workerLock;
+  private final AtomicBoolean leading;
+  private final AtomicBoolean eventRunScheduled;
 
   private ScheduledFuture<?> requestWorkerFuture = null;
 
@@ -29,12 +36,19 @@ public class RequestWorkerListener extends AbstractLatchListener {
     ) ScheduledExecutorService executorService,
     BaragonConfiguration config,
     BaragonRequestWorker requestWorker,
+    RequestManager requestManager,
     ZkDataMigrationRunner migrationRunner
   ) {
     this.executorService = executorService;
     this.config = config;
     this.requestWorker = requestWorker;
+    this.requestManager = requestManager;
     this.migrationRunner = migrationRunner;
+    this.workerLock = new ReentrantLock();
+    this.leading = new AtomicBoolean(false);
+    this.eventRunScheduled = new AtomicBoolean(false);
+
+    requestManager.addQueueListener(this::onQueueChange);
   }
 
   @Override
@@ -45,15 +59,34 @@ public class RequestWorkerListener extends AbstractLatchListener {
 
     migrationRunner.checkMigrations();
 
+    if (config.getZooKeeperConfiguration().getQueueShardCount() > 0) {
+      // QueueShardWorkerManaged runs the RequestWorker on every instance instead
+      LOG.info("Done with zk migrations, requests are handled by queue shard owners");
+      return;
+    }
+
+    if (config.getWorkerConfiguration().isQueueViewEnabled()) {
+      try {
+        requestManager.startQueueView();
+      } catch (Exception e) {
+        LOG.warn("Could not start queue view, falling back to reading from zk", e);
+        requestManager.stopQueueView();
+      }
+    }
+
     LOG.info("Done with zk migrations, starting RequestWorker...");
 
     if (requestWorkerFuture != null) {
       requestWorkerFuture.cancel(false);
     }
 
+    leading.set(true);
+    requestWorker.setCommitting(true);
+
+    // Queue events trigger runs as they happen, the fixed rate picks up agent responses
     requestWorkerFuture =
       executorService.scheduleAtFixedRate(
-        requestWorker,
+        this::runWorker,
         config.getWorkerConfiguration().getInitialDelayMs(),
         config.getWorkerConfiguration().getIntervalMs(),
         TimeUnit.MILLISECONDS
@@ -63,11 +96,72 @@ public class RequestWorkerListener extends AbstractLatchListener {
   @Override
   public void notLeader() {
     LOG.info("We are not the leader!");
-    requestWorkerFuture.cancel(false);
+    final boolean wasLeading = leading.getAndSet(false);
+    if (requestWorkerFuture != null) {
+      requestWorkerFuture.cancel(false);
+    }
+
+    if (wasLeading) {
+      // The new leader handles the queue now, partitions still running stop committing
+      requestWorker.setCommitting(false);
+      executorService.execute(this::stopQueueViewOnceIdle);
+    } else {
+      requestManager.stopQueueView();
+    }
   }
 
   @Override
   public boolean isEnabled() {
     return config.getWorkerConfiguration().isEnabled();
   }
+
+  private void onQueueChange() {
+    if (leading.get() && eventRunScheduled.compareAndSet(false, true)) {
+      executorService.schedule(
+        () -> {
+          eventRunScheduled.set(false);
+          runWorker();
+        },
+        config.getWorkerConfiguration().getQueueEventDebounceMs(),
+        TimeUnit.MILLISECONDS
+      );
+    }
+  }
+
+  /*
+   * Partitions left to complete in the background may still be reading the queue view,
+   * so it's only stopped once they are done, unless leadership was regained meanwhile
+   */
+  private void stopQueueViewOnceIdle() {
+    try {
+      if (
+        !requestWorker.awaitPendingPartitions(
+          config.getWorkerConfiguration().getGroupWorkerWaitMs()
+        )
+      ) {
+        LOG.warn("Stopping queue view with group partitions still being handled");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    workerLock.lock();
+    try {
+      if (!leading.get()) {
+        requestManager.stopQueueView();
+      }
+    } finally {
+      workerLock.unlock();
+    }
+  }
+
+  private void runWorker() {
+    workerLock.lock();
+    try {
+      if (leading.get()) {
+        requestWorker.run();
+      }
+    } finally {
+      workerLock.unlock();
+    }
+  }
 }
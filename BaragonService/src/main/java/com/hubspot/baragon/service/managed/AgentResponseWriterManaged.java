@@ -0,0 +1,44 @@
+package com.hubspot.baragon.service.managed;
+
+import com.google.inject.Inject;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import com.hubspot.baragon.service.managers.AgentResponseWriter;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Records the agent responses still queued when the service stops, rather than leaving
+ * their requests pending until the agent request timeout
+ */
+public class AgentResponseWriterManaged implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(
+    AgentResponseWriterManaged.class
+  );
+
+  private final AgentResponseWriter agentResponseWriter;
+  private final BaragonConfiguration config;
+
+  @Inject
+  public AgentResponseWriterManaged(
+    AgentResponseWriter agentResponseWriter,
+    BaragonConfiguration config
+  ) {
+    this.agentResponseWriter = agentResponseWriter;
+    this.config = config;
+  }
+
+  @Override
+  public void start() throws Exception {}
+
+  @Override
+  public void stop() throws Exception {
+    if (
+      !agentResponseWriter.stop(
+        config.getWorkerConfiguration().getAgentResponseWriterDrainMs()
+      )
+    ) {
+      LOG.warn("Agent responses were still being recorded, the rest won't be");
+    }
+  }
+}
@@ -9,6 +9,7 @@ import com.hubspot.baragon.models.BaragonAuthKey;
 import com.hubspot.baragon.service.BaragonServiceModule;
 import com.hubspot.baragon.service.config.BaragonConfiguration;
 import com.hubspot.baragon.service.listeners.AbstractLatchListener;
+import com.hubspot.baragon.service.worker.BaragonRequestWorker;
 import io.dropwizard.lifecycle.Managed;
 import java.util.Map;
 import java.util.Set;
@@ -26,6 +27,7 @@ public class BaragonManaged implements Managed {
   private final LeaderLatch leaderLatch;
   private final BaragonConfiguration config;
   private final BaragonAuthDatastore authDatastore;
+  private final BaragonRequestWorker requestWorker;
   private final Set<AbstractLatchListener> listeners;
   private final AtomicReference<Map<String, BaragonAuthKey>> authKeys;
 
@@ -40,7 +42,8 @@ public class BaragonManaged implements Managed {
       BaragonDataModule.BARAGON_AUTH_KEY_MAP
     ) AtomicReference<Map<String, BaragonAuthKey>> authKeys,
     BaragonConfiguration config,
-    BaragonAuthDatastore authDatastore
+    BaragonAuthDatastore authDatastore,
+    BaragonRequestWorker requestWorker
   ) {
     this.listeners = listeners;
     this.executorService = executorService;
@@ -48,6 +51,7 @@ public class BaragonManaged implements Managed {
     this.config = config;
     this.authDatastore = authDatastore;
     this.authKeys = authKeys;
+    this.requestWorker = requestWorker;
   }
 
   @Override
@@ -82,6 +86,10 @@ public class BaragonManaged implements Managed {
 
   @Override
   public void stop() throws Exception {
+    // Leadership is only handed over once partitions still being handled are done
+    if (!requestWorker.stop(config.getWorkerConfiguration().getGroupWorkerWaitMs())) {
+      LOG.warn("Group partitions were still being handled, they won't be committed");
+    }
     leaderLatch.close();
     executorService.shutdown();
   }
@@ -0,0 +1,148 @@
+package com.hubspot.baragon.service.managed;
+
+import com.google.inject.Inject;
+import com.hubspot.baragon.data.BaragonRequestDatastore;
+import com.hubspot.baragon.service.BaragonServiceModule;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import com.hubspot.baragon.service.worker.BaragonRequestWorker;
+import com.hubspot.baragon.service.worker.QueueShardOwnership;
+import io.dropwizard.lifecycle.Managed;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.inject.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Runs the request worker on every instance for the queue shards it owns, when the queue
+ * is sharded. Otherwise RequestWorkerListener runs it on the leader for the whole queue.
+ */
+public class QueueShardWorkerManaged implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(
+    QueueShardWorkerManaged.class
+  );
+
+  private final ScheduledExecutorService executorService;
+  private final BaragonConfiguration config;
+  private final BaragonRequestWorker requestWorker;
+  private final QueueShardOwnership shardOwnership;
+  private final BaragonRequestDatastore requestDatastore;
+  private final ReentrantLock workerLock;
+  private final AtomicBoolean running;
+  private final AtomicBoolean eventRunScheduled;
+
+  private ScheduledFuture<?> requestWorkerFuture = null;
+
+  @Inject
+  public QueueShardWorkerManaged(
+    @Named(
+      BaragonServiceModule.BARAGON_SERVICE_SCHEDULED_EXECUTOR
+    ) ScheduledExecutorService executorService,
+    BaragonConfiguration config,
+    BaragonRequestWorker requestWorker,
+    QueueShardOwnership shardOwnership,
+    BaragonRequestDatastore requestDatastore
+  ) {
+    this.executorService = executorService;
+    this.config = config;
+    this.requestWorker = requestWorker;
+    this.shardOwnership = shardOwnership;
+    this.requestDatastore = requestDatastore;
+    this.workerLock = new ReentrantLock();
+    this.running = new AtomicBoolean(false);
+    this.eventRunScheduled = new AtomicBoolean(false);
+  }
+
+  @Override
+  public void start() throws Exception {
+    if (
+      !config.getWorkerConfiguration().isEnabled() ||
+      config.getZooKeeperConfiguration().getQueueShardCount() == 0
+    ) {
+      return;
+    }
+
+    // Left behind by a change of the shard count, the owner of their service's shard
+    // handles them before the service's newer requests
+    final List<String> misplaced = requestDatastore.adoptMisplacedQueuedRequests();
+    if (!misplaced.isEmpty()) {
+      LOG.warn(
+        "{} requests are queued in shards other than their own for a queueShardCount of {}, adopting them: {}",
+        misplaced.size(),
+        config.getZooKeeperConfiguration().getQueueShardCount(),
+        misplaced
+      );
+    }
+
+    LOG.info(
+      "Starting RequestWorker for {} queue shards",
+      config.getZooKeeperConfiguration().getQueueShardCount()
+    );
+    shardOwnership.addQueueListener(this::onQueueChange);
+    running.set(true);
+    requestWorkerFuture =
+      executorService.scheduleAtFixedRate(
+        this::runWorker,
+        config.getWorkerConfiguration().getInitialDelayMs(),
+        config.getWorkerConfiguration().getIntervalMs(),
+        TimeUnit.MILLISECONDS
+      );
+  }
+
+  @Override
+  public void stop() throws Exception {
+    if (!running.getAndSet(false)) {
+      return;
+    }
+
+    requestWorkerFuture.cancel(false);
+    workerLock.lock();
+    try {
+      // Shards are only released once partitions still being handled are done
+      if (!requestWorker.stop(config.getWorkerConfiguration().getGroupWorkerWaitMs())) {
+        LOG.warn("Group partitions were still being handled, they won't be committed");
+      }
+      shardOwnership.releaseAll();
+    } finally {
+      workerLock.unlock();
+    }
+  }
+
+  private void onQueueChange() {
+    if (running.get() && eventRunScheduled.compareAndSet(false, true)) {
+      executorService.schedule(
+        () -> {
+          eventRunScheduled.set(false);
+          runWorker();
+        },
+        config.getWorkerConfiguration().getQueueEventDebounceMs(),
+        TimeUnit.MILLISECONDS
+      );
+    }
+  }
+
+  private void runWorker() {
+    workerLock.lock();
+    try {
+      if (!running.get()) {
+        return;
+      }
+      final Set<Integer> shards = shardOwnership.refresh(
+        !requestWorker.hasPendingPartitions()
+      );
+      if (!shards.isEmpty()) {
+        requestWorker.run(shards);
+      }
+    } catch (Exception e) {
+      // Exceptions would stop the fixed rate schedule, the next run tries again
+      LOG.warn("Could not refresh queue shard ownership", e);
+    } finally {
+      workerLock.unlock();
+    }
+  }
+}
@@ -11,9 +11,11 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.BaragonDataModule;
+import com.hubspot.baragon.data.AgentResponseUpdate;
 import com.hubspot.baragon.data.BaragonAgentResponseDatastore;
 import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
 import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.data.RequestAgentResponses;
 import com.hubspot.baragon.models.AgentBatchResponseItem;
 import com.hubspot.baragon.models.AgentRequestType;
 import com.hubspot.baragon.models.AgentRequestsStatus;
@@ -22,12 +24,14 @@ import com.hubspot.baragon.models.AgentResponseId;
 import com.hubspot.baragon.models.BaragonAgentMetadata;
 import com.hubspot.baragon.models.BaragonGroup;
 import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonRequestBatch;
 import com.hubspot.baragon.models.BaragonRequestBatchItem;
 import com.hubspot.baragon.models.BaragonService;
 import com.hubspot.baragon.models.InternalRequestStates;
 import com.hubspot.baragon.models.InternalStatesMap;
 import com.hubspot.baragon.models.QueuedRequestWithState;
 import com.hubspot.baragon.models.RequestAction;
+import com.hubspot.baragon.models.UpstreamInfo;
 import com.hubspot.baragon.service.BaragonServiceModule;
 import com.hubspot.baragon.service.config.BaragonConfiguration;
 import com.ning.http.client.AsyncCompletionHandler;
@@ -36,6 +40,7 @@ import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
 import com.ning.http.client.Response;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -51,10 +56,12 @@ import org.slf4j.LoggerFactory;
 public class AgentManager {
   private static final Logger LOG = LoggerFactory.getLogger(AgentManager.class);
   private static final Random RANDOM = new Random();
+  private static final String INLINE_BATCH_PATH = "/inline";
 
   private final BaragonLoadBalancerDatastore loadBalancerDatastore;
   private final BaragonStateDatastore stateDatastore;
   protected final BaragonAgentResponseDatastore agentResponseDatastore;
+  private final AgentResponseWriter agentResponseWriter;
   private final AsyncHttpClient asyncHttpClient;
   private final String baragonAgentRequestUriFormat;
   private final String baragonAgentBatchRequestUriFormat;
@@ -69,6 +76,7 @@ public class AgentManager {
     BaragonLoadBalancerDatastore loadBalancerDatastore,
     BaragonStateDatastore stateDatastore,
     BaragonAgentResponseDatastore agentResponseDatastore,
+    AgentResponseWriter agentResponseWriter,
     BaragonConfiguration configuration,
     ObjectMapper objectMapper,
     @Named(
@@ -89,6 +97,7 @@ public class AgentManager {
     this.loadBalancerDatastore = loadBalancerDatastore;
     this.stateDatastore = stateDatastore;
     this.agentResponseDatastore = agentResponseDatastore;
+    this.agentResponseWriter = agentResponseWriter;
     this.configuration = configuration;
     this.objectMapper = objectMapper;
     this.asyncHttpClient = asyncHttpClient;
@@ -128,15 +137,14 @@ public class AgentManager {
 
   private AsyncHttpClient.BoundRequestBuilder buildAgentBatchRequest(
     String url,
-    List<BaragonRequestBatchItem> batch
-  )
-    throws JsonProcessingException {
+    byte[] body
+  ) {
     final BoundRequestBuilder builder = asyncHttpClient.preparePost(url);
     if (baragonAuthKey.isPresent()) {
       builder.addQueryParam("authkey", baragonAuthKey.get());
     }
     builder.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
-    builder.setBody(objectMapper.writeValueAsBytes(batch));
+    builder.setBody(body);
     return builder;
   }
 
@@ -147,6 +155,8 @@ public class AgentManager {
 
     Map<String, List<BaragonRequestBatchItem>> requestsByGroup = new HashMap<>();
     Map<String, Collection<BaragonAgentMetadata>> agentMetadataByGroup = new HashMap<>();
+    Map<String, BaragonRequest> requestsById = new HashMap<>();
+    Map<String, Optional<BaragonService>> originalServices = new HashMap<>();
 
     for (QueuedRequestWithState queuedRequestWithState : queuedRequestsWithState) {
       final BaragonRequest request = queuedRequestWithState.getRequest();
@@ -192,6 +202,11 @@ public class AgentManager {
           maybeOriginalService.get().getLoadBalancerGroups()
         );
       }
+      requestsById.put(request.getLoadBalancerRequestId(), request);
+      originalServices.put(
+        request.getLoadBalancerService().getServiceId(),
+        maybeOriginalService
+      );
       for (String group : loadBalancerGroupsToUpdate) {
         if (requestsByGroup.containsKey(group)) {
           requestsByGroup
@@ -221,13 +236,34 @@ public class AgentManager {
       );
     }
 
+    Map<String, Collection<UpstreamInfo>> upstreamsByService = new HashMap<>();
     for (Map.Entry<String, List<BaragonRequestBatchItem>> entry : requestsByGroup.entrySet()) {
+      // Built and serialized at most once for the group, then reused for each agent.
+      // Absent if it couldn't be built, those agents then get a batch of ids only.
+      Optional<InlineBatch> inlineBatch = null;
       for (final BaragonAgentMetadata agentMetadata : loadBalancerDatastore.getAgentMetadata(
         entry.getKey()
       )) {
         final String baseUrl = agentMetadata.getBaseAgentUri();
-        if (agentMetadata.isBatchEnabled()) {
-          sendBatchRequest(baseUrl, entry.getValue());
+        if (
+          agentMetadata.isBatchEnabled() &&
+          agentMetadata.getBatchVersion() >= BaragonAgentMetadata.INLINE_BATCH_VERSION
+        ) {
+          if (inlineBatch == null) {
+            final Optional<BaragonRequestBatch> maybeBatch = buildInlineBatch(
+              entry.getValue(),
+              requestsById,
+              originalServices,
+              upstreamsByService
+            );
+            inlineBatch =
+              maybeBatch.isPresent()
+                ? Optional.of(new InlineBatch(maybeBatch.get()))
+                : Optional.absent();
+          }
+          sendBatchRequest(baseUrl, entry.getValue(), inlineBatch);
+        } else if (agentMetadata.isBatchEnabled()) {
+          sendBatchRequest(baseUrl, entry.getValue(), Optional.absent());
         } else {
           for (BaragonRequestBatchItem batchItem : entry.getValue()) {
             sendIndividualRequest(
@@ -243,9 +279,53 @@ public class AgentManager {
     return results;
   }
 
+  /*
+   * Absent if the upstreams of one of the services can't be read. upstreamsByService
+   * holds null for those, so that other groups don't try to read them again.
+   */
+  private Optional<BaragonRequestBatch> buildInlineBatch(
+    List<BaragonRequestBatchItem> items,
+    Map<String, BaragonRequest> requestsById,
+    Map<String, Optional<BaragonService>> originalServices,
+    Map<String, Collection<UpstreamInfo>> upstreamsByService
+  ) {
+    Map<String, BaragonRequest> requests = new HashMap<>();
+    Map<String, BaragonService> services = new HashMap<>();
+    Map<String, Collection<UpstreamInfo>> upstreams = new HashMap<>();
+    for (BaragonRequestBatchItem item : items) {
+      BaragonRequest request = requestsById.get(item.getRequestId());
+      String serviceId = request.getLoadBalancerService().getServiceId();
+      requests.put(item.getRequestId(), request);
+      Optional<BaragonService> maybeOriginalService = originalServices.get(serviceId);
+      if (maybeOriginalService.isPresent()) {
+        services.put(serviceId, maybeOriginalService.get());
+      }
+      if (!upstreamsByService.containsKey(serviceId)) {
+        try {
+          upstreamsByService.put(serviceId, getUpstreams(serviceId));
+        } catch (Exception e) {
+          LOG.warn("Could not read upstreams for {}, sending ids only", serviceId, e);
+          upstreamsByService.put(serviceId, null);
+        }
+      }
+      final Collection<UpstreamInfo> serviceUpstreams = upstreamsByService.get(serviceId);
+      if (serviceUpstreams == null) {
+        return Optional.absent();
+      }
+      upstreams.put(serviceId, serviceUpstreams);
+    }
+    return Optional.of(new BaragonRequestBatch(items, requests, services, upstreams));
+  }
+
+  @VisibleForTesting
+  Collection<UpstreamInfo> getUpstreams(String serviceId) {
+    return stateDatastore.getUpstreams(serviceId);
+  }
+
   private void sendBatchRequest(
     final String baseUrl,
-    final List<BaragonRequestBatchItem> originalBatch
+    final List<BaragonRequestBatchItem> originalBatch,
+    final Optional<InlineBatch> maybeInlineBatch
   ) {
     final ArrayList<BaragonRequestBatchItem> batch = new ArrayList<>(originalBatch);
     Set<BaragonRequestBatchItem> doNotSend = Sets.newHashSet();
@@ -262,16 +342,55 @@ public class AgentManager {
     }
     batch.removeAll(doNotSend);
 
-    sendFilteredBatchRequests(baseUrl, batch);
+    final String batchUrl = String.format(baragonAgentBatchRequestUriFormat, baseUrl);
+    final String url;
+    final byte[] body;
+    try {
+      if (maybeInlineBatch.isPresent()) {
+        final InlineBatch inlineBatch = maybeInlineBatch.get();
+        url = batchUrl + INLINE_BATCH_PATH;
+        body =
+          doNotSend.isEmpty()
+            ? inlineBatch.getBody()
+            : objectMapper.writeValueAsBytes(inlineBatch.batch.withItems(batch));
+      } else {
+        url = batchUrl;
+        body = objectMapper.writeValueAsBytes(batch);
+      }
+    } catch (JsonProcessingException e) {
+      LOG.error("Could not serialize batch request {} for {}", batch, baseUrl, e);
+      List<AgentResponseUpdate> updates = new ArrayList<>(batch.size());
+      for (BaragonRequestBatchItem item : batch) {
+        updates.add(
+          new AgentResponseUpdate(
+            item.getRequestId(),
+            item.getRequestType(),
+            baseUrl,
+            batchUrl,
+            Optional.<Integer>absent(),
+            Optional.<String>absent(),
+            Optional.of(e.getMessage())
+          )
+        );
+      }
+      agentResponseWriter.write(updates);
+      return;
+    }
+
+    sendFilteredBatchRequests(baseUrl, url, batch, body);
   }
 
   @VisibleForTesting
-  void sendFilteredBatchRequests(String baseUrl, List<BaragonRequestBatchItem> batch) {
-    final String url = String.format(baragonAgentBatchRequestUriFormat, baseUrl);
+  void sendFilteredBatchRequests(
+    String baseUrl,
+    String url,
+    List<BaragonRequestBatchItem> batch,
+    byte[] body
+  ) {
     final Set<String> handledRequestIds = Sets.newHashSet();
 
     try {
-      buildAgentBatchRequest(url, batch)
+      buildAgentBatchRequest(url, body)
         .execute(
           new AsyncCompletionHandler<Void>() {
 
@@ -289,49 +408,46 @@ public class AgentManager {
                   response.getStatusCode(),
                   response.getResponseBody()
                 );
+                List<AgentResponseUpdate> updates = new ArrayList<>(batch.size());
                 for (BaragonRequestBatchItem item : batch) {
-                  agentResponseDatastore.addAgentResponse(
-                    item.getRequestId(),
-                    item.getRequestType(),
-                    baseUrl,
-                    url,
-                    Optional.<Integer>absent(),
-                    Optional.<String>absent(),
-                    Optional.of(
-                      String.format(
-                        "Caught exception processing agent response %s",
-                        response
+                  updates.add(
+                    new AgentResponseUpdate(
+                      item.getRequestId(),
+                      item.getRequestType(),
+                      baseUrl,
+                      url,
+                      Optional.<Integer>absent(),
+                      Optional.<String>absent(),
+                      Optional.of(
+                        String.format(
+                          "Caught exception processing agent response %s",
+                          response
+                        )
                       )
                     )
                   );
-                  agentResponseDatastore.setPendingRequestStatus(
-                    item.getRequestId(),
-                    baseUrl,
-                    false
-                  );
                   handledRequestIds.add(item.getRequestId());
                 }
+                agentResponseWriter.write(updates);
                 return null;
               }
               Set<AgentBatchResponseItem> responses = objectMapper.readValue(
                 response.getResponseBody(),
                 new TypeReference<Set<AgentBatchResponseItem>>() {}
               );
+              List<AgentResponseUpdate> updates = new ArrayList<>(batch.size());
               for (AgentBatchResponseItem agentResponse : responses) {
                 LOG.info("agentResponse={}", agentResponse);
-                agentResponseDatastore.addAgentResponse(
-                  agentResponse.getRequestId(),
-                  agentResponse.getRequestType(),
-                  baseUrl,
-                  url,
-                  Optional.of(agentResponse.getStatusCode()),
-                  agentResponse.getMessage(),
-                  Optional.<String>absent()
-                );
-                agentResponseDatastore.setPendingRequestStatus(
-                  agentResponse.getRequestId(),
-                  baseUrl,
-                  false
+                updates.add(
+                  new AgentResponseUpdate(
+                    agentResponse.getRequestId(),
+                    agentResponse.getRequestType(),
+                    baseUrl,
+                    url,
+                    Optional.of(agentResponse.getStatusCode()),
+                    agentResponse.getMessage(),
+                    Optional.<String>absent()
+                  )
                 );
                 handledRequestIds.add(agentResponse.getRequestId());
               }
@@ -343,27 +459,25 @@ public class AgentManager {
                     "handledRequestIds doesn't contain item with id={}",
                     item.getRequestId()
                   );
-                  agentResponseDatastore.addAgentResponse(
-                    item.getRequestId(),
-                    item.getRequestType(),
-                    baseUrl,
-                    url,
-                    Optional.<Integer>absent(),
-                    Optional.<String>absent(),
-                    Optional.of(
-                      String.format(
-                        "No response in batch for request %s",
-                        item.getRequestId()
+                  updates.add(
+                    new AgentResponseUpdate(
+                      item.getRequestId(),
+                      item.getRequestType(),
+                      baseUrl,
+                      url,
+                      Optional.<Integer>absent(),
+                      Optional.<String>absent(),
+                      Optional.of(
+                        String.format(
+                          "No response in batch for request %s",
+                          item.getRequestId()
+                        )
                       )
                     )
                   );
-                  agentResponseDatastore.setPendingRequestStatus(
-                    item.getRequestId(),
-                    baseUrl,
-                    false
-                  );
                 }
               }
+              agentResponseWriter.write(updates);
               return null;
             }
 
@@ -375,24 +489,23 @@ public class AgentManager {
                 batch,
                 t
               );
+              List<AgentResponseUpdate> updates = new ArrayList<>(batch.size());
               for (BaragonRequestBatchItem item : batch) {
                 if (!handledRequestIds.contains(item.getRequestId())) {
-                  agentResponseDatastore.addAgentResponse(
-                    item.getRequestId(),
-                    item.getRequestType(),
-                    baseUrl,
-                    url,
-                    Optional.<Integer>absent(),
-                    Optional.<String>absent(),
-                    Optional.of(t.getMessage())
-                  );
-                  agentResponseDatastore.setPendingRequestStatus(
-                    item.getRequestId(),
-                    baseUrl,
-                    false
+                  updates.add(
+                    new AgentResponseUpdate(
+                      item.getRequestId(),
+                      item.getRequestType(),
+                      baseUrl,
+                      url,
+                      Optional.<Integer>absent(),
+                      Optional.<String>absent(),
+                      Optional.of(t.getMessage())
+                    )
                   );
                 }
               }
+              agentResponseWriter.write(updates);
             }
           }
         );
@@ -403,24 +516,23 @@ public class AgentManager {
         baseUrl,
         batch
       );
+      List<AgentResponseUpdate> updates = new ArrayList<>(batch.size());
       for (BaragonRequestBatchItem item : batch) {
         if (!handledRequestIds.contains(item.getRequestId())) {
-          agentResponseDatastore.addAgentResponse(
-            item.getRequestId(),
-            item.getRequestType(),
-            baseUrl,
-            url,
-            Optional.<Integer>absent(),
-            Optional.<String>absent(),
-            Optional.of(e.getMessage())
-          );
-          agentResponseDatastore.setPendingRequestStatus(
-            item.getRequestId(),
-            baseUrl,
-            false
+          updates.add(
+            new AgentResponseUpdate(
+              item.getRequestId(),
+              item.getRequestType(),
+              baseUrl,
+              url,
+              Optional.<Integer>absent(),
+              Optional.<String>absent(),
+              Optional.of(e.getMessage())
+            )
           );
         }
       }
+      agentResponseWriter.write(updates);
     }
   }
 
@@ -503,16 +615,17 @@ public class AgentManager {
                 )
                 ? Optional.<String>absent()
                 : Optional.of(response.getResponseBody());
-              agentResponseDatastore.addAgentResponse(
-                requestId,
-                requestType,
-                baseUrl,
-                url,
-                Optional.of(response.getStatusCode()),
-                content,
-                Optional.<String>absent()
+              agentResponseWriter.write(
+                new AgentResponseUpdate(
+                  requestId,
+                  requestType,
+                  baseUrl,
+                  url,
+                  Optional.of(response.getStatusCode()),
+                  content,
+                  Optional.<String>absent()
+                )
               );
-              agentResponseDatastore.setPendingRequestStatus(requestId, baseUrl, false);
               return null;
             }
 
@@ -526,16 +639,17 @@ public class AgentManager {
                   requestId
                 )
               );
-              agentResponseDatastore.addAgentResponse(
-                requestId,
-                requestType,
-                baseUrl,
-                url,
-                Optional.<Integer>absent(),
-                Optional.<String>absent(),
-                Optional.of(t.getMessage())
+              agentResponseWriter.write(
+                new AgentResponseUpdate(
+                  requestId,
+                  requestType,
+                  baseUrl,
+                  url,
+                  Optional.<Integer>absent(),
+                  Optional.<String>absent(),
+                  Optional.of(t.getMessage())
+                )
               );
-              agentResponseDatastore.setPendingRequestStatus(requestId, baseUrl, false);
             }
           }
         );
@@ -543,22 +657,36 @@ public class AgentManager {
       LOG.info(
         String.format("Got exception %s when hitting %s for %s", e, baseUrl, requestId)
       );
-      agentResponseDatastore.addAgentResponse(
-        requestId,
-        requestType,
-        baseUrl,
-        url,
-        Optional.<Integer>absent(),
-        Optional.<String>absent(),
-        Optional.of(e.getMessage())
+      agentResponseWriter.write(
+        new AgentResponseUpdate(
+          requestId,
+          requestType,
+          baseUrl,
+          url,
+          Optional.<Integer>absent(),
+          Optional.<String>absent(),
+          Optional.of(e.getMessage())
+        )
       );
-      agentResponseDatastore.setPendingRequestStatus(requestId, baseUrl, false);
     }
   }
 
   public AgentRequestsStatus getRequestsStatus(
     BaragonRequest request,
     AgentRequestType requestType
+  ) {
+    return getRequestsStatus(
+      request,
+      requestType,
+      getRequestAgentResponses(Collections.singleton(request.getLoadBalancerRequestId()))
+        .get(request.getLoadBalancerRequestId())
+    );
+  }
+
+  public AgentRequestsStatus getRequestsStatus(
+    BaragonRequest request,
+    AgentRequestType requestType,
+    RequestAgentResponses agentResponses
   ) {
     boolean success = true;
     RequestAction action = request.getAction().or(RequestAction.UPDATE);
@@ -569,10 +697,7 @@ public class AgentManager {
     )) {
       final String baseUrl = agentMetadata.getBaseAgentUri();
 
-      Optional<Long> maybePendingRequestTime = agentResponseDatastore.getPendingRequest(
-        request.getLoadBalancerRequestId(),
-        baseUrl
-      );
+      Optional<Long> maybePendingRequestTime = agentResponses.getPendingRequest(baseUrl);
       if (maybePendingRequestTime.isPresent()) {
         if (
           (System.currentTimeMillis() - maybePendingRequestTime.get()) >
@@ -593,8 +718,7 @@ public class AgentManager {
         }
       }
 
-      final Optional<AgentResponseId> maybeAgentResponseId = agentResponseDatastore.getLastAgentResponseId(
-        request.getLoadBalancerRequestId(),
+      final Optional<AgentResponseId> maybeAgentResponseId = agentResponses.getLastAgentResponseId(
         requestType,
         baseUrl
       );
@@ -603,10 +727,8 @@ public class AgentManager {
         return AgentRequestsStatus.RETRY;
       }
 
-      Optional<AgentResponse> maybeLastResponse = agentResponseDatastore.getAgentResponse(
-        request.getLoadBalancerRequestId(),
+      Optional<AgentResponse> maybeLastResponse = agentResponses.getLastAgentResponse(
         requestType,
-        maybeAgentResponseId.get(),
         baseUrl
       );
       boolean missingTemplate = hasMissingTemplate(maybeLastResponse);
@@ -641,6 +763,12 @@ public class AgentManager {
     return agentResponseDatastore.getLastResponses(requestId);
   }
 
+  public Map<String, RequestAgentResponses> getRequestAgentResponses(
+    Collection<String> requestIds
+  ) {
+    return agentResponseDatastore.getRequestAgentResponses(requestIds);
+  }
+
   public Collection<BaragonAgentMetadata> getAgents(Set<String> loadBalancerGroups) {
     return loadBalancerDatastore.getAgentMetadata(loadBalancerGroups);
   }
@@ -684,4 +812,20 @@ public class AgentManager {
     }
     return domains;
   }
+
+  private class InlineBatch {
+    private final BaragonRequestBatch batch;
+    private byte[] body;
+
+    InlineBatch(BaragonRequestBatch batch) {
+      this.batch = batch;
+    }
+
+    byte[] getBody() throws JsonProcessingException {
+      if (body == null) {
+        body = objectMapper.writeValueAsBytes(batch);
+      }
+      return body;
+    }
+  }
 }
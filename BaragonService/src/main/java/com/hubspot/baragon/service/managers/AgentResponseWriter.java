@@ -0,0 +1,152 @@
+package com.hubspot.baragon.service.managers;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.data.AgentResponseUpdate;
+import com.hubspot.baragon.data.BaragonAgentResponseDatastore;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Records agent responses off of the http client's I/O threads. Each submission, e.g. all
+ * results of one batch request, is committed as a single transaction. Submissions that
+ * don't fit in the queue overflow into a second one of the same size that the writer
+ * threads drain after each commit, so none are written on the submitting thread. Once
+ * both are full, submissions are dropped and metered: their requests stay pending on
+ * those agents until the agent request timeout fails them.
+ */
+@Singleton
+public class AgentResponseWriter {
+  private static final Logger LOG = LoggerFactory.getLogger(AgentResponseWriter.class);
+
+  private final BaragonAgentResponseDatastore agentResponseDatastore;
+  private final ThreadPoolExecutor executor;
+  private final Queue<Collection<AgentResponseUpdate>> overflow;
+  private final Timer commitTimer;
+  private final Meter overflowMeter;
+  private final Meter droppedMeter;
+  private final Meter failedMeter;
+
+  @Inject
+  public AgentResponseWriter(
+    BaragonAgentResponseDatastore agentResponseDatastore,
+    BaragonConfiguration configuration,
+    MetricRegistry registry
+  ) {
+    this.agentResponseDatastore = agentResponseDatastore;
+    this.executor =
+      new ThreadPoolExecutor(
+        configuration.getWorkerConfiguration().getAgentResponseWriterThreads(),
+        configuration.getWorkerConfiguration().getAgentResponseWriterThreads(),
+        0L,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(
+          configuration.getWorkerConfiguration().getAgentResponseWriterQueueSize()
+        ),
+        new ThreadFactoryBuilder()
+          .setNameFormat("agent-response-writer-%d")
+          .setDaemon(true)
+          .build()
+      );
+    this.overflow =
+      new LinkedBlockingQueue<>(
+        configuration.getWorkerConfiguration().getAgentResponseWriterQueueSize()
+      );
+    this.commitTimer =
+      registry.timer(MetricRegistry.name(AgentResponseWriter.class, "commit"));
+    this.overflowMeter =
+      registry.meter(MetricRegistry.name(AgentResponseWriter.class, "overflow"));
+    this.droppedMeter =
+      registry.meter(MetricRegistry.name(AgentResponseWriter.class, "dropped"));
+    this.failedMeter =
+      registry.meter(MetricRegistry.name(AgentResponseWriter.class, "failed"));
+    registry.register(
+      MetricRegistry.name(AgentResponseWriter.class, "queueDepth"),
+      (Gauge<Integer>) () -> executor.getQueue().size() + overflow.size()
+    );
+  }
+
+  public void write(AgentResponseUpdate update) {
+    write(Collections.singletonList(update));
+  }
+
+  public void write(Collection<AgentResponseUpdate> updates) {
+    if (updates.isEmpty()) {
+      return;
+    }
+    try {
+      executor.execute(
+        () -> {
+          commit(updates);
+          drainOverflow();
+        }
+      );
+    } catch (RejectedExecutionException e) {
+      if (executor.isShutdown() || !overflow.offer(updates)) {
+        droppedMeter.mark(updates.size());
+        LOG.error(
+          "Agent response writer is {}, dropping {} agent responses",
+          executor.isShutdown() ? "stopped" : "full",
+          updates.size()
+        );
+        return;
+      }
+      overflowMeter.mark(updates.size());
+      LOG.warn(
+        "Agent response writer is saturated, {} submissions waiting",
+        overflow.size()
+      );
+      try {
+        // The queued commits drain the overflow when they finish. In case they all
+        // finished before it was added to, queue a drain of its own.
+        executor.execute(this::drainOverflow);
+      } catch (RejectedExecutionException stillFull) {
+        // Still full, so there are queued commits that haven't started yet, or stopping,
+        // in which case stop drains it once they are done
+      }
+    }
+  }
+
+  /*
+   * Stops taking new submissions, and waits up to the given time for those already taken
+   * to be recorded. Returns whether all of them were.
+   */
+  public boolean stop(long timeoutMs) throws InterruptedException {
+    executor.shutdown();
+    if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+      return false;
+    }
+    // Overflow added after the writer threads' last drain
+    drainOverflow();
+    return true;
+  }
+
+  private void drainOverflow() {
+    Collection<AgentResponseUpdate> updates;
+    while ((updates = overflow.poll()) != null) {
+      commit(updates);
+    }
+  }
+
+  private void commit(Collection<AgentResponseUpdate> updates) {
+    try (Timer.Context context = commitTimer.time()) {
+      agentResponseDatastore.addAgentResponses(updates);
+    } catch (Exception e) {
+      failedMeter.mark(updates.size());
+      LOG.error("Could not record {} agent responses", updates.size(), e);
+    }
+  }
+}
@@ -5,6 +5,8 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.hubspot.baragon.cache.BaragonStateCache;
+import com.hubspot.baragon.cache.BaragonStateSnapshot;
 import com.hubspot.baragon.data.BaragonAgentResponseDatastore;
 import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
 import com.hubspot.baragon.data.BaragonRequestDatastore;
@@ -13,15 +15,17 @@ import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.exceptions.InvalidRequestActionException;
 import com.hubspot.baragon.exceptions.InvalidUpstreamsException;
 import com.hubspot.baragon.exceptions.RequestAlreadyEnqueuedException;
+import com.hubspot.baragon.models.AgentResponse;
 import com.hubspot.baragon.models.BaragonGroup;
 import com.hubspot.baragon.models.BaragonRequest;
 import com.hubspot.baragon.models.BaragonRequestBuilder;
 import com.hubspot.baragon.models.BaragonResponse;
 import com.hubspot.baragon.models.BaragonService;
-import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.CoalescedRequests;
 import com.hubspot.baragon.models.InternalRequestStates;
 import com.hubspot.baragon.models.InternalStatesMap;
 import com.hubspot.baragon.models.QueuedRequestId;
+import com.hubspot.baragon.models.QueuedRequestWithState;
 import com.hubspot.baragon.models.RequestAction;
 import com.hubspot.baragon.models.UpstreamInfo;
 import com.hubspot.baragon.service.config.BaragonConfiguration;
@@ -45,6 +49,7 @@ public class RequestManager {
   private final BaragonStateDatastore stateDatastore;
   private final BaragonAgentResponseDatastore agentResponseDatastore;
   private final BaragonResponseHistoryDatastore responseHistoryDatastore;
+  private final BaragonStateCache stateCache;
   private final BaragonConfiguration configuration;
 
   @Inject
@@ -54,6 +59,7 @@ public class RequestManager {
     BaragonStateDatastore stateDatastore,
     BaragonAgentResponseDatastore agentResponseDatastore,
     BaragonResponseHistoryDatastore responseHistoryDatastore,
+    BaragonStateCache stateCache,
     BaragonConfiguration configuration
   ) {
     this.requestDatastore = requestDatastore;
@@ -61,6 +67,7 @@ public class RequestManager {
     this.stateDatastore = stateDatastore;
     this.agentResponseDatastore = agentResponseDatastore;
     this.responseHistoryDatastore = responseHistoryDatastore;
+    this.stateCache = stateCache;
     this.configuration = configuration;
   }
 
@@ -88,6 +95,26 @@ public class RequestManager {
     return requestDatastore.getQueuedRequestIds();
   }
 
+  public List<QueuedRequestWithState> getQueuedRequestsWithState() {
+    return requestDatastore.getQueuedRequestsWithState();
+  }
+
+  public List<QueuedRequestWithState> getQueuedRequestsWithState(Set<Integer> shards) {
+    return requestDatastore.getQueuedRequestsWithState(shards);
+  }
+
+  public void startQueueView() throws Exception {
+    requestDatastore.startQueueView();
+  }
+
+  public void stopQueueView() {
+    requestDatastore.stopQueueView();
+  }
+
+  public void addQueueListener(Runnable listener) {
+    requestDatastore.addQueueListener(listener);
+  }
+
   public void removeQueuedRequest(QueuedRequestId queuedRequestId) {
     requestDatastore.removeQueuedRequest(queuedRequestId);
   }
@@ -389,39 +416,28 @@ public class RequestManager {
 
   private void validateNoDuplicateUpstreams(BaragonRequest request)
     throws InvalidUpstreamsException {
-    List<String> addUpstreams = getUpstreamsFromUpstreamInfos(request.getAddUpstreams());
-    List<String> claimedUpstreams = getUpstreamsFromUpstreamInfos(
-      getAllUpstreamsInOtherServices(request.getLoadBalancerService().getServiceId())
-    );
-    if (!Collections.disjoint(addUpstreams, claimedUpstreams)) {
-      addUpstreams.retainAll(claimedUpstreams); // duplicate upstreams retained in addUpstreams
+    final String serviceId = request.getLoadBalancerService().getServiceId();
+    final BaragonStateSnapshot snapshot = stateCache.getSnapshot();
+    List<String> duplicateUpstreams = request
+      .getAddUpstreams()
+      .stream()
+      .map(UpstreamInfo::getUpstream)
+      .filter(
+        upstream ->
+          snapshot
+            .getServiceIdsForUpstream(upstream)
+            .stream()
+            .anyMatch(claimedBy -> !claimedBy.equals(serviceId))
+      )
+      .collect(Collectors.toList());
+    if (!duplicateUpstreams.isEmpty()) {
       throw new InvalidUpstreamsException(
         "If noDuplicateUpstreams is specified, you cannot have duplicate upstreams. Found these duplicate upstreams: " +
-        addUpstreams
+        duplicateUpstreams
       );
     }
   }
 
-  private List<UpstreamInfo> getAllUpstreamsInOtherServices(String serviceId) {
-    List<UpstreamInfo> upstreams = stateDatastore
-      .getGlobalState()
-      .stream()
-      .filter(bss -> !(bss.getService().getServiceId().equals(serviceId)))
-      .map(BaragonServiceState::getUpstreams)
-      .flatMap(Collection::stream)
-      .collect(Collectors.toList());
-    return upstreams;
-  }
-
-  private List<String> getUpstreamsFromUpstreamInfos(
-    Collection<UpstreamInfo> upstreamInfos
-  ) {
-    return upstreamInfos
-      .stream()
-      .map(UpstreamInfo::getUpstream)
-      .collect(Collectors.toList());
-  }
-
   public Optional<InternalRequestStates> cancelRequest(String requestId) {
     final Optional<InternalRequestStates> maybeState = getRequestState(requestId);
 
@@ -438,13 +454,25 @@ public class RequestManager {
   }
 
   public void saveResponseToHistory(BaragonRequest request, InternalRequestStates state) {
+    saveResponseToHistory(
+      request,
+      state,
+      requestDatastore.getRequestMessage(request.getLoadBalancerRequestId()),
+      agentResponseDatastore.getLastResponses(request.getLoadBalancerRequestId())
+    );
+  }
+
+  private void saveResponseToHistory(
+    BaragonRequest request,
+    InternalRequestStates state,
+    Optional<String> message,
+    Map<String, Collection<AgentResponse>> agentResponses
+  ) {
     BaragonResponse response = new BaragonResponse(
       request.getLoadBalancerRequestId(),
       InternalStatesMap.getRequestState(state),
-      requestDatastore.getRequestMessage(request.getLoadBalancerRequestId()),
-      Optional.of(
-        agentResponseDatastore.getLastResponses(request.getLoadBalancerRequestId())
-      ),
+      message,
+      Optional.of(agentResponses),
       Optional.of(request),
       state == InternalRequestStates.COMPLETED
     );
@@ -459,6 +487,104 @@ public class RequestManager {
     requestDatastore.deleteRequest(requestId);
   }
 
+  public void coalesceRequests(
+    BaragonRequest request,
+    CoalescedRequests coalescedRequests,
+    Collection<QueuedRequestId> coalescedQueuedRequestIds
+  )
+    throws Exception {
+    requestDatastore.coalesceRequests(
+      request,
+      coalescedRequests,
+      coalescedQueuedRequestIds
+    );
+    for (String requestId : coalescedRequests.getRequestIds()) {
+      requestDatastore.setRequestMessage(
+        requestId,
+        String.format("Coalesced into request %s", request.getLoadBalancerRequestId())
+      );
+    }
+  }
+
+  /*
+   * Gives the requests coalesced into a completed request its state, message and agent
+   * responses, and saves them to history. Requests cancelled after they were coalesced
+   * are recorded as cancelled instead. Returns the completed request as it was enqueued,
+   * before other requests were coalesced into it
+   */
+  public BaragonRequest completeCoalescedRequests(
+    BaragonRequest request,
+    InternalRequestStates state
+  ) {
+    final Optional<CoalescedRequests> maybeCoalesced = requestDatastore.getCoalescedRequests(
+      request.getLoadBalancerRequestId()
+    );
+    if (!maybeCoalesced.isPresent()) {
+      return request;
+    }
+
+    final Optional<String> message = requestDatastore.getRequestMessage(
+      request.getLoadBalancerRequestId()
+    );
+    final Map<String, Collection<AgentResponse>> agentResponses = agentResponseDatastore.getLastResponses(
+      request.getLoadBalancerRequestId()
+    );
+    for (String requestId : maybeCoalesced.get().getRequestIds()) {
+      final Optional<BaragonRequest> maybeRequest = requestDatastore.getRequest(
+        requestId
+      );
+      if (!maybeRequest.isPresent()) {
+        LOG.warn(
+          "Request {} coalesced into {} no longer exists",
+          requestId,
+          request.getLoadBalancerRequestId()
+        );
+        continue;
+      }
+      if (isCancelled(requestDatastore.getRequestState(requestId))) {
+        // Its changes already went out with the request it was coalesced into
+        final Optional<String> cancelledMessage = Optional.of(
+          String.format(
+            "Cancelled after it was coalesced into request %s, which ended %s",
+            request.getLoadBalancerRequestId(),
+            state
+          )
+        );
+        requestDatastore.setRequestState(requestId, InternalRequestStates.CANCELLED);
+        requestDatastore.setRequestMessage(requestId, cancelledMessage.get());
+        saveResponseToHistory(
+          maybeRequest.get(),
+          InternalRequestStates.CANCELLED,
+          cancelledMessage,
+          agentResponses
+        );
+      } else {
+        requestDatastore.setRequestState(requestId, state);
+        if (message.isPresent()) {
+          requestDatastore.setRequestMessage(requestId, message.get());
+        }
+        saveResponseToHistory(maybeRequest.get(), state, message, agentResponses);
+      }
+      requestDatastore.deleteRequest(requestId);
+    }
+
+    return maybeCoalesced.get().getOriginalRequest();
+  }
+
+  private static boolean isCancelled(Optional<InternalRequestStates> maybeState) {
+    if (!maybeState.isPresent()) {
+      return false;
+    }
+    switch (maybeState.get()) {
+      case CANCELLED_SEND_REVERT_REQUESTS:
+      case CANCELLED_CHECK_REVERT_RESPONSES:
+      case CANCELLED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
   public synchronized void commitRequest(BaragonRequest request) throws Exception {
     RequestAction action = request.getAction().or(RequestAction.UPDATE);
     Optional<BaragonService> maybeOriginalService = getOriginalService(request);
@@ -502,13 +628,24 @@ public class RequestManager {
 
   private void deleteRemovedServices(BaragonRequest request) {
     stateDatastore.removeService(request.getLoadBalancerService().getServiceId());
-    stateDatastore.incrementStateVersion();
+    stateDatastore.incrementStateVersion(
+      Collections.singleton(request.getLoadBalancerService().getServiceId())
+    );
   }
 
   private void updateStateDatastore(BaragonRequest request) throws Exception {
     stateDatastore.updateService(request);
+    incrementStateVersion(request.getLoadBalancerService().getServiceId());
+  }
+
+  /*
+   * The service is already written, so a failed bump is only logged. The datastore falls
+   * back to a bump without a changelog entry, which makes the state cache recompute in
+   * full, so this only loses the change if ZooKeeper can't be written at all.
+   */
+  private void incrementStateVersion(String serviceId) {
     try {
-      stateDatastore.incrementStateVersion();
+      stateDatastore.incrementStateVersion(Collections.singleton(serviceId));
     } catch (Exception e) {
       LOG.error("Error updating state datastore", e);
     }
@@ -526,6 +663,7 @@ public class RequestManager {
         .equals(request.getLoadBalancerService().getServiceId())
     ) {
       stateDatastore.removeService(maybeOriginalService.get().getServiceId());
+      incrementStateVersion(maybeOriginalService.get().getServiceId());
     }
   }
 
@@ -9,6 +9,7 @@ import com.hubspot.baragon.cache.BaragonStateCache;
 import com.hubspot.baragon.cache.CachedBaragonState;
 import com.hubspot.baragon.models.BaragonResponse;
 import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BaragonStateDelta;
 import com.hubspot.baragon.service.managers.ServiceManager;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
@@ -40,7 +41,8 @@ public class StateResource {
   @Timed
   public Response getAllServices(
     @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
-    @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding
+    @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+    @QueryParam("sinceVersion") Integer sinceVersion
   ) {
     CachedBaragonState state = stateCache.getState();
     String verisonString = Integer.toString(state.getVersion());
@@ -49,6 +51,11 @@ public class StateResource {
       return Response.notModified().header(HttpHeaders.ETAG, state.getVersion()).build();
     }
 
+    if (sinceVersion != null) {
+      BaragonStateDelta delta = stateCache.getDelta(sinceVersion);
+      return Response.ok(delta).header(HttpHeaders.ETAG, delta.getToVersion()).build();
+    }
+
     ResponseBuilder builder = Response.ok();
 
     final byte[] entity;
@@ -3,19 +3,24 @@ package com.hubspot.baragon.service.worker;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.BaragonDataModule;
+import com.hubspot.baragon.cache.BaragonStateCache;
+import com.hubspot.baragon.cache.BaragonStateSnapshot;
 import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.data.RequestAgentResponses;
 import com.hubspot.baragon.models.AgentRequestType;
 import com.hubspot.baragon.models.AgentRequestsStatus;
 import com.hubspot.baragon.models.AgentResponse;
 import com.hubspot.baragon.models.BaragonRequest;
 import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.CoalescedRequests;
 import com.hubspot.baragon.models.InternalRequestStates;
 import com.hubspot.baragon.models.InternalStatesMap;
-import com.hubspot.baragon.models.QueuedRequestId;
 import com.hubspot.baragon.models.QueuedRequestWithState;
 import com.hubspot.baragon.models.RequestAction;
 import com.hubspot.baragon.models.UpstreamInfo;
@@ -32,10 +37,20 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import org.apache.zookeeper.KeeperException;
 import org.slf4j.Logger;
@@ -48,21 +63,32 @@ public class BaragonRequestWorker implements Runnable {
   private final AgentManager agentManager;
   private final RequestManager requestManager;
   private final BaragonStateDatastore stateDatastore;
+  private final BaragonStateCache stateCache;
   private final AtomicLong workerLastStartAt;
   private final BaragonExceptionNotifier exceptionNotifier;
   private final BaragonConfiguration configuration;
   private final EdgeCache edgeCache;
   private final UpstreamResolver resolver;
+  private final RequestScheduler requestScheduler;
+  private final QueueShardOwnership shardOwnership;
+  private final Optional<ExecutorService> groupExecutor;
+  private final GroupSetLocks groupLocks = new GroupSetLocks();
+
+  // Cleared once this instance stops leading, so partitions still running don't commit
+  private volatile boolean committing = true;
 
   @Inject
   public BaragonRequestWorker(
     AgentManager agentManager,
     RequestManager requestManager,
     BaragonStateDatastore stateDatastore,
+    BaragonStateCache stateCache,
     BaragonExceptionNotifier exceptionNotifier,
     BaragonConfiguration configuration,
     EdgeCache edgeCache,
     UpstreamResolver resolver,
+    RequestScheduler requestScheduler,
+    QueueShardOwnership shardOwnership,
     @Named(
       BaragonDataModule.BARAGON_SERVICE_WORKER_LAST_START
     ) AtomicLong workerLastStartAt
@@ -70,11 +96,26 @@ public class BaragonRequestWorker implements Runnable {
     this.agentManager = agentManager;
     this.requestManager = requestManager;
     this.stateDatastore = stateDatastore;
+    this.stateCache = stateCache;
     this.resolver = resolver;
+    this.requestScheduler = requestScheduler;
+    this.shardOwnership = shardOwnership;
     this.edgeCache = edgeCache;
     this.workerLastStartAt = workerLastStartAt;
     this.exceptionNotifier = exceptionNotifier;
     this.configuration = configuration;
+    this.groupExecutor =
+      configuration.getWorkerConfiguration().getGroupWorkerThreads() > 1
+        ? Optional.of(
+          Executors.newFixedThreadPool(
+            configuration.getWorkerConfiguration().getGroupWorkerThreads(),
+            new ThreadFactoryBuilder()
+              .setNameFormat("request-worker-group-%d")
+              .setDaemon(true)
+              .build()
+          )
+        )
+        : Optional.absent();
   }
 
   private String buildResponseString(
@@ -112,16 +153,12 @@ public class BaragonRequestWorker implements Runnable {
 
   private InternalRequestStates handleCheckRevertResponse(
     BaragonRequest request,
-    InternalRequestStates currentState
+    InternalRequestStates currentState,
+    Map<String, RequestAgentResponses> requestAgentResponses
   ) {
     final Map<String, Collection<AgentResponse>> agentResponses;
 
-    switch (
-      agentManager.getRequestsStatus(
-        request,
-        InternalStatesMap.getRequestType(currentState)
-      )
-    ) {
+    switch (getRequestsStatus(request, currentState, requestAgentResponses)) {
       case FAILURE:
         agentResponses =
           agentManager.getAgentResponses(request.getLoadBalancerRequestId());
@@ -160,7 +197,8 @@ public class BaragonRequestWorker implements Runnable {
 
   private InternalRequestStates handleState(
     InternalRequestStates currentState,
-    BaragonRequest request
+    BaragonRequest request,
+    Map<String, RequestAgentResponses> requestAgentResponses
   ) {
     switch (currentState) {
       case PENDING:
@@ -228,12 +266,7 @@ public class BaragonRequestWorker implements Runnable {
 
         return InternalRequestStates.SEND_APPLY_REQUESTS;
       case CHECK_APPLY_RESPONSES:
-        switch (
-          agentManager.getRequestsStatus(
-            request,
-            InternalStatesMap.getRequestType(currentState)
-          )
-        ) {
+        switch (getRequestsStatus(request, currentState, requestAgentResponses)) {
           case FAILURE:
             final Map<String, Collection<AgentResponse>> agentResponses = agentManager.getAgentResponses(
               request.getLoadBalancerRequestId()
@@ -250,6 +283,13 @@ public class BaragonRequestWorker implements Runnable {
             );
             return InternalRequestStates.FAILED_SEND_REVERT_REQUESTS;
           case SUCCESS:
+            if (!isOwned(request.getLoadBalancerService().getServiceId())) {
+              LOG.warn(
+                "Not committing {}, its queue shard or leadership is no longer held",
+                request.getLoadBalancerRequestId()
+              );
+              return currentState;
+            }
             try {
               requestManager.setRequestMessage(
                 request.getLoadBalancerRequestId(),
@@ -315,7 +355,7 @@ public class BaragonRequestWorker implements Runnable {
         );
       case FAILED_CHECK_REVERT_RESPONSES:
       case CANCELLED_CHECK_REVERT_RESPONSES:
-        return handleCheckRevertResponse(request, currentState);
+        return handleCheckRevertResponse(request, currentState, requestAgentResponses);
       default:
         return currentState;
     }
@@ -358,6 +398,11 @@ public class BaragonRequestWorker implements Runnable {
   ) {
     Map<QueuedRequestWithState, InternalRequestStates> results = new HashMap<>();
     List<QueuedRequestWithState> toApply = new ArrayList<>();
+    // Requests checking agent responses, all read up front rather than agent by agent
+    Map<String, RequestAgentResponses> requestAgentResponses = getRequestAgentResponses(
+      queuedRequestsWithState,
+      state -> state.isInFlight() && !state.isRequireAgentRequest()
+    );
     for (QueuedRequestWithState queuedRequestWithState : queuedRequestsWithState) {
       LOG.debug("Handling {}", queuedRequestsWithState);
       if (!queuedRequestWithState.getCurrentState().isRequireAgentRequest()) {
@@ -366,7 +411,8 @@ public class BaragonRequestWorker implements Runnable {
             queuedRequestWithState,
             handleState(
               queuedRequestWithState.getCurrentState(),
-              queuedRequestWithState.getRequest()
+              queuedRequestWithState.getRequest(),
+              requestAgentResponses
             )
           );
         } catch (Exception e) {
@@ -382,26 +428,255 @@ public class BaragonRequestWorker implements Runnable {
         }
       }
     }
+    toApply.removeIf(q -> !isOwned(q));
     results.putAll(agentManager.sendRequests(toApply));
     return results;
   }
 
+  /*
+   * With more than one group worker thread, requests are split into partitions sharing no
+   * load balancer group or service, and each partition is handled on its own thread once
+   * it has claimed all of its groups and services. Partitions whose groups are still
+   * claimed by an earlier run are skipped, and picked up again by a later one.
+   */
+  private void handleRequests(
+    List<QueuedRequestWithState> queuedRequestsWithState,
+    BaragonStateSnapshot snapshot,
+    long groupDeadline
+  )
+    throws InterruptedException {
+    if (!groupExecutor.isPresent()) {
+      handleResultStates(handleQueuedRequests(queuedRequestsWithState));
+      return;
+    }
+
+    List<Future<?>> futures = new ArrayList<>();
+    List<RequestPartition> partitions = partitionByGroups(
+      queuedRequestsWithState,
+      snapshot
+    );
+    for (RequestPartition partition : partitions) {
+      if (!groupLocks.tryLock(partition.groups, partition.serviceIds)) {
+        LOG.info(
+          "Skipping {} requests for groups {} until earlier requests for them complete",
+          partition.requests.size(),
+          partition.groups
+        );
+        continue;
+      }
+      try {
+        futures.add(groupExecutor.get().submit(() -> handlePartition(partition)));
+      } catch (RejectedExecutionException e) {
+        // The worker is stopping
+        groupLocks.unlock(partition.groups, partition.serviceIds);
+      }
+    }
+
+    int pending = 0;
+    for (Future<?> future : futures) {
+      try {
+        future.get(
+          Math.max(0, groupDeadline - System.currentTimeMillis()),
+          TimeUnit.MILLISECONDS
+        );
+      } catch (TimeoutException e) {
+        pending++;
+      } catch (ExecutionException e) {
+        // Failures are already handled by the partition itself
+      }
+    }
+    if (pending > 0) {
+      LOG.warn(
+        "{} of {} group partitions are still being handled, leaving them to complete in the background",
+        pending,
+        futures.size()
+      );
+    }
+  }
+
+  private void handlePartition(RequestPartition partition) {
+    try {
+      handleResultStates(handleQueuedRequests(partition.requests));
+    } catch (Exception e) {
+      LOG.warn("Caught exception handling requests for groups {}", partition.groups, e);
+      exceptionNotifier.notify(
+        e,
+        ImmutableMap.of("groups", JavaUtils.COMMA_JOINER.join(partition.groups))
+      );
+    } finally {
+      groupLocks.unlock(partition.groups, partition.serviceIds);
+    }
+  }
+
+  @VisibleForTesting
+  List<RequestPartition> partitionByGroups(
+    List<QueuedRequestWithState> queuedRequestsWithState,
+    BaragonStateSnapshot snapshot
+  ) {
+    List<RequestPartition> partitions = new ArrayList<>();
+    for (int index = 0; index < queuedRequestsWithState.size(); index++) {
+      QueuedRequestWithState queuedRequestWithState = queuedRequestsWithState.get(index);
+      RequestPartition partition = new RequestPartition(
+        index,
+        queuedRequestWithState.getQueuedRequestId().getServiceId(),
+        getGroupsToUpdate(queuedRequestWithState.getRequest(), snapshot)
+      );
+      // Requests spanning several groups join up the partitions of each of them
+      Iterator<RequestPartition> iterator = partitions.iterator();
+      while (iterator.hasNext()) {
+        RequestPartition other = iterator.next();
+        if (other.overlaps(partition)) {
+          partition.merge(other);
+          iterator.remove();
+        }
+      }
+      partitions.add(partition);
+    }
+
+    // Keep the order requests were given in within each partition
+    for (RequestPartition partition : partitions) {
+      Collections.sort(partition.indexes);
+      for (int index : partition.indexes) {
+        partition.requests.add(queuedRequestsWithState.get(index));
+      }
+    }
+    return partitions;
+  }
+
+  /*
+   * The groups AgentManager sends the request to, including those the service is leaving,
+   * as of the state read at the start of this run
+   */
+  private Set<String> getGroupsToUpdate(
+    BaragonRequest request,
+    BaragonStateSnapshot snapshot
+  ) {
+    Set<String> groups = new HashSet<>(
+      request.getLoadBalancerService().getLoadBalancerGroups()
+    );
+    Optional<BaragonServiceState> maybeOriginalState = snapshot.getService(
+      request.getLoadBalancerService().getServiceId()
+    );
+    if (maybeOriginalState.isPresent()) {
+      groups.addAll(maybeOriginalState.get().getService().getLoadBalancerGroups());
+    }
+    return groups;
+  }
+
+  @VisibleForTesting
+  static class RequestPartition {
+    final List<QueuedRequestWithState> requests = new ArrayList<>();
+    final Set<String> groups = new HashSet<>();
+    final Set<String> serviceIds = new HashSet<>();
+    // Positions of the requests in the run's queue, until they are added in that order
+    private final List<Integer> indexes = new ArrayList<>();
+
+    private RequestPartition(int index, String serviceId, Set<String> groups) {
+      this.indexes.add(index);
+      this.groups.addAll(groups);
+      this.serviceIds.add(serviceId);
+    }
+
+    private boolean overlaps(RequestPartition other) {
+      return (
+        !Collections.disjoint(groups, other.groups) ||
+        !Collections.disjoint(serviceIds, other.serviceIds)
+      );
+    }
+
+    private void merge(RequestPartition other) {
+      indexes.addAll(other.indexes);
+      groups.addAll(other.groups);
+      serviceIds.addAll(other.serviceIds);
+    }
+  }
+
+  /*
+   * Whether partitions left to complete in the background by an earlier run are still
+   * being handled
+   */
+  public boolean hasPendingPartitions() {
+    return !groupLocks.isEmpty();
+  }
+
+  /*
+   * Waits for partitions left to complete in the background, returning whether they all
+   * completed in time
+   */
+  public boolean awaitPendingPartitions(long timeoutMs) throws InterruptedException {
+    return groupLocks.awaitEmpty(timeoutMs);
+  }
+
+  /*
+   * Whether results are committed, cleared once leadership is lost so that partitions
+   * still running don't overwrite the new leader's results
+   */
+  public void setCommitting(boolean committing) {
+    this.committing = committing;
+  }
+
+  /*
+   * Stops taking new partitions and waits for those already running. Partitions still
+   * running after the timeout are interrupted, and no longer commit their results.
+   */
+  public boolean stop(long timeoutMs) throws InterruptedException {
+    if (!groupExecutor.isPresent()) {
+      return true;
+    }
+    groupExecutor.get().shutdown();
+    if (groupExecutor.get().awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+      return true;
+    }
+    committing = false;
+    groupExecutor.get().shutdownNow();
+    return false;
+  }
+
   @Override
   public void run() {
+    run(Optional.absent());
+  }
+
+  /*
+   * Handles only the requests queued in the given shards, when the queue is sharded
+   */
+  public void run(Set<Integer> queueShards) {
+    run(Optional.of(queueShards));
+  }
+
+  private void run(Optional<Set<Integer>> queueShards) {
     workerLastStartAt.set(System.currentTimeMillis());
+    final long groupDeadline =
+      System.currentTimeMillis() +
+      configuration.getWorkerConfiguration().getGroupWorkerWaitMs();
 
     try {
-      final List<QueuedRequestWithState> queuedRequests = requestManager
-        .getQueuedRequestIds()
-        .stream()
-        .map(this::hydrateQueuedRequestWithState)
-        .filter(Optional::isPresent)
-        .map(Optional::get)
-        .collect(Collectors.toList());
+      final List<QueuedRequestWithState> queuedRequests = queueShards.isPresent()
+        ? requestManager.getQueuedRequestsWithState(queueShards.get())
+        : requestManager.getQueuedRequestsWithState();
+      requestScheduler.recordQueue(queuedRequests);
+      if (groupExecutor.isPresent()) {
+        // Services still being handled by an earlier run are left to it until it's done
+        queuedRequests.removeIf(
+          q -> groupLocks.isServiceLocked(q.getQueuedRequestId().getServiceId())
+        );
+      }
+      // Services' current groups, read once for all of this run's partitions
+      final BaragonStateSnapshot snapshot = groupExecutor.isPresent()
+        ? stateCache.getSnapshot()
+        : BaragonStateSnapshot.empty(-1);
+      final Map<String, RequestAgentResponses> sendApplyAgentResponses = getRequestAgentResponses(
+        queuedRequests,
+        state -> state == InternalRequestStates.SEND_APPLY_REQUESTS
+      );
 
       List<QueuedRequestWithState> inFlightRequests = queuedRequests
         .stream()
-        .filter(q -> q.getCurrentState().isInFlight() || hasInProgressAttempt(q))
+        .filter(
+          q ->
+            q.getCurrentState().isInFlight() ||
+            hasInProgressAttempt(q, sendApplyAgentResponses)
+        )
         .collect(Collectors.toList());
 
       final Set<String> inProgressServices = inFlightRequests
@@ -430,11 +705,14 @@ public class BaragonRequestWorker implements Runnable {
         "Processing {} BaragonRequests which are already in-flight",
         inFlightRequests.size()
       );
-      handleResultStates(handleQueuedRequests(inFlightRequests));
+      handleRequests(inFlightRequests, snapshot, groupDeadline);
       queuedRequests.removeAll(inFlightRequests);
 
       int added = inFlightRequests.size();
 
+      // Order what's left by scheduling class and service, keeping each service's order
+      requestScheduler.schedule(queuedRequests);
+
       while (
         added < configuration.getWorkerConfiguration().getMaxRequestsPerPoll() &&
         !queuedRequests.isEmpty()
@@ -446,7 +724,6 @@ public class BaragonRequestWorker implements Runnable {
         collectRequests(added, queuedRequests, nonServiceChanges, serviceChanges);
 
         // Now take the list of non-service-change requests,
-        // and sort them such that the quicker noValidate / noReload requests come first.
         List<QueuedRequestWithState> hydratedNonServiceChanges = nonServiceChanges
           .stream()
           .filter(
@@ -467,9 +744,14 @@ public class BaragonRequestWorker implements Runnable {
           .map(this::setNoValidateIfRequestRemovesUpstreamsOnly)
           .map(this::preResolveDNS)
           .map(this::saveAdjustedRequest)
-          .sorted(queuedRequestComparator())
           .collect(Collectors.toList());
 
+        // Then merge runs of upstream changes to the same service into single requests,
+        hydratedNonServiceChanges = coalesceUpstreamChanges(hydratedNonServiceChanges);
+
+        // and sort them such that the quicker noValidate / noReload requests come first.
+        hydratedNonServiceChanges.sort(queuedRequestComparator());
+
         added += hydratedNonServiceChanges.size();
 
         // Then send them off.
@@ -477,7 +759,8 @@ public class BaragonRequestWorker implements Runnable {
           "Processing {} BaragonRequests which don't modify a BaragonService",
           nonServiceChanges.size()
         );
-        handleResultStates(handleQueuedRequests(hydratedNonServiceChanges));
+        requestScheduler.recordDispatched(hydratedNonServiceChanges);
+        handleRequests(hydratedNonServiceChanges, snapshot, groupDeadline);
 
         queuedRequests.removeAll(nonServiceChanges);
         inProgressServices.addAll(
@@ -512,7 +795,8 @@ public class BaragonRequestWorker implements Runnable {
           "Processing {} BaragonRequests which modify a BaragonService",
           serviceChanges.size()
         );
-        handleResultStates(handleQueuedRequests(hydratedServiceChanges));
+        requestScheduler.recordDispatched(hydratedServiceChanges);
+        handleRequests(hydratedServiceChanges, snapshot, groupDeadline);
 
         queuedRequests.removeAll(serviceChanges);
         inProgressServices.addAll(
@@ -536,14 +820,59 @@ public class BaragonRequestWorker implements Runnable {
    * state when retry requests need to fire due to a failure to update a single agent. It should still be
    * marked as in-progress in this case
    */
-  private boolean hasInProgressAttempt(QueuedRequestWithState queuedRequestWithState) {
-    return (
-      queuedRequestWithState.getCurrentState() ==
-      InternalRequestStates.SEND_APPLY_REQUESTS &&
-      !agentManager
-        .getAgentResponses(queuedRequestWithState.getQueuedRequestId().getRequestId())
-        .isEmpty()
+  private boolean hasInProgressAttempt(
+    QueuedRequestWithState queuedRequestWithState,
+    Map<String, RequestAgentResponses> requestAgentResponses
+  ) {
+    if (
+      queuedRequestWithState.getCurrentState() !=
+      InternalRequestStates.SEND_APPLY_REQUESTS
+    ) {
+      return false;
+    }
+
+    final String requestId = queuedRequestWithState
+      .getRequest()
+      .getLoadBalancerRequestId();
+    final RequestAgentResponses agentResponses = requestAgentResponses.get(requestId);
+    if (agentResponses == null) {
+      return !agentManager.getAgentResponses(requestId).isEmpty();
+    }
+    return agentResponses.hasAgentResponses();
+  }
+
+  private Map<String, RequestAgentResponses> getRequestAgentResponses(
+    Collection<QueuedRequestWithState> queuedRequestsWithState,
+    Predicate<InternalRequestStates> statePredicate
+  ) {
+    final List<String> requestIds = queuedRequestsWithState
+      .stream()
+      .filter(q -> statePredicate.test(q.getCurrentState()))
+      .map(q -> q.getRequest().getLoadBalancerRequestId())
+      .collect(Collectors.toList());
+
+    try {
+      return agentManager.getRequestAgentResponses(requestIds);
+    } catch (Exception e) {
+      // Fall back to reading each request's agent responses as it's handled
+      LOG.warn("Could not read agent responses for {} requests", requestIds.size(), e);
+      return Collections.emptyMap();
+    }
+  }
+
+  private AgentRequestsStatus getRequestsStatus(
+    BaragonRequest request,
+    InternalRequestStates currentState,
+    Map<String, RequestAgentResponses> requestAgentResponses
+  ) {
+    final AgentRequestType requestType = InternalStatesMap.getRequestType(currentState);
+    final RequestAgentResponses agentResponses = requestAgentResponses.get(
+      request.getLoadBalancerRequestId()
     );
+    if (agentResponses == null) {
+      return agentManager.getRequestsStatus(request, requestType);
+    }
+    return agentManager.getRequestsStatus(request, requestType, agentResponses);
   }
 
   private static class MaybeAdjustedRequest {
@@ -700,6 +1029,15 @@ public class BaragonRequestWorker implements Runnable {
     Map<QueuedRequestWithState, InternalRequestStates> results
   ) {
     for (Map.Entry<QueuedRequestWithState, InternalRequestStates> result : results.entrySet()) {
+      // The shard's new owner or leader picks the request up from its last recorded state
+      if (!isOwned(result.getKey())) {
+        LOG.warn(
+          "Not recording {} for {}, its queue shard or leadership is no longer held",
+          result.getValue(),
+          result.getKey().getQueuedRequestId().getRequestId()
+        );
+        continue;
+      }
       if (result.getValue() != result.getKey().getCurrentState()) {
         LOG.info(
           String.format(
@@ -718,7 +1056,10 @@ public class BaragonRequestWorker implements Runnable {
       if (InternalStatesMap.isRemovable(result.getValue())) {
         requestManager.removeQueuedRequest(result.getKey().getQueuedRequestId());
         requestManager.saveResponseToHistory(
-          result.getKey().getRequest(),
+          requestManager.completeCoalescedRequests(
+            result.getKey().getRequest(),
+            result.getValue()
+          ),
           result.getValue()
         );
         requestManager.deleteRequest(result.getKey().getQueuedRequestId().getRequestId());
@@ -726,6 +1067,153 @@ public class BaragonRequestWorker implements Runnable {
     }
   }
 
+  private boolean isOwned(QueuedRequestWithState queuedRequestWithState) {
+    return isOwned(queuedRequestWithState.getQueuedRequestId().getServiceId());
+  }
+
+  private boolean isOwned(String serviceId) {
+    return committing && shardOwnership.isOwned(serviceId);
+  }
+
+  /*
+   * Coalesces each run of consecutive pending requests that only add or remove upstreams
+   * of the same service into the first request of the run. The others are taken off the
+   * queue, and given the outcome of the first request once it completes.
+   */
+  private List<QueuedRequestWithState> coalesceUpstreamChanges(
+    List<QueuedRequestWithState> queuedRequestsWithState
+  ) {
+    if (!configuration.getWorkerConfiguration().isCoalesceUpstreamRequests()) {
+      return queuedRequestsWithState;
+    }
+
+    final Map<String, List<QueuedRequestWithState>> currentRuns = new HashMap<>();
+    final List<List<QueuedRequestWithState>> runs = new ArrayList<>();
+    for (QueuedRequestWithState queuedRequestWithState : queuedRequestsWithState) {
+      final String serviceId = queuedRequestWithState.getQueuedRequestId().getServiceId();
+      if (!isCoalescable(queuedRequestWithState)) {
+        currentRuns.remove(serviceId);
+        continue;
+      }
+      currentRuns
+        .computeIfAbsent(
+          serviceId,
+          key -> {
+            final List<QueuedRequestWithState> run = new ArrayList<>();
+            runs.add(run);
+            return run;
+          }
+        )
+        .add(queuedRequestWithState);
+    }
+
+    final List<QueuedRequestWithState> results = new ArrayList<>(queuedRequestsWithState);
+    for (List<QueuedRequestWithState> run : runs) {
+      if (run.size() < 2 || !isOwned(run.get(0))) {
+        continue;
+      }
+
+      final QueuedRequestWithState first = run.get(0);
+      final List<QueuedRequestWithState> coalesced = run.subList(1, run.size());
+      final List<String> coalescedRequestIds = coalesced
+        .stream()
+        .map(q -> q.getQueuedRequestId().getRequestId())
+        .collect(Collectors.toList());
+      final BaragonRequest request = combineUpstreamChanges(
+        run.stream().map(QueuedRequestWithState::getRequest).collect(Collectors.toList())
+      );
+      try {
+        requestManager.coalesceRequests(
+          request,
+          new CoalescedRequests(first.getRequest(), coalescedRequestIds),
+          coalesced
+            .stream()
+            .map(QueuedRequestWithState::getQueuedRequestId)
+            .collect(Collectors.toList())
+        );
+      } catch (Exception e) {
+        LOG.warn(
+          "Could not coalesce requests {} into {}, handling them separately",
+          coalescedRequestIds,
+          first.getQueuedRequestId().getRequestId(),
+          e
+        );
+        continue;
+      }
+
+      LOG.info(
+        "Coalesced requests {} into {}",
+        coalescedRequestIds,
+        first.getQueuedRequestId().getRequestId()
+      );
+      results.removeAll(coalesced);
+      results.set(
+        results.indexOf(first),
+        new QueuedRequestWithState(
+          first.getQueuedRequestId(),
+          request,
+          first.getCurrentState()
+        )
+      );
+    }
+    return results;
+  }
+
+  private boolean isCoalescable(QueuedRequestWithState queuedRequestWithState) {
+    final BaragonRequest request = queuedRequestWithState.getRequest();
+    return (
+      queuedRequestWithState.getCurrentState() == InternalRequestStates.PENDING &&
+      request.getAction().or(RequestAction.UPDATE) == RequestAction.UPDATE &&
+      !request.getReplaceServiceId().isPresent() &&
+      request.getReplaceUpstreams().isEmpty() &&
+      !request.isPurgeCache() &&
+      !(request.getAddUpstreams().isEmpty() && request.getRemoveUpstreams().isEmpty())
+    );
+  }
+
+  /*
+   * Combines the upstream changes of the given requests for one service, in order, into
+   * a copy of the first. The last change to each upstream wins, so an upstream added and
+   * then removed is only removed, and one removed and then added is only added.
+   */
+  @VisibleForTesting
+  static BaragonRequest combineUpstreamChanges(List<BaragonRequest> requests) {
+    final Map<String, UpstreamInfo> addUpstreams = new LinkedHashMap<>();
+    final Map<String, UpstreamInfo> removeUpstreams = new LinkedHashMap<>();
+    boolean noValidate = true;
+    boolean noReload = true;
+    boolean upstreamUpdateOnly = true;
+    for (BaragonRequest request : requests) {
+      // Within a request, adds win over removes of the same upstream
+      for (UpstreamInfo upstream : request.getRemoveUpstreams()) {
+        addUpstreams.remove(upstreamKey(upstream));
+        removeUpstreams.put(upstreamKey(upstream), upstream);
+      }
+      for (UpstreamInfo upstream : request.getAddUpstreams()) {
+        removeUpstreams.remove(upstreamKey(upstream));
+        addUpstreams.put(upstreamKey(upstream), upstream);
+      }
+      noValidate &= request.isNoValidate();
+      noReload &= request.isNoReload();
+      upstreamUpdateOnly &= request.isUpstreamUpdateOnly();
+    }
+
+    return requests
+      .get(0)
+      .toBuilder()
+      .setAddUpstreams(new ArrayList<>(addUpstreams.values()))
+      .setRemoveUpstreams(new ArrayList<>(removeUpstreams.values()))
+      .setNoValidate(noValidate)
+      .setNoReload(noReload)
+      .setUpstreamUpdateOnly(upstreamUpdateOnly)
+      .build();
+  }
+
+  // Matches upstreams by address and group, like UpstreamInfo.upstreamAndGroupMatches
+  private static String upstreamKey(UpstreamInfo upstream) {
+    return upstream.getUpstream() + "|" + upstream.getGroup();
+  }
+
   private void collectRequests(
     int previouslyAdded,
     List<QueuedRequestWithState> queuedRequests,
@@ -745,12 +1233,7 @@ public class BaragonRequestWorker implements Runnable {
       }
 
       // Grab as many non-service-change BaragonRequests as we can.
-      if (
-        requestManager
-          .getRequest(queuedRequest.getQueuedRequestId().getRequestId())
-          .transform(someRequest -> !isBatchBoundary(someRequest))
-          .or(false)
-      ) {
+      if (!isBatchBoundary(queuedRequest.getRequest())) {
         nonServiceChanges.add(queuedRequest);
         added++;
       } else {
@@ -770,31 +1253,6 @@ public class BaragonRequestWorker implements Runnable {
     );
   }
 
-  private Optional<QueuedRequestWithState> hydrateQueuedRequestWithState(
-    QueuedRequestId queuedRequestId
-  ) {
-    final String requestId = queuedRequestId.getRequestId();
-    final Optional<InternalRequestStates> maybeState = requestManager.getRequestState(
-      requestId
-    );
-
-    if (!maybeState.isPresent()) {
-      LOG.warn(String.format("%s does not have a request status!", requestId));
-      return Optional.absent();
-    }
-
-    final Optional<BaragonRequest> maybeRequest = requestManager.getRequest(requestId);
-
-    if (!maybeRequest.isPresent()) {
-      LOG.warn(String.format("%s does not have a request object!", requestId));
-      return Optional.absent();
-    }
-
-    return Optional.of(
-      new QueuedRequestWithState(queuedRequestId, maybeRequest.get(), maybeState.get())
-    );
-  }
-
   @VisibleForTesting
   static Comparator<QueuedRequestWithState> queuedRequestComparator() {
     return (requestA, requestB) -> {
@@ -0,0 +1,57 @@
+package com.hubspot.baragon.service.worker;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Claims on load balancer groups and services held by the request worker while it
+ * handles a partition of requests. A partition claims all of its groups and services at
+ * once or none of them, so partitions spanning several groups can't deadlock each other,
+ * and a partition still being handled from a previous run keeps later runs off its
+ * groups and services until it is done.
+ */
+class GroupSetLocks {
+  private final Set<String> lockedGroups = new HashSet<>();
+  private final Set<String> lockedServices = new HashSet<>();
+
+  synchronized boolean tryLock(Collection<String> groups, Collection<String> serviceIds) {
+    if (
+      !Collections.disjoint(lockedGroups, groups) ||
+      !Collections.disjoint(lockedServices, serviceIds)
+    ) {
+      return false;
+    }
+    lockedGroups.addAll(groups);
+    lockedServices.addAll(serviceIds);
+    return true;
+  }
+
+  synchronized void unlock(Collection<String> groups, Collection<String> serviceIds) {
+    lockedGroups.removeAll(groups);
+    lockedServices.removeAll(serviceIds);
+    notifyAll();
+  }
+
+  synchronized boolean isServiceLocked(String serviceId) {
+    return lockedServices.contains(serviceId);
+  }
+
+  synchronized boolean isEmpty() {
+    return lockedGroups.isEmpty() && lockedServices.isEmpty();
+  }
+
+  // Whether every claim was released before the timeout
+  synchronized boolean awaitEmpty(long timeoutMs) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    while (!isEmpty()) {
+      final long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+}
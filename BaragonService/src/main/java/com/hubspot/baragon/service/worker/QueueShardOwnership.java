@@ -0,0 +1,315 @@
+package com.hubspot.baragon.service.worker;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.hubspot.baragon.BaragonDataModule;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.BaragonRequestDatastore;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.framework.recipes.leader.Participant;
+import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
+import org.apache.curator.framework.state.ConnectionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Decides which queue shards this instance handles requests for. Shards are spread over
+ * the live service instances, the participants of the leader latch, by rendezvous
+ * hashing, and an instance only handles a shard while it holds the shard's lease. A
+ * shard assigned elsewhere is only handed off once nothing is still being handled for
+ * it, and the lease of an instance that dies goes away with its session.
+ *
+ * Leases are taken and released outside of the monitor, which only guards the leases
+ * held. Which shards are owned is published to a volatile set, so that checking whether
+ * results may be committed never waits on zk.
+ */
+@Singleton
+public class QueueShardOwnership {
+  private static final Logger LOG = LoggerFactory.getLogger(QueueShardOwnership.class);
+
+  private final BaragonRequestDatastore requestDatastore;
+  private final LeaderLatch leaderLatch;
+  private final int shardCount;
+  private final Map<Integer, InterProcessSemaphoreMutex> leases;
+  private final Map<Integer, PathChildrenCache> shardCaches;
+  private final List<Runnable> queueListeners;
+
+  private volatile boolean suspended = false;
+  private volatile Set<Integer> ownedShards = Collections.emptySet();
+  // Bumped whenever the leases are lost with the session
+  private long sessionGeneration = 0;
+
+  @Inject
+  public QueueShardOwnership(
+    BaragonRequestDatastore requestDatastore,
+    CuratorFramework curatorFramework,
+    ZooKeeperConfiguration zooKeeperConfiguration,
+    @Named(BaragonDataModule.BARAGON_SERVICE_LEADER_LATCH) LeaderLatch leaderLatch,
+    MetricRegistry registry
+  ) {
+    this.requestDatastore = requestDatastore;
+    this.leaderLatch = leaderLatch;
+    this.shardCount = zooKeeperConfiguration.getQueueShardCount();
+    this.leases = new HashMap<>();
+    this.shardCaches = new HashMap<>();
+    this.queueListeners = new CopyOnWriteArrayList<>();
+
+    curatorFramework
+      .getConnectionStateListenable()
+      .addListener((client, newState) -> handleConnectionState(newState));
+    registry.register(
+      MetricRegistry.name(QueueShardOwnership.class, "ownedShards"),
+      (Gauge<Integer>) this::getOwnedShardCount
+    );
+  }
+
+  public void addQueueListener(Runnable listener) {
+    queueListeners.add(listener);
+  }
+
+  /**
+   * Hands off shards no longer assigned to this instance, if canRelease, and takes over
+   * newly assigned shards whose lease is free. Only called by one thread at a time.
+   *
+   * @return the shards to handle requests for, which are held and still assigned
+   */
+  public Set<Integer> refresh(boolean canRelease) throws Exception {
+    if (suspended) {
+      return Collections.emptySet();
+    }
+
+    final Set<String> participantIds = new HashSet<>();
+    for (Participant participant : leaderLatch.getParticipants()) {
+      participantIds.add(participant.getId());
+    }
+    final Set<Integer> assigned = assignShards(
+      participantIds,
+      leaderLatch.getId(),
+      shardCount
+    );
+
+    for (int shard : ownedShards) {
+      if (!assigned.contains(shard)) {
+        if (canRelease) {
+          release(shard);
+        } else {
+          LOG.info("Waiting on pending requests to hand off queue shard {}", shard);
+        }
+      }
+    }
+    for (int shard : assigned) {
+      if (!ownedShards.contains(shard)) {
+        acquire(shard);
+      }
+    }
+
+    final Set<Integer> shards = new TreeSet<>(ownedShards);
+    shards.retainAll(assigned);
+    return shards;
+  }
+
+  public void releaseAll() {
+    for (int shard : ownedShards) {
+      release(shard);
+    }
+  }
+
+  /**
+   * Whether results for the service's requests may be committed by this instance: always
+   * when the queue isn't sharded, otherwise only while the lease of its shard is held and
+   * the connection to zk isn't in doubt. Runs started before a lease was lost check this
+   * before committing anything.
+   */
+  public boolean isOwned(String serviceId) {
+    if (shardCount == 0) {
+      return true;
+    }
+    return !suspended && ownedShards.contains(requestDatastore.getQueueShard(serviceId));
+  }
+
+  public int getOwnedShardCount() {
+    return ownedShards.size();
+  }
+
+  // Rendezvous hashing, so that instances joining or leaving only move their own shards
+  @VisibleForTesting
+  static Set<Integer> assignShards(
+    Collection<String> participantIds,
+    String id,
+    int shardCount
+  ) {
+    final Set<Integer> shards = new HashSet<>();
+    for (int shard = 0; shard < shardCount; shard++) {
+      String owner = null;
+      long ownerWeight = Long.MIN_VALUE;
+      for (String participantId : participantIds) {
+        final long weight = Hashing
+          .murmur3_128()
+          .newHasher()
+          .putString(participantId, StandardCharsets.UTF_8)
+          .putInt(shard)
+          .hash()
+          .asLong();
+        if (
+          owner == null ||
+          weight > ownerWeight ||
+          (weight == ownerWeight && participantId.compareTo(owner) < 0)
+        ) {
+          owner = participantId;
+          ownerWeight = weight;
+        }
+      }
+      if (id.equals(owner)) {
+        shards.add(shard);
+      }
+    }
+    return shards;
+  }
+
+  private void acquire(int shard) throws Exception {
+    final long generation = getSessionGeneration();
+    final InterProcessSemaphoreMutex lease = requestDatastore.createQueueShardLease(
+      shard
+    );
+    if (!lease.acquire(0, TimeUnit.MILLISECONDS)) {
+      // Its previous owner hasn't handed it off yet, or its session hasn't expired yet
+      LOG.debug("Queue shard {} is still held elsewhere", shard);
+      return;
+    }
+
+    // Queue events only make runs happen sooner, the fixed rate still picks up requests
+    PathChildrenCache shardCache = requestDatastore.createQueueShardCache(shard);
+    shardCache.getListenable().addListener((client, event) -> notifyQueueListeners());
+    try {
+      shardCache.start();
+    } catch (Exception e) {
+      LOG.warn("Could not watch queue shard {}", shard, e);
+      closeShardCache(shard, shardCache);
+      shardCache = null;
+    }
+
+    final boolean held;
+    synchronized (this) {
+      // Otherwise the lease went away with the session while it was being taken
+      held = generation == sessionGeneration;
+      if (held) {
+        leases.put(shard, lease);
+        if (shardCache != null) {
+          shardCaches.put(shard, shardCache);
+        }
+        publishOwnedShards();
+      }
+    }
+    if (!held) {
+      closeShardCache(shard, shardCache);
+      LOG.warn("Lost queue shard {} with the zk session while taking it over", shard);
+      return;
+    }
+
+    LOG.info("Took over queue shard {}", shard);
+    notifyQueueListeners();
+  }
+
+  private void release(int shard) {
+    final InterProcessSemaphoreMutex lease;
+    final PathChildrenCache shardCache;
+    synchronized (this) {
+      lease = leases.remove(shard);
+      shardCache = shardCaches.remove(shard);
+      publishOwnedShards();
+    }
+    closeShardCache(shard, shardCache);
+    if (lease == null) {
+      return;
+    }
+    try {
+      lease.release();
+      LOG.info("Handed off queue shard {}", shard);
+    } catch (Exception e) {
+      LOG.warn("Could not release queue shard {}", shard, e);
+    }
+  }
+
+  private void closeShardCache(int shard, PathChildrenCache shardCache) {
+    if (shardCache != null) {
+      try {
+        shardCache.close();
+      } catch (Exception e) {
+        LOG.warn("Could not close cache of queue shard {}", shard, e);
+      }
+    }
+  }
+
+  private synchronized long getSessionGeneration() {
+    return sessionGeneration;
+  }
+
+  // Only called holding the monitor
+  private void publishOwnedShards() {
+    ownedShards = Collections.unmodifiableSet(new TreeSet<>(leases.keySet()));
+  }
+
+  @VisibleForTesting
+  void handleConnectionState(ConnectionState newState) {
+    switch (newState) {
+      case SUSPENDED:
+        suspended = true;
+        break;
+      case LOST:
+        suspended = true;
+        dropLeases();
+        break;
+      case RECONNECTED:
+        suspended = false;
+        break;
+      default:
+        break;
+    }
+  }
+
+  // The leases went away with the session, so there is nothing left to release
+  private void dropLeases() {
+    final Map<Integer, PathChildrenCache> droppedCaches;
+    synchronized (this) {
+      if (!leases.isEmpty()) {
+        LOG.warn("Lost queue shards {} with the zk session", leases.keySet());
+      }
+      sessionGeneration++;
+      leases.clear();
+      publishOwnedShards();
+      droppedCaches = new HashMap<>(shardCaches);
+      shardCaches.clear();
+    }
+    for (Map.Entry<Integer, PathChildrenCache> entry : droppedCaches.entrySet()) {
+      closeShardCache(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void notifyQueueListeners() {
+    for (Runnable listener : queueListeners) {
+      try {
+        listener.run();
+      } catch (Exception e) {
+        LOG.warn("Queue listener threw exception", e);
+      }
+    }
+  }
+}
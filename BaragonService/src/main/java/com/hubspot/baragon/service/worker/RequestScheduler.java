@@ -0,0 +1,265 @@
+package com.hubspot.baragon.service.worker;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.models.InternalRequestStates;
+import com.hubspot.baragon.models.QueuedRequestWithState;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import com.hubspot.baragon.service.config.BaragonWorkerConfiguration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Decides the order in which the request worker takes up queued requests, and keeps
+ * per scheduling class metrics of the requests waiting. With fair scheduling, the
+ * requests taken up in a poll are shared between the scheduling classes with requests
+ * waiting by their weights, and within a class between services in turn, so that a flood
+ * of reloads, or of requests for a single service, doesn't hold up everything queued
+ * behind it. Requests for the same service are always taken up in queue order, as are
+ * those of a service and of the service it replaces.
+ */
+@Singleton
+public class RequestScheduler {
+  private final BaragonWorkerConfiguration workerConfiguration;
+  private final Map<RequestSchedulingClass, Integer> weights;
+  private final Map<String, Long> firstSeenAt;
+  private final Map<RequestSchedulingClass, AtomicInteger> queueDepths;
+  private final Map<RequestSchedulingClass, AtomicLong> oldestFirstSeenAt;
+  private final Map<RequestSchedulingClass, Timer> waitTimers;
+
+  @Inject
+  public RequestScheduler(BaragonConfiguration configuration, MetricRegistry registry) {
+    this.workerConfiguration = configuration.getWorkerConfiguration();
+    this.weights = new EnumMap<>(RequestSchedulingClass.class);
+    this.weights.put(
+      RequestSchedulingClass.UPSTREAM,
+      workerConfiguration.getUpstreamRequestWeight()
+    );
+    this.weights.put(
+      RequestSchedulingClass.SERVICE_CHANGE,
+      workerConfiguration.getServiceChangeRequestWeight()
+    );
+    this.weights.put(
+      RequestSchedulingClass.BULK,
+      workerConfiguration.getBulkRequestWeight()
+    );
+    this.firstSeenAt = new ConcurrentHashMap<>();
+    this.queueDepths = new EnumMap<>(RequestSchedulingClass.class);
+    this.oldestFirstSeenAt = new EnumMap<>(RequestSchedulingClass.class);
+    this.waitTimers = new EnumMap<>(RequestSchedulingClass.class);
+
+    for (RequestSchedulingClass schedulingClass : RequestSchedulingClass.values()) {
+      final AtomicInteger queueDepth = new AtomicInteger(0);
+      final AtomicLong oldest = new AtomicLong(0);
+      queueDepths.put(schedulingClass, queueDepth);
+      oldestFirstSeenAt.put(schedulingClass, oldest);
+      waitTimers.put(
+        schedulingClass,
+        registry.timer(
+          MetricRegistry.name(RequestScheduler.class, "wait", schedulingClass.name())
+        )
+      );
+      registry.register(
+        MetricRegistry.name(RequestScheduler.class, "queueDepth", schedulingClass.name()),
+        (Gauge<Integer>) queueDepth::get
+      );
+      registry.register(
+        MetricRegistry.name(
+          RequestScheduler.class,
+          "oldestWaitMs",
+          schedulingClass.name()
+        ),
+        (Gauge<Long>) () -> {
+          final long seenAt = oldest.get();
+          return seenAt == 0 ? 0 : System.currentTimeMillis() - seenAt;
+        }
+      );
+    }
+  }
+
+  /*
+   * Updates the per class depth and wait metrics from the requests queued at the start of
+   * a run. Waits are counted from the first run that saw a request pending, which is at
+   * most a poll interval after it was enqueued.
+   */
+  public void recordQueue(List<QueuedRequestWithState> queuedRequests) {
+    final long now = System.currentTimeMillis();
+    final Set<String> pendingRequestIds = new HashSet<>();
+    final Map<RequestSchedulingClass, Integer> depths = new EnumMap<>(
+      RequestSchedulingClass.class
+    );
+    final Map<RequestSchedulingClass, Long> oldest = new EnumMap<>(
+      RequestSchedulingClass.class
+    );
+
+    for (QueuedRequestWithState queuedRequest : queuedRequests) {
+      if (queuedRequest.getCurrentState() != InternalRequestStates.PENDING) {
+        continue;
+      }
+      final String requestId = queuedRequest.getQueuedRequestId().getRequestId();
+      final RequestSchedulingClass schedulingClass = RequestSchedulingClass.of(
+        queuedRequest.getRequest()
+      );
+      pendingRequestIds.add(requestId);
+      depths.merge(schedulingClass, 1, Integer::sum);
+      oldest.merge(
+        schedulingClass,
+        firstSeenAt.computeIfAbsent(requestId, id -> now),
+        Math::min
+      );
+    }
+    firstSeenAt.keySet().retainAll(pendingRequestIds);
+
+    for (RequestSchedulingClass schedulingClass : RequestSchedulingClass.values()) {
+      queueDepths.get(schedulingClass).set(depths.getOrDefault(schedulingClass, 0));
+      oldestFirstSeenAt
+        .get(schedulingClass)
+        .set(oldest.getOrDefault(schedulingClass, 0L));
+    }
+  }
+
+  /*
+   * Records how long the pending requests about to be handled have waited
+   */
+  public void recordDispatched(Collection<QueuedRequestWithState> requests) {
+    final long now = System.currentTimeMillis();
+    for (QueuedRequestWithState request : requests) {
+      if (request.getCurrentState() != InternalRequestStates.PENDING) {
+        continue;
+      }
+      final Long seenAt = firstSeenAt.remove(
+        request.getQueuedRequestId().getRequestId()
+      );
+      if (seenAt != null) {
+        waitTimers
+          .get(RequestSchedulingClass.of(request.getRequest()))
+          .update(now - seenAt, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /*
+   * Reorders the queued requests in place when fair scheduling is enabled, otherwise
+   * leaves them in queue order
+   */
+  public void schedule(List<QueuedRequestWithState> queuedRequests) {
+    if (!workerConfiguration.isFairSchedulingEnabled() || queuedRequests.size() < 2) {
+      return;
+    }
+    final List<QueuedRequestWithState> ordered = fairOrder(queuedRequests, weights);
+    queuedRequests.clear();
+    queuedRequests.addAll(ordered);
+  }
+
+  /*
+   * Each service waits in the lane of the class of its next request. Lanes are picked by
+   * smooth weighted round robin among those with services waiting, and a service goes to
+   * the back of its next request's lane once it has had a turn. A request replacing
+   * another service joins the services up into one, so that it is neither taken up ahead
+   * of the requests queued before it for either of them, nor behind those queued after.
+   */
+  @VisibleForTesting
+  static List<QueuedRequestWithState> fairOrder(
+    List<QueuedRequestWithState> queuedRequests,
+    Map<RequestSchedulingClass, Integer> weights
+  ) {
+    final Map<String, String> replacedBy = new HashMap<>();
+    for (QueuedRequestWithState queuedRequest : queuedRequests) {
+      final Optional<String> replaceServiceId = queuedRequest
+        .getRequest()
+        .getReplaceServiceId();
+      if (replaceServiceId.isPresent()) {
+        final String serviceId = orderedWith(
+          replacedBy,
+          queuedRequest.getQueuedRequestId().getServiceId()
+        );
+        final String replacedServiceId = orderedWith(replacedBy, replaceServiceId.get());
+        if (!serviceId.equals(replacedServiceId)) {
+          replacedBy.put(replacedServiceId, serviceId);
+        }
+      }
+    }
+
+    final Map<String, Deque<QueuedRequestWithState>> queues = new LinkedHashMap<>();
+    for (QueuedRequestWithState queuedRequest : queuedRequests) {
+      queues
+        .computeIfAbsent(
+          orderedWith(replacedBy, queuedRequest.getQueuedRequestId().getServiceId()),
+          serviceId -> new ArrayDeque<>()
+        )
+        .add(queuedRequest);
+    }
+
+    final Map<RequestSchedulingClass, Deque<String>> lanes = new EnumMap<>(
+      RequestSchedulingClass.class
+    );
+    final Map<RequestSchedulingClass, Integer> credits = new EnumMap<>(
+      RequestSchedulingClass.class
+    );
+    for (RequestSchedulingClass schedulingClass : RequestSchedulingClass.values()) {
+      lanes.put(schedulingClass, new ArrayDeque<>());
+      credits.put(schedulingClass, 0);
+    }
+    for (String serviceId : queues.keySet()) {
+      lanes
+        .get(RequestSchedulingClass.of(queues.get(serviceId).peek().getRequest()))
+        .add(serviceId);
+    }
+
+    final List<QueuedRequestWithState> ordered = new ArrayList<>(queuedRequests.size());
+    while (ordered.size() < queuedRequests.size()) {
+      RequestSchedulingClass next = null;
+      int totalWeight = 0;
+      for (RequestSchedulingClass schedulingClass : RequestSchedulingClass.values()) {
+        if (lanes.get(schedulingClass).isEmpty()) {
+          // An idle class doesn't save up turns for later
+          credits.put(schedulingClass, 0);
+          continue;
+        }
+        totalWeight += weights.get(schedulingClass);
+        credits.merge(schedulingClass, weights.get(schedulingClass), Integer::sum);
+        if (next == null || credits.get(schedulingClass) > credits.get(next)) {
+          next = schedulingClass;
+        }
+      }
+      credits.merge(next, -totalWeight, Integer::sum);
+
+      final String serviceId = lanes.get(next).poll();
+      final Deque<QueuedRequestWithState> serviceQueue = queues.get(serviceId);
+      ordered.add(serviceQueue.poll());
+      if (!serviceQueue.isEmpty()) {
+        lanes
+          .get(RequestSchedulingClass.of(serviceQueue.peek().getRequest()))
+          .add(serviceId);
+      }
+    }
+    return ordered;
+  }
+
+  // The service whose queue the requests of the given one are ordered in
+  private static String orderedWith(Map<String, String> replacedBy, String serviceId) {
+    String current = serviceId;
+    while (replacedBy.containsKey(current)) {
+      current = replacedBy.get(current);
+    }
+    return current;
+  }
+}
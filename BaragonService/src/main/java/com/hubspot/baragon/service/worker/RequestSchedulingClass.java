@@ -0,0 +1,34 @@
+package com.hubspot.baragon.service.worker;
+
+import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.RequestAction;
+
+public enum RequestSchedulingClass {
+  UPSTREAM,
+  SERVICE_CHANGE,
+  BULK;
+
+  /*
+   * Chosen from the request alone, without looking up the current service, so that every
+   * queued request can be classified on each run
+   */
+  public static RequestSchedulingClass of(BaragonRequest request) {
+    final RequestAction action = request.getAction().or(RequestAction.UPDATE);
+    if (action == RequestAction.RELOAD) {
+      return BULK;
+    }
+    if (
+      action == RequestAction.UPDATE &&
+      !request.getReplaceServiceId().isPresent() &&
+      (
+        request.isUpstreamUpdateOnly() ||
+        !request.getAddUpstreams().isEmpty() ||
+        !request.getRemoveUpstreams().isEmpty() ||
+        !request.getReplaceUpstreams().isEmpty()
+      )
+    ) {
+      return UPSTREAM;
+    }
+    return SERVICE_CHANGE;
+  }
+}
@@ -58,6 +58,10 @@ public class BaragonServiceTestBase {
   }
 
   protected void startAgent(String baseUrl, String group) {
+    startAgent(baseUrl, group, null);
+  }
+
+  protected void startAgent(String baseUrl, String group, Integer batchVersion) {
     try {
       BaragonAgentMetadata agentMetadata = new BaragonAgentMetadata(
         baseUrl,
@@ -66,7 +70,8 @@ public class BaragonServiceTestBase {
         null,
         Optional.absent(),
         null,
-        true
+        true,
+        batchVersion
       );
       LeaderLatch leaderLatch = loadBalancerDatastore.createLeaderLatch(
         group,
@@ -0,0 +1,148 @@
+package com.hubspot.baragon.service.managers;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonRequestBatch;
+import com.hubspot.baragon.models.BaragonRequestBatchItem;
+import com.hubspot.baragon.models.InternalRequestStates;
+import com.hubspot.baragon.models.QueuedRequestId;
+import com.hubspot.baragon.models.QueuedRequestWithState;
+import com.hubspot.baragon.models.UpstreamInfo;
+import com.hubspot.baragon.service.BaragonServiceTestBase;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class AgentBatchTest extends BaragonServiceTestBase {
+  @Inject
+  BaragonStateDatastore stateDatastore;
+
+  @Inject
+  ObjectMapper objectMapper;
+
+  @Test
+  public void testAgentsGetTheBatchOfTheirVersion() throws Exception {
+    String group = "batch-version";
+    String inlineAgent = "http://inline-agent";
+    String idAgent = "http://id-agent";
+    String legacyAgent = "http://legacy-agent";
+    startAgent(inlineAgent, group, BaragonAgentMetadata.INLINE_BATCH_VERSION);
+    startAgent(idAgent, group, BaragonAgentMetadata.ID_BATCH_VERSION);
+    startAgent(legacyAgent, group);
+    BaragonRequest request = saveAndSend(
+      "batch-version-request",
+      "batch-version-service",
+      group
+    );
+
+    Assertions.assertTrue(
+      testAgentManager.getRecentBatchUrls().get(inlineAgent).endsWith("/inline")
+    );
+    BaragonRequestBatch batch = objectMapper.readValue(
+      testAgentManager.getRecentBatchBodies().get(inlineAgent),
+      BaragonRequestBatch.class
+    );
+    Assertions.assertEquals(
+      testAgentManager.getRecentBatches().get(inlineAgent),
+      batch.getItems()
+    );
+    Assertions.assertEquals(request, batch.getRequests().get("batch-version-request"));
+    Assertions.assertEquals(
+      request.getLoadBalancerService(),
+      batch.getServices().get("batch-version-service")
+    );
+    Assertions.assertEquals(
+      ImmutableList.of("localhost:8080"),
+      batch
+        .getUpstreams()
+        .get("batch-version-service")
+        .stream()
+        .map(UpstreamInfo::getUpstream)
+        .collect(Collectors.toList())
+    );
+
+    // Agents that don't know inline batches get the ids to read from ZooKeeper
+    for (String agent : ImmutableList.of(idAgent, legacyAgent)) {
+      Assertions.assertFalse(
+        testAgentManager.getRecentBatchUrls().get(agent).endsWith("/inline")
+      );
+      Assertions.assertEquals(
+        ImmutableList.of("batch-version-request"),
+        idBatchRequestIds(agent)
+      );
+    }
+  }
+
+  @Test
+  public void testAgentsOfAGroupShareTheInlineBatch() throws Exception {
+    String group = "batch-shared";
+    startAgent("http://shared-agent1", group, BaragonAgentMetadata.INLINE_BATCH_VERSION);
+    startAgent("http://shared-agent2", group, BaragonAgentMetadata.INLINE_BATCH_VERSION);
+    saveAndSend("batch-shared-request", "batch-shared-service", group);
+
+    Assertions.assertSame(
+      testAgentManager.getRecentBatchBodies().get("http://shared-agent1"),
+      testAgentManager.getRecentBatchBodies().get("http://shared-agent2")
+    );
+  }
+
+  @Test
+  public void testUnreadableUpstreamsFallBackToABatchOfIds() throws Exception {
+    String group = "batch-fallback";
+    String agent = "http://fallback-agent";
+    startAgent(agent, group, BaragonAgentMetadata.INLINE_BATCH_VERSION);
+    testAgentManager.getUnreadableUpstreams().add("batch-fallback-service");
+    try {
+      saveAndSend("batch-fallback-request", "batch-fallback-service", group);
+    } finally {
+      testAgentManager.getUnreadableUpstreams().clear();
+    }
+
+    Assertions.assertFalse(
+      testAgentManager.getRecentBatchUrls().get(agent).endsWith("/inline")
+    );
+    Assertions.assertEquals(
+      ImmutableList.of("batch-fallback-request"),
+      idBatchRequestIds(agent)
+    );
+  }
+
+  private BaragonRequest saveAndSend(String requestId, String serviceId, String group)
+    throws Exception {
+    BaragonRequest request = createBaseRequest(
+        requestId,
+        serviceId,
+        ImmutableSet.of(group)
+      )
+      .build();
+    stateDatastore.updateService(request);
+    testAgentManager.sendRequests(
+      ImmutableList.of(
+        new QueuedRequestWithState(
+          new QueuedRequestId(serviceId, requestId, 0),
+          request,
+          InternalRequestStates.SEND_APPLY_REQUESTS
+        )
+      )
+    );
+    return request;
+  }
+
+  private List<String> idBatchRequestIds(String agent) throws Exception {
+    List<BaragonRequestBatchItem> items = objectMapper.readValue(
+      testAgentManager.getRecentBatchBodies().get(agent),
+      new TypeReference<List<BaragonRequestBatchItem>>() {}
+    );
+    return items
+      .stream()
+      .map(BaragonRequestBatchItem::getRequestId)
+      .collect(Collectors.toList());
+  }
+}
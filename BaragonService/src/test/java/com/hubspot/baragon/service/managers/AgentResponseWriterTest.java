@@ -0,0 +1,233 @@
+package com.hubspot.baragon.service.managers;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.inject.Inject;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.AgentResponseUpdate;
+import com.hubspot.baragon.data.BaragonAgentResponseDatastore;
+import com.hubspot.baragon.models.AgentRequestType;
+import com.hubspot.baragon.models.AgentResponseId;
+import com.hubspot.baragon.service.BaragonServiceTestBase;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import com.hubspot.baragon.utils.ZkParallelFetcher;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class AgentResponseWriterTest extends BaragonServiceTestBase {
+  private static final String BASE_URL = "http://agent-writer";
+
+  @Inject
+  CuratorFramework curatorFramework;
+
+  @Inject
+  ObjectMapper objectMapper;
+
+  @Inject
+  ZooKeeperConfiguration zooKeeperConfiguration;
+
+  @Inject
+  ZkParallelFetcher zkFetcher;
+
+  @Test
+  public void testSaturatedWriterDropsWhatDoesNotFitInTheOverflow() throws Exception {
+    GatedDatastore datastore = newDatastore();
+    MetricRegistry registry = new MetricRegistry();
+    AgentResponseWriter writer = newWriter(datastore, registry);
+
+    // One commit blocks the only thread, one fills the queue and one the overflow
+    int recorded = 3;
+    int requests = 5;
+    for (int i = 0; i < requests; i++) {
+      datastore.setPendingRequestStatus("saturated-" + i, BASE_URL, true);
+      writer.write(update("saturated-" + i));
+    }
+    Assertions.assertEquals(
+      requests - recorded,
+      registry.meter(MetricRegistry.name(AgentResponseWriter.class, "dropped")).getCount()
+    );
+
+    datastore.gate.countDown();
+    awaitPendingRequests(datastore, requests - recorded);
+
+    for (int i = 0; i < requests; i++) {
+      // Dropped responses leave their requests pending until the agent request timeout
+      Assertions.assertEquals(
+        i >= recorded,
+        datastore.getPendingRequest("saturated-" + i, BASE_URL).isPresent()
+      );
+      Optional<AgentResponseId> responseId = datastore.getLastAgentResponseId(
+        "saturated-" + i,
+        AgentRequestType.APPLY,
+        BASE_URL
+      );
+      Assertions.assertEquals(i < recorded, responseId.isPresent());
+    }
+  }
+
+  @Test
+  public void testStoppingRecordsQueuedResponses() throws Exception {
+    GatedDatastore datastore = newDatastore();
+    AgentResponseWriter writer = newWriter(datastore, new MetricRegistry());
+
+    for (int i = 0; i < 3; i++) {
+      datastore.setPendingRequestStatus("stopping-" + i, BASE_URL, true);
+      writer.write(update("stopping-" + i));
+    }
+    Assertions.assertFalse(writer.stop(50));
+
+    datastore.gate.countDown();
+    Assertions.assertTrue(writer.stop(TimeUnit.SECONDS.toMillis(30)));
+    Assertions.assertEquals(0, datastore.getPendingRequestsCount(BASE_URL));
+
+    // Nothing is taken once stopped
+    datastore.setPendingRequestStatus("stopped", BASE_URL, true);
+    writer.write(update("stopped"));
+    Assertions.assertTrue(datastore.getPendingRequest("stopped", BASE_URL).isPresent());
+  }
+
+  @Test
+  public void testAppliedCommitWithUnknownOutcomeIsNotRepeated() throws Exception {
+    GatedDatastore datastore = newDatastore();
+    datastore.gate.countDown();
+    datastore.failingCommits.set(1);
+    datastore.applyFailingCommits = true;
+
+    datastore.setPendingRequestStatus("unknown-applied", BASE_URL, true);
+    datastore.addAgentResponses(Collections.singleton(update("unknown-applied")));
+
+    Assertions.assertEquals(
+      1,
+      datastore
+        .getAgentResponseIds("unknown-applied", AgentRequestType.APPLY, BASE_URL)
+        .size()
+    );
+    Assertions.assertFalse(
+      datastore.getPendingRequest("unknown-applied", BASE_URL).isPresent()
+    );
+    Assertions.assertEquals(0, datastore.getPendingRequestsCount(BASE_URL));
+
+    // The marker timing out as well doesn't release the request a second time
+    datastore.setPendingRequestStatus("unknown-applied", BASE_URL, false);
+    Assertions.assertEquals(0, datastore.getPendingRequestsCount(BASE_URL));
+  }
+
+  @Test
+  public void testUnappliedCommitWithUnknownOutcomeIsRetried() throws Exception {
+    GatedDatastore datastore = newDatastore();
+    datastore.gate.countDown();
+    datastore.failingCommits.set(1);
+    datastore.applyFailingCommits = false;
+
+    datastore.setPendingRequestStatus("unknown-unapplied", BASE_URL, true);
+    datastore.addAgentResponses(Collections.singleton(update("unknown-unapplied")));
+
+    Assertions.assertEquals(
+      1,
+      datastore
+        .getAgentResponseIds("unknown-unapplied", AgentRequestType.APPLY, BASE_URL)
+        .size()
+    );
+    Assertions.assertFalse(
+      datastore.getPendingRequest("unknown-unapplied", BASE_URL).isPresent()
+    );
+    Assertions.assertEquals(0, datastore.getPendingRequestsCount(BASE_URL));
+  }
+
+  private GatedDatastore newDatastore() {
+    return new GatedDatastore(
+      curatorFramework,
+      objectMapper,
+      zooKeeperConfiguration,
+      zkFetcher
+    );
+  }
+
+  private static AgentResponseWriter newWriter(
+    BaragonAgentResponseDatastore datastore,
+    MetricRegistry registry
+  ) {
+    BaragonConfiguration configuration = new BaragonConfiguration();
+    configuration.getWorkerConfiguration().setAgentResponseWriterThreads(1);
+    configuration.getWorkerConfiguration().setAgentResponseWriterQueueSize(1);
+    return new AgentResponseWriter(datastore, configuration, registry);
+  }
+
+  private static AgentResponseUpdate update(String requestId) {
+    return new AgentResponseUpdate(
+      requestId,
+      AgentRequestType.APPLY,
+      BASE_URL,
+      BASE_URL + "/request/" + requestId,
+      Optional.of(200),
+      Optional.of(""),
+      Optional.absent()
+    );
+  }
+
+  private static void awaitPendingRequests(
+    BaragonAgentResponseDatastore datastore,
+    int pendingRequests
+  )
+    throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+    while (datastore.getPendingRequestsCount(BASE_URL) > pendingRequests) {
+      Assertions.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /*
+   * Holds every write until the gate opens, and fails the given number of commits with a
+   * connection loss, after applying them if asked to
+   */
+  private static class GatedDatastore extends BaragonAgentResponseDatastore {
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final AtomicInteger failingCommits = new AtomicInteger();
+    private volatile boolean applyFailingCommits;
+
+    GatedDatastore(
+      CuratorFramework curatorFramework,
+      ObjectMapper objectMapper,
+      ZooKeeperConfiguration zooKeeperConfiguration,
+      ZkParallelFetcher zkFetcher
+    ) {
+      super(curatorFramework, objectMapper, zooKeeperConfiguration, zkFetcher);
+    }
+
+    @Override
+    public void addAgentResponses(Collection<AgentResponseUpdate> updates) {
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      super.addAgentResponses(updates);
+    }
+
+    @Override
+    protected void commitAgentResponses(
+      Collection<AgentResponseUpdate> updates,
+      Set<String> pendingRequestPaths
+    )
+      throws Exception {
+      if (failingCommits.getAndDecrement() > 0) {
+        if (applyFailingCommits) {
+          super.commitAgentResponses(updates, pendingRequestPaths);
+        }
+        throw new KeeperException.ConnectionLossException();
+      }
+      super.commitAgentResponses(updates, pendingRequestPaths);
+    }
+  }
+}
@@ -10,22 +10,30 @@ import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
 import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.models.AgentRequestType;
 import com.hubspot.baragon.models.BaragonRequestBatchItem;
+import com.hubspot.baragon.models.UpstreamInfo;
 import com.hubspot.baragon.service.BaragonServiceModule;
 import com.hubspot.baragon.service.config.BaragonConfiguration;
 import com.ning.http.client.AsyncHttpClient;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class TestAgentManager extends AgentManager {
   private final Map<String, String> recentRequests;
   private final Map<String, List<BaragonRequestBatchItem>> recentBatches;
+  private final Map<String, String> recentBatchUrls;
+  private final Map<String, byte[]> recentBatchBodies;
+  private final Set<String> unreadableUpstreams;
 
   @Inject
   public TestAgentManager(
     BaragonLoadBalancerDatastore loadBalancerDatastore,
     BaragonStateDatastore stateDatastore,
     BaragonAgentResponseDatastore agentResponseDatastore,
+    AgentResponseWriter agentResponseWriter,
     BaragonConfiguration configuration,
     ObjectMapper objectMapper,
     @Named(
@@ -47,6 +55,7 @@ public class TestAgentManager extends AgentManager {
       loadBalancerDatastore,
       stateDatastore,
       agentResponseDatastore,
+      agentResponseWriter,
       configuration,
       objectMapper,
       asyncHttpClient,
@@ -58,6 +67,9 @@ public class TestAgentManager extends AgentManager {
     );
     this.recentRequests = new HashMap<>();
     this.recentBatches = new HashMap<>();
+    this.recentBatchUrls = new HashMap<>();
+    this.recentBatchBodies = new HashMap<>();
+    this.unreadableUpstreams = new HashSet<>();
   }
 
   @Override
@@ -72,9 +84,21 @@ public class TestAgentManager extends AgentManager {
   @Override
   void sendFilteredBatchRequests(
     final String baseUrl,
-    final List<BaragonRequestBatchItem> batch
+    final String url,
+    final List<BaragonRequestBatchItem> batch,
+    final byte[] body
   ) {
     recentBatches.put(baseUrl, batch);
+    recentBatchUrls.put(baseUrl, url);
+    recentBatchBodies.put(baseUrl, body);
+  }
+
+  @Override
+  Collection<UpstreamInfo> getUpstreams(String serviceId) {
+    if (unreadableUpstreams.contains(serviceId)) {
+      throw new RuntimeException("Could not read upstreams of " + serviceId);
+    }
+    return super.getUpstreams(serviceId);
   }
 
   public void completeRequestWithFailure(
@@ -120,4 +144,16 @@ public class TestAgentManager extends AgentManager {
   public Map<String, List<BaragonRequestBatchItem>> getRecentBatches() {
     return recentBatches;
   }
+
+  public Map<String, String> getRecentBatchUrls() {
+    return recentBatchUrls;
+  }
+
+  public Map<String, byte[]> getRecentBatchBodies() {
+    return recentBatchBodies;
+  }
+
+  public Set<String> getUnreadableUpstreams() {
+    return unreadableUpstreams;
+  }
 }
@@ -0,0 +1,94 @@
+package com.hubspot.baragon.service.resources;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Inject;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BaragonStateDelta;
+import com.hubspot.baragon.service.BaragonServiceTestBase;
+import java.util.Collection;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.ws.rs.core.Response;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class StateResourceTest extends BaragonServiceTestBase {
+  private static final String TEST_LB_GROUP = "test";
+
+  @Inject
+  StateResource stateResource;
+
+  @Inject
+  BaragonStateDatastore stateDatastore;
+
+  @Test
+  public void testSinceVersionReturnsOnlyTheChangedServices() throws Exception {
+    saveServices("delta-kept", "delta-updated", "delta-removed");
+    final int version = stateDatastore.getStateVersion().get();
+    stateResource.getAllServices(null, null, null);
+
+    saveServices("delta-updated");
+    stateDatastore.removeService("delta-removed");
+    stateDatastore.incrementStateVersion(ImmutableSet.of("delta-removed"));
+
+    final Response response = stateResource.getAllServices(null, null, version);
+    final BaragonStateDelta delta = (BaragonStateDelta) response.getEntity();
+    Assertions.assertFalse(delta.isFullState());
+    Assertions.assertEquals(version, delta.getFromVersion());
+    Assertions.assertEquals(version + 2, delta.getToVersion());
+    Assertions.assertEquals(
+      ImmutableSet.of("delta-updated"),
+      serviceIds(delta.getUpdatedServices())
+    );
+    Assertions.assertEquals(
+      ImmutableList.of("delta-removed"),
+      ImmutableList.copyOf(delta.getRemovedServiceIds())
+    );
+    Assertions.assertEquals(
+      version + 2,
+      response.getMetadata().getFirst(HttpHeaders.ETAG)
+    );
+  }
+
+  @Test
+  public void testSinceVersionBeforeTheKnownChangesReturnsTheFullState()
+    throws Exception {
+    saveServices("full-first", "full-second");
+    final int version = stateDatastore.getStateVersion().get();
+
+    // Older than any change the cache has seen since it was first filled
+    final Response response = stateResource.getAllServices(null, null, -1);
+    final BaragonStateDelta delta = (BaragonStateDelta) response.getEntity();
+    Assertions.assertTrue(delta.isFullState());
+    Assertions.assertEquals(version, delta.getToVersion());
+    Assertions.assertEquals(
+      serviceIds(stateDatastore.getGlobalState()),
+      serviceIds(delta.getUpdatedServices())
+    );
+    Assertions.assertTrue(delta.getRemovedServiceIds().isEmpty());
+  }
+
+  private void saveServices(String... serviceIds) throws Exception {
+    for (String serviceId : serviceIds) {
+      stateDatastore.updateService(
+        createBaseRequest(
+            serviceId + "-request",
+            serviceId,
+            ImmutableSet.of(TEST_LB_GROUP)
+          )
+          .build()
+      );
+    }
+    stateDatastore.incrementStateVersion(ImmutableSet.copyOf(serviceIds));
+  }
+
+  private static Set<String> serviceIds(Collection<BaragonServiceState> states) {
+    return states
+      .stream()
+      .map(state -> state.getService().getServiceId())
+      .collect(Collectors.toSet());
+  }
+}
@@ -6,18 +6,28 @@ import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
+import com.hubspot.baragon.cache.BaragonStateSnapshot;
 import com.hubspot.baragon.models.AgentRequestType;
+import com.hubspot.baragon.models.BaragonRequest;
 import com.hubspot.baragon.models.BaragonRequestBuilder;
+import com.hubspot.baragon.models.BaragonRequestState;
+import com.hubspot.baragon.models.BaragonResponse;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.CoalescedRequests;
 import com.hubspot.baragon.models.InternalRequestStates;
 import com.hubspot.baragon.models.QueuedRequestId;
 import com.hubspot.baragon.models.QueuedRequestWithState;
 import com.hubspot.baragon.models.UpstreamInfo;
 import com.hubspot.baragon.service.BaragonServiceTestBase;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import com.hubspot.baragon.service.worker.BaragonRequestWorker.RequestPartition;
 import com.hubspot.baragon.service.managers.RequestManager;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -31,6 +41,9 @@ public class BaragonRequestWorkerTest extends BaragonServiceTestBase {
   @Inject
   BaragonRequestWorker requestWorker;
 
+  @Inject
+  BaragonConfiguration configuration;
+
   @BeforeEach
   public void beforeEach() {
     // need to clean up requestManager so that the requests to don't persist
@@ -240,4 +253,302 @@ public class BaragonRequestWorkerTest extends BaragonServiceTestBase {
     assertEquals(queuedRequestsWithState.get(1), sortedQueuedRequestsWithState.get(0));
     assertEquals(queuedRequestsWithState.get(0), sortedQueuedRequestsWithState.get(3));
   }
+
+  @Test
+  public void testUpstreamChangesAreCombinedInOrder() {
+    UpstreamInfo a = new UpstreamInfo("a:8080", Optional.absent(), Optional.absent());
+    UpstreamInfo b = new UpstreamInfo("b:8080", Optional.absent(), Optional.absent());
+    UpstreamInfo c = new UpstreamInfo("c:8080", Optional.absent(), Optional.absent());
+    UpstreamInfo d = new UpstreamInfo("d:8080", Optional.absent(), Optional.absent());
+
+    BaragonRequest combined = BaragonRequestWorker.combineUpstreamChanges(
+      Arrays.asList(
+        createBaseRequest("request1", "service1", ImmutableSet.of(TEST_LB_GROUP))
+          .setAddUpstreams(Arrays.asList(a, b))
+          .setRemoveUpstreams(Collections.emptyList())
+          .setNoValidate(true)
+          .build(),
+        createBaseRequest("request2", "service1", ImmutableSet.of(TEST_LB_GROUP))
+          .setAddUpstreams(Collections.singletonList(c))
+          .setRemoveUpstreams(Arrays.asList(a, d))
+          .setNoValidate(false)
+          .build(),
+        createBaseRequest("request3", "service1", ImmutableSet.of(TEST_LB_GROUP))
+          .setAddUpstreams(Collections.singletonList(d))
+          .setRemoveUpstreams(Collections.singletonList(c))
+          .setNoValidate(true)
+          .build()
+      )
+    );
+
+    assertEquals("request1", combined.getLoadBalancerRequestId());
+    assertEquals(Arrays.asList(b, d), combined.getAddUpstreams());
+    assertEquals(Arrays.asList(a, c), combined.getRemoveUpstreams());
+    Assertions.assertFalse(combined.isNoValidate());
+  }
+
+  @Test
+  public void testRequestsSpanningSeveralGroupsJoinTheirPartitions() {
+    List<QueuedRequestWithState> requests = Arrays.asList(
+      queued("partition1", "serviceA", ImmutableSet.of("groupA")),
+      queued("partition2", "serviceB", ImmutableSet.of("groupB")),
+      queued("partition3", "serviceC", ImmutableSet.of("groupC")),
+      queued("partition4", "serviceD", ImmutableSet.of("groupA", "groupB")),
+      queued("partition5", "serviceC", ImmutableSet.of("groupE"))
+    );
+
+    List<RequestPartition> partitions = requestWorker.partitionByGroups(
+      requests,
+      BaragonStateSnapshot.empty(0)
+    );
+
+    assertEquals(2, partitions.size());
+    assertEquals(ImmutableSet.of("groupA", "groupB"), partitions.get(0).groups);
+    assertEquals(
+      Arrays.asList("partition1", "partition2", "partition4"),
+      requestIds(partitions.get(0))
+    );
+    // Requests for the same service share a partition even without a shared group
+    assertEquals(ImmutableSet.of("groupC", "groupE"), partitions.get(1).groups);
+    assertEquals(
+      Arrays.asList("partition3", "partition5"),
+      requestIds(partitions.get(1))
+    );
+  }
+
+  @Test
+  public void testPartitionsIncludeTheGroupsAServiceIsLeaving() {
+    BaragonService movingService = new BaragonService(
+      "movingService",
+      Collections.emptySet(),
+      "movingService",
+      ImmutableSet.of("groupOld"),
+      Collections.emptyMap()
+    );
+    List<RequestPartition> partitions = requestWorker.partitionByGroups(
+      Arrays.asList(
+        queued("leaving1", "movingService", ImmutableSet.of("groupNew")),
+        queued("leaving2", "otherService", ImmutableSet.of("groupOld"))
+      ),
+      new BaragonStateSnapshot(
+        Collections.singletonList(
+          new BaragonServiceState(movingService, Collections.emptyList())
+        ),
+        1
+      )
+    );
+
+    assertEquals(1, partitions.size());
+    assertEquals(ImmutableSet.of("groupOld", "groupNew"), partitions.get(0).groups);
+    assertEquals(
+      ImmutableSet.of("movingService", "otherService"),
+      partitions.get(0).serviceIds
+    );
+  }
+
+  @Test
+  public void testCoalescedRequestsGetTheOutcomeOfTheRequestTheyWereCoalescedInto()
+    throws Exception {
+    String agentUrl = "http://agent3";
+    startAgent(agentUrl, TEST_LB_GROUP);
+    completeRequest(agentUrl, "fanOut0", "fanOutService", "10.0.0.0:8080");
+
+    configuration.getWorkerConfiguration().setCoalesceUpstreamRequests(true);
+    try {
+      BaragonRequest first = enqueueUpstreamChange(
+        "fanOut1",
+        "fanOutService",
+        "10.0.0.1:8080"
+      );
+      enqueueUpstreamChange("fanOut2", "fanOutService", "10.0.0.2:8080");
+      enqueueUpstreamChange("fanOut3", "fanOutService", "10.0.0.3:8080");
+      driveToCompletion(agentUrl, "fanOut1");
+      Assertions.assertFalse(requestManager.getRequestState("fanOut2").isPresent());
+      Assertions.assertFalse(requestManager.getRequestState("fanOut3").isPresent());
+
+      BaragonResponse response = getHistory("fanOutService", "fanOut1");
+      assertEquals(BaragonRequestState.SUCCESS, response.getLoadBalancerState());
+      // History keeps the request as it was enqueued, not as it was sent
+      assertEquals(
+        first.getAddUpstreams(),
+        response.getRequest().get().getAddUpstreams()
+      );
+      for (String requestId : Arrays.asList("fanOut2", "fanOut3")) {
+        BaragonResponse coalesced = getHistory("fanOutService", requestId);
+        assertEquals(BaragonRequestState.SUCCESS, coalesced.getLoadBalancerState());
+        assertEquals(response.getMessage(), coalesced.getMessage());
+        assertEquals(requestId, coalesced.getRequest().get().getLoadBalancerRequestId());
+      }
+    } finally {
+      configuration.getWorkerConfiguration().setCoalesceUpstreamRequests(false);
+    }
+  }
+
+  @Test
+  public void testCoalescedRequestsCancelledWhileInFlightStayCancelled()
+    throws Exception {
+    String agentUrl = "http://agent4";
+    startAgent(agentUrl, TEST_LB_GROUP);
+    completeRequest(agentUrl, "cancel0", "cancelService", "10.0.0.0:8080");
+
+    configuration.getWorkerConfiguration().setCoalesceUpstreamRequests(true);
+    try {
+      enqueueUpstreamChange("cancel1", "cancelService", "10.0.0.1:8080");
+      enqueueUpstreamChange("cancel2", "cancelService", "10.0.0.2:8080");
+      enqueueUpstreamChange("cancel3", "cancelService", "10.0.0.3:8080");
+      requestWorker.run(); // coalesce, move from pending -> send apply
+      assertEquals(
+        Optional.of(InternalRequestStates.CANCELLED_SEND_REVERT_REQUESTS),
+        requestManager.cancelRequest("cancel2")
+      );
+      driveToCompletion(agentUrl, "cancel1");
+
+      assertEquals(
+        BaragonRequestState.SUCCESS,
+        getHistory("cancelService", "cancel1").getLoadBalancerState()
+      );
+      assertEquals(
+        BaragonRequestState.CANCELED,
+        getHistory("cancelService", "cancel2").getLoadBalancerState()
+      );
+      assertEquals(
+        BaragonRequestState.SUCCESS,
+        getHistory("cancelService", "cancel3").getLoadBalancerState()
+      );
+    } finally {
+      configuration.getWorkerConfiguration().setCoalesceUpstreamRequests(false);
+    }
+  }
+
+  @Test
+  public void testRequestsCoalescedIntoTheSameRequestOnLaterRunsAreAllCompleted()
+    throws Exception {
+    String agentUrl = "http://agent5";
+    startAgent(agentUrl, TEST_LB_GROUP);
+    completeRequest(agentUrl, "repeat0", "repeatService", "10.0.0.0:8080");
+
+    BaragonRequest first = enqueueUpstreamChange(
+      "repeat1",
+      "repeatService",
+      "10.0.0.1:8080"
+    );
+    BaragonRequest second = enqueueUpstreamChange(
+      "repeat2",
+      "repeatService",
+      "10.0.0.2:8080"
+    );
+    BaragonRequest third = enqueueUpstreamChange(
+      "repeat3",
+      "repeatService",
+      "10.0.0.3:8080"
+    );
+
+    // As the worker does when the first request is still pending on a later run
+    BaragonRequest combined = BaragonRequestWorker.combineUpstreamChanges(
+      Arrays.asList(first, second)
+    );
+    requestManager.coalesceRequests(
+      combined,
+      new CoalescedRequests(first, Collections.singletonList("repeat2")),
+      queuedRequestIds("repeat2")
+    );
+    requestManager.coalesceRequests(
+      BaragonRequestWorker.combineUpstreamChanges(Arrays.asList(combined, third)),
+      new CoalescedRequests(combined, Collections.singletonList("repeat3")),
+      queuedRequestIds("repeat3")
+    );
+    driveToCompletion(agentUrl, "repeat1");
+
+    BaragonResponse response = getHistory("repeatService", "repeat1");
+    assertEquals(BaragonRequestState.SUCCESS, response.getLoadBalancerState());
+    assertEquals(first.getAddUpstreams(), response.getRequest().get().getAddUpstreams());
+    for (String requestId : Arrays.asList("repeat2", "repeat3")) {
+      assertEquals(
+        BaragonRequestState.SUCCESS,
+        getHistory("repeatService", requestId).getLoadBalancerState()
+      );
+    }
+  }
+
+  private void completeRequest(
+    String agentUrl,
+    String requestId,
+    String serviceId,
+    String upstream
+  )
+    throws Exception {
+    enqueueUpstreamChange(requestId, serviceId, upstream);
+    driveToCompletion(agentUrl, requestId);
+  }
+
+  private BaragonRequest enqueueUpstreamChange(
+    String requestId,
+    String serviceId,
+    String upstream
+  )
+    throws Exception {
+    BaragonRequest request = createBaseRequest(
+        requestId,
+        serviceId,
+        ImmutableSet.of(TEST_LB_GROUP)
+      )
+      .setAddUpstreams(
+        Collections.singletonList(
+          new UpstreamInfo(upstream, Optional.absent(), Optional.absent())
+        )
+      )
+      .setRemoveUpstreams(Collections.emptyList())
+      .build();
+    requestManager.enqueueRequest(request);
+    return request;
+  }
+
+  private void driveToCompletion(String agentUrl, String requestId) {
+    requestWorker.run(); // move from pending -> send apply
+    requestWorker.run(); // actually send
+    testAgentManager.completeRequest(
+      agentUrl,
+      agentUrl,
+      requestId,
+      AgentRequestType.APPLY
+    );
+    requestWorker.run(); // see the response and finish
+    Assertions.assertFalse(requestManager.getRequestState(requestId).isPresent());
+  }
+
+  private BaragonResponse getHistory(String serviceId, String requestId) {
+    Optional<BaragonResponse> maybeResponse = requestManager.getResponse(
+      serviceId,
+      requestId
+    );
+    Assertions.assertTrue(maybeResponse.isPresent(), requestId);
+    return maybeResponse.get();
+  }
+
+  private List<QueuedRequestId> queuedRequestIds(String requestId) {
+    return requestManager
+      .getQueuedRequestIds()
+      .stream()
+      .filter(q -> q.getRequestId().equals(requestId))
+      .collect(Collectors.toList());
+  }
+
+  private static QueuedRequestWithState queued(
+    String requestId,
+    String serviceId,
+    ImmutableSet<String> groups
+  ) {
+    return new QueuedRequestWithState(
+      new QueuedRequestId(serviceId, requestId, 0),
+      createBaseRequest(requestId, serviceId, groups).build(),
+      InternalRequestStates.PENDING
+    );
+  }
+
+  private static List<String> requestIds(RequestPartition partition) {
+    return partition.requests
+      .stream()
+      .map(q -> q.getQueuedRequestId().getRequestId())
+      .collect(Collectors.toList());
+  }
 }
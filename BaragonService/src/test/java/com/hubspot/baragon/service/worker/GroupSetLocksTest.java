@@ -0,0 +1,58 @@
+package com.hubspot.baragon.service.worker;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.jupiter.api.Test;
+
+public class GroupSetLocksTest {
+
+  @Test
+  public void itLetsDisjointGroupsBeHandledConcurrently() {
+    GroupSetLocks groupLocks = new GroupSetLocks();
+
+    assertTrue(groupLocks.tryLock(ImmutableSet.of("a"), ImmutableSet.of("service1")));
+    assertTrue(groupLocks.tryLock(ImmutableSet.of("b"), ImmutableSet.of("service2")));
+  }
+
+  @Test
+  public void itClaimsAllGroupsOfAPartitionOrNone() {
+    GroupSetLocks groupLocks = new GroupSetLocks();
+    assertTrue(groupLocks.tryLock(ImmutableSet.of("b"), ImmutableSet.of("service1")));
+
+    assertFalse(
+      groupLocks.tryLock(ImmutableSet.of("a", "b"), ImmutableSet.of("service2"))
+    );
+    // "a" wasn't claimed by the failed attempt
+    assertTrue(groupLocks.tryLock(ImmutableSet.of("a"), ImmutableSet.of("service3")));
+
+    groupLocks.unlock(ImmutableSet.of("b"), ImmutableSet.of("service1"));
+    assertFalse(groupLocks.isServiceLocked("service1"));
+    assertTrue(groupLocks.tryLock(ImmutableSet.of("b"), ImmutableSet.of("service2")));
+  }
+
+  @Test
+  public void itKeepsAServiceToOnePartition() {
+    GroupSetLocks groupLocks = new GroupSetLocks();
+    assertTrue(groupLocks.tryLock(ImmutableSet.of("a"), ImmutableSet.of("service1")));
+
+    assertTrue(groupLocks.isServiceLocked("service1"));
+    assertFalse(groupLocks.tryLock(ImmutableSet.of("b"), ImmutableSet.of("service1")));
+  }
+
+  @Test
+  public void itWaitsForClaimsToBeReleased() throws Exception {
+    GroupSetLocks groupLocks = new GroupSetLocks();
+    assertTrue(groupLocks.awaitEmpty(0));
+    assertTrue(groupLocks.tryLock(ImmutableSet.of("a"), ImmutableSet.of("service1")));
+    assertFalse(groupLocks.awaitEmpty(10));
+
+    Thread releaser = new Thread(
+      () -> groupLocks.unlock(ImmutableSet.of("a"), ImmutableSet.of("service1"))
+    );
+    releaser.start();
+    assertTrue(groupLocks.awaitEmpty(10000));
+    releaser.join();
+  }
+}
@@ -0,0 +1,60 @@
+package com.hubspot.baragon.service.worker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class QueueShardOwnershipTest {
+  private static final int SHARD_COUNT = 64;
+
+  @Test
+  public void itAssignsEachShardToExactlyOneInstance() {
+    List<String> instances = ImmutableList.of("http://a", "http://b", "http://c");
+
+    Set<Integer> assigned = new HashSet<>();
+    int total = 0;
+    for (String instance : instances) {
+      Set<Integer> shards = QueueShardOwnership.assignShards(
+        instances,
+        instance,
+        SHARD_COUNT
+      );
+      assigned.addAll(shards);
+      total += shards.size();
+    }
+
+    assertEquals(SHARD_COUNT, assigned.size());
+    assertEquals(SHARD_COUNT, total);
+  }
+
+  @Test
+  public void itOnlyMovesShardsToAJoiningInstance() {
+    List<String> before = ImmutableList.of("http://a", "http://b");
+    List<String> after = ImmutableList.of("http://a", "http://b", "http://c");
+
+    for (String instance : before) {
+      Set<Integer> shardsBefore = QueueShardOwnership.assignShards(
+        before,
+        instance,
+        SHARD_COUNT
+      );
+      Set<Integer> shardsAfter = QueueShardOwnership.assignShards(
+        after,
+        instance,
+        SHARD_COUNT
+      );
+      assertTrue(shardsBefore.containsAll(shardsAfter));
+      assertTrue(
+        QueueShardOwnership
+          .assignShards(after, "http://c", SHARD_COUNT)
+          .containsAll(Sets.difference(shardsBefore, shardsAfter))
+      );
+    }
+  }
+}
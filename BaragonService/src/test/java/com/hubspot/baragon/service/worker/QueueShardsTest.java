@@ -0,0 +1,166 @@
+package com.hubspot.baragon.service.worker;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.BaragonRequestDatastore;
+import com.hubspot.baragon.data.BaragonWorkerDatastore;
+import com.hubspot.baragon.models.InternalRequestStates;
+import com.hubspot.baragon.models.QueuedRequestId;
+import com.hubspot.baragon.service.BaragonServiceTestBase;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.framework.state.ConnectionState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class QueueShardsTest extends BaragonServiceTestBase {
+  private static final String TEST_LB_GROUP = "test";
+
+  @Inject
+  BaragonRequestDatastore requestDatastore;
+
+  @Inject
+  BaragonWorkerDatastore workerDatastore;
+
+  @Inject
+  ZooKeeperConfiguration zooKeeperConfiguration;
+
+  @Inject
+  CuratorFramework curatorFramework;
+
+  @AfterEach
+  public void cleanupQueue() {
+    for (QueuedRequestId queuedRequestId : requestDatastore.getQueuedRequestIds()) {
+      requestDatastore.removeQueuedRequest(queuedRequestId);
+      requestDatastore.deleteRequest(queuedRequestId.getRequestId());
+    }
+    zooKeeperConfiguration.setQueueShardCount(0);
+  }
+
+  @Test
+  public void testRequestIsRemovedFromTheShardItWasQueuedIn() throws Exception {
+    final String serviceId = serviceMovingShards(4, 7);
+    zooKeeperConfiguration.setQueueShardCount(4);
+    enqueue("shard-request", serviceId);
+    final List<QueuedRequestId> queued = requestDatastore.getQueuedRequestIds();
+    Assertions.assertEquals(1, queued.size());
+
+    zooKeeperConfiguration.setQueueShardCount(7);
+    requestDatastore.removeQueuedRequest(queued.get(0));
+
+    Assertions.assertEquals(0, requestDatastore.getQueuedRequestCount());
+  }
+
+  @Test
+  public void testRequestIsFoundInAnyQueueWithoutItsQueuePath() throws Exception {
+    final String serviceId = serviceMovingShards(4, 7);
+    zooKeeperConfiguration.setQueueShardCount(4);
+    final QueuedRequestId queued = enqueue("search-request", serviceId);
+
+    zooKeeperConfiguration.setQueueShardCount(7);
+    requestDatastore.removeQueuedRequest(
+      new QueuedRequestId(
+        queued.getServiceId(),
+        queued.getRequestId(),
+        queued.getIndex()
+      )
+    );
+
+    Assertions.assertEquals(0, requestDatastore.getQueuedRequestCount());
+  }
+
+  @Test
+  public void testRequestsInAnotherShardAreAdoptedByTheOwnerOfTheirShard()
+    throws Exception {
+    final String serviceId = serviceMovingShards(4, 7);
+    zooKeeperConfiguration.setQueueShardCount(4);
+    final QueuedRequestId misplaced = enqueue("misplaced-request", serviceId);
+    Assertions.assertTrue(requestDatastore.getMisplacedQueuedRequests().isEmpty());
+
+    zooKeeperConfiguration.setQueueShardCount(7);
+    final QueuedRequestId newer = enqueue("newer-request", serviceId);
+    Assertions.assertEquals(1, requestDatastore.adoptMisplacedQueuedRequests().size());
+
+    // Handled before the service's newer requests, and only by the owner of its shard
+    final Set<Integer> shard = ImmutableSet.of(requestDatastore.getQueueShard(serviceId));
+    Assertions.assertEquals(
+      ImmutableList.of(misplaced.getRequestId(), newer.getRequestId()),
+      requestIds(requestDatastore.getQueuedRequestIds(shard))
+    );
+    final Set<Integer> otherShards = new HashSet<>(ImmutableSet.of(0, 1, 2, 3, 4, 5, 6));
+    otherShards.removeAll(shard);
+    Assertions.assertTrue(requestDatastore.getQueuedRequestIds(otherShards).isEmpty());
+
+    requestDatastore.removeQueuedRequest(misplaced);
+    Assertions.assertEquals(
+      ImmutableList.of(newer.getRequestId()),
+      requestIds(requestDatastore.getQueuedRequestIds(shard))
+    );
+    Assertions.assertTrue(requestDatastore.adoptMisplacedQueuedRequests().isEmpty());
+  }
+
+  @Test
+  public void testRequestsAreNotOwnedOnceTheSessionIsLost() throws Exception {
+    zooKeeperConfiguration.setQueueShardCount(4);
+    final LeaderLatch leaderLatch = workerDatastore.createLeaderLatch("http://shards");
+    leaderLatch.start();
+    try {
+      while (leaderLatch.getParticipants().isEmpty()) {
+        Thread.sleep(10);
+      }
+      final QueueShardOwnership ownership = new QueueShardOwnership(
+        requestDatastore,
+        curatorFramework,
+        zooKeeperConfiguration,
+        leaderLatch,
+        new MetricRegistry()
+      );
+      Assertions.assertEquals(ImmutableSet.of(0, 1, 2, 3), ownership.refresh(true));
+      Assertions.assertTrue(ownership.isOwned("service"));
+
+      // Runs still in progress stop committing results
+      ownership.handleConnectionState(ConnectionState.SUSPENDED);
+      Assertions.assertFalse(ownership.isOwned("service"));
+      ownership.handleConnectionState(ConnectionState.LOST);
+      Assertions.assertFalse(ownership.isOwned("service"));
+      Assertions.assertTrue(ownership.refresh(true).isEmpty());
+    } finally {
+      leaderLatch.close();
+    }
+  }
+
+  private QueuedRequestId enqueue(String requestId, String serviceId) throws Exception {
+    return requestDatastore.enqueueRequest(
+      createBaseRequest(requestId, serviceId, ImmutableSet.of(TEST_LB_GROUP)).build(),
+      InternalRequestStates.PENDING
+    );
+  }
+
+  // A service whose shard differs between the two shard counts
+  private static List<String> requestIds(List<QueuedRequestId> queuedRequestIds) {
+    return queuedRequestIds
+      .stream()
+      .map(QueuedRequestId::getRequestId)
+      .collect(Collectors.toList());
+  }
+
+  private static String serviceMovingShards(int shardCount, int newShardCount) {
+    for (int i = 0;; i++) {
+      final String serviceId = "service" + i;
+      if (
+        Math.floorMod(serviceId.hashCode(), shardCount) !=
+        Math.floorMod(serviceId.hashCode(), newShardCount)
+      ) {
+        return serviceId;
+      }
+    }
+  }
+}
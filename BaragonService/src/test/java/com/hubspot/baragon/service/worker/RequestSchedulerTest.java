@@ -0,0 +1,142 @@
+package com.hubspot.baragon.service.worker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonRequestBuilder;
+import com.hubspot.baragon.models.InternalRequestStates;
+import com.hubspot.baragon.models.QueuedRequestId;
+import com.hubspot.baragon.models.QueuedRequestWithState;
+import com.hubspot.baragon.models.RequestAction;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+public class RequestSchedulerTest {
+
+  @Test
+  public void itLetsUpstreamChangesAheadOfReloadsInServiceOrder() {
+    List<QueuedRequestWithState> queuedRequests = new ArrayList<>();
+    for (int i = 1; i <= 6; i++) {
+      queuedRequests.add(
+        queuedRequest("reload" + i, "service" + i, i, RequestAction.RELOAD)
+      );
+    }
+    queuedRequests.add(queuedRequest("deploy1", "service7", 7, RequestAction.UPDATE));
+    queuedRequests.add(queuedRequest("deploy2", "service7", 8, RequestAction.UPDATE));
+    queuedRequests.add(queuedRequest("deploy3", "service1", 9, RequestAction.UPDATE));
+
+    List<String> order = RequestScheduler
+      .fairOrder(
+        queuedRequests,
+        ImmutableMap.of(
+          RequestSchedulingClass.UPSTREAM,
+          8,
+          RequestSchedulingClass.SERVICE_CHANGE,
+          4,
+          RequestSchedulingClass.BULK,
+          1
+        )
+      )
+      .stream()
+      .map(q -> q.getQueuedRequestId().getRequestId())
+      .collect(Collectors.toList());
+
+    // deploy3 still waits on the reload queued before it for service1
+    assertEquals(
+      Arrays.asList(
+        "deploy1",
+        "deploy2",
+        "reload1",
+        "deploy3",
+        "reload2",
+        "reload3",
+        "reload4",
+        "reload5",
+        "reload6"
+      ),
+      order
+    );
+  }
+
+  @Test
+  public void itKeepsARequestReplacingAServiceInTheOrderOfBoth() {
+    List<QueuedRequestWithState> queuedRequests = new ArrayList<>();
+    queuedRequests.add(queuedRequest("reload1", "oldService", 1, RequestAction.RELOAD));
+    queuedRequests.add(queuedRequest("reload2", "newService", 2, RequestAction.RELOAD));
+    queuedRequests.add(
+      new QueuedRequestWithState(
+        new QueuedRequestId("newService", "rename", 3),
+        new BaragonRequest(
+          "rename",
+          null,
+          Collections.emptyList(),
+          Collections.emptyList(),
+          Collections.emptyList(),
+          Optional.of("oldService"),
+          Optional.of(RequestAction.UPDATE),
+          false,
+          false,
+          false,
+          false,
+          false
+        ),
+        InternalRequestStates.PENDING
+      )
+    );
+    queuedRequests.add(queuedRequest("update1", "oldService", 4, RequestAction.UPDATE));
+    queuedRequests.add(queuedRequest("update2", "otherService", 5, RequestAction.UPDATE));
+
+    List<String> order = RequestScheduler
+      .fairOrder(
+        queuedRequests,
+        ImmutableMap.of(
+          RequestSchedulingClass.UPSTREAM,
+          8,
+          RequestSchedulingClass.SERVICE_CHANGE,
+          4,
+          RequestSchedulingClass.BULK,
+          1
+        )
+      )
+      .stream()
+      .map(q -> q.getQueuedRequestId().getRequestId())
+      .collect(Collectors.toList());
+
+    // The rename waits on the reloads of both services, and update1 on the rename
+    assertEquals(
+      Arrays.asList("update2", "reload1", "reload2", "rename", "update1"),
+      order
+    );
+  }
+
+  private static QueuedRequestWithState queuedRequest(
+    String requestId,
+    String serviceId,
+    int index,
+    RequestAction action
+  ) {
+    return new QueuedRequestWithState(
+      new QueuedRequestId(serviceId, requestId, index),
+      new BaragonRequestBuilder()
+        .setLoadBalancerRequestId(requestId)
+        .setLoadBalancerService(null)
+        .setAddUpstreams(
+          Collections.singletonList(
+            new UpstreamInfo("localhost:8080", Optional.absent(), Optional.absent())
+          )
+        )
+        .setRemoveUpstreams(Collections.emptyList())
+        .setReplaceUpstreams(Collections.emptyList())
+        .setAction(Optional.of(action))
+        .build(),
+      InternalRequestStates.PENDING
+    );
+  }
+}
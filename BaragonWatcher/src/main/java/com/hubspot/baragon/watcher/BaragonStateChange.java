@@ -0,0 +1,58 @@
+package com.hubspot.baragon.watcher;
+
+import com.google.common.base.MoreObjects;
+import com.hubspot.baragon.models.BaragonServiceState;
+import java.util.Collection;
+
+public class BaragonStateChange {
+  private final int version;
+  private final Collection<BaragonServiceState> added;
+  private final Collection<BaragonServiceState> updated;
+  private final Collection<BaragonServiceState> removed;
+
+  public BaragonStateChange(
+    int version,
+    Collection<BaragonServiceState> added,
+    Collection<BaragonServiceState> updated,
+    Collection<BaragonServiceState> removed
+  ) {
+    this.version = version;
+    this.added = added;
+    this.updated = updated;
+    this.removed = removed;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public Collection<BaragonServiceState> getAdded() {
+    return added;
+  }
+
+  public Collection<BaragonServiceState> getUpdated() {
+    return updated;
+  }
+
+  /*
+   * The last known state of each service that was removed
+   */
+  public Collection<BaragonServiceState> getRemoved() {
+    return removed;
+  }
+
+  public boolean isEmpty() {
+    return added.isEmpty() && updated.isEmpty() && removed.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects
+      .toStringHelper(this)
+      .add("version", version)
+      .add("added", added)
+      .add("updated", updated)
+      .add("removed", removed)
+      .toString();
+  }
+}
@@ -1,10 +1,20 @@
 package com.hubspot.baragon.watcher;
 
+import com.google.common.base.Optional;
 import com.google.inject.ImplementedBy;
 import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BaragonStateDelta;
 import java.util.Collection;
 
 @ImplementedBy(DefaultBaragonStateFetcher.class)
 public interface BaragonStateFetcher {
   Collection<BaragonServiceState> fetchState(int version);
+
+  /*
+   * Services changed after fromVersion, up to and including toVersion. Absent when the
+   * changes can't be determined, in which case the full state is fetched instead.
+   */
+  default Optional<BaragonStateDelta> fetchDelta(int fromVersion, int toVersion) {
+    return Optional.absent();
+  }
 }
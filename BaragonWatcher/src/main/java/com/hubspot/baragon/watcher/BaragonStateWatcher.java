@@ -1,17 +1,25 @@
 package com.hubspot.baragon.watcher;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BaragonStateDelta;
 import com.hubspot.ringleader.watcher.Event;
 import com.hubspot.ringleader.watcher.EventListener;
 import com.hubspot.ringleader.watcher.PersistentWatcher;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
@@ -28,22 +36,22 @@ public class BaragonStateWatcher implements Closeable {
 
   private final BaragonStateFetcher stateFetcher;
   private final ListenerContainer<BaragonStateListener> listenerContainer;
+  private final ListenerContainer<BaragonStateDeltaListener> deltaListenerContainer;
   private final ExecutorService executor;
   private final BlockingQueue<Integer> versionQueue;
 
+  // Only touched from the executor thread
+  private final Map<String, BaragonServiceState> currentServices;
+  private int currentVersion;
+
   @Inject
   public BaragonStateWatcher(
     final BaragonStateFetcher stateFetcher,
     Set<BaragonStateListener> listeners,
+    Set<BaragonStateDeltaListener> deltaListeners,
     @Baragon PersistentWatcher watcher
   ) {
-    this.stateFetcher = stateFetcher;
-    this.listenerContainer = new ListenerContainer<>();
-    this.executor = newExecutor();
-    this.versionQueue = new LinkedTransferQueue<>();
-    for (BaragonStateListener listener : listeners) {
-      listenerContainer.addListener(listener);
-    }
+    this(stateFetcher, listeners, deltaListeners);
 
     watcher
       .getEventListenable()
@@ -54,17 +62,7 @@ public class BaragonStateWatcher implements Closeable {
           public void newEvent(Event event) {
             switch (event.getType()) {
               case NODE_UPDATED:
-                int version = event.getStat().getVersion();
-                versionQueue.add(version);
-                executor.submit(
-                  new Runnable() {
-
-                    @Override
-                    public void run() {
-                      updateToLatestVersion();
-                    }
-                  }
-                );
+                versionUpdated(event.getStat().getVersion());
                 break;
               case NODE_DELETED:
                 LOG.warn("Baragon state node was deleted");
@@ -81,20 +79,68 @@ public class BaragonStateWatcher implements Closeable {
     watcher.start();
   }
 
+  @VisibleForTesting
+  BaragonStateWatcher(
+    BaragonStateFetcher stateFetcher,
+    Set<BaragonStateListener> listeners,
+    Set<BaragonStateDeltaListener> deltaListeners
+  ) {
+    this.stateFetcher = stateFetcher;
+    this.listenerContainer = new ListenerContainer<>();
+    this.deltaListenerContainer = new ListenerContainer<>();
+    this.executor = newExecutor();
+    this.versionQueue = new LinkedTransferQueue<>();
+    this.currentServices = new HashMap<>();
+    this.currentVersion = -1;
+    for (BaragonStateListener listener : listeners) {
+      listenerContainer.addListener(listener);
+    }
+    for (BaragonStateDeltaListener listener : deltaListeners) {
+      deltaListenerContainer.addListener(listener);
+    }
+  }
+
   @Override
   public void close() throws IOException {
     executor.shutdown();
   }
 
+  @VisibleForTesting
+  void versionUpdated(int version) {
+    versionQueue.add(version);
+    executor.submit(
+      new Runnable() {
+
+        @Override
+        public void run() {
+          updateToLatestVersion();
+        }
+      }
+    );
+  }
+
   private void updateToLatestVersion() {
     Deque<Integer> versions = new ArrayDeque<>();
     versionQueue.drainTo(versions);
 
     if (!versions.isEmpty()) {
       int latestVersion = versions.getLast();
-      final Collection<BaragonServiceState> newState = stateFetcher.fetchState(
-        latestVersion
-      );
+      Optional<BaragonStateDelta> maybeDelta = currentVersion >= 0
+        ? stateFetcher.fetchDelta(currentVersion, latestVersion)
+        : Optional.<BaragonStateDelta>absent();
+
+      final Collection<BaragonServiceState> newState;
+      final BaragonStateChange change;
+      if (maybeDelta.isPresent() && !maybeDelta.get().isFullState()) {
+        change = applyDelta(maybeDelta.get());
+        newState = ImmutableList.copyOf(currentServices.values());
+      } else {
+        newState =
+          maybeDelta.isPresent()
+            ? maybeDelta.get().getUpdatedServices()
+            : stateFetcher.fetchState(latestVersion);
+        change = replaceState(latestVersion, newState);
+      }
 
       listenerContainer.forEach(
         new Function<BaragonStateListener, Void>() {
@@ -106,7 +152,77 @@ public class BaragonStateWatcher implements Closeable {
           }
         }
       );
+
+      if (!change.isEmpty()) {
+        deltaListenerContainer.forEach(
+          new Function<BaragonStateDeltaListener, Void>() {
+
+            @Override
+            public Void apply(BaragonStateDeltaListener listener) {
+              listener.stateChanged(change);
+              return null;
+            }
+          }
+        );
+      }
+    }
+  }
+
+  private BaragonStateChange applyDelta(BaragonStateDelta delta) {
+    List<BaragonServiceState> added = new ArrayList<>();
+    List<BaragonServiceState> updated = new ArrayList<>();
+    List<BaragonServiceState> removed = new ArrayList<>();
+
+    for (BaragonServiceState state : delta.getUpdatedServices()) {
+      BaragonServiceState previous = currentServices.put(
+        state.getService().getServiceId(),
+        state
+      );
+      if (previous == null) {
+        added.add(state);
+      } else if (!previous.equals(state)) {
+        updated.add(state);
+      }
+    }
+    for (String serviceId : delta.getRemovedServiceIds()) {
+      BaragonServiceState previous = currentServices.remove(serviceId);
+      if (previous != null) {
+        removed.add(previous);
+      }
     }
+
+    currentVersion = delta.getToVersion();
+    return new BaragonStateChange(currentVersion, added, updated, removed);
+  }
+
+  private BaragonStateChange replaceState(
+    int version,
+    Collection<BaragonServiceState> newState
+  ) {
+    Map<String, BaragonServiceState> previousServices = new HashMap<>(currentServices);
+    List<BaragonServiceState> added = new ArrayList<>();
+    List<BaragonServiceState> updated = new ArrayList<>();
+
+    currentServices.clear();
+    for (BaragonServiceState state : newState) {
+      currentServices.put(state.getService().getServiceId(), state);
+      BaragonServiceState previous = previousServices.remove(
+        state.getService().getServiceId()
+      );
+      if (previous == null) {
+        added.add(state);
+      } else if (!previous.equals(state)) {
+        updated.add(state);
+      }
+    }
+
+    currentVersion = version;
+    return new BaragonStateChange(
+      version,
+      added,
+      updated,
+      new ArrayList<>(previousServices.values())
+    );
   }
 
   private ExecutorService newExecutor() {
@@ -7,6 +7,7 @@ import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.google.inject.multibindings.Multibinder;
 import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.models.BaragonStatePaths;
 import com.hubspot.ringleader.watcher.PersistentWatcher;
 import com.hubspot.ringleader.watcher.WatcherFactory;
 import org.apache.curator.framework.CuratorFramework;
@@ -20,6 +21,7 @@ public class BaragonWatcherModule extends AbstractModule {
     bind(BaragonStateWatcher.class).asEagerSingleton();
 
     Multibinder.newSetBinder(binder(), BaragonStateListener.class);
+    Multibinder.newSetBinder(binder(), BaragonStateDeltaListener.class);
   }
 
   @Baragon
@@ -59,6 +61,6 @@ public class BaragonWatcherModule extends AbstractModule {
         }
       }
     )
-    .dataWatcher("/state-last-updated");
+    .dataWatcher(BaragonStatePaths.LAST_UPDATED_FORMAT);
   }
 }
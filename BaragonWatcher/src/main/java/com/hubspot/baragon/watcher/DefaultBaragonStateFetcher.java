@@ -1,43 +1,297 @@
 package com.hubspot.baragon.watcher;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.inject.Inject;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.models.BaragonService;
 import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BaragonStateDelta;
+import com.hubspot.baragon.models.BaragonStatePaths;
+import com.hubspot.baragon.models.UpstreamBlob;
+import com.hubspot.baragon.models.UpstreamInfo;
 import com.hubspot.ringleader.watcher.PersistentWatcher;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.api.BackgroundCallback;
 import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.zookeeper.KeeperException;
 
+/*
+ * Reads the full state and the changes to it from the same nodes: the node of each
+ * service, with its upstreams either as its children or in its upstream blob.
+ */
 public class DefaultBaragonStateFetcher implements BaragonStateFetcher {
+  private static final int MAX_BLOB_READ_ATTEMPTS = 3;
+
   private final AtomicReference<CuratorFramework> curatorReference;
   private final ObjectMapper mapper;
+  private final int maxInFlightReads;
 
   @Inject
   public DefaultBaragonStateFetcher(
     @Baragon PersistentWatcher watcher,
-    ObjectMapper mapper
+    ObjectMapper mapper,
+    ZooKeeperConfiguration config
   ) {
     this.curatorReference = watcher.getCuratorReference();
     this.mapper = mapper;
+    this.maxInFlightReads = config.getParallelFetchMaxInFlight();
   }
 
   @Override
   public Collection<BaragonServiceState> fetchState(int version) {
     try {
       syncStateNode();
-      byte[] data = curatorReference.get().getData().forPath("/state");
-      return mapper.readValue(data, new TypeReference<List<BaragonServiceState>>() {});
+      CuratorFramework curator = curatorReference.get();
+      List<String> serviceIds = curator
+        .getChildren()
+        .forPath(BaragonStatePaths.SERVICES_FORMAT);
+      return fetchServiceStates(curator, serviceIds).values();
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public Optional<BaragonStateDelta> fetchDelta(int fromVersion, int toVersion) {
+    if (
+      toVersion < fromVersion ||
+      toVersion - fromVersion > BaragonStatePaths.CHANGELOG_SIZE
+    ) {
+      return Optional.absent();
+    }
+
+    try {
+      syncStateNode();
+      CuratorFramework curator = curatorReference.get();
+
+      List<String> entryPaths = new ArrayList<>(toVersion - fromVersion);
+      for (int version = fromVersion + 1; version <= toVersion; version++) {
+        entryPaths.add(String.format(BaragonStatePaths.CHANGELOG_ENTRY_FORMAT, version));
+      }
+      Map<String, byte[]> entries = fetchData(curator, entryPaths);
+
+      Set<String> changedServiceIds = new LinkedHashSet<>();
+      for (String entryPath : entryPaths) {
+        byte[] entry = entries.get(entryPath);
+        if (entry == null) {
+          // Truncated, or the version was bumped without recording its changes
+          return Optional.absent();
+        }
+        Collections.addAll(changedServiceIds, mapper.readValue(entry, String[].class));
+      }
+
+      Map<String, BaragonServiceState> states = fetchServiceStates(
+        curator,
+        changedServiceIds
+      );
+      List<BaragonServiceState> updatedServices = new ArrayList<>();
+      List<String> removedServiceIds = new ArrayList<>();
+      for (String serviceId : changedServiceIds) {
+        BaragonServiceState state = states.get(serviceId);
+        if (state != null) {
+          updatedServices.add(state);
+        } else {
+          removedServiceIds.add(serviceId);
+        }
+      }
+
+      return Optional.of(
+        new BaragonStateDelta(
+          fromVersion,
+          toVersion,
+          false,
+          updatedServices,
+          removedServiceIds
+        )
+      );
     } catch (Exception e) {
       throw Throwables.propagate(e);
     }
   }
 
+  // The state of each of the services that still exists, by serviceId
+  private Map<String, BaragonServiceState> fetchServiceStates(
+    CuratorFramework curator,
+    Collection<String> serviceIds
+  )
+    throws Exception {
+    Map<String, byte[]> services = fetchData(
+      curator,
+      toPaths(BaragonStatePaths.SERVICE_FORMAT, serviceIds)
+    );
+    Map<String, byte[]> blobs = fetchData(
+      curator,
+      toPaths(BaragonStatePaths.UPSTREAM_BLOB_FORMAT, serviceIds)
+    );
+
+    // Children are only upstreams while a service has no blob
+    List<String> nodeServiceIds = new ArrayList<>();
+    for (String serviceId : serviceIds) {
+      if (!blobs.containsKey(path(BaragonStatePaths.UPSTREAM_BLOB_FORMAT, serviceId))) {
+        nodeServiceIds.add(serviceId);
+      }
+    }
+    Map<String, List<String>> children = readInBackground(
+      toPaths(BaragonStatePaths.SERVICE_FORMAT, nodeServiceIds),
+      (path, callback) -> curator.getChildren().inBackground(callback).forPath(path),
+      CuratorEvent::getChildren
+    );
+
+    Map<String, BaragonServiceState> states = new HashMap<>();
+    for (String serviceId : serviceIds) {
+      String servicePath = path(BaragonStatePaths.SERVICE_FORMAT, serviceId);
+      byte[] serviceData = services.get(servicePath);
+      if (serviceData == null) {
+        continue;
+      }
+
+      BaragonService service = mapper.readValue(serviceData, BaragonService.class);
+      byte[] blobData = blobs.get(
+        path(BaragonStatePaths.UPSTREAM_BLOB_FORMAT, serviceId)
+      );
+      List<UpstreamInfo> upstreams = new ArrayList<>();
+      if (blobData != null) {
+        UpstreamBlob blob = UpstreamBlob.fromBytes(blobData);
+        upstreams.addAll(
+          blob.isChunked()
+            ? fetchChunkedUpstreams(curator, serviceId, blob)
+            : blob.toUpstreams(Collections.emptyList())
+        );
+      } else if (children.containsKey(servicePath)) {
+        for (String upstream : children.get(servicePath)) {
+          upstreams.add(UpstreamInfo.fromString(upstream));
+        }
+      }
+      states.put(serviceId, new BaragonServiceState(service, upstreams));
+    }
+    return states;
+  }
+
+  private List<UpstreamInfo> fetchChunkedUpstreams(
+    CuratorFramework curator,
+    String serviceId,
+    UpstreamBlob blob
+  )
+    throws Exception {
+    String blobPath = path(BaragonStatePaths.UPSTREAM_BLOB_FORMAT, serviceId);
+    String chunksPath = path(BaragonStatePaths.UPSTREAM_BLOB_CHUNKS_FORMAT, serviceId);
+    for (int attempt = 1;; attempt++) {
+      try {
+        List<byte[]> chunks = new ArrayList<>();
+        for (String chunkName : blob.getChunkNames()) {
+          chunks.add(curator.getData().forPath(chunksPath + "/" + chunkName));
+        }
+        return blob.toUpstreams(chunks);
+      } catch (KeeperException.NoNodeException nne) {
+        // The blob was rewritten while reading its chunks
+        if (attempt >= MAX_BLOB_READ_ATTEMPTS) {
+          throw nne;
+        }
+      }
+
+      try {
+        blob = UpstreamBlob.fromBytes(curator.getData().forPath(blobPath));
+      } catch (KeeperException.NoNodeException nne) {
+        // Switched back to a node per upstream, or removed, since it was listed
+        return Collections.emptyList();
+      }
+    }
+  }
+
+  private Map<String, byte[]> fetchData(CuratorFramework curator, List<String> paths)
+    throws Exception {
+    return readInBackground(
+      paths,
+      (path, callback) -> curator.getData().inBackground(callback).forPath(path),
+      CuratorEvent::getData
+    );
+  }
+
+  private interface BackgroundRead {
+    void start(String path, BackgroundCallback callback) throws Exception;
+  }
+
+  /*
+   * Reads every path in the background, keeping up to the configured number of reads in
+   * flight, and waits for all of them. Paths that don't exist are left out. Permits are
+   * only ever acquired on the calling thread: they are released by the callbacks, which
+   * run on the curator event thread and would deadlock it by waiting for one.
+   */
+  private <T> Map<String, T> readInBackground(
+    List<String> paths,
+    BackgroundRead read,
+    Function<CuratorEvent, T> result
+  )
+    throws Exception {
+    final Map<String, T> results = new ConcurrentHashMap<>();
+    final AtomicReference<KeeperException> failure = new AtomicReference<>();
+    final Semaphore inFlight = new Semaphore(maxInFlightReads);
+    final CountDownLatch latch = new CountDownLatch(paths.size());
+
+    for (String path : paths) {
+      inFlight.acquire();
+      try {
+        read.start(
+          path,
+          (client, event) -> {
+            try {
+              KeeperException.Code code = KeeperException.Code.get(
+                event.getResultCode()
+              );
+              if (code == KeeperException.Code.OK) {
+                results.put(event.getPath(), result.apply(event));
+              } else if (code != KeeperException.Code.NONODE) {
+                failure.compareAndSet(
+                  null,
+                  KeeperException.create(code, event.getPath())
+                );
+              }
+            } finally {
+              inFlight.release();
+              latch.countDown();
+            }
+          }
+        );
+      } catch (Exception e) {
+        inFlight.release();
+        throw e;
+      }
+    }
+
+    latch.await();
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    return results;
+  }
+
+  private static List<String> toPaths(String format, Collection<String> serviceIds) {
+    List<String> paths = new ArrayList<>(serviceIds.size());
+    for (String serviceId : serviceIds) {
+      paths.add(path(format, serviceId));
+    }
+    return paths;
+  }
+
+  private static String path(String format, String serviceId) {
+    return String.format(format, serviceId);
+  }
+
   private void syncStateNode() throws Exception {
     final CountDownLatch latch = new CountDownLatch(1);
     curatorReference
@@ -53,7 +307,7 @@ public class DefaultBaragonStateFetcher implements BaragonStateFetcher {
           }
         }
       )
-      .forPath("/state");
+      .forPath(BaragonStatePaths.SERVICES_FORMAT);
 
     latch.await();
   }
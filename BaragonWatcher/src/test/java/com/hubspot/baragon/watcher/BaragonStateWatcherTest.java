@@ -0,0 +1,177 @@
+package com.hubspot.baragon.watcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BaragonStateDelta;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BaragonStateWatcherTest {
+  private ScriptedStateFetcher stateFetcher;
+  private BlockingQueue<Collection<BaragonServiceState>> states;
+  private BlockingQueue<BaragonStateChange> changes;
+  private BaragonStateWatcher watcher;
+
+  @BeforeEach
+  public void setup() {
+    stateFetcher = new ScriptedStateFetcher();
+    states = new LinkedBlockingQueue<>();
+    changes = new LinkedBlockingQueue<>();
+    BaragonStateListener stateListener = states::add;
+    BaragonStateDeltaListener deltaListener = changes::add;
+    watcher =
+      new BaragonStateWatcher(
+        stateFetcher,
+        ImmutableSet.of(stateListener),
+        ImmutableSet.of(deltaListener)
+      );
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    watcher.close();
+  }
+
+  @Test
+  public void itAppliesDeltasToTheLastFullState() throws Exception {
+    stateFetcher.fullState = ImmutableList.of(state("one", "a:80"), state("two", "b:80"));
+    watcher.versionUpdated(1);
+    BaragonStateChange initial = nextChange();
+    assertEquals(1, initial.getVersion());
+    assertEquals(ImmutableSet.of("one", "two"), serviceIds(initial.getAdded()));
+    assertEquals(ImmutableSet.of("one", "two"), serviceIds(nextState()));
+
+    stateFetcher.deltas.add(
+      new BaragonStateDelta(
+        1,
+        3,
+        false,
+        ImmutableList.of(state("two", "c:80"), state("three", "d:80")),
+        ImmutableList.of("one")
+      )
+    );
+    watcher.versionUpdated(3);
+
+    BaragonStateChange change = nextChange();
+    assertEquals(3, change.getVersion());
+    assertEquals(ImmutableSet.of("three"), serviceIds(change.getAdded()));
+    assertEquals(ImmutableSet.of("two"), serviceIds(change.getUpdated()));
+    assertEquals(ImmutableSet.of("one"), serviceIds(change.getRemoved()));
+    assertEquals(ImmutableSet.of("two", "three"), serviceIds(nextState()));
+    assertEquals(ImmutableList.of("1-3"), stateFetcher.deltaRequests);
+    assertEquals(1, stateFetcher.fullFetches);
+  }
+
+  @Test
+  public void itFetchesTheFullStateWhenTheDeltaIsUnknown() throws Exception {
+    stateFetcher.fullState = ImmutableList.of(state("one", "a:80"));
+    watcher.versionUpdated(1);
+    nextChange();
+    nextState();
+
+    // No delta from version 1, e.g. because the changelog was truncated
+    stateFetcher.fullState = ImmutableList.of(state("one", "b:80"), state("two", "c:80"));
+    watcher.versionUpdated(2);
+
+    BaragonStateChange change = nextChange();
+    assertEquals(2, change.getVersion());
+    assertEquals(ImmutableSet.of("two"), serviceIds(change.getAdded()));
+    assertEquals(ImmutableSet.of("one"), serviceIds(change.getUpdated()));
+    assertTrue(change.getRemoved().isEmpty());
+    assertEquals(ImmutableSet.of("one", "two"), serviceIds(nextState()));
+    assertEquals(ImmutableList.of("1-2"), stateFetcher.deltaRequests);
+    assertEquals(2, stateFetcher.fullFetches);
+  }
+
+  @Test
+  public void itReplacesTheStateWithAFullDelta() throws Exception {
+    stateFetcher.fullState = ImmutableList.of(state("one", "a:80"), state("two", "b:80"));
+    watcher.versionUpdated(1);
+    nextChange();
+    nextState();
+
+    stateFetcher.deltas.add(
+      BaragonStateDelta.full(1, 2, ImmutableList.of(state("two", "b:80")))
+    );
+    watcher.versionUpdated(2);
+
+    BaragonStateChange change = nextChange();
+    assertTrue(change.getAdded().isEmpty());
+    assertTrue(change.getUpdated().isEmpty());
+    assertEquals(ImmutableSet.of("one"), serviceIds(change.getRemoved()));
+    assertEquals(ImmutableSet.of("two"), serviceIds(nextState()));
+    assertEquals(1, stateFetcher.fullFetches);
+  }
+
+  private BaragonStateChange nextChange() throws InterruptedException {
+    BaragonStateChange change = changes.poll(10, TimeUnit.SECONDS);
+    assertNotNull(change, "No state change");
+    return change;
+  }
+
+  private Collection<BaragonServiceState> nextState() throws InterruptedException {
+    Collection<BaragonServiceState> state = states.poll(10, TimeUnit.SECONDS);
+    assertNotNull(state, "No state");
+    return state;
+  }
+
+  private static Set<String> serviceIds(Collection<BaragonServiceState> states) {
+    return states
+      .stream()
+      .map(state -> state.getService().getServiceId())
+      .collect(Collectors.toSet());
+  }
+
+  private static BaragonServiceState state(String serviceId, String upstream) {
+    return new BaragonServiceState(
+      new BaragonService(
+        serviceId,
+        Collections.emptySet(),
+        "/" + serviceId,
+        ImmutableSet.of("test"),
+        Collections.emptyMap()
+      ),
+      ImmutableList.of(new UpstreamInfo(upstream, Optional.absent(), Optional.absent()))
+    );
+  }
+
+  // Hands out the queued deltas in order, and absent once they run out
+  private static class ScriptedStateFetcher implements BaragonStateFetcher {
+    private final BlockingQueue<BaragonStateDelta> deltas = new LinkedBlockingQueue<>();
+    private final List<String> deltaRequests = Collections.synchronizedList(
+      new ArrayList<>()
+    );
+    private volatile Collection<BaragonServiceState> fullState = ImmutableList.of();
+    private volatile int fullFetches = 0;
+
+    @Override
+    public Collection<BaragonServiceState> fetchState(int version) {
+      fullFetches++;
+      return fullState;
+    }
+
+    @Override
+    public Optional<BaragonStateDelta> fetchDelta(int fromVersion, int toVersion) {
+      deltaRequests.add(fromVersion + "-" + toVersion);
+      return Optional.fromNullable(deltas.poll());
+    }
+  }
+}